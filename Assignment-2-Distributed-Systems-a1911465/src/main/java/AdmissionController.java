@@ -0,0 +1,185 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionController bounds the amount of work the Aggregation Server takes on.
+ * Accepted connections are handed to a fixed pool of worker threads through a bounded queue.
+ * Once the queue is full, new connections are shed straight away with a 503 response and a
+ * Retry-After hint, so a burst degrades into fast rejections instead of unbounded threads.
+ * A kept-alive connection holds its worker while it waits for the next request, so only half of the
+ * workers may do so; the rest always come free for new connections.
+ */
+public class AdmissionController {
+    static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors() * 2; // Default worker thread count
+    static final int DEFAULT_QUEUE_CAPACITY = 256; // Default number of connections allowed to wait
+    static final int RETRY_AFTER_SECONDS = 1; // Retry-After hint sent with 503 responses
+
+    private final ThreadPoolExecutor workers;
+    private final Semaphore keepAlivePermits; // One per worker allowed to wait on an idle kept-alive connection
+    private final AtomicInteger inFlight = new AtomicInteger(); // Tasks handed to the pool and not yet finished
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+
+    /**
+     * Creates an admission controller with a fixed worker pool and a bounded wait queue.
+     *
+     * @param workerCount   The number of worker threads handling connections.
+     * @param queueCapacity The maximum number of connections waiting for a worker.
+     */
+    public AdmissionController(int workerCount, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> new Thread(task, "aggregation-worker-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        keepAlivePermits = new Semaphore(workerCount / 2);
+    }
+
+    /**
+     * Claims the right to keep a connection open between requests for the worker serving it.
+     * The caller answers with Connection: close when no permit is left, and returns a claimed
+     * permit with endKeepAlive once the connection is closed or parked.
+     *
+     * @return true if the connection may be kept alive.
+     */
+    public boolean tryKeepAlive() {
+        return keepAlivePermits.tryAcquire();
+    }
+
+    /**
+     * Returns a permit claimed with tryKeepAlive.
+     */
+    public void endKeepAlive() {
+        keepAlivePermits.release();
+    }
+
+    /**
+     * Queues a connection for a worker, or sheds it with a 503 response if the queue is full.
+     * Shedding happens on the calling thread and never reads the request.
+     *
+     * @param clientSocket The accepted client connection.
+     * @param handler      The task that serves the connection.
+     * @return true if the connection was admitted, false if it was shed.
+     */
+    public boolean admit(Socket clientSocket, Runnable handler) {
+        if (!resume(clientSocket, handler)) {
+            return false;
+        }
+        acceptedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Queues more work for a connection that was already admitted, such as answering a parked GET,
+     * or sheds the connection with a 503 response if the queue is full.
+     *
+     * @param clientSocket The admitted client connection.
+     * @param task         The task that continues serving the connection.
+     * @return true if the task was queued, false if the connection was shed.
+     */
+    public boolean resume(Socket clientSocket, Runnable task) {
+        boolean waits = inFlight.incrementAndGet() > workers.getMaximumPoolSize(); // Every worker is busy
+        try {
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            shedCount.incrementAndGet();
+            reject(clientSocket);
+            return false;
+        }
+        if (waits) {
+            queuedCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a 503 Service Unavailable response with Retry-After and closes the connection.
+     *
+     * @param clientSocket The connection being shed.
+     */
+    private static void reject(Socket clientSocket) {
+        try {
+            DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream());
+            AggregationServer.writeResponse(outputData, "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + RETRY_AFTER_SECONDS + "\r\n\r\nServer busy.");
+            outputData.flush();
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            System.err.println("Failed to send 503 response: " + e.getMessage());
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close shed connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of connections handed to the worker pool.
+     *
+     * @return The accepted connection count.
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * Gets the number of tasks that had to wait in the queue because every worker was busy.
+     *
+     * @return The queued task count.
+     */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * Gets the number of tasks waiting for a worker right now.
+     *
+     * @return The current queue depth.
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Gets the number of connections rejected with a 503 response.
+     *
+     * @return The shed connection count.
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * Stops the worker pool; queued connections are still served.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Returns a one-line summary of the admission counters.
+     *
+     * @return The counters in a readable format.
+     */
+    @Override
+    public String toString() {
+        return "accepted=" + getAcceptedCount() + ", queued=" + getQueuedCount() + ", shed=" + getShedCount();
+    }
+}
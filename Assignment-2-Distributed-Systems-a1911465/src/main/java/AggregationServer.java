@@ -1,11 +1,19 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -19,50 +27,86 @@ public class AggregationServer {
     static final Map<Socket, String> serverIds = new ConcurrentHashMap<>(); // Map to store server IDs
     static final Map<Socket, Long> serverLastActiveTime = new ConcurrentHashMap<>(); // Map to track last active time of servers
     private static final List<Weather> recentWeatherData = new ArrayList<>(); // List to hold recent weather data
+    static final Map<String, StationHistory> stationHistories = new ConcurrentHashMap<>(); // Ring buffer of readings per station
+    static final Map<String, String> latestStationJson = new ConcurrentHashMap<>(); // Latest reading of each station, encoded once per PUT
+    private static volatile CompressedReading compressedLatest; // Compressed forms of the reading served to full GETs
     private static final long CONNECTION_TIMEOUT = 30000; // 30-second timeout for inactive connections
+    private static final ExpiryIndex<Socket> connectionExpiry = new ExpiryIndex<>(); // Idle deadline of each connection
     private static final String DATA_FILE = "data/weatherData.json"; // File to store weather data
-    private static ObjectOutput outputData;
+    private static final String TEMP_FILE = "data/weatherData.tmp"; // Written in full, then renamed over DATA_FILE
+    static final int KEEP_ALIVE_TIMEOUT_MILLIS = 15000; // Idle time before a kept-alive connection is closed
+    static final int MAX_REQUESTS_PER_CONNECTION = 100; // Requests served on one connection before it is closed
+    static final LamportClock lamportClock = new LamportClock(); // Server clock, advanced by every request without locking
+    static final ChangeWatchers changeWatchers = new ChangeWatchers(); // Long-poll GETs waiting for the next PUT
+    private static final GroupCommitter<String> saveCommitter = new GroupCommitter<>("save-writer",
+            batch -> writeWeatherData(), GroupCommitter.DEFAULT_WINDOW_MILLIS, GroupCommitter.DEFAULT_MAX_BATCH); // Shares one fsync between concurrent PUTs
+    private static AdmissionController admissionController =
+            new AdmissionController(AdmissionController.DEFAULT_WORKERS, AdmissionController.DEFAULT_QUEUE_CAPACITY); // Bounds concurrent connection handling
 
     /**
      * Main method to start the Aggregation Server.
      *
-     * @param args Command line arguments for port configuration
+     * @param args Command line arguments: port, worker thread count and queue capacity (all optional)
      */
     public static void main(String[] args) {
         int port = (args.length > 0) ? Integer.parseInt(args[0]) : 4567; // Default port is 4567
+        int workers = (args.length > 1) ? Integer.parseInt(args[1]) : AdmissionController.DEFAULT_WORKERS;
+        int queueCapacity = (args.length > 2) ? Integer.parseInt(args[2]) : AdmissionController.DEFAULT_QUEUE_CAPACITY;
+        admissionController = new AdmissionController(workers, queueCapacity); // Bounded worker pool and queue
         loadWeatherData(); // Load existing weather data at startup
-        startDataCleanupThread(); // Start a thread for cleaning up stale data
-        startConnectionManagerThread(); // Start a thread for managing connections
+        startConnectionExpiryThread(); // Start a thread that closes connections as they go idle
         createAndHandleClientConnections(port); // Start accepting client connections
     }
 
     /**
-     * Manages client connections by checking for idle connections
-     * and cleaning up any that exceed the defined timeout.
+     * Manages client connections by closing those whose idle deadline has passed.
+     * Only connections that are due are examined, not every tracked connection.
      */
     public static void manageConnections() {
-        long currentTime = System.currentTimeMillis(); // Get the current time
-        List<Socket> socketsToClose = new ArrayList<>(); // List to keep track of sockets to be closed
+        closeIdleConnections(connectionExpiry.pollExpired(System.currentTimeMillis()));
+    }
 
-        // Iterate over all connected client sockets
-        for (Socket clientSocket : serverLastActiveTime.keySet()) {
-            long lastActiveTime = serverLastActiveTime.get(clientSocket); // Get the last active time for the socket
+    /**
+     * Records activity on a connection, moving its idle deadline to CONNECTION_TIMEOUT after the given time.
+     *
+     * @param clientSocket   The client connection.
+     * @param lastActiveTime The time of the activity in epoch milliseconds.
+     */
+    public static void recordActivity(Socket clientSocket, long lastActiveTime) {
+        serverLastActiveTime.put(clientSocket, lastActiveTime);
+        connectionExpiry.schedule(clientSocket, lastActiveTime + CONNECTION_TIMEOUT);
+    }
 
-            // Check if the connection has been idle longer than the timeout
-            if (currentTime - lastActiveTime > CONNECTION_TIMEOUT) {
-                socketsToClose.add(clientSocket); // Mark this socket for closure
-            }
-        }
+    /**
+     * Stops tracking a connection that has been closed.
+     *
+     * @param clientSocket The closed client connection.
+     */
+    private static void forgetConnection(Socket clientSocket) {
+        serverIds.remove(clientSocket);
+        serverLastActiveTime.remove(clientSocket);
+        connectionExpiry.cancel(clientSocket);
+    }
 
-        // Close the marked sockets and perform cleanup
-        for (Socket socketToClose : socketsToClose) {
+    /**
+     * Closes the given connections if they are still idle past the timeout.
+     *
+     * @param candidates Connections whose deadline has passed.
+     */
+    private static void closeIdleConnections(List<Socket> candidates) {
+        long currentTime = System.currentTimeMillis();
+        for (Socket socketToClose : candidates) {
+            Long lastActiveTime = serverLastActiveTime.get(socketToClose);
+            if (lastActiveTime == null || currentTime - lastActiveTime < CONNECTION_TIMEOUT) {
+                continue; // Already closed, or active again since the deadline was taken
+            }
             try {
                 System.out.println("Closing idle connection with client: " + socketToClose.getRemoteSocketAddress()); // Log the closure
                 socketToClose.close(); // Close the idle socket
-                serverIds.remove(socketToClose); // Remove from server ID map
-                serverLastActiveTime.remove(socketToClose); // Remove from last active time map
             } catch (IOException e) {
                 System.err.println("Error closing socket: " + e.getMessage()); // Log any errors during closure
+            } finally {
+                forgetConnection(socketToClose);
             }
         }
     }
@@ -74,7 +118,7 @@ public class AggregationServer {
     private static void loadWeatherData() {
         File file = new File(DATA_FILE);
         if (file.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
                 StringBuilder jsonData = new StringBuilder();
                 String line;
                 while ((line = reader.readLine()) != null) {
@@ -117,6 +161,7 @@ public class AggregationServer {
                         jsonObject.getDouble("wind_spd_kt")
                 );
                 recentWeatherData.add(weatherData); // Add the Weather object to the list
+                latestStationJson.put(weatherData.getId(), toJson(weatherData).toString());
             }
         } catch (JSONException e) {
             System.err.println("Error parsing weather data: " + e.getMessage());
@@ -124,41 +169,34 @@ public class AggregationServer {
     }
 
     /**
-     * Starts a thread for cleaning up stale data.
+     * Starts a thread that sleeps until the next connection deadline and closes the connections that are idle.
      */
-    private static void startDataCleanupThread() {
-        Thread dataCleanupThread = new Thread(() -> {
-            while (true) {
-                cleanupStaleData(); // Cleanup stale data periodically
-                try {
-                    Thread.sleep(1000); // Sleep for 1 second between cleanup cycles
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    private static void startConnectionExpiryThread() {
+        Thread connectionExpiryThread = new Thread(() -> {
+            try {
+                while (true) {
+                    closeIdleConnections(connectionExpiry.awaitExpired()); // Wakes exactly at the next deadline
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        });
-        dataCleanupThread.start();
+        }, "connection-expiry");
+        connectionExpiryThread.setDaemon(true);
+        connectionExpiryThread.start();
     }
 
     /**
-     * Starts a thread for managing client connections.
+     * Gets the admission controller holding the accepted, queued and shed connection counters.
+     *
+     * @return The server's admission controller.
      */
-    private static void startConnectionManagerThread() {
-        Thread connectionManagerThread = new Thread(() -> {
-            while (true) {
-                manageConnections(); // Manage connections periodically
-                try {
-                    Thread.sleep(1000); // Sleep for 1 second between connection checks
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-        connectionManagerThread.start();
+    public static AdmissionController getAdmissionController() {
+        return admissionController;
     }
 
     /**
-     * Accepts client connections and handles them.
+     * Accepts client connections and hands them to the bounded worker pool.
+     * Connections arriving while the pool's queue is full are shed with a 503 response.
      *
      * @param port The port number to listen for incoming connections
      */
@@ -171,9 +209,10 @@ public class AggregationServer {
                 String serverId = generateUniqueId(); // Generate a unique ID for the client
                 serverIds.put(clientSocket, serverId); // Store the client socket and ID
 
-                // Handle client connection in a separate thread
-                Thread clientHandlerThread = new Thread(() -> handleClient(clientSocket, serverId));
-                clientHandlerThread.start();
+                // Handle client connection on a worker thread, or shed it if the queue is full
+                if (!admissionController.admit(clientSocket, () -> handleClient(clientSocket, serverId))) {
+                    serverIds.remove(clientSocket); // Shed connections are already closed
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -183,48 +222,128 @@ public class AggregationServer {
     /**
      * Handles incoming client connections, processes their requests,
      * and sends appropriate HTTP responses based on the request type.
+     * Requests carrying "Connection: keep-alive" keep the connection open for the next request,
+     * up to MAX_REQUESTS_PER_CONNECTION requests or KEEP_ALIVE_TIMEOUT_MILLIS of idle time, as long as the
+     * admission controller lets the worker wait on it; otherwise the response closes the connection.
+     * A long-poll GET (one with wait=) that has to wait is parked with changeWatchers and the worker returns
+     * at once; once the data changes or the wait runs out, a worker answers the GET and closes the connection.
      *
      * @param clientSocket The socket representing the client connection.
      * @param serverId     The unique ID of the server handling the client.
      */
     public static void handleClient(Socket clientSocket, String serverId) {
-        try (
-                // Input and output streams for communication with the client
-                DataInputStream inputData = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream())
-        ) {
-            // Read the message sent by the client
-            String message = inputData.readUTF();
-            clientSocket.setSoTimeout(15000); // Set a timeout for reading data
-
-            // Check if the message is not null and process it
-            if (message != null) {
-                if (message.startsWith("GET")) {
-                    // Handle GET request by sending weather data
-                    sendWeatherData(outputData);
-                } else if (message.startsWith("PUT")) {
+        boolean parked = false; // Set once a long-poll GET hands the connection to changeWatchers
+        boolean holdsKeepAlive = false; // Set once the admission controller lets this worker wait for more requests
+        try {
+            // Input and output streams for communication with the client; closed with the socket
+            DataInputStream inputData = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream());
+            int served = 0;
+            boolean keepAlive;
+            do {
+                // Read the message sent by the client
+                Frame request;
+                try {
+                    request = Frame.read(inputData);
+                } catch (EOFException | SocketTimeoutException e) {
+                    if (served == 0) {
+                        throw e;
+                    }
+                    break; // Kept-alive client closed the connection or went idle
+                }
+                String message = request.text();
+                served++;
+                recordActivity(clientSocket, System.currentTimeMillis());
+                keepAlive = served < MAX_REQUESTS_PER_CONNECTION && wantsKeepAlive(message);
+                if (keepAlive && !holdsKeepAlive) {
+                    keepAlive = holdsKeepAlive = admissionController.tryKeepAlive(); // Closed after this response if no permit is left
+                }
+                clientSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS); // Set a timeout for reading data
+                long requestClock = request.getLamportClock() > 0
+                        ? lamportClock.update(request.getLamportClock()) // Clock field of the frame
+                        : advanceClock(message);
+                String responseHeaders = "Lamport-Clock: " + requestClock + "\r\n"
+                        + connectionHeaders(keepAlive, MAX_REQUESTS_PER_CONNECTION - served);
+
+                // Dispatch on the frame's opcode; a request line naming another method is rejected
+                byte opcode = request.getOpcode();
+                if (opcode != Frame.opcodeOf(message)) {
+                    writeResponse(outputData, "HTTP/1.1 400 Bad Request\r\n" + responseHeaders + "\r\nOpcode does not match the request line."); // Respond with status 400
+                    outputData.flush();
+                } else if (opcode == Frame.GET) {
+                    String historyStationId = historyStationId(message);
+                    String wait = queryParameter(requestTarget(message), "wait");
+                    if (wait != null) {
+                        // Handle GET /weather?wait=<ms>&since=<clock> by answering once the data changes after since
+                        long[] watch = parseWatch(wait, queryParameter(requestTarget(message), "since"));
+                        if (watch == null) {
+                            writeResponse(outputData, "HTTP/1.1 400 Bad Request\r\n" + responseHeaders + "\r\nInvalid wait or since."); // Respond with status 400
+                            outputData.flush();
+                        } else if (changeWatchers.park(watch[1], watch[0],
+                                changed -> admissionController.resume(clientSocket,
+                                        () -> answerWatch(clientSocket, outputData, requestTarget(message), acceptedCoding(message), changed)))) {
+                            forgetConnection(clientSocket); // Parked connections are not idle; the worker answering it closes it
+                            parked = true;
+                            return;
+                        } else {
+                            sendRequestedWeatherData(outputData, requestTarget(message), acceptedCoding(message), responseHeaders); // Already changed since the client's clock
+                        }
+                    } else if (historyStationId != null) {
+                        // Handle GET /weather/{id}/history by sending that station's recent readings
+                        sendStationHistory(outputData, historyStationId, requestTarget(message), responseHeaders);
+                    } else {
+                        // Handle GET request by sending the requested station(s), or the latest weather data
+                        sendRequestedWeatherData(outputData, requestTarget(message), acceptedCoding(message), responseHeaders);
+                    }
+                } else if (opcode == Frame.PUT && isBatchPut(message)) {
+                    // Handle a batch PUT: every record is stored, then the batch is committed once
+                    JSONArray statuses = processWeatherBatch(message);
+                    if (statuses == null) {
+                        writeResponse(outputData, "HTTP/1.1 400 Bad Request\r\n" + responseHeaders + "\r\nInvalid data."); // Respond with status 400
+                        outputData.flush();
+                    } else {
+                        boolean stored = false;
+                        for (int i = 0; i < statuses.length(); i++) {
+                            stored |= statuses.getJSONObject(i).getInt("status") != 400;
+                        }
+                        if (stored && !commitWeatherData(serverId)) {
+                            for (int i = 0; i < statuses.length(); i++) {
+                                JSONObject status = statuses.getJSONObject(i);
+                                if (status.getInt("status") != 400) {
+                                    status.put("status", 500); // Not saved
+                                }
+                            }
+                        } else if (stored) {
+                            changeWatchers.changed(lamportClock.tick()); // Not the records' clocks: a GET answered while they were stored may hold a later one
+                        }
+                        sendStationData(outputData, statuses.toString(), responseHeaders); // 200 with the status of each record
+                    }
+                } else if (opcode == Frame.PUT) {
                     StringBuilder jsonDataBuilder = new StringBuilder();
                     // Process incoming weather data
-                    if (processWeatherData(message, serverId, jsonDataBuilder)) {
+                    if (!processWeatherData(message, serverId, jsonDataBuilder)) {
+                        // Invalid data provided
+                        writeResponse(outputData, "HTTP/1.1 400 Bad Request\r\n" + responseHeaders + "\r\nInvalid data."); // Respond with status 400
+                    } else if (!commitWeatherData(serverId)) {
+                        // Data could not be made durable
+                        writeResponse(outputData, "HTTP/1.1 500 Internal Server Error\r\n" + responseHeaders + "\r\nFailed to save data."); // Respond with status 500
+                    } else {
+                        changeWatchers.changed(lamportClock.tick()); // Stamped after the data is stored, so no GET misses it
                         boolean isDataInitialized = false;
                         if (!isDataInitialized) {
-                            outputData.writeUTF("HTTP/1.1 201 Created\r\n\r\nData created."); // Respond with status 201
+                            writeResponse(outputData, "HTTP/1.1 201 Created\r\n" + responseHeaders + "\r\nData created."); // Respond with status 201
                             isDataInitialized = true; // Mark data as initialized
                         } else {
-                            outputData.writeUTF("HTTP/1.1 200 OK\r\n\r\nData updated."); // Respond with status 200
+                            writeResponse(outputData, "HTTP/1.1 200 OK\r\n" + responseHeaders + "\r\nData updated."); // Respond with status 200
                         }
-                        saveWeatherData(); // Save the updated weather data to file
-                    } else {
-                        // Invalid data provided
-                        outputData.writeUTF("HTTP/1.1 400 Bad Request\r\n\r\nInvalid data."); // Respond with status 400
                     }
                     outputData.flush(); // Ensure the response is sent
                 } else {
                     // Handle unsupported request methods
-                    outputData.writeUTF("HTTP/1.1 400 Bad Request\r\n\r\nInvalid request."); // Respond with status 400
+                    writeResponse(outputData, "HTTP/1.1 400 Bad Request\r\n" + responseHeaders + "\r\nInvalid request."); // Respond with status 400
                     outputData.flush(); // Ensure the response is sent
                 }
-            }
+            } while (keepAlive);
         } catch (IOException e) {
             // Log connection error messages to standard error output
             System.err.println("Connection error: " + e.getMessage());
@@ -232,48 +351,415 @@ public class AggregationServer {
             // Handle unexpected exceptions
             try {
                 // Respond with HTTP 500 Internal Server Error
-                outputData.writeUTF("HTTP/1.1 500 Internal Server Error\r\n\r\n" + e.getMessage()); // Include the error message
+                DataOutputStream outputData = new DataOutputStream(clientSocket.getOutputStream());
+                writeResponse(outputData, "HTTP/1.1 500 Internal Server Error\r\n\r\n" + e.getMessage()); // Include the error message
                 outputData.flush(); // Ensure the response is sent
             } catch (IOException ioException) {
                 // Log any failure to send the error response
                 System.err.println("Failed to send error response: " + ioException.getMessage());
             }
         } finally {
-            // Close the client socket to free up resources
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Failed to close client socket: " + e.getMessage());
+            if (holdsKeepAlive) {
+                admissionController.endKeepAlive(); // The worker is no longer waiting on this connection
+            }
+            // Close the client socket to free up resources, unless a parked GET still needs it
+            if (!parked) {
+                forgetConnection(clientSocket);
+                closeClientSocket(clientSocket);
+            }
+        }
+    }
+
+    /**
+     * Parses the parameters of a long-poll GET.
+     *
+     * @param wait  The wait parameter in milliseconds.
+     * @param since The since parameter (the Lamport clock of the data the client has), or null for the latest change.
+     * @return The wait and since values, or null if either is malformed.
+     */
+    static long[] parseWatch(String wait, String since) {
+        try {
+            long waitMillis = Long.parseLong(wait.trim());
+            long sinceClock = since == null ? changeWatchers.getLastChange() : Long.parseLong(since.trim());
+            return waitMillis < 0 ? null : new long[] { waitMillis, sinceClock };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answers a parked long-poll GET on a worker thread and closes its connection, so a client that reads
+     * slowly delays only its own answer. A wait that ran out without a change is answered with 204 No Content.
+     *
+     * @param clientSocket The parked connection.
+     * @param outputData   The connection's output stream.
+     * @param target       The request target, naming the stations the client asked for, if any.
+     * @param coding       The content coding the client accepts for the latest reading, or null for none.
+     * @param changed      True if the data changed; false if the wait ran out.
+     */
+    private static void answerWatch(Socket clientSocket, DataOutputStream outputData, String target, String coding,
+                                    boolean changed) {
+        try {
+            String responseHeaders = "Lamport-Clock: " + lamportClock.tick() + "\r\n" + connectionHeaders(false, 0);
+            if (changed) {
+                sendRequestedWeatherData(outputData, target, coding, responseHeaders);
+            } else {
+                writeResponse(outputData, "HTTP/1.1 204 No Content\r\n" + responseHeaders + "\r\n"); // Nothing changed in time
+                outputData.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to answer watcher: " + e.getMessage()); // The client has gone away
+        } finally {
+            closeClientSocket(clientSocket);
+        }
+    }
+
+    /**
+     * Writes a response as one frame stamped with the server clock. The caller flushes.
+     *
+     * @param outputData The connection's output stream.
+     * @param response   The response text.
+     * @throws IOException If the frame cannot be written.
+     */
+    static void writeResponse(DataOutputStream outputData, String response) throws IOException {
+        Frame.response(response, lamportClock.getValue()).write(outputData);
+    }
+
+    /**
+     * Closes a client socket, logging a failure instead of throwing it.
+     *
+     * @param clientSocket The socket to close.
+     */
+    private static void closeClientSocket(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close client socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether a request asks for a persistent connection.
+     *
+     * @param message The full request message.
+     * @return True if the request headers contain "Connection: keep-alive".
+     */
+    static boolean wantsKeepAlive(String message) {
+        int headersEnd = message.indexOf("\r\n\r\n");
+        String head = (headersEnd >= 0 ? message.substring(0, headersEnd) : message).toLowerCase();
+        return head.contains("\r\nconnection: keep-alive");
+    }
+
+    /**
+     * Advances the server clock for a received request. A request carrying a Lamport-Clock header
+     * is merged with the server clock; any other request counts as a local event.
+     *
+     * @param message The full request message.
+     * @return The server clock value to send back in the response.
+     */
+    static long advanceClock(String message) {
+        int headersEnd = message.indexOf("\r\n\r\n");
+        String head = headersEnd >= 0 ? message.substring(0, headersEnd) : message;
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Lamport-Clock:", 0, "Lamport-Clock:".length())) {
+                try {
+                    return lamportClock.update(Long.parseLong(line.substring("Lamport-Clock:".length()).trim()));
+                } catch (NumberFormatException e) {
+                    break; // Treat a malformed clock like a missing one
+                }
             }
         }
+        return lamportClock.tick();
     }
 
+    /**
+     * Gets the value of a request header.
+     *
+     * @param message The full request message.
+     * @param name    The header name, matched ignoring case.
+     * @return The trimmed header value, or null if the request has no such header.
+     */
+    static String requestHeader(String message, String name) {
+        int headersEnd = message.indexOf("\r\n\r\n");
+        String head = headersEnd >= 0 ? message.substring(0, headersEnd) : message;
+        for (String line : head.split("\r\n")) {
+            if (line.length() > name.length() && line.charAt(name.length()) == ':'
+                    && line.regionMatches(true, 0, name, 0, name.length())) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the content coding for the body of a GET from its Accept-Encoding header.
+     *
+     * @param message The full request message.
+     * @return The coding to compress the latest reading with, or null to send it as it is.
+     */
+    static String acceptedCoding(String message) {
+        return ContentEncoding.negotiate(requestHeader(message, "Accept-Encoding"));
+    }
+
+    /**
+     * Builds the Connection headers for a response.
+     *
+     * @param keepAlive         Whether the connection stays open after this response.
+     * @param remainingRequests The number of further requests allowed on the connection.
+     * @return The header lines, each terminated by CRLF.
+     */
+    static String connectionHeaders(boolean keepAlive, int remainingRequests) {
+        if (keepAlive) {
+            return "Connection: keep-alive\r\nKeep-Alive: timeout=" + (KEEP_ALIVE_TIMEOUT_MILLIS / 1000)
+                    + ", max=" + remainingRequests + "\r\n";
+        }
+        return "Connection: close\r\n";
+    }
+
+    /**
+     * Answers a GET for weather data. A request naming one station (stationId=) gets that station's latest
+     * reading and one naming several (ids=a,b,c) gets a JSON array of them, both looked up directly by ID;
+     * any other GET gets the most recent reading of any station.
+     *
+     * @param outputData        The output stream to send the response
+     * @param target            The request target holding the optional stationId or ids parameter
+     * @param coding            The content coding for the latest reading, or null to send it as it is
+     * @param responseHeaders   The Lamport-Clock and Connection headers to include in the response
+     * @throws IOException If an I/O error occurs while sending the response
+     */
+    private static void sendRequestedWeatherData(DataOutputStream outputData, String target, String coding,
+                                                 String responseHeaders) throws IOException {
+        String stationId = queryParameter(target, "stationId");
+        String ids = queryParameter(target, "ids");
+        if (stationId != null) {
+            sendStationData(outputData, latestStationJson.get(stationId), responseHeaders);
+        } else if (ids != null) {
+            sendStationData(outputData, stationsJson(ids), responseHeaders);
+        } else {
+            sendWeatherData(outputData, coding, responseHeaders);
+        }
+    }
+
+    /**
+     * Joins the cached latest readings of the listed stations into a JSON array, in the order listed.
+     * Stations with no reading are left out.
+     *
+     * @param ids The comma-separated station IDs.
+     * @return The JSON array, or null if none of the stations has a reading.
+     */
+    static String stationsJson(String ids) {
+        StringBuilder stations = new StringBuilder("[");
+        for (String stationId : new LinkedHashSet<>(Arrays.asList(ids.split(",")))) {
+            String station = latestStationJson.get(stationId.trim());
+            if (station != null) {
+                stations.append(stations.length() == 1 ? "" : ",").append(station);
+            }
+        }
+        return stations.length() == 1 ? null : stations.append(']').toString();
+    }
+
+    /**
+     * Sends already encoded station data, or 404 Not Found if there is none.
+     *
+     * @param outputData        The output stream to send the response
+     * @param responseData      The encoded station data, or null for an unknown station
+     * @param responseHeaders   The Lamport-Clock and Connection headers to include in the response
+     * @throws IOException If an I/O error occurs while sending the response
+     */
+    private static void sendStationData(DataOutputStream outputData, String responseData, String responseHeaders) throws IOException {
+        if (responseData == null) {
+            writeResponse(outputData, "HTTP/1.1 404 Not Found\r\n" + responseHeaders + "\r\nUnknown station."); // Respond with status 404
+        } else {
+            writeResponse(outputData, "HTTP/1.1 200 OK\r\n" + responseHeaders
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + responseData.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n"
+                    + responseData);
+        }
+        outputData.flush();
+    }
 
     /**
      * Sends the most recent weather data to the client in response to a GET request.
+     * A compressed body is sent as it is in the frame payload, after the headers.
      *
-     * @param outputData The output stream to send the response
+     * @param outputData        The output stream to send the response
+     * @param coding            The content coding to compress the body with, or null to send it as it is
+     * @param responseHeaders   The Lamport-Clock and Connection headers to include in the response
      * @throws IOException If an I/O error occurs while sending the response
      */
-    private static void sendWeatherData(DataOutputStream outputData) throws IOException {
-        if (!recentWeatherData.isEmpty()) {
-            Weather latestWeather = recentWeatherData.get(recentWeatherData.size() - 1); // Get the latest weather data
+    private static void sendWeatherData(DataOutputStream outputData, String coding, String responseHeaders) throws IOException {
+        Weather latestWeather = latestWeather();
+        if (latestWeather != null && coding != null) {
+            byte[] body = compressedReading(latestWeather, coding);
+            byte[] head = ("HTTP/1.1 200 OK\r\n" + responseHeaders
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Encoding: " + coding + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+            byte[] payload = Arrays.copyOf(head, head.length + body.length);
+            System.arraycopy(body, 0, payload, head.length, body.length);
+            new Frame(Frame.RESPONSE, lamportClock.getValue(), payload).write(outputData);
+            outputData.flush();
+        } else if (latestWeather != null) {
             String responseData = latestWeather.toString(); // Prepare response data
 
             StringBuilder responseBuilder = new StringBuilder();
             responseBuilder.append("HTTP/1.1 200 OK\r\n");
+            responseBuilder.append(responseHeaders);
             responseBuilder.append("Content-Type: application/json\r\n");
-            responseBuilder.append("Content-Length: ").append(responseData.length()).append("\r\n\r\n");
+            responseBuilder.append("Content-Length: ").append(responseData.getBytes(StandardCharsets.UTF_8).length).append("\r\n\r\n");
             responseBuilder.append(responseData);
 
-            outputData.writeUTF(responseBuilder.toString()); // Send the response to the client
+            writeResponse(outputData, responseBuilder.toString()); // Send the response to the client
             outputData.flush();
         } else {
-            outputData.writeUTF("HTTP/1.1 204 No Content\r\n\r\n"); // Respond with status 204 if no content is available
+            writeResponse(outputData, "HTTP/1.1 204 No Content\r\n" + responseHeaders + "\r\n"); // Respond with status 204 if no content is available
             outputData.flush();
         }
     }
 
+    /**
+     * Gets the most recent reading of any station.
+     *
+     * @return The latest reading, or null if there is none.
+     */
+    static Weather latestWeather() {
+        synchronized (recentWeatherData) {
+            return recentWeatherData.isEmpty() ? null : recentWeatherData.get(recentWeatherData.size() - 1);
+        }
+    }
+
+    /**
+     * Gets a reading compressed with a content coding. Each reading is compressed at most once per
+     * coding, and the bytes are shared by every GET until a newer reading replaces it.
+     *
+     * @param reading The reading served to full GETs.
+     * @param coding  GZIP or DEFLATE.
+     * @return The compressed JSON of the reading.
+     */
+    static byte[] compressedReading(Weather reading, String coding) {
+        CompressedReading current = compressedLatest;
+        if (current == null || current.reading != reading) {
+            synchronized (CompressedReading.class) {
+                current = compressedLatest;
+                if (current == null || current.reading != reading) {
+                    current = new CompressedReading(reading);
+                    compressedLatest = current;
+                }
+            }
+        }
+        return current.bodies.computeIfAbsent(coding,
+                c -> ContentEncoding.compress(reading.toString().getBytes(StandardCharsets.UTF_8), c));
+    }
+
+    /**
+     * The compressed forms of one reading, by content coding.
+     */
+    private static final class CompressedReading {
+        final Weather reading;
+        final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+
+        CompressedReading(Weather reading) {
+            this.reading = reading;
+        }
+    }
+
+    /**
+     * Gets the request target (path and query) from the request line.
+     *
+     * @param message The full request message.
+     * @return The request target, or an empty string if the request line is malformed.
+     */
+    static String requestTarget(String message) {
+        int lineEnd = message.indexOf("\r\n");
+        String[] requestLine = (lineEnd >= 0 ? message.substring(0, lineEnd) : message).split(" ");
+        return requestLine.length > 1 ? requestLine[1] : "";
+    }
+
+    /**
+     * Gets the value of a query parameter from a request target.
+     *
+     * @param target The request target (path and query).
+     * @param name   The parameter name.
+     * @return The parameter value, an empty string if it has no value, or null if it is absent.
+     */
+    static String queryParameter(String target, String name) {
+        int queryStart = target.indexOf('?');
+        if (queryStart < 0) {
+            return null;
+        }
+        for (String parameter : target.substring(queryStart + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            String key = equals < 0 ? parameter : parameter.substring(0, equals);
+            if (key.equals(name)) {
+                return equals < 0 ? "" : parameter.substring(equals + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extracts the station ID from a "/weather/{id}/history" request.
+     *
+     * @param message The full request message.
+     * @return The station ID, or null if the request is not for a station history.
+     */
+    static String historyStationId(String message) {
+        String target = requestTarget(message);
+        int queryStart = target.indexOf('?');
+        String path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+        if (!path.startsWith("/weather/") || !path.endsWith("/history")) {
+            return null;
+        }
+        String stationId = path.substring("/weather/".length(), path.length() - "/history".length());
+        return stationId.isEmpty() || stationId.contains("/") ? null : stationId;
+    }
+
+    /**
+     * Sends the latest readings of one station, newest first, in response to GET /weather/{id}/history?n=.
+     * Without n, every reading held for the station is returned.
+     *
+     * @param outputData        The output stream to send the response
+     * @param stationId         The station whose history is requested
+     * @param target            The request target holding the optional n parameter
+     * @param responseHeaders   The Lamport-Clock and Connection headers to include in the response
+     * @throws IOException If an I/O error occurs while sending the response
+     */
+    private static void sendStationHistory(DataOutputStream outputData, String stationId, String target,
+                                           String responseHeaders) throws IOException {
+        StationHistory history = stationHistories.get(stationId);
+        if (history == null) {
+            writeResponse(outputData, "HTTP/1.1 404 Not Found\r\n" + responseHeaders + "\r\nUnknown station."); // Respond with status 404
+            outputData.flush();
+            return;
+        }
+
+        int n = history.getCapacity();
+        int queryStart = target.indexOf('?');
+        if (queryStart >= 0) {
+            for (String parameter : target.substring(queryStart + 1).split("&")) {
+                if (parameter.startsWith("n=")) {
+                    try {
+                        n = Integer.parseInt(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        n = -1;
+                    }
+                }
+            }
+        }
+        if (n <= 0) {
+            writeResponse(outputData, "HTTP/1.1 400 Bad Request\r\n" + responseHeaders + "\r\nInvalid n."); // Respond with status 400
+            outputData.flush();
+            return;
+        }
+
+        String responseData = history.latest(n).toString();
+        writeResponse(outputData, "HTTP/1.1 200 OK\r\n" + responseHeaders
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + responseData.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n"
+                + responseData);
+        outputData.flush();
+    }
+
     /**
      * Processes weather data received in a PUT request and stores it.
      *
@@ -293,32 +779,9 @@ public class AggregationServer {
             jsonDataBuilder.append(jsonData);
 
             JSONObject jsonObject = new JSONObject(jsonData); // Parse the JSON data
-
-            // Creating the Weather object from JSON fields
-            Weather weatherData = new Weather(
-                    jsonObject.getString("id"),
-                    jsonObject.getString("name"),
-                    jsonObject.getString("state"),
-                    jsonObject.getString("time_zone"),
-                    jsonObject.getDouble("lat"),
-                    jsonObject.getDouble("lon"),
-                    jsonObject.getString("local_date_time"),
-                    jsonObject.getString("local_date_time_full"),
-                    jsonObject.getDouble("air_temp"),
-                    jsonObject.getDouble("apparent_t"),
-                    jsonObject.getString("cloud"),
-                    jsonObject.getDouble("dewpt"),
-                    jsonObject.getDouble("press"),
-                    jsonObject.getDouble("rel_hum"),
-                    jsonObject.getString("wind_dir"),
-                    jsonObject.getDouble("wind_spd_kmh"),
-                    jsonObject.getDouble("wind_spd_kt")
-            );
-
-            recentWeatherData.add(weatherData); // Add the new weather data to the list
-            if (recentWeatherData.size() > 10) {
-                recentWeatherData.remove(0); // Keep only the latest 10 entries
-            }
+            Weather weatherData = parseWeather(jsonObject);
+            weatherData.setLamportClock(lamportClock.tick()); // The record's own clock
+            storeWeather(weatherData);
 
             return true; // Data processed successfully
         } catch (JSONException e) {
@@ -331,30 +794,143 @@ public class AggregationServer {
     }
 
     /**
-     * Cleans up stale data by removing old connections and related weather data.
+     * Creates a reading from the fields of one station object.
+     *
+     * @param jsonObject The station object of a PUT.
+     * @return The reading.
+     * @throws JSONException If a field is missing or has the wrong type.
      */
-    public static void cleanupStaleData() {
-        try {
-            long currentTime = System.currentTimeMillis();
-            List<Socket> socketsToClose = new ArrayList<>();
+    static Weather parseWeather(JSONObject jsonObject) {
+        // Creating the Weather object from JSON fields
+        return new Weather(
+                jsonObject.getString("id"),
+                jsonObject.getString("name"),
+                jsonObject.getString("state"),
+                jsonObject.getString("time_zone"),
+                jsonObject.getDouble("lat"),
+                jsonObject.getDouble("lon"),
+                jsonObject.getString("local_date_time"),
+                jsonObject.getString("local_date_time_full"),
+                jsonObject.getDouble("air_temp"),
+                jsonObject.getDouble("apparent_t"),
+                jsonObject.getString("cloud"),
+                jsonObject.getDouble("dewpt"),
+                jsonObject.getDouble("press"),
+                jsonObject.getDouble("rel_hum"),
+                jsonObject.getString("wind_dir"),
+                jsonObject.getDouble("wind_spd_kmh"),
+                jsonObject.getDouble("wind_spd_kt")
+        );
+    }
+
+    /**
+     * Stores a reading as its station's latest and appends it to the station's history.
+     *
+     * @param weatherData The reading to store.
+     * @return True if the station had no reading before; false if this one replaces its latest.
+     */
+    static boolean storeWeather(Weather weatherData) {
+        stationHistories.computeIfAbsent(weatherData.getId(),
+                id -> new StationHistory(id, StationHistory.DEFAULT_CAPACITY))
+                .record(weatherData, System.currentTimeMillis()); // O(1), allocation-free append to the station's history
+
+        String stationJson = toJson(weatherData).toString(); // Encoded here once, not on every GET for the station
+        boolean isNew;
+        synchronized (recentWeatherData) {
+            recentWeatherData.add(weatherData); // Add the new weather data to the list
+            isNew = latestStationJson.put(weatherData.getId(), stationJson) == null; // Same order as the list, so the newest PUT wins
+            if (recentWeatherData.size() > 10) {
+                recentWeatherData.remove(0); // Keep only the latest 10 entries
+            }
+        }
+        return isNew;
+    }
+
+    /**
+     * Tells whether a PUT carries a batch of readings: a JSON array of station objects, or NDJSON (one
+     * station object per line, sent with Content-Type: application/x-ndjson).
+     *
+     * @param message The PUT request message.
+     * @return True if the body is a batch.
+     */
+    static boolean isBatchPut(String message) {
+        int bodyStart = message.indexOf("\r\n\r\n");
+        int first = bodyStart < 0 ? message.length() : bodyStart + 4;
+        while (first < message.length() && Character.isWhitespace(message.charAt(first))) {
+            first++; // Looks at the first character of the body without copying it
+        }
+        return (first < message.length() && message.charAt(first) == '[')
+                || "application/x-ndjson".equalsIgnoreCase(requestHeader(message, "Content-Type"));
+    }
 
-            for (Socket clientSocket : serverLastActiveTime.keySet()) {
-                long lastActiveTime = serverLastActiveTime.get(clientSocket);
-                if (currentTime - lastActiveTime > CONNECTION_TIMEOUT) {
-                    socketsToClose.add(clientSocket); // Mark idle connections for closure
+    /**
+     * Stores every valid reading of a batch PUT and reports the status of each record, in order: 201 for a
+     * new station, 200 for an update and 400 for a record that is not a valid station object. The batch
+     * reserves one range of Lamport clock values with a single atomic add, and record i is stamped with the
+     * i-th value. The caller commits the batch once and marks the stored records 500 if that fails.
+     *
+     * @param message The batch PUT request message.
+     * @return One status object per record (index, id, lamportClock, status and, for a 400, error), or null
+     * if the body is not a JSON array or NDJSON.
+     */
+    static JSONArray processWeatherBatch(String message) {
+        int bodyStart = message.indexOf("\r\n\r\n");
+        String body = bodyStart >= 0 ? message.substring(bodyStart + 4).trim() : "";
+        List<Object> records = new ArrayList<>(); // Parsed array elements, or the NDJSON lines still to parse
+        boolean isArray = body.startsWith("[");
+        if (isArray) {
+            try {
+                for (Object record : new JSONArray(body)) {
+                    records.add(record);
                 }
+            } catch (JSONException e) {
+                System.err.println("JSON parsing error: " + e.getMessage()); // Log parsing errors
+                return null;
             }
+        } else {
+            for (String line : body.split("\r?\n")) {
+                if (!line.trim().isEmpty()) {
+                    records.add(line.trim());
+                }
+            }
+        }
+        if (records.isEmpty()) {
+            return null;
+        }
 
-            for (Socket socketToClose : socketsToClose) {
-                try {
-                    System.out.println("Closing idle connection with client: " + socketToClose.getRemoteSocketAddress());
-                    socketToClose.close(); // Close the idle socket
-                    serverIds.remove(socketToClose);
-                    serverLastActiveTime.remove(socketToClose);
-                } catch (IOException e) {
-                    System.err.println("Error closing socket: " + e.getMessage()); // Log any exceptions
+        long firstClock = lamportClock.tickRange(records.size()) - records.size() + 1;
+        JSONArray statuses = new JSONArray();
+        for (int i = 0; i < records.size(); i++) {
+            JSONObject status = new JSONObject();
+            status.put("index", i);
+            try {
+                Object record = records.get(i);
+                if (!isArray) {
+                    record = new JSONObject((String) record);
+                }
+                if (!(record instanceof JSONObject)) {
+                    throw new JSONException("Record is not a station object.");
                 }
+                Weather weatherData = parseWeather((JSONObject) record);
+                weatherData.setLamportClock(firstClock + i);
+                status.put("id", weatherData.getId());
+                status.put("lamportClock", firstClock + i);
+                status.put("status", storeWeather(weatherData) ? 201 : 200);
+            } catch (JSONException e) {
+                status.put("status", 400);
+                status.put("error", e.getMessage());
             }
+            statuses.put(status);
+        }
+        return statuses;
+    }
+
+    /**
+     * Cleans up stale data by removing connections whose idle deadline has passed.
+     */
+    public static void cleanupStaleData() {
+        try {
+            manageConnections();
         } catch (Exception e) {
             System.err.println("Error cleaning up stale data: " + e.getMessage()); // Log any errors that occur
         }
@@ -373,35 +949,89 @@ public class AggregationServer {
      * Saves the current weather data to the main data file.
      */
     public static void saveWeatherData() {
-        try (FileWriter fileWriter = new FileWriter(DATA_FILE)) {
-            JSONArray jsonArray = new JSONArray(); // Create a new JSON array
-            for (Weather weather : recentWeatherData) {
-                JSONObject jsonObject = new JSONObject(); // Create a new JSON object for each Weather entry
-                jsonObject.put("id", weather.getId());
-                jsonObject.put("name", weather.getName());
-                jsonObject.put("state", weather.getState());
-                jsonObject.put("time_zone", weather.getTime_zone());
-                jsonObject.put("lat", weather.getLat());
-                jsonObject.put("lon", weather.getLon());
-                jsonObject.put("local_date_time", weather.getLocal_date_time());
-                jsonObject.put("local_date_time_full", weather.getLocal_date_time_full());
-                jsonObject.put("air_temp", weather.getAir_temp());
-                jsonObject.put("apparent_t", weather.getApparent_t());
-                jsonObject.put("cloud", weather.getCloud());
-                jsonObject.put("dewpt", weather.getDewpt());
-                jsonObject.put("press", weather.getPress());
-                jsonObject.put("rel_hum", weather.getRel_hum());
-                jsonObject.put("wind_dir", weather.getWind_dir());
-                jsonObject.put("wind_spd_kmh", weather.getWind_spd_kmh());
-                jsonObject.put("wind_spd_kt", weather.getWind_spd_kt());
-                jsonArray.put(jsonObject); // Add each JSON object to the array
-            }
-            fileWriter.write(jsonArray.toString()); // Write the JSON array to the data file
+        try {
+            writeWeatherData();
         } catch (IOException e) {
             System.err.println("Error saving weather data: " + e.getMessage()); // Log any errors
         }
     }
 
+    /**
+     * Persists a PUT through the group commit, returning once the data file holding it is on disk.
+     * PUTs that arrive within the batch window share one write and one fsync.
+     *
+     * @param serverId The ID of the server whose data is being saved.
+     * @return True if the data was saved; false if the write failed.
+     */
+    public static boolean commitWeatherData(String serverId) {
+        try {
+            saveCommitter.submit(serverId).join();
+            return true;
+        } catch (CompletionException e) {
+            System.err.println("Error saving weather data: " + e.getCause().getMessage()); // Log any errors
+            return false;
+        }
+    }
+
+    /**
+     * Writes the current weather data to a temporary file, forces it to disk and renames it over the
+     * main data file. The rename replaces the file in one step, so a crash mid-write leaves the
+     * previous data file whole.
+     *
+     * @throws IOException If the file cannot be written, synced or renamed.
+     */
+    private static synchronized void writeWeatherData() throws IOException {
+        List<Weather> snapshot;
+        synchronized (recentWeatherData) {
+            snapshot = new ArrayList<>(recentWeatherData);
+        }
+        Path tempFile = Paths.get(TEMP_FILE);
+        try {
+            try (FileOutputStream fileOutput = new FileOutputStream(tempFile.toFile());
+                 Writer fileWriter = new OutputStreamWriter(fileOutput, StandardCharsets.UTF_8)) {
+                JSONArray jsonArray = new JSONArray(); // Create a new JSON array
+                for (Weather weather : snapshot) {
+                    JSONObject jsonObject = toJson(weather); // Create a new JSON object for each Weather entry
+                    jsonArray.put(jsonObject); // Add each JSON object to the array
+                }
+                fileWriter.write(jsonArray.toString()); // Write the JSON array to the temporary file
+                fileWriter.flush();
+                fileOutput.getChannel().force(true); // Durable before the PUT is acknowledged
+            }
+            Files.move(tempFile, Paths.get(DATA_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile); // Only still there if writing or the rename failed
+        }
+    }
+
+    /**
+     * Converts a reading to the JSON object stored in the data file and served to station GETs.
+     *
+     * @param weather The reading to convert.
+     * @return The reading as a JSON object.
+     */
+    static JSONObject toJson(Weather weather) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("id", weather.getId());
+        jsonObject.put("name", weather.getName());
+        jsonObject.put("state", weather.getState());
+        jsonObject.put("time_zone", weather.getTime_zone());
+        jsonObject.put("lat", weather.getLat());
+        jsonObject.put("lon", weather.getLon());
+        jsonObject.put("local_date_time", weather.getLocal_date_time());
+        jsonObject.put("local_date_time_full", weather.getLocal_date_time_full());
+        jsonObject.put("air_temp", weather.getAir_temp());
+        jsonObject.put("apparent_t", weather.getApparent_t());
+        jsonObject.put("cloud", weather.getCloud());
+        jsonObject.put("dewpt", weather.getDewpt());
+        jsonObject.put("press", weather.getPress());
+        jsonObject.put("rel_hum", weather.getRel_hum());
+        jsonObject.put("wind_dir", weather.getWind_dir());
+        jsonObject.put("wind_spd_kmh", weather.getWind_spd_kmh());
+        jsonObject.put("wind_spd_kt", weather.getWind_spd_kt());
+        return jsonObject;
+    }
+
     public static void storeData(String data, String serverId) {
         String dataDirectory = "data/";
         File directory = new File(dataDirectory);
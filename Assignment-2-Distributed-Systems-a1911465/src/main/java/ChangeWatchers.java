@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChangeWatchers holds long-poll GETs until the weather data changes or their wait runs out.
+ * A parked request holds no thread: the worker that read it registers a responder and returns to the pool.
+ * The single watch thread runs the responder of every watcher released by a change and of every wait that
+ * ends unanswered; a responder only hands the answer to a worker, so one slow client never delays the rest.
+ * Watchers are kept ordered by their clock, so a change releases only the prefix older than it and a timeout
+ * finds its watcher directly; neither scans the watchers that stay parked.
+ */
+public class ChangeWatchers {
+    static final long MAX_WAIT_MILLIS = 60000; // Longest a GET may ask to be held
+
+    /**
+     * Arranges the answer to a parked GET; runs on the watch thread, so it must not block.
+     */
+    public interface Responder {
+        /**
+         * Answers the parked GET.
+         *
+         * @param changed True if the data changed after the watcher's clock; false if the wait ran out.
+         * @throws IOException If the answer cannot be written.
+         */
+        void respond(boolean changed) throws IOException;
+    }
+
+    /**
+     * One parked GET.
+     */
+    private static final class Watch {
+        final long sinceClock;
+        final Responder responder;
+        ScheduledFuture<?> timeout;
+
+        Watch(long sinceClock, Responder responder) {
+            this.sinceClock = sinceClock;
+            this.responder = responder;
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor watchThread;
+    private final NavigableMap<Long, Set<Watch>> parked = new TreeMap<>(); // Watchers by sinceClock; guarded by this
+    private int parkedCount; // Watchers in parked; guarded by this
+    private long lastChange; // Lamport clock of the latest change; guarded by this
+
+    /**
+     * Creates an empty set of watchers with its own daemon watch thread.
+     */
+    public ChangeWatchers() {
+        watchThread = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "change-watchers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchThread.setRemoveOnCancelPolicy(true); // A watcher released by a change drops its timeout at once
+    }
+
+    /**
+     * Parks a GET until the data changes after the given clock or the wait runs out.
+     * Nothing is parked if the data already changed after the clock; the caller then answers at once.
+     *
+     * @param sinceClock The Lamport clock of the data the client already has.
+     * @param waitMillis How long to hold the GET, capped at MAX_WAIT_MILLIS.
+     * @param responder  Writes the answer once the GET is released.
+     * @return True if the GET was parked; false if it should be answered now.
+     */
+    public synchronized boolean park(long sinceClock, long waitMillis, Responder responder) {
+        if (lastChange > sinceClock || waitMillis <= 0) {
+            return false;
+        }
+        Watch watch = new Watch(sinceClock, responder);
+        parked.computeIfAbsent(sinceClock, clock -> new LinkedHashSet<>()).add(watch);
+        parkedCount++;
+        watch.timeout = watchThread.schedule(() -> expire(watch), Math.min(waitMillis, MAX_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Records a change to the data and releases every watcher holding an older clock.
+     *
+     * @param changeClock The Lamport clock of the change, taken after the data was stored.
+     */
+    public void changed(long changeClock) {
+        List<Watch> released = new ArrayList<>();
+        synchronized (this) {
+            lastChange = Math.max(lastChange, changeClock);
+            Iterator<Set<Watch>> older = parked.headMap(changeClock, false).values().iterator();
+            while (older.hasNext()) {
+                for (Watch watch : older.next()) {
+                    watch.timeout.cancel(false);
+                    released.add(watch);
+                }
+                older.remove();
+            }
+            parkedCount -= released.size();
+        }
+        if (!released.isEmpty()) {
+            watchThread.execute(() -> {
+                for (Watch watch : released) {
+                    respond(watch, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the Lamport clock of the latest change.
+     *
+     * @return The clock passed to the latest changed call, or 0 if there was none.
+     */
+    public synchronized long getLastChange() {
+        return lastChange;
+    }
+
+    /**
+     * Gets the number of GETs currently parked.
+     *
+     * @return The number of parked GETs.
+     */
+    public synchronized int parkedCount() {
+        return parkedCount;
+    }
+
+    /**
+     * Answers a watcher whose wait ran out, unless a change released it first.
+     *
+     * @param watch The watcher whose timeout fired.
+     */
+    private void expire(Watch watch) {
+        synchronized (this) {
+            Set<Watch> sameClock = parked.get(watch.sinceClock);
+            if (sameClock == null || !sameClock.remove(watch)) {
+                return; // Released by a change first
+            }
+            if (sameClock.isEmpty()) {
+                parked.remove(watch.sinceClock);
+            }
+            parkedCount--;
+        }
+        respond(watch, false);
+    }
+
+    /**
+     * Runs a watcher's responder on the watch thread; a client that has gone away only loses its answer.
+     *
+     * @param watch   The released watcher.
+     * @param changed Whether the data changed.
+     */
+    private static void respond(Watch watch, boolean changed) {
+        try {
+            watch.responder.respond(changed);
+        } catch (IOException e) {
+            System.err.println("Failed to answer watcher: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ContentEncoding implements the HTTP content codings used for GET bodies: gzip, and deflate
+ * (zlib-wrapped, as HTTP defines it). The server picks a coding from the request's Accept-Encoding
+ * header and compresses each reading once; the client decodes the body of the response.
+ */
+public final class ContentEncoding {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE; // Accept-Encoding sent by GETClient
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Chooses the coding to answer with for an Accept-Encoding header. The coding with the higher
+     * q-value wins, gzip on a tie; a coding that is not listed takes the q-value of *, if present.
+     *
+     * @param acceptEncoding The Accept-Encoding header value, or null if the request has none.
+     * @return GZIP or DEFLATE, or null to send the body as it is.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Double gzip = null;
+        Double deflate = null;
+        Double any = null;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = quality;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = quality;
+            } else if (coding.equals("*")) {
+                any = quality;
+            }
+        }
+        double gzipQuality = gzip != null ? gzip : any != null ? any : 0;
+        double deflateQuality = deflate != null ? deflate : any != null ? any : 0;
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        }
+        return deflateQuality > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Compresses a body.
+     *
+     * @param body   The bytes to compress.
+     * @param coding GZIP or DEFLATE.
+     * @return The compressed bytes.
+     */
+    public static byte[] compress(byte[] body, String coding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream out = GZIP.equals(coding) ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Only memory streams are involved
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Wraps a body in a stream that undoes its content coding.
+     *
+     * @param body   The body as received.
+     * @param coding The Content-Encoding header value; null or identity leaves the body as it is.
+     * @return A stream of the decoded body.
+     * @throws IOException If a gzip body has no valid header.
+     */
+    public static InputStream decode(InputStream body, String coding) throws IOException {
+        if (coding == null) {
+            return body;
+        }
+        switch (coding.trim().toLowerCase(Locale.ROOT)) {
+            case GZIP:
+            case "x-gzip":
+                return new GZIPInputStream(body);
+            case DEFLATE:
+                return new InflaterInputStream(body);
+            default:
+                return body;
+        }
+    }
+}
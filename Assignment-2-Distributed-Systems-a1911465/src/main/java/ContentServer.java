@@ -1,5 +1,11 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  * The ContentServer is responsible for reading weather data from a specified file,
@@ -43,7 +49,7 @@ public class ContentServer {
         // Retry sending data if it fails
         while (maxRetries > 0) {
             try (Socket socket = createSocket(serverUrl)) {
-                int currentClockValue = lamportClock.getValue(); // Get current Lamport clock value
+                long currentClockValue = lamportClock.getValue(); // Get current Lamport clock value
                 boolean success = sendWeatherToServer(socket, feedFilePath, currentClockValue); // Send data
 
                 if (success) {
@@ -69,9 +75,9 @@ public class ContentServer {
      * @return true if the data was sent successfully, false otherwise.
      * @throws IOException If an I/O error occurs during communication.
      */
-    public static boolean sendWeatherToServer(Socket socket, String feedFilePath, int lamportClockValue) throws IOException {
+    public static boolean sendWeatherToServer(Socket socket, String feedFilePath, long lamportClockValue) throws IOException {
         DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
-        BufferedReader inputData = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Use BufferedReader for line reading
+        DataInputStream inputData = new DataInputStream(socket.getInputStream());
 
         String jsonData = convertToJson(feedFilePath); // Convert the data to JSON
         if (jsonData == null) {
@@ -86,28 +92,55 @@ public class ContentServer {
         String requestData = "PUT /weather.json HTTP/1.1\r\n" +
                 "User-Agent: ATOMClient/1/0\r\n" +
                 "Content-Type: application/json\r\n" +
-                "Content-Length: " + jsonData.length() + "\r\n\r\n" + // Content length header
+                "Content-Length: " + jsonData.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + // Content length in bytes
                 jsonData;
 
-        outputData.writeUTF(requestData); // Send the HTTP request
+        Frame.request(requestData, lamportClockValue).write(outputData); // Send the HTTP request with the clock in its frame
         outputData.flush(); // Flush the output stream to ensure data is sent
 
         lamportClock.increment(); // Increment the Lamport clock
 
         // Read the server response
-        StringBuilder serverResponse = new StringBuilder();
-        String line;
-        while ((line = inputData.readLine()) != null) {
-            serverResponse.append(line).append("\n");
-            if (line.isEmpty()) {
-                break; // Stop reading when we reach the end of the headers
-            }
-        }
+        Frame response = Frame.read(inputData);
+        lamportClock.update(response.getLamportClock());
+        String serverResponse = response.text();
 
-        System.out.println("Server Response: " + serverResponse.toString().trim());
+        System.out.println("Server Response: " + serverResponse.trim());
 
         // Check the HTTP response status
-        return serverResponse.toString().contains("HTTP/1.1 200") || serverResponse.toString().contains("HTTP/1.1 201");
+        boolean success = serverResponse.startsWith("HTTP/1.1 200") || serverResponse.startsWith("HTTP/1.1 201");
+        if (success && jsonData.startsWith("[")) {
+            success = reportRecordStatuses(serverResponse); // A batch is answered with the status of each record
+        }
+        return success;
+    }
+
+    /**
+     * Prints the status of each record of a batch PUT from the server's response.
+     *
+     * @param serverResponse The response text, whose body is a JSON array with one status object per record.
+     * @return false if a record was not saved (status 500) or the statuses cannot be read; true otherwise.
+     * Records rejected with 400 are reported but not retried, since sending them again cannot succeed.
+     */
+    static boolean reportRecordStatuses(String serverResponse) {
+        int bodyStart = serverResponse.indexOf("\r\n\r\n");
+        try {
+            JSONArray statuses = new JSONArray(serverResponse.substring(bodyStart + 4));
+            boolean saved = true;
+            for (int i = 0; i < statuses.length(); i++) {
+                JSONObject status = statuses.getJSONObject(i);
+                int code = status.getInt("status");
+                System.out.println("Record " + status.getInt("index")
+                        + (status.has("id") ? " (" + status.getString("id") + ")" : "")
+                        + (status.has("lamportClock") ? " at clock " + status.getLong("lamportClock") : "") + ": " + code
+                        + (status.has("error") ? " - " + status.getString("error") : ""));
+                saved &= code != 500;
+            }
+            return saved;
+        } catch (JSONException | StringIndexOutOfBoundsException e) {
+            System.err.println("Invalid batch response: " + e.getMessage());
+            return false;
+        }
     }
 
     /**
@@ -142,13 +175,15 @@ public class ContentServer {
     }
 
     /**
-     * Converts the weather data from the specified text file into a JSON string.
+     * Converts the weather data from the specified text file into a JSON string. A file listing several
+     * stations, each starting at its own id line, becomes a JSON array sent as one batch PUT.
      *
      * @param feedFilePath The path to the data file.
      * @return A JSON string representation of the weather data, or null if an error occurs.
      */
     public static String convertToJson(String feedFilePath) {
         try (BufferedReader reader = new BufferedReader(new FileReader(feedFilePath))) {
+            List<String> stations = new ArrayList<>();
             StringBuilder jsonDataBuilder = new StringBuilder();
             String line;
             boolean firstEntry = true;
@@ -162,6 +197,13 @@ public class ContentServer {
                     String key = parts[0].trim();
                     String value = parts[1].trim();
 
+                    if (key.equals("id") && validID) {
+                        // A second id line starts the next station
+                        stations.add(jsonDataBuilder.append("}").toString());
+                        jsonDataBuilder = new StringBuilder("{");
+                        firstEntry = true;
+                    }
+
                     if (!firstEntry) {
                         jsonDataBuilder.append(","); // Add comma for subsequent entries
                     }
@@ -194,7 +236,11 @@ public class ContentServer {
                 return null;
             }
 
-            return jsonDataBuilder.toString();
+            if (stations.isEmpty()) {
+                return jsonDataBuilder.toString();
+            }
+            stations.add(jsonDataBuilder.toString());
+            return "[" + String.join(",", stations) + "]";
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ExpiryIndex orders keys by deadline so that expiry work is proportional to what actually expires.
+ * Keys are kept in a min-heap by deadline; rescheduling a key leaves its old heap entry behind, which is
+ * skipped when it surfaces and purged once stale entries dominate the heap. awaitExpired lets a single
+ * thread sleep until exactly the next deadline instead of scanning on a fixed period.
+ *
+ * @param <K> The type of key being expired.
+ */
+public class ExpiryIndex<K> {
+    private final PriorityQueue<Deadline<K>> queue = new PriorityQueue<>();
+    private final Map<K, Long> deadlines = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition headChanged = lock.newCondition();
+
+    /**
+     * Sets, or moves, the deadline of a key.
+     *
+     * @param key            The key to expire.
+     * @param deadlineMillis The time in epoch milliseconds at which the key expires.
+     */
+    public void schedule(K key, long deadlineMillis) {
+        lock.lock();
+        try {
+            deadlines.put(key, deadlineMillis);
+            Deadline<K> entry = new Deadline<>(key, deadlineMillis);
+            queue.add(entry);
+            if (queue.peek() == entry) {
+                headChanged.signalAll(); // Earlier than anything the waiter is sleeping on
+            }
+            if (queue.size() > 2 * deadlines.size() + 64) {
+                purgeStaleEntries();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a key; its heap entry is discarded when it reaches the head.
+     *
+     * @param key The key to stop tracking.
+     */
+    public void cancel(K key) {
+        lock.lock();
+        try {
+            deadlines.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns every key whose current deadline is at or before the given time.
+     *
+     * @param nowMillis The current time in epoch milliseconds.
+     * @return The expired keys in deadline order.
+     */
+    public List<K> pollExpired(long nowMillis) {
+        lock.lock();
+        try {
+            List<K> expired = new ArrayList<>();
+            Deadline<K> head;
+            while ((head = queue.peek()) != null && head.deadlineMillis <= nowMillis) {
+                queue.poll();
+                Long current = deadlines.get(head.key);
+                if (current != null && current == head.deadlineMillis) {
+                    deadlines.remove(head.key);
+                    expired.add(head.key);
+                }
+            }
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until at least one key expires, then returns all keys that have.
+     *
+     * @return The expired keys in deadline order.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public List<K> awaitExpired() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                List<K> expired = pollExpired(now);
+                if (!expired.isEmpty()) {
+                    return expired;
+                }
+                Deadline<K> head = queue.peek();
+                if (head == null) {
+                    headChanged.await();
+                } else {
+                    headChanged.await(head.deadlineMillis - now, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of keys with a pending deadline.
+     *
+     * @return The number of tracked keys.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return deadlines.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the heap from the current deadlines, dropping entries left behind by rescheduling.
+     */
+    private void purgeStaleEntries() {
+        queue.clear();
+        for (Map.Entry<K, Long> entry : deadlines.entrySet()) {
+            queue.add(new Deadline<>(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * A heap entry pairing a key with one of its deadlines.
+     */
+    private static final class Deadline<K> implements Comparable<Deadline<K>> {
+        final K key;
+        final long deadlineMillis;
+
+        Deadline(K key, long deadlineMillis) {
+            this.key = key;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        @Override
+        public int compareTo(Deadline<K> other) {
+            return Long.compare(deadlineMillis, other.deadlineMillis);
+        }
+    }
+}
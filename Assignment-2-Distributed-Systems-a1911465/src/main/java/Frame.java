@@ -0,0 +1,150 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame is one message of the wire protocol spoken by the AggregationServer, ContentServer and GETClient.
+ * A frame is a 4-byte big-endian length, then a 1-byte opcode, the sender's 8-byte Lamport clock and the
+ * raw payload; the length counts every byte after itself. The payload holds the HTTP-style request or
+ * response text followed by its body bytes as they are, so bodies of any encoding and size up to
+ * MAX_FRAME_BYTES are sent without the 64 KB limit or the modified UTF-8 conversion of writeUTF.
+ */
+public final class Frame {
+    /** Opcode of a GET request. */
+    public static final byte GET = 1;
+    /** Opcode of a PUT request. */
+    public static final byte PUT = 2;
+    /** Opcode of a response. */
+    public static final byte RESPONSE = 3;
+    /** Opcode of any other request; the server answers it with 400 Bad Request. */
+    public static final byte OTHER = 4;
+
+    static final int HEADER_BYTES = 4 + 1 + 8; // Length, opcode and clock
+    static final int MAX_FRAME_BYTES = Integer.getInteger("weather.frame.maxBytes", 16 * 1024 * 1024);
+
+    private final byte opcode;
+    private final long lamportClock;
+    private final byte[] payload;
+
+    /**
+     * Creates a frame.
+     *
+     * @param opcode       The kind of message.
+     * @param lamportClock The sender's Lamport clock, or 0 if it sends none.
+     * @param payload      The message bytes.
+     */
+    public Frame(byte opcode, long lamportClock, byte[] payload) {
+        this.opcode = opcode;
+        this.lamportClock = lamportClock;
+        this.payload = payload;
+    }
+
+    /**
+     * Creates a request frame, with the opcode taken from the method of the request line.
+     *
+     * @param message      The request text.
+     * @param lamportClock The sender's Lamport clock, or 0 if it sends none.
+     * @return The request frame.
+     */
+    public static Frame request(String message, long lamportClock) {
+        return new Frame(opcodeOf(message), lamportClock, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the opcode that matches the method of a request line.
+     *
+     * @param message The request text.
+     * @return GET or PUT for those methods, OTHER for any other.
+     */
+    public static byte opcodeOf(String message) {
+        return message.startsWith("GET ") ? GET : message.startsWith("PUT ") ? PUT : OTHER;
+    }
+
+    /**
+     * Creates a response frame.
+     *
+     * @param response     The response text.
+     * @param lamportClock The sender's Lamport clock.
+     * @return The response frame.
+     */
+    public static Frame response(String response, long lamportClock) {
+        return new Frame(RESPONSE, lamportClock, response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the frame: its header in one write and the payload in another, without copying the payload.
+     * The caller flushes.
+     *
+     * @param out The stream connected to the peer.
+     * @throws IOException If the frame cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(HEADER_BYTES - 4 + payload.length).put(opcode).putLong(lamportClock);
+        out.write(header.array());
+        out.write(payload);
+    }
+
+    /**
+     * Reads one frame.
+     *
+     * @param in The stream connected to the peer.
+     * @return The frame.
+     * @throws java.io.EOFException If the stream ends before or inside the frame.
+     * @throws ProtocolException    If the length is not that of a valid frame.
+     * @throws IOException          If the frame cannot be read.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        in.readFully(header);
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        int length = fields.getInt();
+        if (length < HEADER_BYTES - 4 || length > MAX_FRAME_BYTES) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        byte opcode = fields.get();
+        long lamportClock = fields.getLong();
+        byte[] payload = new byte[length - (HEADER_BYTES - 4)];
+        in.readFully(payload);
+        return new Frame(opcode, lamportClock, payload);
+    }
+
+    /**
+     * Gets the kind of message.
+     *
+     * @return The opcode.
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Gets the sender's Lamport clock.
+     *
+     * @return The clock, or 0 if the sender sent none.
+     */
+    public long getLamportClock() {
+        return lamportClock;
+    }
+
+    /**
+     * Gets the message bytes.
+     *
+     * @return The payload.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Decodes the payload as UTF-8 text.
+     *
+     * @return The message text.
+     */
+    public String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -1,11 +1,17 @@
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * This class is responsible for sending the GET request to the server,
@@ -14,16 +20,22 @@ import java.net.URL;
  */
 public class GETClient {
     private static final LamportClock lamportClock = new LamportClock();
+    static final long WATCH_WAIT_MILLIS = 30000; // How long each watch request asks the server to hold it
 
     /**
      * Initiates the GETClient.
      * Requires the server address (host:port) and an optional station ID.
+     * With a trailing --watch the client keeps printing the latest data each time it changes.
      *
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        boolean watch = args.length > 0 && "--watch".equals(args[args.length - 1]);
+        if (watch) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
         if (args.length < 1 || args.length > 2) {
-            System.out.println("Usage: java GETClient <server-url:port> [stationId]");
+            System.out.println("Usage: java GETClient <server-url:port> [stationId] [--watch]");
             System.exit(1);
         }
 
@@ -35,14 +47,19 @@ public class GETClient {
             String host = url.getHost();
             int port = (url.getPort() != -1) ? url.getPort() : 80;
 
+            if (watch) {
+                watch(host, port, stationId);
+                return;
+            }
+
             try (Socket socket = new Socket(host, port)) {
                 socket.setSoTimeout(5000); // Set a 5-second timeout for the socket
 
                 try (DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
-                     BufferedReader inputReader = new BufferedReader(new java.io.InputStreamReader(socket.getInputStream()))) {
+                     DataInputStream inputData = new DataInputStream(socket.getInputStream())) {
 
-                    sendGetRequest(outputData, host, port, stationId, lamportClock);
-                    processServerResponse(inputReader);
+                    sendGetRequest(outputData, host, port, stationId, lamportClock, ContentEncoding.ACCEPTED);
+                    processServerResponse(new BufferedReader(new StringReader(readResponse(inputData))));
                 }
             }
 
@@ -56,16 +73,31 @@ public class GETClient {
     /**
      * Constructs and sends the GET request to the server.
      *
-     * @param host        The server host
-     * @param port        The server port
-     * @param stationId   The optional station ID
+     * @param outputData   The output stream connected to the server
+     * @param host         The server host
+     * @param port         The server port
+     * @param stationId    The optional station ID
      * @param lamportClock The Lamport clock for synchronization
-     * @return 
      * @throws IOException If an I/O error occurs while sending the request
      */
-    public static boolean sendGetRequest(String host, int port, String stationId, LamportClock lamportClock) throws IOException {
-        GETClient.lamportClock.increment();
+    public static void sendGetRequest(DataOutputStream outputData, String host, int port, String stationId, LamportClock lamportClock) throws IOException {
+        sendGetRequest(outputData, host, port, stationId, lamportClock, null);
+    }
 
+    /**
+     * Constructs and sends the GET request to the server, asking for a compressed body.
+     *
+     * @param outputData     The output stream connected to the server
+     * @param host           The server host
+     * @param port           The server port
+     * @param stationId      The optional station ID
+     * @param lamportClock   The Lamport clock for synchronization
+     * @param acceptEncoding The content codings the response may use, or null to ask for none
+     * @throws IOException If an I/O error occurs while sending the request
+     */
+    public static void sendGetRequest(DataOutputStream outputData, String host, int port, String stationId, LamportClock lamportClock,
+                                      String acceptEncoding) throws IOException {
+        lamportClock.increment();
 
         StringBuilder requestBuilder = new StringBuilder("GET /weather");
         if (stationId != null) {
@@ -73,13 +105,152 @@ public class GETClient {
         }
         requestBuilder.append(" HTTP/1.1\r\n")
                 .append("Host: ").append(host).append(":").append(port).append("\r\n");
+        if (acceptEncoding != null) {
+            requestBuilder.append("Accept-Encoding: ").append(acceptEncoding).append("\r\n");
+        }
 
-        outputData.writeUTF(requestBuilder.toString());
+        Frame.request(requestBuilder.toString(), lamportClock.getValue()).write(outputData);
         outputData.flush();
 
         System.out.println("Request sent:\n" + requestBuilder.toString());
     }
 
+    /**
+     * Opens a connection to the server, sends the GET request and prints the response.
+     *
+     * @param host         The server host
+     * @param port         The server port
+     * @param stationId    The optional station ID
+     * @param lamportClock The Lamport clock for synchronization
+     * @return true once the request has been sent and the response processed
+     * @throws IOException If an I/O error occurs while communicating with the server
+     */
+    public static boolean sendGetRequest(String host, int port, String stationId, LamportClock lamportClock) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(5000); // Set a 5-second timeout for the socket
+
+            DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputData = new DataInputStream(socket.getInputStream());
+
+            sendGetRequest(outputData, host, port, stationId, lamportClock, ContentEncoding.ACCEPTED);
+            processServerResponse(new BufferedReader(new StringReader(readResponse(inputData))));
+            return true;
+        }
+    }
+
+    /**
+     * Prints the latest data, then again every time it changes, using long-poll GETs.
+     *
+     * @param host      The server host
+     * @param port      The server port
+     * @param stationId The optional station ID
+     */
+    public static void watch(String host, int port, String stationId) {
+        long since = -1; // Below any server clock, so the first request answers at once
+        while (true) {
+            try {
+                since = watchOnce(host, port, stationId, since);
+            } catch (IOException e) {
+                System.out.println("Error connecting to the server: " + e.getMessage());
+                try {
+                    Thread.sleep(1000); // Back off before reconnecting
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one long-poll GET, which the server answers once its data changes after the given clock
+     * or the wait runs out, and prints the data if it changed.
+     *
+     * @param host      The server host
+     * @param port      The server port
+     * @param stationId The optional station ID
+     * @param since     The Lamport clock of the data already printed
+     * @return The Lamport clock to send as since on the next request
+     * @throws IOException If an I/O error occurs while communicating with the server
+     */
+    public static long watchOnce(String host, int port, String stationId, long since) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout((int) WATCH_WAIT_MILLIS + 10000); // The server holds the request for up to the wait
+
+            DataOutputStream outputData = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputData = new DataInputStream(socket.getInputStream());
+
+            lamportClock.increment();
+            StringBuilder requestBuilder = new StringBuilder("GET /weather?since=").append(since)
+                    .append("&wait=").append(WATCH_WAIT_MILLIS);
+            if (stationId != null) {
+                requestBuilder.append("&stationId=").append(stationId);
+            }
+            requestBuilder.append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append(":").append(port).append("\r\n")
+                    .append("Accept-Encoding: ").append(ContentEncoding.ACCEPTED).append("\r\n\r\n");
+            Frame.request(requestBuilder.toString(), lamportClock.getValue()).write(outputData);
+            outputData.flush();
+
+            String response = readResponse(inputData);
+            long serverClock = since;
+            for (String line : response.split("\r\n")) {
+                if (line.startsWith("Lamport-Clock:")) {
+                    serverClock = Long.parseLong(line.substring("Lamport-Clock:".length()).trim());
+                    lamportClock.update(serverClock);
+                }
+            }
+            if (!response.startsWith("HTTP/1.1 204")) {
+                processServerResponse(new BufferedReader(new StringReader(response)));
+            }
+            return serverClock;
+        }
+    }
+
+    /**
+     * Reads one response frame from the server. A response with a Content-Encoding header carries its
+     * compressed body as the bytes after its headers; that body is decoded, so the result reads like an
+     * uncompressed response.
+     *
+     * @param inputData The input stream connected to the server
+     * @return The response headers and body
+     * @throws IOException If an I/O error occurs while reading the response
+     */
+    static String readResponse(DataInputStream inputData) throws IOException {
+        Frame frame = Frame.read(inputData);
+        byte[] payload = frame.getPayload();
+        int bodyStart = headersEnd(payload);
+        String head = new String(payload, 0, bodyStart, StandardCharsets.UTF_8);
+        String coding = null;
+        for (String line : head.split("\r\n")) {
+            if (line.startsWith("Content-Encoding:")) {
+                coding = line.substring("Content-Encoding:".length()).trim();
+            }
+        }
+        if (coding == null) {
+            return frame.text();
+        }
+        try (InputStream decoded = ContentEncoding.decode(
+                new ByteArrayInputStream(payload, bodyStart, payload.length - bodyStart), coding)) {
+            return head + new String(decoded.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Finds where the body of a response payload starts.
+     *
+     * @param payload The response bytes
+     * @return The index after the blank line ending the headers, or the payload length if there is none
+     */
+    private static int headersEnd(byte[] payload) {
+        for (int i = 0; i + 3 < payload.length; i++) {
+            if (payload[i] == '\r' && payload[i + 1] == '\n' && payload[i + 2] == '\r' && payload[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return payload.length;
+    }
+
     /**
      * Processes the server's response to the GET request.
      *
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * GroupCommitter batches PUT persistence so that concurrent PUTs share one write and one fsync.
+ * Request handlers submit items and wait on the returned future. A single writer thread collects
+ * everything that arrives within the batch window (up to the maximum batch size), hands the batch
+ * to the BatchWriter, which must force it to disk, and then completes every future in the batch.
+ *
+ * @param <T> The type of item queued for each PUT.
+ */
+public class GroupCommitter<T> {
+    static final long DEFAULT_WINDOW_MILLIS = Long.getLong("weather.groupCommit.windowMillis", 2); // How long a batch stays open
+    static final int DEFAULT_MAX_BATCH = Integer.getInteger("weather.groupCommit.maxBatch", 256); // Maximum items per fsync
+
+    /**
+     * Writes one batch and forces it to disk before returning.
+     *
+     * @param <T> The type of item in the batch.
+     */
+    public interface BatchWriter<T> {
+        void write(List<T> batch) throws IOException;
+    }
+
+    private final BlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+    private final BatchWriter<T> batchWriter;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Thread writerThread;
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock(); // Submitters share it; close() takes it alone
+    private volatile boolean running = true; // Only cleared under the write lock
+    private volatile long batchCount; // Only written by the writer thread
+
+    /**
+     * Creates the committer and starts its writer thread.
+     *
+     * @param name         The writer thread name.
+     * @param batchWriter  Writes and forces each batch.
+     * @param windowMillis How long a batch waits for more items once the first one arrives.
+     * @param maxBatchSize The maximum number of items committed by one fsync.
+     */
+    public GroupCommitter(String name, BatchWriter<T> batchWriter, long windowMillis, int maxBatchSize) {
+        this.batchWriter = batchWriter;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.writerThread = new Thread(this::writeLoop, name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues an item for the next batch.
+     *
+     * @param item The item to commit.
+     * @return A future that completes once the batch holding the item is durable.
+     */
+    public CompletableFuture<Void> submit(T item) {
+        Pending<T> pending = new Pending<>(item);
+        stateLock.readLock().lock();
+        try {
+            // Checked and queued under the lock, so close() cannot stop the writer between the two
+            if (!running) {
+                pending.future.completeExceptionally(new IOException("Group commit stopped"));
+                return pending.future;
+            }
+            queue.add(pending);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        return pending.future;
+    }
+
+    /**
+     * Gets the number of batches written so far.
+     *
+     * @return The number of fsyncs issued.
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Stops accepting items, commits whatever is queued and waits for the writer thread.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void close() throws InterruptedException {
+        stateLock.writeLock().lock();
+        try {
+            running = false; // Every item queued before this is committed by the writer
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        writerThread.join();
+    }
+
+    /**
+     * Writer thread loop: opens a batch on the first item and keeps it open for the window.
+     */
+    private void writeLoop() {
+        List<Pending<T>> batch = new ArrayList<>();
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IOException stopped = new IOException("Group commit interrupted");
+            queue.drainTo(batch); // Items queued behind the open batch would otherwise never complete
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(stopped);
+            }
+        }
+    }
+
+    /**
+     * Writes one batch and completes its futures with the outcome.
+     *
+     * @param batch The queued items in arrival order.
+     */
+    private void commit(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+        try {
+            batchWriter.write(items);
+            batchCount++;
+            for (Pending<T> pending : batch) {
+                pending.future.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * An item waiting for its batch, with the future its submitter waits on.
+     */
+    private static final class Pending<T> {
+        final T item;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+}
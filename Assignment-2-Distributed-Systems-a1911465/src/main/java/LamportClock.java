@@ -1,15 +1,18 @@
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * The LamportClock class implements a logical clock based on Lamport timestamps.
  * It provides methods to increment the clock and update its value based on received timestamps.
+ * The clock is lock-free and safe to share between threads: tick is a single atomic increment and
+ * update is a compare-and-set loop. The value is 64-bit so it cannot wrap.
  */
 public class LamportClock {
-    private int value;
+    private final AtomicLong value = new AtomicLong();
 
     /**
      * Constructs a LamportClock instance, initializing its value to 0.
      */
     public LamportClock() {
-        this.value = 0;
     }
 
     /**
@@ -17,15 +20,39 @@ public class LamportClock {
      *
      * @return The current value of the Lamport clock.
      */
-    public int getValue() {
-        return value;
+    public long getValue() {
+        return value.get();
+    }
+
+    /**
+     * Advances the clock for a local event.
+     *
+     * @return The new value of the Lamport clock.
+     */
+    public long tick() {
+        return value.incrementAndGet();
+    }
+
+    /**
+     * Advances the clock for count local events at once; the events own the consecutive values ending at the
+     * returned one, so a batch of updates costs one atomic add.
+     *
+     * @param count The number of events, at least 1.
+     * @return The value of the last event.
+     * @throws IllegalArgumentException If count is not positive.
+     */
+    public long tickRange(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive: " + count);
+        }
+        return value.addAndGet(count);
     }
 
     /**
      * Increments the value of the Lamport clock by 1.
      */
     public void increment() {
-        value++;
+        tick();
     }
 
     /**
@@ -33,9 +60,19 @@ public class LamportClock {
      * The new value is set to the maximum of the current clock value and the provided new value, plus one.
      *
      * @param newValue The new timestamp value to update the clock with.
+     * @return The new value of the Lamport clock.
      */
-    public void update(int newValue) {
-        // Set the value to the maximum of the current and the new value
-        value = Math.max(value, newValue) + 1;
+    public long update(long newValue) {
+        long current = value.get();
+        if (newValue <= current) {
+            return value.incrementAndGet(); // The clock only grows, so the new value stays below it
+        }
+        while (true) {
+            long next = Math.max(current, newValue) + 1;
+            if (value.compareAndSet(current, next)) {
+                return next;
+            }
+            current = value.get();
+        }
     }
 }
@@ -0,0 +1,157 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * StationHistory keeps the most recent readings of one weather station in a fixed-capacity ring buffer.
+ * Each numeric Weather field is held in its own primitive array, so recording a reading costs O(1)
+ * and allocates nothing, and old readings are overwritten in place once the buffer is full.
+ *
+ * Writes take no lock. The sequence number is even while the buffer is stable and odd while a write is
+ * in progress; a writer claims the buffer by moving it from even to odd, which guarantees one writer per
+ * station at a time, and publishes by moving it to the next even value. Readers copy what they need and
+ * retry if the sequence changed underneath them, so they never observe a half-written reading.
+ */
+public class StationHistory {
+    static final int DEFAULT_CAPACITY = 64; // Readings kept per station
+
+    /**
+     * Names of the numeric fields held per reading, in column order.
+     */
+    static final String[] FIELDS = {
+            "lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"
+    };
+
+    private final String stationId;
+    private final int capacity;
+    private final double[][] columns; // columns[field][slot]
+    private final long[] receivedAt; // Time each slot was written, in milliseconds
+    private final AtomicLong sequence = new AtomicLong(); // Odd while a write is in progress
+    private long count; // Readings ever written; only changed by the writer holding an odd sequence
+
+    /**
+     * Creates an empty history.
+     *
+     * @param stationId The station the readings belong to.
+     * @param capacity  The number of readings kept before the oldest is overwritten.
+     */
+    public StationHistory(String stationId, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.stationId = stationId;
+        this.capacity = capacity;
+        this.columns = new double[FIELDS.length][capacity];
+        this.receivedAt = new long[capacity];
+    }
+
+    /**
+     * Records a reading, overwriting the oldest one if the buffer is full.
+     *
+     * @param weather        The reading to record.
+     * @param receivedMillis The time the reading was received.
+     */
+    public void record(Weather weather, long receivedMillis) {
+        long seq = claimWriter();
+        int slot = (int) (count % capacity);
+        columns[0][slot] = weather.getLat();
+        columns[1][slot] = weather.getLon();
+        columns[2][slot] = weather.getAir_temp();
+        columns[3][slot] = weather.getApparent_t();
+        columns[4][slot] = weather.getDewpt();
+        columns[5][slot] = weather.getPress();
+        columns[6][slot] = weather.getRel_hum();
+        columns[7][slot] = weather.getWind_spd_kmh();
+        columns[8][slot] = weather.getWind_spd_kt();
+        receivedAt[slot] = receivedMillis;
+        count++;
+        sequence.set(seq + 2); // Publish the reading
+    }
+
+    /**
+     * Gets the latest readings, newest first, as a JSON array.
+     *
+     * @param n The maximum number of readings to return.
+     * @return Up to n readings, each an object holding the numeric fields and "received_at".
+     */
+    public JSONArray latest(int n) {
+        int wanted = Math.max(0, Math.min(n, capacity));
+        double[][] values = new double[FIELDS.length][wanted];
+        long[] times = new long[wanted];
+        int copied;
+        while (true) {
+            long seq = sequence.get();
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait(); // A write is in progress
+                continue;
+            }
+            long total = count;
+            copied = (int) Math.min(wanted, total);
+            for (int i = 0; i < copied; i++) {
+                int slot = (int) ((total - 1 - i) % capacity);
+                for (int field = 0; field < FIELDS.length; field++) {
+                    values[field][i] = columns[field][slot];
+                }
+                times[i] = receivedAt[slot];
+            }
+            VarHandle.acquireFence(); // Finish the copy before re-reading the sequence
+            if (sequence.get() == seq) {
+                break; // Nothing was written while copying
+            }
+        }
+
+        JSONArray readings = new JSONArray();
+        for (int i = 0; i < copied; i++) {
+            JSONObject reading = new JSONObject();
+            reading.put("id", stationId);
+            reading.put("received_at", times[i]);
+            for (int field = 0; field < FIELDS.length; field++) {
+                reading.put(FIELDS[field], values[field][i]);
+            }
+            readings.put(reading);
+        }
+        return readings;
+    }
+
+    /**
+     * Gets the number of readings currently held.
+     *
+     * @return The number of readings, at most the capacity.
+     */
+    public int size() {
+        while (true) {
+            long seq = sequence.get();
+            long total = count;
+            VarHandle.acquireFence();
+            if ((seq & 1) == 0 && sequence.get() == seq) {
+                return (int) Math.min(total, capacity);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Gets the maximum number of readings held.
+     *
+     * @return The capacity of the ring buffer.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Claims the single writer slot by moving the sequence from even to odd.
+     *
+     * @return The even sequence value observed before the claim.
+     */
+    private long claimWriter() {
+        while (true) {
+            long seq = sequence.get();
+            if ((seq & 1) == 0 && sequence.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+            Thread.onSpinWait(); // Another PUT for this station is writing
+        }
+    }
+}
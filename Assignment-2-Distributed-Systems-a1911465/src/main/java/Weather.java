@@ -23,6 +23,7 @@ public class Weather implements Serializable {
     private String wind_dir;
     private double wind_spd_kmh;
     private double wind_spd_kt;
+    private long lamportClock; // Server clock the reading was stored at; 0 until it is stored
 
     /**
      * Constructor to initialize the weather data fields.
@@ -121,6 +122,9 @@ public class Weather implements Serializable {
     public double getWind_spd_kt() { return wind_spd_kt; }
     public void setWind_spd_kt(double wind_spd_kt) { this.wind_spd_kt = wind_spd_kt; }
 
+    public long getLamportClock() { return lamportClock; }
+    public void setLamportClock(long lamportClock) { this.lamportClock = lamportClock; }
+
     /**
      * Returns a string representation of the Weather object.
      *
@@ -0,0 +1,96 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The AdmissionControllerTest class verifies that connections beyond the worker pool and
+ * its queue are shed with a 503 response and that the counters reflect each outcome.
+ */
+public class AdmissionControllerTest {
+
+    private ServerSocket serverSocket;
+    private AdmissionController controller;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+        controller = new AdmissionController(1, 1); // One worker, one queue slot
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        controller.shutdown();
+        serverSocket.close();
+    }
+
+    /**
+     * Fills the single worker and the single queue slot, then checks that the next
+     * connection is rejected with 503 and Retry-After.
+     */
+    @Test
+    public void testShedsConnectionsWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Runnable blockingTask = () -> {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        Socket client1 = new Socket("localhost", serverSocket.getLocalPort()); // Only held open while queued
+        Socket client2 = new Socket("localhost", serverSocket.getLocalPort());
+        try (Socket client3 = new Socket("localhost", serverSocket.getLocalPort())) {
+            assertTrue(controller.admit(serverSocket.accept(), blockingTask)); // Runs on the worker
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(controller.admit(serverSocket.accept(), blockingTask)); // Waits in the queue
+            assertEquals(1, controller.getQueueDepth());
+
+            assertFalse(controller.admit(serverSocket.accept(), blockingTask)); // Shed
+
+            client3.setSoTimeout(5000);
+            String response = Frame.read(new DataInputStream(client3.getInputStream())).text();
+            assertTrue(response.startsWith("HTTP/1.1 503 Service Unavailable"));
+            assertTrue(response.contains("Retry-After: " + AdmissionController.RETRY_AFTER_SECONDS));
+        } finally {
+            release.countDown();
+            client1.close();
+            client2.close();
+        }
+
+        assertEquals(2, controller.getAcceptedCount());
+        assertEquals(1, controller.getQueuedCount()); // Still counted once the queue has drained
+        assertEquals(1, controller.getShedCount());
+    }
+
+    /**
+     * Checks that only half of the workers may wait on kept-alive connections, and that a
+     * returned permit can be claimed again.
+     */
+    @Test
+    public void testKeepAliveLimitedToHalfTheWorkers() {
+        AdmissionController fourWorkers = new AdmissionController(4, 1);
+        try {
+            assertTrue(fourWorkers.tryKeepAlive());
+            assertTrue(fourWorkers.tryKeepAlive());
+            assertFalse(fourWorkers.tryKeepAlive()); // Two workers stay free for new connections
+
+            fourWorkers.endKeepAlive();
+            assertTrue(fourWorkers.tryKeepAlive());
+            assertFalse(controller.tryKeepAlive()); // A single worker never waits on an idle connection
+        } finally {
+            fourWorkers.shutdown();
+        }
+    }
+}
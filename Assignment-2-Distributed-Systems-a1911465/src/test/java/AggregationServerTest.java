@@ -1,3 +1,4 @@
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import static org.junit.Assert.*;
@@ -5,9 +6,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The AggregationServerTest class contains unit tests for the AggregationServer functionality.
@@ -140,7 +145,7 @@ public class AggregationServerTest {
         try {
             // Simulating a stale connection by adding it to the server
             Socket mockSocket = new Socket("localhost", 4567);
-            AggregationServer.serverLastActiveTime.put(mockSocket, System.currentTimeMillis() - 31000); // Simulate timeout (30 seconds + 1 ms)
+            AggregationServer.recordActivity(mockSocket, System.currentTimeMillis() - 31000); // Simulate timeout (30 seconds + 1 ms)
 
             // Run cleanup logic
             AggregationServer.cleanupStaleData(); // Invoke the cleanup method
@@ -161,7 +166,7 @@ public class AggregationServerTest {
         try {
             // Simulate connection with a mock socket
             Socket mockSocket = new Socket("localhost", 4567);
-            AggregationServer.serverLastActiveTime.put(mockSocket, System.currentTimeMillis() - 31000); // Simulate timeout
+            AggregationServer.recordActivity(mockSocket, System.currentTimeMillis() - 31000); // Simulate timeout
 
             // Simulate a client connection being open and check the timeout handling
             AggregationServer.manageConnections(); // Call the connection manager
@@ -188,4 +193,349 @@ public class AggregationServerTest {
         // Simulate the server processing this request
         assertFalse(AggregationServer.processRequest(message)); // Replace with actual method to test
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests that a client asking for keep-alive can send several requests over one connection
+     * and that the server closes it once a request no longer asks to keep it open.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testKeepAliveConnectionServesSeveralRequests() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            Thread handler = new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID));
+            handler.start();
+
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            Frame.request("GET /weather HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n", 0).write(out);
+            assertTrue(Frame.read(in).text().contains("Connection: keep-alive"));
+
+            Frame.request("GET /weather HTTP/1.1\r\nHost: localhost\r\n\r\n", 0).write(out);
+            assertTrue(Frame.read(in).text().contains("Connection: close"));
+
+            handler.join(5000);
+            assertFalse(handler.isAlive()); // Handler finished and closed the connection
+        }
+    }
+
+    /**
+     * Tests that only connections past their idle deadline are closed.
+     *
+     * @throws IOException If the local connections cannot be created.
+     */
+    @Test
+    public void testIdleConnectionsClosedAtDeadline() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Socket idleClient = new Socket("localhost", serverSocket.getLocalPort()); // Client ends, only held open
+            Socket activeClient = new Socket("localhost", serverSocket.getLocalPort());
+            try {
+                Socket idle = serverSocket.accept();
+                Socket active = serverSocket.accept();
+                AggregationServer.recordActivity(idle, System.currentTimeMillis() - 31000); // Past the 30-second timeout
+                AggregationServer.recordActivity(active, System.currentTimeMillis());
+
+                AggregationServer.manageConnections();
+
+                assertTrue(idle.isClosed());
+                assertFalse(AggregationServer.serverLastActiveTime.containsKey(idle));
+                assertFalse(active.isClosed());
+                assertTrue(AggregationServer.serverLastActiveTime.containsKey(active));
+                active.close();
+            } finally {
+                idleClient.close();
+                activeClient.close();
+            }
+        }
+    }
+
+    /**
+     * Tests GET /weather/{id}/history?n= after two PUTs for a station, and 404 for an unknown station.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testStationHistoryEndpoint() throws Exception {
+        assertTrue(AggregationServer.processWeatherData(putMessage("HISTORY01", 13.3), TEST_SERVER_ID, new StringBuilder()));
+        assertTrue(AggregationServer.processWeatherData(putMessage("HISTORY01", 14.1), TEST_SERVER_ID, new StringBuilder()));
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            Thread handler = new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID));
+            handler.start();
+
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            Frame.request("GET /weather/HISTORY01/history?n=1 HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n", 0).write(out);
+            String response = Frame.read(in).text();
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            JSONArray readings = new JSONArray(response.substring(response.indexOf("\r\n\r\n") + 4));
+            assertEquals(1, readings.length());
+            assertEquals(14.1, readings.getJSONObject(0).getDouble("air_temp"), 0.0); // Newest first
+
+            Frame.request("GET /weather/NOSUCHSTATION/history HTTP/1.1\r\nHost: localhost\r\n\r\n", 0).write(out);
+            assertTrue(Frame.read(in).text().startsWith("HTTP/1.1 404 Not Found"));
+
+            handler.join(5000);
+        }
+    }
+
+    /**
+     * Tests that GET ?stationId= and ?ids= are answered with the named stations rather than the latest PUT,
+     * and 404 for unknown stations, with Content-Length counting the UTF-8 bytes of a non-ASCII name.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testStationGetRoutedById() throws Exception {
+        assertTrue(AggregationServer.processWeatherData(putMessage("ROUTE01", "Montr\u00e9al", 11.0), TEST_SERVER_ID, new StringBuilder()));
+        assertTrue(AggregationServer.processWeatherData(putMessage("ROUTE02", 22.0), TEST_SERVER_ID, new StringBuilder()));
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            Thread handler = new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID));
+            handler.start();
+
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            Frame.request("GET /weather?stationId=ROUTE01 HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n", 0).write(out);
+            String response = Frame.read(in).text();
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            String body = response.substring(response.indexOf("\r\n\r\n") + 4);
+            assertTrue(response.contains("Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n")); // Bytes, not chars
+            JSONObject station = new JSONObject(body);
+            assertEquals("ROUTE01", station.getString("id")); // Not the most recent PUT
+            assertEquals(11.0, station.getDouble("air_temp"), 0.0);
+
+            Frame.request("GET /weather?ids=ROUTE02,NOSUCHSTATION,ROUTE01 HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n", 0).write(out);
+            response = Frame.read(in).text();
+            JSONArray stations = new JSONArray(response.substring(response.indexOf("\r\n\r\n") + 4));
+            assertEquals(2, stations.length()); // Unknown stations are left out
+            assertEquals("ROUTE02", stations.getJSONObject(0).getString("id"));
+
+            Frame.request("GET /weather?stationId=NOSUCHSTATION HTTP/1.1\r\nHost: localhost\r\n\r\n", 0).write(out);
+            assertTrue(Frame.read(in).text().startsWith("HTTP/1.1 404 Not Found"));
+
+            handler.join(5000);
+        }
+    }
+
+    /**
+     * Tests that a full GET accepting gzip gets the latest reading compressed, compressed once and shared
+     * by later GETs, and that GETClient decodes it.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testFullGetCompressedWhenAccepted() throws Exception {
+        assertTrue(AggregationServer.processWeatherData(putMessage("ZIP01", 14.4), TEST_SERVER_ID, new StringBuilder()));
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            Thread handler = new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID));
+            handler.start();
+
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            GETClient.sendGetRequest(out, "localhost", serverSocket.getLocalPort(), null, new LamportClock(), "gzip, deflate");
+            String response = GETClient.readResponse(new DataInputStream(client.getInputStream()));
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response.contains("Content-Encoding: gzip\r\n"));
+            assertTrue(response.endsWith("\r\n\r\n" + AggregationServer.latestWeather()));  // Decoded to the latest reading
+            assertTrue(response.contains("id:'ZIP01'"));
+
+            handler.join(5000);
+        }
+        Weather latest = AggregationServer.latestWeather();
+        assertSame(AggregationServer.compressedReading(latest, "gzip"), AggregationServer.compressedReading(latest, "gzip"));
+        assertEquals("gzip", AggregationServer.acceptedCoding("GET /weather HTTP/1.1\r\naccept-encoding: deflate;q=0.5, gzip\r\n\r\n"));
+        assertNull(AggregationServer.acceptedCoding("GET /weather HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+    }
+
+    /**
+     * Tests that a long-poll GET frees its worker while parked and is answered once a PUT changes the data.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testLongPollGetParkedUntilPut() throws Exception {
+        long since = AggregationServer.changeWatchers.getLastChange();
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket watcher = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            Thread handler = new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID));
+            handler.start();
+
+            watcher.setSoTimeout(5000);
+            Frame.request("GET /weather?since=" + since + "&wait=10000 HTTP/1.1\r\nHost: localhost\r\n\r\n", 0)
+                    .write(new DataOutputStream(watcher.getOutputStream()));
+            handler.join(5000);
+            assertFalse(handler.isAlive()); // The worker returned while the GET stays parked
+            assertFalse(accepted.isClosed());
+
+            try (Socket putter = new Socket("localhost", serverSocket.getLocalPort())) {
+                Socket acceptedPut = serverSocket.accept();
+                new Thread(() -> AggregationServer.handleClient(acceptedPut, TEST_SERVER_ID)).start();
+                putter.setSoTimeout(5000);
+                Frame.request(putMessage("WATCH01", 13.3), 0).write(new DataOutputStream(putter.getOutputStream()));
+                assertTrue(Frame.read(new DataInputStream(putter.getInputStream())).text().startsWith("HTTP/1.1 201"));
+            }
+
+            String response = Frame.read(new DataInputStream(watcher.getInputStream())).text();
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response.contains("WATCH01"));
+        }
+    }
+
+    /**
+     * Tests that a PUT framed with a payload over the 64 KB writeUTF limit is stored, and that the
+     * clock field of its frame advances the server clock.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testPutLargerThanUtfLimitInOneFrame() throws Exception {
+        StringBuilder name = new StringBuilder();
+        while (name.length() < 70000) {
+            name.append("Large station ");
+        }
+        long senderClock = AggregationServer.lamportClock.getValue() + 1000;
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID)).start();
+            client.setSoTimeout(5000);
+
+            Frame.request(putMessage("FRAME01", name.toString(), 13.3), senderClock).write(new DataOutputStream(client.getOutputStream()));
+            Frame response = Frame.read(new DataInputStream(client.getInputStream()));
+
+            assertEquals(Frame.RESPONSE, response.getOpcode());
+            assertTrue(response.text().startsWith("HTTP/1.1 201"));
+            assertTrue(response.getLamportClock() > senderClock);
+        }
+    }
+
+    /**
+     * Tests that the server dispatches on the frame's opcode: a GET frame whose request line is a PUT, or a
+     * PUT frame whose request line is a GET, is rejected with 400 and the PUT is not applied.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testOpcodeMismatchIsRejected() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID)).start();
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            String put = putMessage("OPCODE01", 13.3).replace("\r\n\r\n", "\r\nConnection: keep-alive\r\n\r\n");
+            new Frame(Frame.GET, 0, put.getBytes(StandardCharsets.UTF_8)).write(out);
+            assertTrue(Frame.read(in).text().startsWith("HTTP/1.1 400 Bad Request"));
+
+            new Frame(Frame.PUT, 0, "GET /weather?stationId=OPCODE01 HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8)).write(out);
+            assertTrue(Frame.read(in).text().startsWith("HTTP/1.1 400 Bad Request"));
+
+            Frame.request("GET /weather?stationId=OPCODE01 HTTP/1.1\r\nHost: localhost\r\n\r\n", 0).write(out);
+            assertTrue("The mismatched PUT was not applied.", Frame.read(in).text().startsWith("HTTP/1.1 404 Not Found"));
+        }
+    }
+
+    /**
+     * Tests that a batch PUT, sent as a JSON array or as NDJSON, stores every valid record, answers with the
+     * status of each record in order and makes the stored records readable.
+     *
+     * @throws Exception If the connection or the handler thread fails.
+     */
+    @Test
+    public void testBatchPutReportsPerRecordStatus() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            Socket accepted = serverSocket.accept();
+            new Thread(() -> AggregationServer.handleClient(accepted, TEST_SERVER_ID)).start();
+            client.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+
+            String array = "[" + stationJson("BATCH01", 11.1) + ",{\"id\":\"BATCH02\"}," + stationJson("BATCH03", 13.3) + "]";
+            Frame.request("PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nConnection: keep-alive\r\n\r\n" + array, 0).write(out);
+            String response = Frame.read(in).text();
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            JSONArray statuses = new JSONArray(response.substring(response.indexOf("\r\n\r\n") + 4));
+            assertEquals(3, statuses.length());
+            assertEquals("BATCH01", statuses.getJSONObject(0).getString("id"));
+            assertEquals(201, statuses.getJSONObject(0).getInt("status"));
+            assertEquals(400, statuses.getJSONObject(1).getInt("status"));
+            assertEquals(201, statuses.getJSONObject(2).getInt("status"));
+            assertEquals("Each record has its own clock from one range.",
+                    statuses.getJSONObject(0).getLong("lamportClock") + 2, statuses.getJSONObject(2).getLong("lamportClock"));
+            assertFalse("A rejected record is not stamped.", statuses.getJSONObject(1).has("lamportClock"));
+
+            String ndjson = stationJson("BATCH01", 21.1) + "\n" + stationJson("BATCH04", 14.4) + "\n";
+            Frame.request("PUT /weather.json HTTP/1.1\r\nContent-Type: application/x-ndjson\r\nConnection: keep-alive\r\n\r\n" + ndjson, 0).write(out);
+            response = Frame.read(in).text();
+            statuses = new JSONArray(response.substring(response.indexOf("\r\n\r\n") + 4));
+            assertEquals(2, statuses.length());
+            assertEquals("An existing station is updated.", 200, statuses.getJSONObject(0).getInt("status"));
+            assertEquals(201, statuses.getJSONObject(1).getInt("status"));
+
+            Frame.request("GET /weather?ids=BATCH01,BATCH03,BATCH04 HTTP/1.1\r\nHost: localhost\r\n\r\n", 0).write(out);
+            response = Frame.read(in).text();
+            JSONArray stations = new JSONArray(response.substring(response.indexOf("\r\n\r\n") + 4));
+            assertEquals(3, stations.length());
+            assertEquals(21.1, stations.getJSONObject(0).getDouble("air_temp"), 0.0);
+        }
+    }
+
+    /**
+     * Builds the JSON object of one station reading named "Test".
+     *
+     * @param id      The station ID.
+     * @param airTemp The air temperature of the reading.
+     * @return The station object text.
+     */
+    private static String stationJson(String id, double airTemp) {
+        String message = putMessage(id, airTemp);
+        return message.substring(message.indexOf("\r\n\r\n") + 4);
+    }
+
+    /**
+     * Builds a PUT request for one station reading named "Test".
+     *
+     * @param id      The station ID.
+     * @param airTemp The air temperature of the reading.
+     * @return The PUT request text.
+     */
+    private static String putMessage(String id, double airTemp) {
+        return putMessage(id, "Test", airTemp);
+    }
+
+    /**
+     * Builds a PUT request for one station reading.
+     *
+     * @param id      The station ID.
+     * @param name    The station name.
+     * @param airTemp The air temperature of the reading.
+     * @return The PUT request text.
+     */
+    private static String putMessage(String id, String name, double airTemp) {
+        return "PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\n\r\n" +
+                "{\"id\":\"" + id + "\",\"name\":\"" + name + "\",\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,\"local_date_time\":\"15/04:00pm\",\"local_date_time_full\":\"20230715160000\",\"air_temp\":" + airTemp + ",\"apparent_t\":9.5,\"cloud\":\"Clear\",\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The ChangeWatchersTest class verifies that parked GETs are released by a newer change,
+ * answered when their wait runs out, and not parked at all when the data already changed.
+ */
+public class ChangeWatchersTest {
+
+    /**
+     * Parks a watcher and checks that a change after its clock releases it, and an older one does not.
+     */
+    @Test
+    public void testChangeReleasesOlderWatchers() throws Exception {
+        ChangeWatchers watchers = new ChangeWatchers();
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        assertTrue(watchers.park(5, 10000, answer::complete));
+        assertEquals(1, watchers.parkedCount());
+
+        watchers.changed(5); // Not newer than what the client has
+        assertFalse(answer.isDone());
+
+        watchers.changed(6);
+        assertTrue(answer.get(5, TimeUnit.SECONDS));
+        assertEquals(0, watchers.parkedCount());
+    }
+
+    /**
+     * Checks that a watcher whose wait runs out is answered as unchanged.
+     */
+    @Test
+    public void testWaitRunsOut() throws Exception {
+        ChangeWatchers watchers = new ChangeWatchers();
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        assertTrue(watchers.park(0, 50, answer::complete));
+
+        assertFalse(answer.get(5, TimeUnit.SECONDS));
+        assertEquals(0, watchers.parkedCount());
+    }
+
+    /**
+     * Checks that a GET whose clock is older than the latest change is answered at once, not parked.
+     */
+    @Test
+    public void testAlreadyChangedIsNotParked() {
+        ChangeWatchers watchers = new ChangeWatchers();
+        watchers.changed(10);
+
+        assertFalse(watchers.park(9, 10000, changed -> fail("Should not be parked")));
+        assertTrue(watchers.park(10, 10000, changed -> { }));
+        assertEquals(10, watchers.getLastChange());
+    }
+
+    /**
+     * Parks watchers at several clocks and checks that a change releases exactly those older than it,
+     * and that a timeout removes only its own watcher from a clock shared with others.
+     */
+    @Test
+    public void testChangeReleasesOnlyOlderClocks() throws Exception {
+        ChangeWatchers watchers = new ChangeWatchers();
+        List<CompletableFuture<Boolean>> answers = new ArrayList<>();
+        for (int clock = 0; clock < 10; clock++) {
+            CompletableFuture<Boolean> answer = new CompletableFuture<>();
+            assertTrue(watchers.park(clock, 10000, answer::complete));
+            answers.add(answer);
+        }
+        CompletableFuture<Boolean> shortWait = new CompletableFuture<>();
+        assertTrue(watchers.park(7, 50, shortWait::complete)); // Shares clock 7 with a longer wait
+        assertFalse(shortWait.get(5, TimeUnit.SECONDS));
+        assertEquals(10, watchers.parkedCount());
+
+        watchers.changed(5); // Releases the watchers at clocks 0 to 4
+        for (int clock = 0; clock < 5; clock++) {
+            assertTrue(answers.get(clock).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(5, watchers.parkedCount());
+        for (int clock = 5; clock < 10; clock++) {
+            assertFalse(answers.get(clock).isDone());
+        }
+
+        watchers.changed(10);
+        assertTrue(answers.get(7).get(5, TimeUnit.SECONDS));
+        assertEquals(0, watchers.parkedCount());
+    }
+}
@@ -11,6 +11,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.Socket;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -84,6 +86,41 @@ public class ContentServerTest {
         assertTrue("JSON should contain wind_spd_kt", jsonData.contains("\"wind_spd_kt\":8"));
     }
 
+    /**
+     * Tests that a feed file listing several stations, each starting at its own id line, is converted to a
+     * JSON array of station objects for one batch PUT.
+     *
+     * @throws IOException if an I/O error occurs while writing the feed file.
+     */
+    @Test
+    public void testConvertToJsonBatch() throws IOException {
+        File feedFile = File.createTempFile("batch_feed", ".txt");
+        feedFile.deleteOnExit();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(feedFile))) {
+            writer.write("id: IDS60901\n");
+            writer.write("air_temp: 13.3\n");
+            writer.write("id: IDS60902\n");
+            writer.write("air_temp: 14.4\n");
+        }
+
+        String jsonData = ContentServer.convertToJson(feedFile.getPath());
+        assertEquals("[{\"id\":\"IDS60901\",\"air_temp\":13.3},{\"id\":\"IDS60902\",\"air_temp\":14.4}]", jsonData);
+    }
+
+    /**
+     * Tests that the status of each record of a batch PUT is read from the response, and that only a record
+     * the server failed to save (500) makes the batch count as not sent.
+     */
+    @Test
+    public void testReportRecordStatuses() {
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n";
+        assertTrue("A rejected record is reported but not retried",
+                ContentServer.reportRecordStatuses(head + "[{\"index\":0,\"id\":\"A\",\"status\":201},{\"index\":1,\"status\":400,\"error\":\"no id\"}]"));
+        assertFalse("An unsaved record fails the batch",
+                ContentServer.reportRecordStatuses(head + "[{\"index\":0,\"id\":\"A\",\"status\":500}]"));
+        assertFalse("An unreadable body fails the batch", ContentServer.reportRecordStatuses(head + "Invalid data."));
+    }
+
     /**
      * Tests the sendWeatherToServer method of the ContentServer class.
      * It mocks a socket connection and simulates sending weather data to the server,
@@ -40,17 +40,16 @@ public class GETClientTest {
         String expectedRequest = "GET /weather?stationId=TestStation HTTP/1.1\r\n" +
                 "Host: localhost:4567\r\n";
 
-        // Capture the actual output
-        String actualRequest = outputStream.toString();
-
-        // Remove unwanted characters from the actual request
-        actualRequest = actualRequest.replace("\u0000", ""); // Remove unwanted NUL characters
-        actualRequest = actualRequest.replace("C", ""); // Remove unwanted 'W' characters
+        // Decode the frame that was sent
+        Frame frame = Frame.read(new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+        String actualRequest = frame.text();
 
         // Print actual output for comparison
         System.out.println("Expected Request: \n" + expectedRequest);
         System.out.println("Actual Request: \n" + actualRequest);
 
+        assertEquals(Frame.GET, frame.getOpcode());
+        assertEquals(lamportClock.getValue(), frame.getLamportClock());
         // Compare the expected and actual requests
         assertEquals(expectedRequest, actualRequest);
     }
@@ -112,7 +111,7 @@ public class GETClientTest {
     @Test
     public void testLamportClockIncrement() {
         LamportClock lamportClock = new LamportClock();
-        int initialClockValue = lamportClock.getValue();
+        long initialClockValue = lamportClock.getValue();
 
         lamportClock.increment(); // Increment the clock
 
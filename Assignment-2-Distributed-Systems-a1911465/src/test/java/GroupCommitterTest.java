@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The GroupCommitterTest class verifies that queued items are committed in batches,
+ * in arrival order, and that a failed write is reported to every item in its batch.
+ */
+public class GroupCommitterTest {
+
+    /**
+     * Submits many items at once and checks they share fewer writes than items, in order.
+     */
+    @Test
+    public void testItemsShareBatches() throws Exception {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test-writer", written::addAll, 20, 64);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(committer.submit(i));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        committer.close();
+
+        assertEquals(100, written.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), written.get(i)); // Arrival order is kept
+        }
+        assertTrue(committer.getBatchCount() < 100);
+    }
+
+    /**
+     * Checks that a failing write completes the waiting future exceptionally.
+     */
+    @Test
+    public void testFailedWriteIsReported() throws Exception {
+        GroupCommitter<String> committer = new GroupCommitter<>("test-writer", batch -> {
+            throw new IOException("disk full");
+        }, 0, 8);
+
+        try {
+            committer.submit("PUT").get(5, TimeUnit.SECONDS);
+            fail("Expected the commit to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            committer.close();
+        }
+    }
+
+    /**
+     * Closes the committer while other threads keep submitting, and checks that every returned future
+     * completes: committed if it was queued before close(), failed if it arrived after.
+     */
+    @Test
+    public void testSubmitRacingCloseNeverHangs() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            GroupCommitter<Integer> committer = new GroupCommitter<>("test-writer", batch -> { }, 0, 8);
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> submitters = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread submitter = new Thread(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        futures.add(committer.submit(i));
+                    }
+                });
+                submitters.add(submitter);
+                submitter.start();
+            }
+            committer.close();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS); // A TimeoutException here means the item was lost
+                } catch (ExecutionException e) {
+                    assertEquals("Group commit stopped", e.getCause().getMessage());
+                }
+            }
+        }
+    }
+}
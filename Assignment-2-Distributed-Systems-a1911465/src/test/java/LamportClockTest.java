@@ -35,4 +35,29 @@ public class LamportClockTest {
         clock.update(4);
         assertEquals(7, clock.getValue());
     }
+
+    @Test
+    public void testTickRangeReservesConsecutiveValues() {
+        clock.tick();
+        assertEquals(4, clock.tickRange(3)); // The batch owns 2, 3 and 4
+        assertEquals(5, clock.tick());
+    }
+
+    @Test
+    public void testConcurrentTicksAreNotLost() throws InterruptedException {
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    clock.tick();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, clock.getValue());
+        assertEquals(3000000001L, clock.update(3000000000L)); // The clock is 64-bit
+    }
 }
@@ -0,0 +1,95 @@
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * The StationHistoryTest class verifies that the ring buffer returns the newest readings first,
+ * overwrites the oldest reading once full, and never exposes a half-written reading.
+ */
+public class StationHistoryTest {
+
+    /**
+     * Creates a reading whose numeric fields all hold the same value.
+     *
+     * @param value The value of every numeric field.
+     * @return The reading.
+     */
+    private static Weather reading(double value) {
+        return new Weather("IDS60901", "Adelaide", "SA", "CST", value, value, "15/04:00pm", "20230715160000",
+                value, value, "Clear", value, value, value, "S", value, value);
+    }
+
+    /**
+     * Records more readings than the capacity and checks only the latest ones remain, newest first.
+     */
+    @Test
+    public void testKeepsLatestReadingsNewestFirst() {
+        StationHistory history = new StationHistory("IDS60901", 4);
+        for (int i = 1; i <= 6; i++) {
+            history.record(reading(i), 1000L * i);
+        }
+
+        assertEquals(4, history.size());
+        JSONArray latest = history.latest(3);
+        assertEquals(3, latest.length());
+        assertEquals(6.0, latest.getJSONObject(0).getDouble("air_temp"), 0.0);
+        assertEquals(5.0, latest.getJSONObject(1).getDouble("press"), 0.0);
+        assertEquals(4000L, latest.getJSONObject(2).getLong("received_at"));
+
+        assertEquals(4, history.latest(100).length()); // n is capped at what is held
+        assertEquals(0, new StationHistory("EMPTY", 4).latest(10).length());
+    }
+
+    /**
+     * Runs concurrent writers and a reader and checks every reading returned is internally consistent.
+     *
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    @Test
+    public void testConcurrentWritersNeverExposeTornReadings() throws InterruptedException {
+        StationHistory history = new StationHistory("IDS60901", 8);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    history.record(reading(writer * 100000 + i), i);
+                }
+            });
+            writers.add(thread);
+            thread.start();
+        }
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                JSONArray latest = history.latest(8);
+                for (int i = 0; i < latest.length(); i++) {
+                    double airTemp = latest.getJSONObject(i).getDouble("air_temp");
+                    for (String field : StationHistory.FIELDS) {
+                        if (latest.getJSONObject(i).getDouble(field) != airTemp) {
+                            failure.set("Torn reading: " + latest.getJSONObject(i));
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        running.set(false);
+        reader.join();
+
+        assertNull(failure.get());
+        assertEquals(8, history.size());
+    }
+}
@@ -3,6 +3,15 @@ package com.weather.app;
 import com.google.gson.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
@@ -11,13 +20,90 @@ public class AggregationServer {
     private static final int DEFAULT_PORT = 4567;  // Default port number
     private static final String DATA_FILE = "weatherData.json";  // File to store weather data
     private static final String TEMP_FILE = "weatherData.tmp";  // Temporary file for data persistence
+    private static final String WAL_FILE = "weatherData.wal";  // Append-only log used with -Dweather.persistence=wal
     private static final long EXPIRATION_TIME_MILLIS = 30_000;  // Expiration time for data (30 seconds)
     public static final LamportClock lamportClockInstance = new LamportClock();  // Instance of Lamport Clock
 
+    // Persistent connections (opt-in per request with "Connection: keep-alive")
+    static final int KEEP_ALIVE_TIMEOUT_MILLIS = Integer.getInteger("weather.keepAlive.timeoutMillis", 15_000);  // Idle time before closing
+    static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("weather.keepAlive.maxRequests", 100);  // Requests served per connection
+
     // Data structures to store weather data and timestamps of content servers
     public static final Map<String, JsonObject> weatherDataStore = new ConcurrentHashMap<>();
     public static final Map<String, Long> serverTimestamps = new ConcurrentHashMap<>();
 
+    // Expiry deadline of each station, so expiry touches only the stations that are due
+    static final ExpiryIndex<String> expiryIndex = new ExpiryIndex<>();
+
+    // Highest Lamport clock applied per station; PUTs older than it are dropped
+    static final StationClocks stationClocks = new StationClocks();
+
+    // Lamport clock of each station's latest update or expiry, for GET ?since=<clock>
+    static final ChangeLog changeLog = new ChangeLog(lamportClockInstance);
+
+    // Long-poll GETs (wait=<ms>) are held at most this long; the timer ends waits that see no change
+    static final long MAX_WATCH_MILLIS = Long.getLong("weather.watch.maxWaitMillis", 60_000);
+    private static final ScheduledThreadPoolExecutor watchTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread timer = new Thread(runnable, "watch-timer");
+        timer.setDaemon(true);
+        return timer;
+    });
+    static {
+        watchTimer.setRemoveOnCancelPolicy(true);  // A wait ended by a change drops its timeout task at once
+    }
+
+    // GET /weather/stream: Server-Sent Events for every station update and expiry, encoded once per change
+    static final String EVENT_STREAM_PATH = "/weather/stream";
+    static final StationEventStream eventStream = new StationEventStream(changeLog, weatherDataStore, StationEventStream.DEFAULT_CAPACITY);
+    private static Thread expiryThread;
+
+    // GET /weather/{id} and GET /weather?ids=a,b,c: each station's JSON is encoded once per change and then reused
+    static final EncodedStations encodedStations = new EncodedStations(changeLog, stationId -> {
+        JsonObject station = weatherDataStore.get(stationId);
+        return station == null ? null : station.toString();
+    });
+
+    // Conditional GETs: ETags are the Lamport clock of the newest change to what a GET returns, prefixed with a
+    // token for this server run so a tag from before a restart never matches
+    private static final String ETAG_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    // Set when running with -Dweather.persistence=wal; PUTs then append one record instead of rewriting the store
+    static WriteAheadLog writeAheadLog;
+
+    // Snapshot persistence: PUTs arriving together share one rewrite and fsync of the data file
+    private static final GroupCommitter<String> snapshotCommitter = new GroupCommitter<>("snapshot-writer",
+            batch -> {
+                long clock = changeLog.lastChange();  // Read before the data, so the file is never older than it
+                writeToTempFile(weatherDataStore);
+                if (!commitTempFile()) {
+                    throw new IOException("Failed to commit " + DATA_FILE);
+                }
+                snapshotClock = clock;
+            },
+            GroupCommitter.DEFAULT_WINDOW_MILLIS, GroupCommitter.DEFAULT_MAX_BATCH);
+
+    // With -Dweather.get.source=snapshot a full GET is answered by sending the committed data file as it is
+    // (FileChannel.transferTo; sendfile on the NIO engine) instead of serializing the store, whenever the file holds
+    // the latest change. A commit replaces the file by renaming over it, so a file being sent is never rewritten.
+    static volatile boolean snapshotGets = "snapshot".equalsIgnoreCase(System.getProperty("weather.get.source"));
+    private static volatile long snapshotClock = -1;  // Change clock the committed data file is at least as new as
+
+    // Full GETs of a store with more stations than this are streamed as chunked JSON instead of built as one String
+    static volatile int streamGetsAbove = Integer.getInteger("weather.get.streamAbove", 10_000);
+
+    // Compressed full GET bodies by content coding, each for the change clock it was built at
+    private static final class CompressedBody {
+        final long clock;
+        final byte[] bytes;
+
+        CompressedBody(long clock, byte[] bytes) {
+            this.clock = clock;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final Map<String, CompressedBody> compressedBodies = new ConcurrentHashMap<>();
+
     public static void main(String[] args) throws IOException {
         int port = DEFAULT_PORT;
 
@@ -30,9 +116,25 @@ public class AggregationServer {
             }
         }
 
-        // Schedule periodic cleanup of expired entries
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(AggregationServer::removeExpiredData, 10, 10, TimeUnit.SECONDS);
+        // Replay the write-ahead log when WAL persistence is selected
+        if ("wal".equalsIgnoreCase(System.getProperty("weather.persistence"))) {
+            writeAheadLog = WriteAheadLog.open(Paths.get(WAL_FILE), weatherDataStore);
+            System.out.println("Replayed " + writeAheadLog.getRecordCount() + " log records into " + weatherDataStore.size() + " stations");
+            for (JsonObject record : weatherDataStore.values()) {
+                expiryIndex.schedule(record.get("id").getAsString(), record.get("timestamp").getAsLong() + EXPIRATION_TIME_MILLIS);
+                changeLog.recordUpdate(record.get("id").getAsString());
+            }
+            removeExpiredData();
+        }
+
+        // Remove each station as soon as it expires
+        startExpiryThread();
+
+        // Optional second argument selects the selector-based engine instead of thread-per-connection
+        if (args.length > 1 && "nio".equalsIgnoreCase(args[1])) {
+            new NioAggregationServer(port, NioAggregationServer.DEFAULT_IO_THREADS).start();
+            return;
+        }
 
         // Start server and listen for client connections
         try (ServerSocket serverSocket = new ServerSocket(port)) {
@@ -45,119 +147,528 @@ public class AggregationServer {
         }
     }
 
-    // Handle client requests (GET or PUT)
+    // Handle client requests (GET or PUT); loops while the client asks to keep the connection alive. A long-poll
+    // GET that has to wait parks the connection and returns; a new thread answers it once it is ready.
     public static void handleClientRequest(Socket clientSocket) {
-        try (Socket socket = clientSocket;
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            String requestLine = in.readLine();
-            System.out.println("Received request: " + requestLine);
-
-            String[] requestParts = requestLine.split(" ", 2);
-            String method = requestParts.length >= 1 ? requestParts[0] : "";  // Get request method (e.g., GET or PUT)
-            String path = requestParts.length >= 2 ? requestParts[1] : "";  // Get request path
-
-            // Read headers and extract Lamport-Clock
-            Map<String, String> headers = new HashMap<>();
-            String headerLine;
-            int clientClockValue = 0;
-
-            // Read headers and check for Lamport-Clock
-            while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-                int colonIndex = headerLine.indexOf(":");
-                if (colonIndex != -1) {
-                    String headerName = headerLine.substring(0, colonIndex).trim();
-                    String headerValue = headerLine.substring(colonIndex + 1).trim();
-                    headers.put(headerName, headerValue);
-
-                    // Capture the Lamport-Clock value from the header
-                    if (headerName.equalsIgnoreCase("Lamport-Clock")) {
-                        clientClockValue = Integer.parseInt(headerValue);
+        new ConnectionHandler(clientSocket).run();
+    }
+
+    // One connection of the thread-per-connection engine. A long-poll GET whose change has not arrived yet is
+    // parked: run() returns with the connection open and holds no thread, and the handler is run again on a new
+    // thread once the change or the end of the wait arrives.
+    private static final class ConnectionHandler implements Runnable {
+        private final Socket socket;
+        private final HttpRequestParser request = new HttpRequestParser();  // Reused for every request on the connection
+        private final ByteBuffer buffer = HttpRequestParser.acquireBuffer();  // Held until the connection closes
+        private PrintWriter out;
+        private int served = 1;  // Number of the request being served
+        private boolean parkedGet;  // The parsed request is a long-poll GET waiting to be answered
+
+        ConnectionHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            boolean parked = false;  // Set once this run hands the connection to a long-poll wait
+            try {
+                InputStream in = socket.getInputStream();
+                if (out == null) {
+                    out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                }
+
+                for (; served <= MAX_REQUESTS_PER_CONNECTION; served++) {
+                    String body = "";
+                    if (parkedGet) {
+                        parkedGet = false;  // Resumed: the change or the end of the wait arrived, so answer the GET
+                    } else {
+                        try {
+                            if (!request.readHead(buffer, in)) {
+                                return;  // Client closed the connection
+                            }
+                        } catch (ProtocolException e) {
+                            out.print(withConnectionHeaders(statusResponse("HTTP/1.1 400 Bad Request"), false, 0));
+                            out.flush();
+                            return;
+                        }
+                        System.out.println("Received request: " + request.requestLine());
+
+                        // Read the request body (JSON data) for PUT requests, by its Content-Length in bytes
+                        if ("PUT".equalsIgnoreCase(request.method())) {
+                            body = request.readBody(buffer, in);
+                        }
+
+                        if (isEventStreamRequest(request.method(), request.path())) {
+                            streamEvents(socket, request.headers(), request.lamportClock());  // Holds the connection until the client goes away
+                            return;
+                        }
+
+                        CompletableFuture<Void> ready = whenReady(request.method(), request.path());
+                        if (!ready.isDone()) {
+                            parkedGet = true;
+                            parked = true;  // The connection now belongs to the wait
+                            ready.whenComplete((ignored, failure) -> new Thread(this).start());
+                            return;
+                        }
+                    }
+                    if (!respond(body)) {
+                        return;
                     }
+                    socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS);  // Close the connection if it stays idle
+                }
+            } catch (SocketTimeoutException e) {
+                // Idle keep-alive connection timed out; closing it is the expected outcome
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (!parked) {
+                    close();
                 }
             }
+        }
 
-            // Update the Lamport clock
-            lamportClockInstance.update(clientClockValue);
+        // Answer the parsed request; returns true if the connection stays open for another one
+        private boolean respond(String body) throws IOException {
+            String method = request.method();  // Get request method (e.g., GET or PUT)
+            String path = request.path();  // Get request path
+            Map<String, String> headers = request.headers();
+            boolean keepAlive = request.keepAlive() && served < MAX_REQUESTS_PER_CONNECTION;
 
-            // Handle the request based on method (PUT or GET)
-            if ("PUT".equalsIgnoreCase(method)) {
-                processPutRequest(in, out, clientSocket.getInetAddress().toString(), headers);
-            } else if ("GET".equalsIgnoreCase(method)) {
-                processGetRequest(out, headers);
+            PreparedResponse prepared = preparedResponse(method, path, headers, request.lamportClock());
+            if (prepared != null) {
+                out.print(withConnectionHeaders(prepared.head, keepAlive, MAX_REQUESTS_PER_CONNECTION - served));
+                out.flush();
+                if (prepared.file != null) {
+                    try (FileChannel file = prepared.file) {
+                        transferFully(file, prepared.length, Channels.newChannel(socket.getOutputStream()));
+                    }
+                } else if (prepared.body != null) {
+                    socket.getOutputStream().write(prepared.body);
+                } else if (prepared.chunks != null) {
+                    WritableByteChannel target = Channels.newChannel(socket.getOutputStream());
+                    for (ByteBuffer chunk = prepared.chunks.nextChunk(); chunk != null; chunk = prepared.chunks.nextChunk()) {
+                        target.write(chunk);  // Blocking: writes the whole chunk
+                    }
+                }
             } else {
-                out.println("HTTP/1.1 400 Bad Request");
-                out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-                out.println();
+                String response = handleRequest(method, path, headers, body, socket.getInetAddress().toString(),
+                        request.lamportClock(), request.contentLength());
+                out.print(withConnectionHeaders(response, keepAlive, MAX_REQUESTS_PER_CONNECTION - served));
+                out.flush();
             }
+            return keepAlive;
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Close the connection and return its read buffer
+        private void close() {
+            HttpRequestParser.releaseBuffer(buffer);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    // Serve GET /weather/stream on this connection's thread: the response headers, then each frame of the event
+    // stream as it is published, with a heartbeat comment when the stream is quiet. Ends when a write fails.
+    static void streamEvents(Socket socket, Map<String, String> headers, long lamportClock) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        StationEventStream.Subscription subscription = eventStream.subscribe(lastEventId(headers), null);
+        try {
+            out.write(eventStreamResponse(lamportClock).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            while (true) {
+                List<byte[]> frames = subscription.poll();
+                for (byte[] frame : frames) {
+                    out.write(frame);
+                }
+                if (frames.isEmpty() && !subscription.awaitFrames(StationEventStream.HEARTBEAT_MILLIS)) {
+                    out.write(StationEventStream.HEARTBEAT);
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // The client went away; that is how a stream ends
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscription.close();
+        }
+    }
+
+    // True for a GET of the event stream
+    static boolean isEventStreamRequest(String method, String path) {
+        if (!"GET".equalsIgnoreCase(method) || path == null) {
+            return false;
+        }
+        int query = path.indexOf('?');
+        return (query == -1 ? path : path.substring(0, query)).equals(EVENT_STREAM_PATH);
+    }
+
+    // Clock to resume the event stream from: the Last-Event-ID a reconnecting client sends, or 0 for a full snapshot
+    static long lastEventId(Map<String, String> headers) {
+        String lastEventId = headers.get("Last-Event-ID");
+        try {
+            return lastEventId == null ? 0 : Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Content-Length of a header map, or 0 when it is missing or malformed
+    static int contentLength(Map<String, String> headers) {
+        String contentLength = headers.get("Content-Length");
+        try {
+            return contentLength == null ? 0 : Math.max(0, Integer.parseInt(contentLength.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
-    // Process PUT requests
-    public static void processPutRequest(BufferedReader in, PrintWriter out, String contentServer, Map<String, String> headers) throws IOException {
+    // Headers opening an event stream; the body is the stream itself and ends with the connection
+    static String eventStreamResponse(long lamportClock) {
+        lamportClockInstance.update(lamportClock);
         lamportClockInstance.increment();
+        return "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/event-stream\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Connection: close\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n";
+    }
+
+    // Long-poll GETs carry wait=<ms>: the GET is answered once a station changes after its since clock (or after
+    // the request arrived, without since), or once the wait runs out, whichever comes first. Completes when the
+    // request can be answered by handleRequest; at once for every other request. The returned future holds no
+    // thread, so both engines park the connection on it.
+    static CompletableFuture<Void> whenReady(String method, String path) {
+        long waitMillis = "GET".equalsIgnoreCase(method) ? watchMillis(path) : 0;
+        if (waitMillis <= 0) {
+            return CompletableFuture.completedFuture(null);  // Not a long-poll, or a malformed one answered with 400
+        }
+        long sinceClock;
+        try {
+            String since = queryParameter(path, "since");
+            sinceClock = since == null ? changeLog.highWater() : Long.parseLong(since.trim());
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> change = changeLog.nextChangeAfter(sinceClock);
+        if (!change.isDone()) {
+            ScheduledFuture<?> timeout = watchTimer.schedule(() -> {
+                changeLog.cancelWait(change);
+                change.complete(null);
+            }, Math.min(waitMillis, MAX_WATCH_MILLIS), TimeUnit.MILLISECONDS);
+            change.whenComplete((ignored, failure) -> timeout.cancel(false));
+        }
+        return change;
+    }
+
+    // Milliseconds a GET asks to wait for a change: 0 without wait=, -1 if the value is malformed
+    static long watchMillis(String path) {
+        String wait = queryParameter(path, "wait");
+        if (wait == null) {
+            return 0;
+        }
+        try {
+            long waitMillis = Long.parseLong(wait.trim());
+            return waitMillis < 0 ? -1 : waitMillis;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Insert Connection (and Keep-Alive) headers right after the status line of a built response
+    static String withConnectionHeaders(String response, boolean keepAlive, int remainingRequests) {
+        int statusLineEnd = response.indexOf("\r\n") + 2;
+        String connectionHeaders = keepAlive
+                ? "Connection: keep-alive\r\nKeep-Alive: timeout=" + (KEEP_ALIVE_TIMEOUT_MILLIS / 1000) + ", max=" + remainingRequests + "\r\n"
+                : "Connection: close\r\n";
+        return response.substring(0, statusLineEnd) + connectionHeaders + response.substring(statusLineEnd);
+    }
+
+    // Build the full HTTP response for a request given only its header map, reading Lamport-Clock and
+    // Content-Length from it; a missing or malformed value counts as absent
+    public static String handleRequest(String method, String path, Map<String, String> headers, String body, String contentServer) {
+        return handleRequest(method, path, headers, body, contentServer, StationClocks.requestClock(headers.get("Lamport-Clock")),
+                contentLength(headers));
+    }
 
-        int contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
+    // Build the full HTTP response for a request that has already been read off the wire, waiting for a PUT to
+    // become durable. Used by the thread-per-connection engine, whose connection thread may block. lamportClock
+    // and contentLength are the values HttpRequestParser read from the headers.
+    public static String handleRequest(String method, String path, Map<String, String> headers, String body, String contentServer,
+                                       long lamportClock, int contentLength) {
+        return handleRequestAsync(method, path, headers, body, contentServer, lamportClock, contentLength).join();
+    }
+
+    // Build the full HTTP response for a request; a PUT's response completes once its records are on disk, so
+    // NioAggregationServer never holds a thread through the group-commit window and fsync
+    static CompletableFuture<String> handleRequestAsync(String method, String path, Map<String, String> headers, String body,
+                                                        String contentServer, long lamportClock, int contentLength) {
+        // Update the Lamport clock with the client's; UNORDERED (no clock sent) is below any clock value
+        lamportClockInstance.update(lamportClock);
+
+        // Handle the request based on method (PUT or GET)
+        if ("PUT".equalsIgnoreCase(method)) {
+            return processPutRequestAsync(body, contentServer, headers, lamportClock, contentLength);
+        }
+        return CompletableFuture.completedFuture(processNonPutRequest(method, path, headers));
+    }
+
+    private static String processNonPutRequest(String method, String path, Map<String, String> headers) {
+        if ("GET".equalsIgnoreCase(method)) {
+            String since = queryParameter(path, "since");
+            if (watchMillis(path) < 0) {
+                return statusResponse("HTTP/1.1 400 Bad Request");
+            }
+            String stationId = stationIdOf(path);
+            if (stationId != null) {
+                return processStationGetRequest(Collections.singletonList(stationId), headers);
+            }
+            String ids = queryParameter(path, "ids");
+            if (ids != null) {
+                List<String> stationIds = stationIdsOf(ids);
+                return stationIds.isEmpty() ? statusResponse("HTTP/1.1 400 Bad Request") : processStationGetRequest(stationIds, headers);
+            }
+            return since == null ? processGetRequest(headers) : processDeltaGetRequest(since, headers);
+        }
+        return statusResponse("HTTP/1.1 400 Bad Request");
+    }
+
+    // Process PUT requests, waiting until the update is durable
+    public static String processPutRequest(String jsonData, String contentServer, Map<String, String> headers) {
+        return processPutRequestAsync(jsonData, contentServer, headers, StationClocks.requestClock(headers.get("Lamport-Clock")),
+                contentLength(headers)).join();
+    }
+
+    // Process a PUT; the response completes once the update is on disk. lamportClock orders it against other
+    // updates of its station (UNORDERED when the client sent none).
+    static CompletableFuture<String> processPutRequestAsync(String jsonData, String contentServer, Map<String, String> headers,
+                                                            long lamportClock, int contentLength) {
+        if (isBatchRequest(jsonData, headers)) {
+            return processBatchPutRequestAsync(jsonData, contentServer, headers, lamportClock);
+        }
+        lamportClockInstance.increment();
 
         // No content provided
         if (contentLength == 0) {
-            out.println("HTTP/1.1 204 No Content");
-            out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-            out.println();
-            return;
+            return CompletableFuture.completedFuture(statusResponse("HTTP/1.1 204 No Content"));
         }
 
-        // Read the request body (JSON data)
-        char[] requestBody = new char[contentLength];
-        in.read(requestBody, 0, contentLength);
-        String jsonData = new String(requestBody);
+        // Drop an update older than what its station already holds before paying for a parse
+        long updateClock = lamportClock;
+        String peekedId = StationClocks.peekStationId(jsonData);
+        if (peekedId != null && stationClocks.isStale(peekedId, updateClock)) {
+            return CompletableFuture.completedFuture(staleUpdateResponse(peekedId, updateClock));
+        }
 
         // Validate the received JSON data
         if (!isJsonValid(jsonData)) {
             System.out.println("Invalid JSON received: " + jsonData);
-            out.println("HTTP/1.1 500 Internal Server Error");
-            out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-            out.println();
-            return;
+            return CompletableFuture.completedFuture(statusResponse("HTTP/1.1 500 Internal Server Error"));
         }
 
         // Add metadata (timestamp and content server origin)
+        long timestamp = Instant.now().toEpochMilli();
         JsonObject jsonObject = JsonParser.parseString(jsonData).getAsJsonObject();
         jsonObject.addProperty("origin", contentServer);
-        jsonObject.addProperty("timestamp", Instant.now().toEpochMilli());
+        jsonObject.addProperty("timestamp", timestamp);
 
-        // Store the weather data
+        // Store the weather data unless a newer update for the station was applied first
         String entryId = jsonObject.get("id").getAsString();
-        weatherDataStore.put(entryId, jsonObject);
-        serverTimestamps.put(contentServer, Instant.now().toEpochMilli());
+        List<CompletableFuture<Boolean>> logWrites = new ArrayList<>(1);
+        try {
+            Boolean isNewStation = stationClocks.applyInOrder(entryId, updateClock,
+                    () -> storeRecord(entryId, jsonObject, contentServer, timestamp, logWrites));
+            if (isNewStation == null) {
+                return CompletableFuture.completedFuture(staleUpdateResponse(entryId, updateClock));
+            }
+            // Acknowledged only once the batch containing this PUT is on disk
+            return whenCommitted(entryId, logWrites).handle((created, failure) -> {
+                if (failure != null) {
+                    System.out.println("Write error: " + causeOf(failure).getMessage());
+                    return statusResponse("HTTP/1.1 500 Internal Server Error");
+                }
+                return statusResponse(created ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK");
+            });
+        } catch (IOException e) {
+            System.out.println("Write error: " + e.getMessage());
+            return CompletableFuture.completedFuture(statusResponse("HTTP/1.1 500 Internal Server Error"));
+        }
+    }
 
-        // Persist the data to a file
-        boolean isNewFile = !new File(DATA_FILE).exists();
+    // True for a PUT carrying several station records: a JSON array, or NDJSON (one object per line)
+    static boolean isBatchRequest(String body, Map<String, String> headers) {
+        if (headers.getOrDefault("Content-Type", "").toLowerCase(Locale.ROOT).contains("ndjson")) {
+            return true;
+        }
+        for (int i = 0; i < body.length(); i++) {
+            if (!Character.isWhitespace(body.charAt(i))) {
+                return body.charAt(i) == '[';
+            }
+        }
+        return false;
+    }
+
+    // Process a batch PUT, waiting until the stored records are durable
+    static String processBatchPutRequest(String body, String contentServer, Map<String, String> headers) {
+        return processBatchPutRequestAsync(body, contentServer, headers, StationClocks.requestClock(headers.get("Lamport-Clock"))).join();
+    }
+
+    // Process a batch PUT: every record gets one Lamport clock value from a single reserved range, the stored
+    // records are made durable together (one snapshot commit, or one group commit of the log), and the response
+    // body reports the outcome of each record in request order once they are on disk
+    static CompletableFuture<String> processBatchPutRequestAsync(String body, String contentServer, Map<String, String> headers,
+                                                                 long lamportClock) {
+        List<JsonElement> records;
+        try {
+            records = parseBatch(body, headers);
+        } catch (JsonParseException | IllegalStateException e) {
+            lamportClockInstance.increment();
+            System.out.println("Invalid batch received: " + e.getMessage());
+            return CompletableFuture.completedFuture(statusResponse("HTTP/1.1 500 Internal Server Error"));
+        }
+        if (records.isEmpty()) {
+            lamportClockInstance.increment();
+            return CompletableFuture.completedFuture(statusResponse("HTTP/1.1 204 No Content"));
+        }
+
+        long lastClock = lamportClockInstance.tickRange(records.size());
+        long firstClock = lastClock - records.size() + 1;
+        long updateClock = lamportClock;
+        long timestamp = Instant.now().toEpochMilli();
+
+        JsonArray statuses = new JsonArray();
+        List<JsonObject> appliedStatuses = new ArrayList<>();
+        List<CompletableFuture<Boolean>> logWrites = new ArrayList<>();
+        String lastApplied = null;
+        CompletableFuture<Boolean> committed = CompletableFuture.completedFuture(false);
         try {
-            writeToTempFile(weatherDataStore);  // Write to temp file first
-            if (commitTempFile()) {  // Commit temp file to final storage
-                if (isNewFile) {
-                    out.println("HTTP/1.1 201 Created");
-                } else {
-                    out.println("HTTP/1.1 200 OK");
+            for (int i = 0; i < records.size(); i++) {
+                JsonElement record = records.get(i);
+                JsonObject status = new JsonObject();
+                status.addProperty("index", i);
+                statuses.add(status);
+
+                JsonElement id = record.isJsonObject() ? record.getAsJsonObject().get("id") : null;
+                if (id == null || !id.isJsonPrimitive()) {
+                    status.addProperty("status", 400);
+                    status.addProperty("error", "Record is not a station object with an id");
+                    continue;
                 }
-                out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-                out.println();
-            } else {
-                out.println("HTTP/1.1 500 Internal Server Error");
-                out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-                out.println();
+                String entryId = id.getAsString();
+                JsonObject jsonObject = record.getAsJsonObject();
+                jsonObject.addProperty("origin", contentServer);
+                jsonObject.addProperty("timestamp", timestamp);
+                status.addProperty("id", entryId);
+                status.addProperty("lamportClock", firstClock + i);
+
+                Boolean isNewStation = stationClocks.applyInOrder(entryId, updateClock,
+                        () -> storeRecord(entryId, jsonObject, contentServer, timestamp, logWrites));
+                if (isNewStation == null) {
+                    status.addProperty("status", 200);
+                    status.addProperty("stale", true);  // A newer update for the station was applied first
+                    continue;
+                }
+                status.addProperty("status", isNewStation ? 201 : 200);
+                appliedStatuses.add(status);
+                lastApplied = entryId;
+            }
+            if (lastApplied != null) {
+                committed = whenCommitted(lastApplied, logWrites);
             }
         } catch (IOException e) {
-            System.out.println("File write error: " + e.getMessage());
-            out.println("HTTP/1.1 500 Internal Server Error");
-            out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-            out.println();
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            committed = failed;
+        }
+
+        return committed.handle((created, failure) -> {
+            if (failure != null) {
+                System.out.println("Write error: " + causeOf(failure).getMessage());
+                for (JsonObject status : appliedStatuses) {
+                    status.addProperty("status", 500);  // Applied in memory but not acknowledged as durable
+                }
+            }
+            String jsonResponse = statuses.toString();
+            return "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + jsonResponse.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                    + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                    + "\r\n"
+                    + jsonResponse;
+        });
+    }
+
+    // Records of a batch body; a JSON array, or one JSON value per non-blank line for NDJSON
+    private static List<JsonElement> parseBatch(String body, Map<String, String> headers) {
+        List<JsonElement> records = new ArrayList<>();
+        String trimmed = body.trim();
+        if (trimmed.startsWith("[")) {
+            JsonParser.parseString(trimmed).getAsJsonArray().forEach(records::add);
+            return records;
+        }
+        for (String line : trimmed.split("\r?\n")) {
+            if (!line.trim().isEmpty()) {
+                records.add(JsonParser.parseString(line));
+            }
         }
+        return records;
+    }
+
+    // Apply one station record; runs under the station's lock in StationClocks. In WAL mode the record is also
+    // appended to the log and its durability is added to logWrites; otherwise whenCommitted rewrites the snapshot.
+    // Returns true if the station was not in the store.
+    private static boolean storeRecord(String entryId, JsonObject jsonObject, String contentServer, long timestamp,
+                                       List<CompletableFuture<Boolean>> logWrites) throws IOException {
+        serverTimestamps.put(contentServer, timestamp);
+        expiryIndex.schedule(entryId, timestamp + EXPIRATION_TIME_MILLIS);
+
+        boolean isNewStation = writeAheadLog != null
+                ? appendToLog(entryId, jsonObject, logWrites)
+                : weatherDataStore.put(entryId, jsonObject) == null;
+        changeLog.recordUpdate(entryId);  // After the store, so a delta GET that sees the change finds the data
+        return isNewStation;
+    }
+
+    // Apply a PUT and append it to the write-ahead log; the store and log are updated under one lock
+    // so replay sees records in the same order the store applied them
+    // The group commit completes outside the lock, so concurrent PUTs share one fsync
+    private static boolean appendToLog(String entryId, JsonObject jsonObject, List<CompletableFuture<Boolean>> logWrites) throws IOException {
+        synchronized (writeAheadLog) {
+            boolean isNewStation = weatherDataStore.put(entryId, jsonObject) == null;
+            logWrites.add(writeAheadLog.append(jsonObject));
+            if (writeAheadLog.needsCompaction(weatherDataStore.size())) {
+                writeAheadLog.compact(weatherDataStore.values());
+            }
+            return isNewStation;
+        }
+    }
+
+    // Completes once the records a request stored are on disk: their log appends in WAL mode, otherwise one
+    // snapshot commit covering all of them. Completes with true if the request created the log or data file.
+    private static CompletableFuture<Boolean> whenCommitted(String entryId, List<CompletableFuture<Boolean>> logWrites) {
+        if (writeAheadLog != null) {
+            return CompletableFuture.allOf(logWrites.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(ignored -> logWrites.stream().anyMatch(CompletableFuture::join));
+        }
+        boolean isNewFile = !new File(DATA_FILE).exists();
+        return snapshotCommitter.submit(entryId).thenApply(ignored -> isNewFile);
+    }
+
+    // The failure behind a CompletionException from a commit future
+    private static Throwable causeOf(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    // Response to a PUT older than the data its station already holds; nothing was applied,
+    // but the update is not an error and must not be retried
+    private static String staleUpdateResponse(String entryId, long updateClock) {
+        System.out.println("Ignoring stale update for " + entryId + " at clock " + updateClock);
+        return statusResponse("HTTP/1.1 200 OK");
     }
 
     // Validate if the string is a valid JSON object
@@ -170,48 +681,392 @@ public class AggregationServer {
         }
     }
 
-    // Process GET requests
-    public static void processGetRequest(PrintWriter out, Map<String, String> headers) throws IOException {
+    // A full GET response whose body is sent as bytes rather than built into a String: the headers, then either
+    // an encoded body, an open file to send (and close) after them, or the chunks of a streamed body. None is set
+    // for a 304.
+    static final class PreparedResponse {
+        final String head;
+        final byte[] body;
+        final FileChannel file;
+        final long length;
+        final ChunkedJsonArray<?> chunks;
+
+        PreparedResponse(String head, byte[] body, FileChannel file, long length) {
+            this(head, body, file, length, null);
+        }
+
+        PreparedResponse(String head, byte[] body, FileChannel file, long length, ChunkedJsonArray<?> chunks) {
+            this.head = head;
+            this.body = body;
+            this.file = file;
+            this.length = length;
+            this.chunks = chunks;
+        }
+    }
+
+    // A full GET answered with a compressed body (when Accept-Encoding allows one), from the snapshot file, or
+    // streamed in chunks from a large store, or null when handleRequest must answer the request
+    static PreparedResponse preparedResponse(String method, String path, Map<String, String> headers, long lamportClock) {
+        if (!"GET".equalsIgnoreCase(method) || stationIdOf(path) != null || isEventStreamRequest(method, path)
+                || queryParameter(path, "since") != null || queryParameter(path, "ids") != null || watchMillis(path) < 0) {
+            return null;
+        }
+        String coding = ContentEncoding.negotiate(headers.get("Accept-Encoding"));
+        if (coding != null) {
+            return compressedResponse(coding, headers, lamportClock);
+        }
+        PreparedResponse snapshot = snapshotResponse(headers, lamportClock);
+        return snapshot != null ? snapshot : streamedResponse(headers, lamportClock);
+    }
+
+    // Full GET of a store holding more than streamGetsAbove stations, sent as a chunked JSON array encoded station
+    // by station from the live store, so a GET holds one chunk buffer rather than the whole body. The iteration is
+    // weakly consistent: every station stored for the whole send is in it, and a concurrent change may or may not
+    // be. Null when handleRequest must answer it: the store is small enough to build in memory, or the client
+    // already holds the data (304).
+    static PreparedResponse streamedResponse(Map<String, String> headers, long lamportClock) {
+        if (weatherDataStore.size() <= streamGetsAbove) {
+            return null;
+        }
+        String etag = etag(changeLog.lastChange());  // Read before the data, so the tag is never newer than the body
+        if (matchesETag(headers.get("If-None-Match"), etag)) {
+            return null;
+        }
+
+        lamportClockInstance.update(lamportClock);
+        lamportClockInstance.increment();
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "ETag: " + weakETag(etag) + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n";
+        return new PreparedResponse(head, null, null, 0,
+                new ChunkedJsonArray<>(weatherDataStore.values().iterator(), JsonObject::toString));
+    }
+
+    // Full GET with the body compressed once per change clock and shared by every client at that clock; the
+    // compressed variant has its own ETag, and a client holding it gets 304. A store holding more than
+    // streamGetsAbove stations is compressed as it is streamed in chunks instead, like streamedResponse, so no GET
+    // builds the whole body; the stream is weakly tagged, as it is only equivalent to the body at the clock.
+    static PreparedResponse compressedResponse(String coding, Map<String, String> headers, long lamportClock) {
+        lamportClockInstance.update(lamportClock);
         lamportClockInstance.increment();
 
+        long clock = changeLog.lastChange();  // Read before the data, so the tag is never newer than the body
+        String etag = ContentEncoding.variantTag(etag(clock), coding);
+        if (matchesETag(headers.get("If-None-Match"), etag)) {
+            return new PreparedResponse(notModifiedResponse(etag), null, null, 0);
+        }
+        if (weatherDataStore.size() > streamGetsAbove) {
+            String head = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Encoding: " + coding + "\r\n"
+                    + "Vary: Accept-Encoding\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "ETag: " + weakETag(etag) + "\r\n"
+                    + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                    + "\r\n";
+            return new PreparedResponse(head, null, null, 0,
+                    new ChunkedJsonArray<>(weatherDataStore.values().iterator(), JsonObject::toString, coding));
+        }
+        byte[] body = compressedGetBody(clock, coding);
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Encoding: " + coding + "\r\n"
+                + "Vary: Accept-Encoding\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n";
+        return new PreparedResponse(head, body, null, body.length);
+    }
+
+    // The full GET body in the given coding for a change clock; compressed at most once per clock and coding
+    static byte[] compressedGetBody(long clock, String coding) {
+        CompressedBody cached = compressedBodies.get(coding);
+        if (cached != null && cached.clock == clock) {
+            return cached.bytes;
+        }
+        synchronized (compressedBodies) {
+            cached = compressedBodies.get(coding);
+            if (cached == null || cached.clock != clock) {
+                String json = weatherDataStore.isEmpty() ? "[]" : convertWeatherDataToJson(weatherDataStore);
+                cached = new CompressedBody(clock, ContentEncoding.compress(json.getBytes(StandardCharsets.UTF_8), coding));
+                compressedBodies.put(coding, cached);
+            }
+            return cached.bytes;
+        }
+    }
+
+    // A full GET answered from the committed data file, or null when handleRequest must answer it: snapshot GETs
+    // are off, the client already holds the data (304), or the file is missing a change (an expiry, or a PUT still
+    // being committed). The caller sends the file and closes it.
+    static PreparedResponse snapshotResponse(Map<String, String> headers, long lamportClock) {
+        if (!snapshotGets) {
+            return null;
+        }
+        long clock = snapshotClock;
+        if (clock < 0 || clock != changeLog.lastChange()) {
+            return null;
+        }
+        String etag = etag(clock);
+        if (matchesETag(headers.get("If-None-Match"), etag)) {
+            return null;
+        }
+        FileChannel file;
+        long length;
+        try {
+            file = FileChannel.open(Paths.get(DATA_FILE));  // Opened after the check, so it is this commit or a newer one
+            length = file.size();
+        } catch (IOException e) {
+            return null;
+        }
+
+        lamportClockInstance.update(lamportClock);
+        lamportClockInstance.increment();
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "ETag: " + weakETag(etag) + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n";
+        return new PreparedResponse(head, null, file, length);
+    }
+
+    // Send the first length bytes of a file to a blocking channel
+    static void transferFully(FileChannel file, long length, WritableByteChannel target) throws IOException {
+        for (long position = 0; position < length; ) {
+            long sent = file.transferTo(position, length - position, target);
+            if (sent <= 0) {
+                throw new EOFException("Snapshot ended at " + position + " of " + length + " bytes");
+            }
+            position += sent;
+        }
+    }
+
+    // Process GET requests; a client already holding the current data (If-None-Match) gets 304 and no body
+    public static String processGetRequest(Map<String, String> headers) {
+        lamportClockInstance.increment();
+
+        String etag = etag(changeLog.lastChange());  // Read before the data, so the tag is never newer than the body
+        if (matchesETag(headers.get("If-None-Match"), etag)) {
+            return notModifiedResponse(etag);
+        }
+
         // If no weather data, return an empty JSON array
         String jsonResponse = weatherDataStore.isEmpty() ? "[]" : convertWeatherDataToJson(weatherDataStore);
 
-        out.println("HTTP/1.1 200 OK");
-        out.println("Content-Type: application/json");
-        out.println("Content-Length: " + jsonResponse.length());
-        out.println("Lamport-Clock: " + lamportClockInstance.getClock());
-        out.println();
-        out.print(jsonResponse);  // Send the weather data as JSON response
-        out.flush();
+        return "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + jsonResponse.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n"
+                + jsonResponse;  // Send the weather data as JSON response
+    }
+
+    // Process GET /weather/{id} and GET /weather?ids=a,b,c: the stored stations among those requested as a JSON array
+    // in request order, each from its cached encoding; 404 if none of them is stored. The ETag is the newest change
+    // clock of the requested stations; a station's clock only grows while the log remembers it, so the response is
+    // left untagged when any requested station is unknown.
+    static String processStationGetRequest(List<String> stationIds, Map<String, String> headers) {
+        lamportClockInstance.increment();
+
+        long newestChange = 0;
+        boolean tagged = true;
+        for (String stationId : stationIds) {
+            long changedAt = changeLog.lastChangeOf(stationId);  // Read before the data, so the tag is never newer than it
+            newestChange = Math.max(newestChange, changedAt);
+            tagged &= changedAt != 0;
+        }
+        String etag = tagged ? etag(newestChange) : null;
+
+        StringBuilder jsonResponse = new StringBuilder("[");
+        for (String stationId : stationIds) {
+            String station = encodedStations.get(stationId);
+            if (station != null) {
+                jsonResponse.append(jsonResponse.length() == 1 ? "" : ",").append(station);
+            }
+        }
+        if (jsonResponse.length() == 1) {
+            return statusResponse("HTTP/1.1 404 Not Found");
+        }
+        if (etag != null && matchesETag(headers.get("If-None-Match"), etag)) {
+            return notModifiedResponse(etag);
+        }
+
+        String body = jsonResponse.append(']').toString();
+        return "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                + (etag == null ? "" : "ETag: " + etag + "\r\n")
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n"
+                + body;
+    }
+
+    // Distinct, URL-decoded station ids of an ids=a,b,c parameter, in the order given
+    static List<String> stationIdsOf(String ids) {
+        Set<String> stationIds = new LinkedHashSet<>();
+        for (String stationId : ids.split(",")) {
+            try {
+                stationId = URLDecoder.decode(stationId.trim(), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);  // UTF-8 is always supported
+            }
+            if (!stationId.isEmpty()) {
+                stationIds.add(stationId);
+            }
+        }
+        return new ArrayList<>(stationIds);
+    }
+
+    // Station id in a GET /weather/{id} path, or null for any other path
+    static String stationIdOf(String path) {
+        int query = path == null ? -1 : path.indexOf('?');
+        String target = query == -1 ? path : path.substring(0, query);
+        if (target == null || !target.startsWith("/weather/") || target.equals(EVENT_STREAM_PATH)) {
+            return null;
+        }
+        String stationId = target.substring("/weather/".length());
+        try {
+            stationId = URLDecoder.decode(stationId, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+        return stationId.isEmpty() ? null : stationId;
+    }
+
+    static String etag(long changeClock) {
+        return "\"" + ETAG_EPOCH + "-" + changeClock + "\"";
+    }
+
+    // Weak form of a full GET's ETag, for a body holding the same stations as processGetRequest's pretty-printed
+    // one in other bytes (the compact snapshot file, or the streamed array); If-None-Match matches either form
+    static String weakETag(String etag) {
+        return "W/" + etag;
+    }
+
+    // True when an If-None-Match header lists the tag or is *; a weak tag (W/"...") compares equal to its strong form
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 304 for a conditional GET whose data has not changed; nothing is serialized
+    static String notModifiedResponse(String etag) {
+        return "HTTP/1.1 304 Not Modified\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n";
+    }
+
+    // Process GET /weather.json?since=<clock>: only the stations updated or expired after that clock, and the
+    // high-water mark to send as since on the next poll. If expiries that old are no longer remembered,
+    // every current station is returned with "reset": true and the client replaces its view.
+    static String processDeltaGetRequest(String since, Map<String, String> headers) {
+        lamportClockInstance.increment();
+
+        long sinceClock;
+        try {
+            sinceClock = Long.parseLong(since.trim());
+        } catch (NumberFormatException e) {
+            return statusResponse("HTTP/1.1 400 Bad Request");
+        }
+
+        ChangeLog.Delta delta = changeLog.since(sinceClock);
+        JsonArray updated = new JsonArray();
+        JsonArray removed = new JsonArray();
+        if (delta.complete) {
+            for (ChangeLog.Change change : delta.changes) {
+                JsonObject station = weatherDataStore.get(change.stationId);
+                if (change.removed) {
+                    removed.add(change.stationId);
+                } else if (station != null) {
+                    updated.add(station);  // Missing means it expired since; that shows up on the next poll
+                }
+            }
+        } else {
+            weatherDataStore.values().forEach(updated::add);
+        }
+
+        JsonObject body = new JsonObject();
+        body.addProperty("since", sinceClock);
+        body.addProperty("highWater", delta.highWater);
+        if (!delta.complete) {
+            body.addProperty("reset", true);
+        }
+        body.add("updated", updated);
+        body.add("removed", removed);
+        String jsonResponse = body.toString();
+
+        return "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + jsonResponse.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n"
+                + jsonResponse;
+    }
+
+    // Value of a query parameter in a request path, or null if absent
+    static String queryParameter(String path, String name) {
+        int query = path == null ? -1 : path.indexOf('?');
+        if (query == -1) {
+            return null;
+        }
+        for (String parameter : path.substring(query + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            String key = equals == -1 ? parameter : parameter.substring(0, equals);
+            if (key.equals(name)) {
+                return equals == -1 ? "" : parameter.substring(equals + 1);
+            }
+        }
+        return null;
+    }
+
+    // Header-only response carrying the current Lamport clock
+    static String statusResponse(String statusLine) {
+        return statusLine + "\r\n"
+                + "Lamport-Clock: " + lamportClockInstance.getClock() + "\r\n"
+                + "\r\n";
     }
 
     // Write data to a temporary file before committing
     public static void writeToTempFile(Map<String, JsonObject> data) throws IOException {
-        try (FileWriter fileWriter = new FileWriter(TEMP_FILE)) {
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(TEMP_FILE), StandardCharsets.UTF_8)) {
             fileWriter.write(new Gson().toJson(data.values()));
         }
     }
 
-    // Commit the temporary file to final storage (move from temp file to data file)
+    // Commit the temporary file to final storage: force it to disk, then rename it over the data file. The rename
+    // replaces the file in one step, so a reader (or a GET sending the file) sees the old or the new snapshot, whole.
     private static boolean commitTempFile() throws IOException {
         File tempFile = new File(TEMP_FILE);
         File finalFile = new File(DATA_FILE);
 
-        try (FileReader fileReader = new FileReader(tempFile);
-             FileWriter fileWriter = new FileWriter(finalFile)) {
-
-            char[] buffer = new char[1024];
-            int read;
-            while ((read = fileReader.read(buffer)) != -1) {
-                fileWriter.write(buffer, 0, read);
-            }
+        try (FileChannel temp = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+            temp.force(true);  // Durable before the PUT is acknowledged
+        }
+        try {
+            Files.move(tempFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             return true;
         } catch (IOException e) {
             System.out.println("Error while committing file: " + e.getMessage());
             return false;
         } finally {
-            tempFile.delete();  // Delete the temporary file after committing
+            tempFile.delete();  // Only still there if the rename failed
         }
     }
 
@@ -222,23 +1077,52 @@ public class AggregationServer {
         return gson.toJson(dataCollection);
     }
 
-    // Remove expired data from the data store
+    // Remove expired data from the data store; only stations whose deadline has passed are examined
     public static void removeExpiredData() {
         long currentTime = Instant.now().toEpochMilli();
-        Iterator<Map.Entry<String, JsonObject>> iterator = weatherDataStore.entrySet().iterator();
+        for (String entryId : expiryIndex.pollExpired(currentTime)) {
+            expireStation(entryId, currentTime);
+        }
+    }
 
-        while (iterator.hasNext()) {
-            Map.Entry<String, JsonObject> entry = iterator.next();
-            JsonObject jsonObject = entry.getValue();
-            long timestamp = jsonObject.get("timestamp").getAsLong();
-            String origin = jsonObject.get("origin").getAsString();
+    // Start the thread that sleeps until the next station deadline and removes what has expired
+    static synchronized void startExpiryThread() {
+        if (expiryThread != null) {
+            return;
+        }
+        expiryThread = new Thread(() -> {
+            try {
+                while (true) {
+                    List<String> expired = expiryIndex.awaitExpired();
+                    long currentTime = Instant.now().toEpochMilli();
+                    for (String entryId : expired) {
+                        expireStation(entryId, currentTime);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "station-expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
 
-            // Remove expired entries (older than expiration time)
-            if (currentTime - timestamp > EXPIRATION_TIME_MILLIS) {
-                System.out.println("Removing expired entry from " + origin);
-                iterator.remove();
-                serverTimestamps.remove(origin);
+    // Remove a station if its stored record is still older than the expiration time. The check, the removal and
+    // its change record run under the station's lock, so a PUT racing with expiry either keeps its newer record
+    // or re-creates the station after the removal is recorded.
+    private static void expireStation(String entryId, long currentTime) {
+        stationClocks.removeInOrder(entryId, () -> {
+            JsonObject jsonObject = weatherDataStore.get(entryId);
+            if (jsonObject == null || currentTime - jsonObject.get("timestamp").getAsLong() < EXPIRATION_TIME_MILLIS) {
+                return false;
             }
-        }
+            weatherDataStore.remove(entryId);
+            changeLog.recordRemoval(entryId);
+            encodedStations.remove(entryId);
+            String origin = jsonObject.get("origin").getAsString();
+            System.out.println("Removing expired entry from " + origin);
+            serverTimestamps.remove(origin);
+            return true;
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,198 @@
+package com.weather.app;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Per-station change log keyed by Lamport clock, so a GET can return only what changed since a clock value.
+// Each station has one entry: the clock of its latest update, or of its expiry (a tombstone). Recording a change
+// moves the station's entry, so the log holds at most one entry per station plus a bounded number of tombstones.
+// Changes are recorded concurrently (the read side of the lock); taking a high-water mark briefly excludes them,
+// so every change at or below the mark is already in the log and a client polling from the mark misses nothing.
+// Long-poll GETs wait on nextChangeAfter; every recorded change completes the waiting futures.
+public class ChangeLog {
+    static final int MAX_TOMBSTONES = Integer.getInteger("weather.changeLog.maxTombstones", 4096);  // Expiries remembered
+
+    // One station's latest change
+    public static final class Change {
+        public final String stationId;
+        public final long clock;
+        public final boolean removed;
+
+        Change(String stationId, long clock, boolean removed) {
+            this.stationId = stationId;
+            this.clock = clock;
+            this.removed = removed;
+        }
+    }
+
+    // Changes after a clock value, and the mark to poll from next
+    public static final class Delta {
+        public final List<Change> changes;
+        public final long highWater;
+        public final boolean complete;  // False if tombstones the caller needs were already dropped
+
+        Delta(List<Change> changes, long highWater, boolean complete) {
+            this.changes = changes;
+            this.highWater = highWater;
+            this.complete = complete;
+        }
+    }
+
+    private final LamportClock clock;
+    private final ConcurrentNavigableMap<Long, Change> byClock = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> latest = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock recording = new ReentrantReadWriteLock();
+    private final AtomicInteger tombstones = new AtomicInteger();
+    private final AtomicLong newest = new AtomicLong();  // Highest clock ever recorded; never moves back
+    private final Queue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private volatile long horizon;  // Tombstones at or below this clock have been dropped
+
+    public ChangeLog(LamportClock clock) {
+        this.clock = clock;
+    }
+
+    // Record that a station was updated; returns the clock value given to the change
+    public long recordUpdate(String stationId) {
+        return record(stationId, false);
+    }
+
+    // Record that a station expired or was removed; returns the clock value given to the change
+    public long recordRemoval(String stationId) {
+        long removedAt = record(stationId, true);
+        if (tombstones.get() > MAX_TOMBSTONES) {
+            dropOldestTombstones();
+        }
+        return removedAt;
+    }
+
+    // Changes after the given clock value, oldest first
+    public Delta since(long sinceClock) {
+        long highWater = highWater();
+        List<Change> changes = new ArrayList<>(byClock.subMap(sinceClock, false, highWater, true).values());
+        return new Delta(changes, highWater, sinceClock >= horizon);
+    }
+
+    // Clock value at or below which every change is already in the log
+    public long highWater() {
+        recording.writeLock().lock();
+        try {
+            return clock.getClock();  // Nothing is between ticking and inserting while recording is excluded
+        } finally {
+            recording.writeLock().unlock();
+        }
+    }
+
+    // Clock of the newest change recorded, 0 if none. Stores apply a change before it is recorded, so data read
+    // after this value already holds every change at or below it. Never decreases, even while the station holding
+    // the newest entry is moved to a later clock.
+    public long lastChange() {
+        return newest.get();
+    }
+
+    // Clock of a station's latest update or expiry, 0 if the log holds none
+    public long lastChangeOf(String stationId) {
+        Long changedAt = latest.get(stationId);
+        return changedAt == null ? 0 : changedAt;
+    }
+
+    // Completes once the log holds a change after the given clock value; at once if it already does.
+    // A caller that gives up waiting passes the future to cancelWait so it is not kept.
+    public CompletableFuture<Void> nextChangeAfter(long sinceClock) {
+        CompletableFuture<Void> next = new CompletableFuture<>();
+        waiters.add(next);
+        if (hasChangeAfter(sinceClock)) {  // Checked after registering, so a change recorded in between still wakes us
+            waiters.remove(next);
+            next.complete(null);
+        }
+        return next;
+    }
+
+    // Block until the log holds a change after the given clock value or the timeout passes; true on a change
+    public boolean awaitChangeAfter(long sinceClock, long timeoutMillis) throws InterruptedException {
+        CompletableFuture<Void> next = nextChangeAfter(sinceClock);
+        try {
+            next.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;  // Waiters are never completed exceptionally
+        } finally {
+            cancelWait(next);
+        }
+    }
+
+    // Stop waiting on a future from nextChangeAfter
+    public void cancelWait(CompletableFuture<Void> waiter) {
+        waiters.remove(waiter);
+    }
+
+    // Number of entries held (live stations and tombstones)
+    public int size() {
+        return byClock.size();
+    }
+
+    private long record(String stationId, boolean removed) {
+        long[] recordedAt = new long[1];
+        recording.readLock().lock();
+        try {
+            // Ticking inside compute keeps one station's changes in clock order. The new entry goes in before the
+            // old one comes out, so the log never looks older than it was while a station moves.
+            latest.compute(stationId, (id, previous) -> {
+                recordedAt[0] = clock.tick();
+                byClock.put(recordedAt[0], new Change(id, recordedAt[0], removed));
+                newest.accumulateAndGet(recordedAt[0], Math::max);
+                if (previous != null) {
+                    Change replaced = byClock.remove(previous);
+                    if (replaced != null && replaced.removed) {
+                        tombstones.decrementAndGet();
+                    }
+                }
+                return recordedAt[0];
+            });
+            if (removed) {
+                tombstones.incrementAndGet();
+            }
+        } finally {
+            recording.readLock().unlock();
+        }
+        CompletableFuture<Void> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.complete(null);
+        }
+        return recordedAt[0];
+    }
+
+    private boolean hasChangeAfter(long sinceClock) {
+        return sinceClock < horizon || newest.get() > sinceClock;
+    }
+
+    // Forget the oldest half of the tombstones; a poll from before them gets a complete=false delta
+    private synchronized void dropOldestTombstones() {
+        int toDrop = tombstones.get() - MAX_TOMBSTONES / 2;
+        Iterator<Change> oldestFirst = byClock.values().iterator();
+        while (toDrop > 0 && oldestFirst.hasNext()) {
+            Change change = oldestFirst.next();
+            if (change.removed && latest.remove(change.stationId, change.clock)) {
+                byClock.remove(change.clock, change);
+                tombstones.decrementAndGet();
+                horizon = Math.max(horizon, change.clock);
+                toDrop--;
+            }
+        }
+    }
+}
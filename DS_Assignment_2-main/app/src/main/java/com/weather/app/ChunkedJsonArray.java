@@ -0,0 +1,150 @@
+package com.weather.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+
+// A JSON array sent with Transfer-Encoding: chunked, encoded from an iterator one element at a time.
+// Each call to nextChunk fills the same fixed-size buffer with the next elements and frames it as one chunk, so
+// the memory held by a response is the buffer plus one element's encoding, however many elements there are. An
+// element larger than the buffer is split across chunks. With a weakly consistent iterator (a ConcurrentHashMap's
+// values) the array holds every element present for the whole send and any mix of concurrent changes. Given a
+// content coding, the array is compressed as it is encoded and the chunks carry the compressed bytes instead.
+public class ChunkedJsonArray<T> {
+    static final int CHUNK_BYTES = 16 * 1024;
+    static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Iterator<T> elements;
+    private final Function<T, String> encoder;
+    private final byte[] data;
+    private final ByteBuffer chunk;  // data framed as a chunk; reused for every chunk of the response
+    private byte[] pending;  // Encoding of the element being copied into the chunks
+    private int pendingOffset;
+    private boolean opened;  // The [ is written
+    private boolean closed;  // The ] is written
+    private boolean finished;  // The last chunk is returned
+    private int count;  // Elements encoded so far
+    private final CompressedBytes compressed;  // Compressor output not yet sent; null for identity
+    private final DeflaterOutputStream compressor;
+    private boolean closedCompressor;  // The compressed body is complete
+
+    public ChunkedJsonArray(Iterator<T> elements, Function<T, String> encoder) {
+        this(elements, encoder, null);
+    }
+
+    // coding is a ContentEncoding coding, or null to send the array as it is
+    public ChunkedJsonArray(Iterator<T> elements, Function<T, String> encoder, String coding) {
+        this(elements, encoder, CHUNK_BYTES, coding);
+    }
+
+    ChunkedJsonArray(Iterator<T> elements, Function<T, String> encoder, int chunkBytes) {
+        this(elements, encoder, chunkBytes, null);
+    }
+
+    ChunkedJsonArray(Iterator<T> elements, Function<T, String> encoder, int chunkBytes, String coding) {
+        this.elements = elements;
+        this.encoder = encoder;
+        this.data = new byte[chunkBytes];
+        this.chunk = ByteBuffer.allocate(chunkBytes + Integer.toHexString(chunkBytes).length() + 4);  // Size line, CRLFs
+        if (coding == null) {
+            this.compressed = null;
+            this.compressor = null;
+        } else {
+            this.compressed = new CompressedBytes(chunkBytes);
+            try {
+                this.compressor = ContentEncoding.encoder(compressed, coding);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);  // Only a memory stream is involved
+            }
+        }
+    }
+
+    // The next chunk, ready to write, or null once the last (empty) chunk has been returned. The buffer is
+    // overwritten by the following call, so it must be written out first.
+    public ByteBuffer nextChunk() {
+        if (finished) {
+            return null;
+        }
+        chunk.clear();
+        int length = compressor == null ? fill() : fillCompressed();
+        if (length == 0) {
+            finished = true;
+            chunk.put(LAST_CHUNK);
+        } else {
+            chunk.put(Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII)).put((byte) '\r').put((byte) '\n');
+            chunk.put(data, 0, length).put((byte) '\r').put((byte) '\n');
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    // Copy as much of the array as fits into data; returns the bytes copied, 0 once the array is complete
+    private int fill() {
+        int length = 0;
+        if (!opened) {
+            data[length++] = '[';
+            opened = true;
+        }
+        while (length < data.length) {
+            if (pending != null) {
+                int copied = Math.min(data.length - length, pending.length - pendingOffset);
+                System.arraycopy(pending, pendingOffset, data, length, copied);
+                length += copied;
+                pendingOffset += copied;
+                if (pendingOffset == pending.length) {
+                    pending = null;
+                }
+            } else if (elements.hasNext()) {
+                String json = encoder.apply(elements.next());
+                pending = (count++ == 0 ? json : "," + json).getBytes(StandardCharsets.UTF_8);
+                pendingOffset = 0;
+            } else if (!closed) {
+                data[length++] = ']';
+                closed = true;
+            } else {
+                break;
+            }
+        }
+        return length;
+    }
+
+    // Compress the array into data until a chunk's worth of compressed bytes is ready or the array is complete;
+    // returns the bytes copied, 0 once the compressed body is complete
+    private int fillCompressed() {
+        try {
+            while (compressed.size() < data.length && !closedCompressor) {
+                int length = fill();
+                if (length == 0) {
+                    compressor.close();  // Writes the trailer
+                    closedCompressor = true;
+                } else {
+                    compressor.write(data, 0, length);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.take(data);
+    }
+
+    // Compressor output, handed out from the front as chunks are sent
+    private static final class CompressedBytes extends ByteArrayOutputStream {
+        CompressedBytes(int size) {
+            super(size);
+        }
+
+        // Move up to target.length bytes from the front into target; returns the bytes moved
+        int take(byte[] target) {
+            int length = Math.min(count, target.length);
+            System.arraycopy(buf, 0, target, 0, length);
+            System.arraycopy(buf, length, buf, 0, count - length);
+            count -= length;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.weather.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// HTTP content codings for GET bodies: gzip, and deflate (zlib-wrapped, as HTTP defines it).
+// The server picks one from Accept-Encoding and compresses a body once per version; clients decode the response.
+public final class ContentEncoding {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE;  // Accept-Encoding sent by the GET clients
+
+    private ContentEncoding() {
+    }
+
+    // Coding to answer with for an Accept-Encoding header: the one with the higher q-value (gzip on a tie), or null
+    // for identity when neither is acceptable. A coding not listed takes the q-value of *, if present.
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Double gzip = null;
+        Double deflate = null;
+        Double any = null;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = quality;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = quality;
+            } else if (coding.equals("*")) {
+                any = quality;
+            }
+        }
+        double gzipQuality = gzip != null ? gzip : any != null ? any : 0;
+        double deflateQuality = deflate != null ? deflate : any != null ? any : 0;
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        }
+        return deflateQuality > 0 ? DEFLATE : null;
+    }
+
+    // Body compressed with the given coding
+    public static byte[] compress(byte[] body, String coding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream out = encoder(compressed, coding)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // Only memory streams are involved
+        }
+        return compressed.toByteArray();
+    }
+
+    // Stream that compresses what is written to it with the given coding into out; closing it finishes the body
+    public static DeflaterOutputStream encoder(OutputStream out, String coding) throws IOException {
+        return GZIP.equals(coding) ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+    }
+
+    // Stream of the decoded body for a Content-Encoding header value (null or identity leaves it as it is)
+    public static InputStream decode(InputStream body, String coding) throws IOException {
+        if (coding == null) {
+            return body;
+        }
+        switch (coding.trim().toLowerCase(Locale.ROOT)) {
+            case GZIP:
+            case "x-gzip":
+                return new GZIPInputStream(body);
+            case DEFLATE:
+                return new InflaterInputStream(body);
+            default:
+                return body;
+        }
+    }
+
+    // ETag of a coded variant: a compressed body is a different representation, so it gets its own tag
+    public static String variantTag(String etag, String coding) {
+        return coding == null ? etag : etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+}
@@ -1,7 +1,9 @@
 package com.weather.app;
 
+import com.google.gson.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class ContentServer {
@@ -11,8 +13,8 @@ public class ContentServer {
     public static final LamportClock lamportClockInstance = new LamportClock();
 
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java ContentServer <server-address> <server-port> <file-path>");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: java ContentServer <server-address> <server-port> <file-path> [push-interval-seconds]");
             return;
         }
 
@@ -26,14 +28,22 @@ public class ContentServer {
 
         weatherDataFilePath = args[2];
 
+        // With an interval, keep pushing the file over one persistent connection
+        if (args.length == 4) {
+            try {
+                pushPeriodically(Long.parseLong(args[3]) * 1000);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid push interval provided.");
+            }
+            return;
+        }
+
         try {
-            String jsonWeatherData = readWeatherDataFromFile(weatherDataFilePath);
+            String jsonWeatherData = readPutBodyFromFile(weatherDataFilePath);
             if (jsonWeatherData != null) {
-                try (Socket socket = new Socket(serverAddress, serverPort);
-                     PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                     BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                try (ServerConnection connection = new ServerConnection(serverAddress, serverPort)) {
 
-                    sendWeatherDataToServer(jsonWeatherData, socket, writer, reader);
+                    sendWeatherDataToServer(jsonWeatherData, connection.socket, connection.writer, connection.reader);
 
                 } catch (IOException e) {
                     System.err.println("Failed to send weather data: " + e.getMessage());
@@ -46,6 +56,77 @@ public class ContentServer {
         }
     }
 
+    // Re-read and PUT the weather file every interval, reusing one keep-alive connection
+    // and reconnecting only when the server closes it
+    static void pushPeriodically(long intervalMillis) {
+        ServerConnection connection = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    String jsonWeatherData = readPutBodyFromFile(weatherDataFilePath);
+                    if (jsonWeatherData == null) {
+                        System.out.println("Error: Weather data is invalid or missing 'id'.");
+                    } else {
+                        if (connection == null) {
+                            connection = new ServerConnection(serverAddress, serverPort);
+                        }
+                        if (!pushOverConnection(jsonWeatherData, connection)) {
+                            connection.close();
+                            connection = null;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to send weather data: " + e.getMessage());
+                    if (connection != null) {
+                        connection.close();
+                        connection = null;
+                    }
+                }
+                Thread.sleep(intervalMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // A socket to the server with the one reader and writer used for its whole life. Responses are read by their
+    // Content-Length from the same buffered stream, so a kept-alive connection never loses or misreads body bytes.
+    static final class ServerConnection implements Closeable {
+        final Socket socket;
+        final InputStream reader;
+        final PrintWriter writer;
+
+        ServerConnection(String address, int port) throws IOException {
+            socket = new Socket(address, port);
+            reader = new BufferedInputStream(socket.getInputStream());
+            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Connection is being discarded anyway
+            }
+        }
+    }
+
+    // Send one keep-alive PUT; returns true if the server will accept another request on this connection
+    private static boolean pushOverConnection(String jsonData, ServerConnection connection) throws IOException {
+        lamportClockInstance.increment();
+        connection.writer.print(buildHttpPutRequest(jsonData, true));
+        connection.writer.flush();
+        if (connection.writer.checkError()) {
+            throw new IOException("Connection closed by server");
+        }
+        return processServerResponse(connection.reader);
+    }
+
     public static String readWeatherDataFromFile(String filePath) throws IOException {
         Map<String, String> weatherDataMap = new HashMap<>();
 
@@ -66,6 +147,45 @@ public class ContentServer {
         return convertMapToJson(weatherDataMap);
     }
 
+    // Read every station in the file; each "id" line after the first starts a new station
+    public static List<String> readWeatherRecordsFromFile(String filePath) throws IOException {
+        List<String> records = new ArrayList<>();
+        Map<String, String> weatherDataMap = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] keyValue = line.split(":", 2);
+                if (keyValue.length == 2) {
+                    String key = keyValue[0].trim();
+                    if (key.equals("id") && weatherDataMap.containsKey("id")) {
+                        records.add(convertMapToJson(weatherDataMap));
+                        weatherDataMap = new HashMap<>();
+                    }
+                    weatherDataMap.put(key, keyValue[1].trim());
+                }
+            }
+        }
+
+        if (weatherDataMap.containsKey("id")) {
+            records.add(convertMapToJson(weatherDataMap));
+        }
+        return records;
+    }
+
+    // Body of the PUT for a feed file: one station as an object, several as a JSON array sent as a single
+    // batch PUT; null if the file holds no station with an id
+    public static String readPutBodyFromFile(String filePath) throws IOException {
+        List<String> records = readWeatherRecordsFromFile(filePath);
+        if (records.isEmpty()) {
+            return null;
+        }
+        if (records.size() == 1) {
+            return records.get(0);
+        }
+        return "[\n" + String.join(",\n", records) + "\n]";
+    }
+
     private static String convertMapToJson(Map<String, String> dataMap) {
         StringBuilder jsonBuilder = new StringBuilder("{\n");
         for (Map.Entry<String, String> entry : dataMap.entrySet()) {
@@ -77,7 +197,7 @@ public class ContentServer {
     }
 
     // Updated sendWeatherDataToServer method signature
-    public static void sendWeatherDataToServer(String jsonData, Socket socket, PrintWriter writer, BufferedReader reader) {
+    public static void sendWeatherDataToServer(String jsonData, Socket socket, PrintWriter writer, InputStream reader) {
         lamportClockInstance.increment();
 
         String httpRequest = buildHttpPutRequest(jsonData);
@@ -92,29 +212,68 @@ public class ContentServer {
     }
 
     public static String buildHttpPutRequest(String jsonData) {
+        return buildHttpPutRequest(jsonData, false);
+    }
+
+    public static String buildHttpPutRequest(String jsonData, boolean keepAlive) {
         StringBuilder requestBuilder = new StringBuilder();
         requestBuilder.append("PUT /weather.json HTTP/1.1\r\n");
         requestBuilder.append("Host: ").append(serverAddress).append("\r\n");
         requestBuilder.append("User-Agent: ContentServer/1.0\r\n");
+        if (keepAlive) {
+            requestBuilder.append("Connection: keep-alive\r\n");
+        }
         requestBuilder.append("Content-Type: application/json\r\n");
-        requestBuilder.append("Content-Length: ").append(jsonData.length()).append("\r\n");
+        requestBuilder.append("Content-Length: ").append(jsonData.getBytes(StandardCharsets.UTF_8).length).append("\r\n");  // Written as UTF-8
         requestBuilder.append("Lamport-Clock: ").append(lamportClockInstance.getClock()).append("\r\n");
         requestBuilder.append("\r\n");
         requestBuilder.append(jsonData);
         return requestBuilder.toString();
     }
 
-    public static void processServerResponse(BufferedReader responseReader) throws IOException {
+    // Read one response: its headers, then exactly Content-Length bytes of body, leaving the stream at the start of
+    // the next response. A batch PUT's per-record statuses are reported. Returns true if the server answered and
+    // agreed to keep the connection open.
+    public static boolean processServerResponse(InputStream responseReader) throws IOException {
         String responseLine;
-        int receivedLamportClock = lamportClockInstance.getClock();
+        long receivedLamportClock = lamportClockInstance.getClock();
         boolean lamportClockReceived = false;
+        boolean answered = false;
+        boolean keepAlive = false;
+        int contentLength = 0;
 
-        while ((responseLine = responseReader.readLine()) != null && !responseLine.isEmpty()) {
+        while ((responseLine = readLine(responseReader)) != null && !responseLine.isEmpty()) {
             System.out.println("Server Response: " + responseLine);
+            answered = true;
 
             if (responseLine.startsWith("Lamport-Clock:")) {
-                receivedLamportClock = Integer.parseInt(responseLine.substring("Lamport-Clock:".length()).trim());
+                receivedLamportClock = Long.parseLong(responseLine.substring("Lamport-Clock:".length()).trim());
                 lamportClockReceived = true;
+            } else if (responseLine.equalsIgnoreCase("Connection: keep-alive")) {
+                keepAlive = true;
+            } else if (responseLine.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+                try {
+                    contentLength = Integer.parseInt(responseLine.substring("Content-Length:".length()).trim());
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+            }
+        }
+
+        if (contentLength < 0) {
+            keepAlive = false;  // The body cannot be framed, so the connection cannot be reused
+        } else if (contentLength > 0) {
+            byte[] body = new byte[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int n = responseReader.read(body, read, contentLength - read);
+                if (n == -1) {
+                    throw new EOFException("Connection closed after " + read + " of " + contentLength + " body bytes");
+                }
+                read += n;
+            }
+            for (String status : describeRecordStatuses(new String(body, StandardCharsets.UTF_8))) {
+                System.out.println("Server Response: " + status);
             }
         }
 
@@ -122,5 +281,58 @@ public class ContentServer {
             lamportClockInstance.update(receivedLamportClock);
             System.out.println("Lamport clock updated to: " + lamportClockInstance.getClock());
         }
+        return answered && keepAlive;
+    }
+
+    // One line per record of a batch PUT's status body ("record 2 (IDS60903): 201", with "stale" or the error when
+    // present); any other body is returned as a single line
+    static List<String> describeRecordStatuses(String body) {
+        JsonElement parsed;
+        try {
+            parsed = JsonParser.parseString(body);
+        } catch (JsonParseException e) {
+            return Collections.singletonList(body);
+        }
+        if (!parsed.isJsonArray()) {
+            return Collections.singletonList(body);
+        }
+        List<String> lines = new ArrayList<>();
+        for (JsonElement element : parsed.getAsJsonArray()) {
+            if (!element.isJsonObject()) {
+                lines.add(element.toString());
+                continue;
+            }
+            JsonObject status = element.getAsJsonObject();
+            StringBuilder line = new StringBuilder("record ");
+            line.append(status.has("index") ? status.get("index").getAsString() : "?");
+            if (status.has("id")) {
+                line.append(" (").append(status.get("id").getAsString()).append(")");
+            }
+            line.append(": ").append(status.has("status") ? status.get("status").getAsString() : "?");
+            if (status.has("stale") && status.get("stale").getAsBoolean()) {
+                line.append(" stale");
+            }
+            if (status.has("error")) {
+                line.append(" - ").append(status.get("error").getAsString());
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    // A header line without its CRLF, or null at end of stream; read byte by byte so the body that follows stays
+    // in the stream
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,64 @@
+package com.weather.app;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Per-station cache of the JSON served to GET /weather/{id}.
+// A station is encoded once per change and the same string is reused by every GET until the next PUT or expiry,
+// so a single-station GET is a ChangeLog lookup plus a map lookup. Each entry is tagged with the station's
+// ChangeLog clock read before it was encoded; a change is stored before it is recorded, so an entry is never older
+// than its tag, and a newer clock in the log means the entry is stale. A station the log has never seen (or whose
+// tombstone was dropped) is not stored, so it is answered without touching the store at all.
+public class EncodedStations {
+
+    // One station's encoding and the change clock it is at least as new as
+    private static final class Entry {
+        final long clock;
+        final String json;
+
+        Entry(long clock, String json) {
+            this.clock = clock;
+            this.json = json;
+        }
+    }
+
+    private final ChangeLog changeLog;
+    private final Function<String, String> encoder;  // Station id to its JSON, or null if it is not stored
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public EncodedStations(ChangeLog changeLog, Function<String, String> encoder) {
+        this.changeLog = changeLog;
+        this.encoder = encoder;
+    }
+
+    // JSON of a station, or null if it is not stored
+    public String get(String stationId) {
+        long clock = changeLog.lastChangeOf(stationId);
+        if (clock == 0) {
+            return null;
+        }
+        Entry entry = entries.get(stationId);
+        if (entry != null && entry.clock >= clock) {
+            return entry.json;
+        }
+        String json = encoder.apply(stationId);
+        if (json == null) {
+            entries.remove(stationId);
+            return null;
+        }
+        // Two GETs racing on one change may both encode it; the newer tag wins
+        entries.merge(stationId, new Entry(clock, json), (current, fresh) -> current.clock >= fresh.clock ? current : fresh);
+        return json;
+    }
+
+    // Forget a station that was removed from the store
+    public void remove(String stationId) {
+        entries.remove(stationId);
+    }
+
+    // Stations with a cached encoding
+    public int size() {
+        return entries.size();
+    }
+}
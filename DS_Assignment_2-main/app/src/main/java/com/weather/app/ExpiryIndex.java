@@ -0,0 +1,121 @@
+package com.weather.app;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Deadline-ordered expiry index.
+// Keys are kept in a min-heap by deadline, so finding what has expired costs O(expired * log n) instead of
+// a scan of the whole store. Rescheduling a key leaves its old heap entry behind; stale entries are skipped
+// when they surface (the map holds each key's current deadline) and purged when they start to dominate.
+// awaitExpired lets one thread sleep until exactly the next deadline rather than polling on a fixed period.
+public class ExpiryIndex<K> {
+    private final PriorityQueue<Deadline<K>> queue = new PriorityQueue<>();
+    private final Map<K, Long> deadlines = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition headChanged = lock.newCondition();
+
+    // Set (or move) the deadline of a key
+    public void schedule(K key, long deadlineMillis) {
+        lock.lock();
+        try {
+            deadlines.put(key, deadlineMillis);
+            Deadline<K> entry = new Deadline<>(key, deadlineMillis);
+            queue.add(entry);
+            if (queue.peek() == entry) {
+                headChanged.signalAll();  // Earlier than anything the waiter is sleeping on
+            }
+            if (queue.size() > 2 * deadlines.size() + 64) {
+                purgeStaleEntries();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forget a key; its heap entry is discarded when it reaches the head
+    public void cancel(K key) {
+        lock.lock();
+        try {
+            deadlines.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remove and return every key whose current deadline is at or before now
+    public List<K> pollExpired(long nowMillis) {
+        lock.lock();
+        try {
+            List<K> expired = new ArrayList<>();
+            Deadline<K> head;
+            while ((head = queue.peek()) != null && head.deadlineMillis <= nowMillis) {
+                queue.poll();
+                Long current = deadlines.get(head.key);
+                if (current != null && current == head.deadlineMillis) {
+                    deadlines.remove(head.key);
+                    expired.add(head.key);
+                }
+            }
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Block until at least one key expires, then return all keys that have
+    public List<K> awaitExpired() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                List<K> expired = pollExpired(now);
+                if (!expired.isEmpty()) {
+                    return expired;
+                }
+                Deadline<K> head = queue.peek();
+                if (head == null) {
+                    headChanged.await();
+                } else {
+                    headChanged.await(head.deadlineMillis - now, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of keys with a pending deadline
+    public int size() {
+        lock.lock();
+        try {
+            return deadlines.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rebuild the heap from the current deadlines, dropping entries left behind by rescheduling
+    private void purgeStaleEntries() {
+        queue.clear();
+        for (Map.Entry<K, Long> entry : deadlines.entrySet()) {
+            queue.add(new Deadline<>(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static final class Deadline<K> implements Comparable<Deadline<K>> {
+        final K key;
+        final long deadlineMillis;
+
+        Deadline(K key, long deadlineMillis) {
+            this.key = key;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        @Override
+        public int compareTo(Deadline<K> other) {
+            return Long.compare(deadlineMillis, other.deadlineMillis);
+        }
+    }
+}
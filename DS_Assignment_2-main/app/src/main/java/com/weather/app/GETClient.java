@@ -3,12 +3,37 @@ package com.weather.app;
 import com.google.gson.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 public class GETClient {
+    static final long WATCH_WAIT_MILLIS = 30_000;  // How long each watch request asks the server to hold it
+
+    // ETag of the last 200 response per URL, sent back as If-None-Match so an unchanged GET is answered with 304
+    private static final Map<String, String> etags = new HashMap<>();
 
     public static void main(String[] args) {
-        if (args.length < 2) {  // Ensure correct number of arguments are provided
-            System.out.println("Usage: GETClient <server-address> <server-port> [station-id]");
+        boolean watch = false;
+        long pollSeconds = 0;
+        while (args.length > 0 && args[args.length - 1].startsWith("--")) {
+            String option = args[args.length - 1];
+            if ("--watch".equals(option)) {
+                watch = true;
+            } else if (option.startsWith("--poll=")) {
+                try {
+                    pollSeconds = Long.parseLong(option.substring("--poll=".length()));
+                } catch (NumberFormatException e) {
+                    pollSeconds = -1;
+                }
+            } else {
+                break;
+            }
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        if (args.length < 2 || pollSeconds < 0) {  // Ensure correct number of arguments are provided
+            System.out.println("Usage: GETClient <server-address> <server-port> [station-id[,station-id...]] [--watch | --poll=<seconds>]");
             return;
         }
 
@@ -24,35 +49,31 @@ public class GETClient {
 
         String stationId = (args.length == 3) ? args[2] : null;  // Optional station ID
 
+        if (watch) {
+            watch(serverAddress, serverPort, stationId);
+            return;
+        }
+
         try {
             // Build the URL for the GET request
             StringBuilder urlBuilder = new StringBuilder("http://").append(serverAddress).append(":").append(serverPort).append("/weather");
-            if (stationId != null) {
+            if (stationId != null && stationId.contains(",")) {
+                urlBuilder.append("?ids=").append(stationId);  // Several stations in one request
+            } else if (stationId != null) {
                 urlBuilder.append("/").append(stationId);  // Append station ID to the URL if provided
             }
 
             // Convert the string URL to a URL object
             URL url = new URL(urlBuilder.toString());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");  // Set the request method to GET
-
-            // Send the request and get the response code
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                // Read the response from the server
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String inputLine;
-
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);  // Append each line of the response
-                }
-                in.close();
+            if (pollSeconds > 0) {
+                poll(url, pollSeconds);
+                return;
+            }
 
-                // Process the JSON response from the server
-                processJsonResponse(response.toString());
-            } else {
-                System.out.println("Error: HTTP response code " + responseCode);
+            // Process the JSON response from the server
+            String response = fetchWeatherData(url);
+            if (response != null) {
+                processJsonResponse(response);
             }
 
         } catch (IOException e) {
@@ -60,6 +81,119 @@ public class GETClient {
         }
     }
 
+    // GET the weather data, sending the ETag of the last response as If-None-Match.
+    // Returns the body, or null if the server answered 304 (the data is unchanged) or with an error status.
+    static String fetchWeatherData(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");  // Set the request method to GET
+        connection.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPTED);  // Full GET bodies come compressed
+        String etag = etags.get(url.toString());
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+
+        // Send the request and get the response code
+        int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return null;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            System.out.println("Error: HTTP response code " + responseCode);
+            return null;
+        }
+
+        // Read the response from the server
+        StringBuilder response = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                ContentEncoding.decode(connection.getInputStream(), connection.getContentEncoding()), StandardCharsets.UTF_8))) {
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                response.append(inputLine);  // Append each line of the response
+            }
+        }
+        if (connection.getHeaderField("ETag") != null) {
+            etags.put(url.toString(), connection.getHeaderField("ETag"));
+        }
+        return response.toString();
+    }
+
+    // GET the data every interval and print it whenever it has changed; unchanged data costs the server a 304
+    static void poll(URL url, long intervalSeconds) {
+        while (true) {
+            try {
+                String response = fetchWeatherData(url);
+                if (response != null) {
+                    processJsonResponse(response);
+                }
+            } catch (IOException e) {
+                System.err.println("Error connecting to server: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(intervalSeconds * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Print every station once, then each change as the server reports it, using long-poll GETs
+    static void watch(String serverAddress, int serverPort, String stationId) {
+        long since = 0;  // since=0 returns every station first
+        while (true) {
+            try {
+                since = watchOnce(serverAddress, serverPort, stationId, since);
+            } catch (IOException e) {
+                System.err.println("Error connecting to server: " + e.getMessage());
+                try {
+                    Thread.sleep(1000);  // Back off before reconnecting
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // One long-poll GET: waits until a station changes after the since clock (or the wait ends), prints the
+    // changes and returns the high-water mark to poll from next
+    static long watchOnce(String serverAddress, int serverPort, String stationId, long since) throws IOException {
+        URL url = new URL("http://" + serverAddress + ":" + serverPort + "/weather.json?since=" + since + "&wait=" + WATCH_WAIT_MILLIS);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setReadTimeout((int) WATCH_WAIT_MILLIS + 10_000);  // The server holds the request for up to the wait
+
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            System.out.println("Error: HTTP response code " + responseCode);
+            return since;
+        }
+        StringBuilder response = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                response.append(inputLine);
+            }
+        }
+
+        JsonObject delta = JsonParser.parseString(response.toString()).getAsJsonObject();
+        JsonArray updated = new JsonArray();
+        for (JsonElement station : delta.getAsJsonArray("updated")) {
+            if (stationId == null || stationId.equals(station.getAsJsonObject().get("id").getAsString())) {
+                updated.add(station);
+            }
+        }
+        if (updated.size() > 0) {
+            processJsonResponse(updated.toString());
+        }
+        for (JsonElement removed : delta.getAsJsonArray("removed")) {
+            if (stationId == null || stationId.equals(removed.getAsString())) {
+                System.out.println("Station expired: " + removed.getAsString());
+            }
+        }
+        return delta.get("highWater").getAsLong();
+    }
+
     // Method to process and display the JSON response from the server
     private static void processJsonResponse(String jsonResponse) {
         Gson gson = new Gson();
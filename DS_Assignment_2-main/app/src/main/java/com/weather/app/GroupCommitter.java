@@ -0,0 +1,135 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Group-commit stage for PUT persistence.
+// Request handlers submit items and wait on the returned future; a single writer thread drains the queue
+// into batches (everything that arrives within the batch window, up to the maximum batch size), hands each
+// batch to the BatchWriter, which must make it durable (FileChannel.force), and then completes every
+// future in the batch. One fsync is therefore shared by all PUTs that arrived together.
+public class GroupCommitter<T> {
+    static final long DEFAULT_WINDOW_MILLIS = Long.getLong("weather.groupCommit.windowMillis", 2);  // How long a batch stays open
+    static final int DEFAULT_MAX_BATCH = Integer.getInteger("weather.groupCommit.maxBatch", 256);  // Items per fsync at most
+
+    // Writes one batch and forces it to disk before returning
+    public interface BatchWriter<T> {
+        void write(List<T> batch) throws IOException;
+    }
+
+    private final BlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+    private final BatchWriter<T> batchWriter;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Thread writerThread;
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();  // Submitters share it; close() takes it alone
+    private volatile boolean running = true;  // Only cleared under the write lock
+    private volatile long batchCount;  // Only written by the writer thread
+
+    public GroupCommitter(String name, BatchWriter<T> batchWriter, long windowMillis, int maxBatchSize) {
+        this.batchWriter = batchWriter;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.writerThread = new Thread(this::writeLoop, name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Queue an item; the future completes once the batch holding it is durable
+    public CompletableFuture<Void> submit(T item) {
+        Pending<T> pending = new Pending<>(item);
+        stateLock.readLock().lock();
+        try {
+            // Checked and queued under the lock, so close() cannot stop the writer between the two
+            if (!running) {
+                pending.future.completeExceptionally(new IOException("Group commit stopped"));
+                return pending.future;
+            }
+            queue.add(pending);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        return pending.future;
+    }
+
+    // Number of batches (fsyncs) written so far
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    // Stop accepting items, commit whatever is queued and wait for the writer thread
+    public void close() throws InterruptedException {
+        stateLock.writeLock().lock();
+        try {
+            running = false;  // Every item queued before this is committed by the writer
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        writerThread.join();
+    }
+
+    private void writeLoop() {
+        List<Pending<T>> batch = new ArrayList<>();
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Keep the batch open for the window so concurrent PUTs share the fsync
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IOException stopped = new IOException("Group commit interrupted");
+            queue.drainTo(batch);  // Items queued behind the open batch would otherwise never complete
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(stopped);
+            }
+        }
+    }
+
+    private void commit(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+        try {
+            batchWriter.write(items);
+            batchCount++;
+            for (Pending<T> pending : batch) {
+                pending.future.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class Pending<T> {
+        final T item;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// HTTP/1.1 request-head parser that works on the bytes of a request in place.
+// One parser serves every request of a connection. parse() scans the request line and headers and keeps only their
+// offsets, so a request makes no String per header and no map. Content-Length, Lamport-Clock and Connection are
+// recognized during the scan and kept as primitives; any other header is decoded only when it is looked up through
+// headers(), a Map view that stays valid until the next parse. Connection threads read into heap buffers taken from
+// a shared pool, and a body is read by its Content-Length in bytes.
+public final class HttpRequestParser {
+    static final int BUFFER_BYTES = 16 * 1024;  // Pooled buffer size; a request head must fit in one
+    static final int MAX_HEADERS = 64;
+    private static final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(256);  // Idle buffers
+    private static final byte[] CONTENT_LENGTH = lowerCaseBytes("Content-Length");
+    private static final byte[] LAMPORT_CLOCK = lowerCaseBytes("Lamport-Clock");
+    private static final byte[] CONNECTION = lowerCaseBytes("Connection");
+    private static final byte[] KEEP_ALIVE = lowerCaseBytes("keep-alive");
+
+    private final int[] headerOffsets = new int[MAX_HEADERS * 4];  // Name start and end, value start and end
+    private final Map<String, String> headerView = new HeaderView();
+    private byte[] bytes;  // Holds the request being parsed
+    private int headerCount;
+    private int requestLineStart;
+    private int requestLineEnd;
+    private String method;
+    private String path;
+    private int contentLength;  // 0 without a Content-Length header
+    private long lamportClock;  // StationClocks.UNORDERED without a valid Lamport-Clock header
+    private boolean keepAlive;  // The Connection header lists keep-alive
+
+    // An empty buffer from the pool (position == limit == 0), or a new one when the pool is empty
+    public static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        }
+        buffer.clear();
+        buffer.limit(0);
+        return buffer;
+    }
+
+    // Return a buffer to the pool; dropped if the pool is full
+    public static void releaseBuffer(ByteBuffer buffer) {
+        bufferPool.offer(buffer);
+    }
+
+    // Parse the request head in bytes[start, end), skipping blank lines before the request line. Returns the index
+    // of the first body byte, or -1 while the head is incomplete.
+    public int parse(byte[] bytes, int start, int end) throws ProtocolException {
+        this.bytes = bytes;
+        headerCount = 0;
+        contentLength = 0;
+        lamportClock = StationClocks.UNORDERED;
+        keepAlive = false;
+
+        int lineStart = start;
+        while (lineStart < end && (bytes[lineStart] == '\r' || bytes[lineStart] == '\n')) {
+            lineStart++;
+        }
+        int lineEnd = lineEnd(bytes, lineStart, end);
+        if (lineEnd < 0) {
+            return -1;
+        }
+        requestLineStart = lineStart;
+        requestLineEnd = trimLineEnd(bytes, lineStart, lineEnd);
+
+        for (lineStart = lineEnd + 1; ; lineStart = lineEnd + 1) {
+            lineEnd = lineEnd(bytes, lineStart, end);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            int contentEnd = trimLineEnd(bytes, lineStart, lineEnd);
+            if (contentEnd == lineStart) {
+                break;  // Blank line: end of the head
+            }
+            addHeader(lineStart, contentEnd);
+        }
+
+        int methodEnd = indexOf(bytes, requestLineStart, requestLineEnd, (byte) ' ');
+        int pathStart = methodEnd < 0 ? requestLineEnd : methodEnd + 1;
+        int pathEnd = indexOf(bytes, pathStart, requestLineEnd, (byte) ' ');
+        method = methodOf(bytes, requestLineStart, methodEnd < 0 ? requestLineEnd : methodEnd);
+        path = new String(bytes, pathStart, (pathEnd < 0 ? requestLineEnd : pathEnd) - pathStart, StandardCharsets.ISO_8859_1);
+        return lineEnd + 1;
+    }
+
+    // Parse the head between the buffer's position and limit; once it is complete the position moves to the body
+    public boolean parse(ByteBuffer buffer) throws ProtocolException {
+        int bodyStart = parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+        if (bodyStart < 0) {
+            return false;
+        }
+        buffer.position(bodyStart - buffer.arrayOffset());
+        return true;
+    }
+
+    // Read from the stream into the buffer until a whole head is parsed; false if the stream ends first.
+    // The buffer keeps the unread bytes between its position and limit, including any pipelined request.
+    public boolean readHead(ByteBuffer buffer, InputStream in) throws IOException {
+        while (!parse(buffer)) {
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                throw new ProtocolException("Request head larger than " + buffer.capacity() + " bytes");
+            }
+            buffer.compact();
+            int read;
+            try {
+                read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read > 0) {
+                    buffer.position(buffer.position() + read);
+                }
+            } finally {
+                buffer.flip();
+            }
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The body of the parsed request: Content-Length bytes, from the buffer first and then the stream, decoded as
+    // UTF-8; shorter if the stream ends first. The head stays where it is in the buffer, so headers() remains valid.
+    public String readBody(ByteBuffer buffer, InputStream in) throws IOException {
+        if (contentLength == 0) {
+            return "";
+        }
+        byte[] array = buffer.array();
+        if (buffer.position() + contentLength <= buffer.capacity()) {
+            while (buffer.remaining() < contentLength) {
+                int read = in.read(array, buffer.arrayOffset() + buffer.limit(), buffer.capacity() - buffer.limit());
+                if (read < 0) {
+                    break;
+                }
+                buffer.limit(buffer.limit() + read);
+            }
+            int length = Math.min(contentLength, buffer.remaining());
+            String body = new String(array, buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return body;
+        }
+
+        // Larger than the buffer: the rest comes straight from the stream
+        byte[] body = new byte[contentLength];
+        int length = buffer.remaining();
+        buffer.get(body, 0, length);
+        while (length < contentLength) {
+            int read = in.read(body, length, contentLength - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return new String(body, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Request method; GET and PUT are shared constants
+    public String method() {
+        return method;
+    }
+
+    // Request target, e.g. /weather?id=IDS60901
+    public String path() {
+        return path;
+    }
+
+    // Request line, decoded for logging
+    public String requestLine() {
+        return new String(bytes, requestLineStart, requestLineEnd - requestLineStart, StandardCharsets.ISO_8859_1);
+    }
+
+    // Content-Length in bytes, 0 without the header
+    public int contentLength() {
+        return contentLength;
+    }
+
+    // Lamport-Clock sent by the client, or StationClocks.UNORDERED without the header or when it is not a number
+    public long lamportClock() {
+        return lamportClock;
+    }
+
+    // True when the Connection header asks for keep-alive
+    public boolean keepAlive() {
+        return keepAlive;
+    }
+
+    // Headers of the parsed request, looked up case-insensitively; valid until the next parse
+    public Map<String, String> headers() {
+        return headerView;
+    }
+
+    private void addHeader(int lineStart, int lineEnd) throws ProtocolException {
+        int colon = indexOf(bytes, lineStart, lineEnd, (byte) ':');
+        if (colon < 0) {
+            return;  // Not a header; ignored
+        }
+        if (headerCount == MAX_HEADERS) {
+            throw new ProtocolException("More than " + MAX_HEADERS + " headers");
+        }
+        int nameStart = skipSpaces(lineStart, colon);
+        int nameEnd = trimSpaces(nameStart, colon);
+        int valueStart = skipSpaces(colon + 1, lineEnd);
+        int valueEnd = trimSpaces(valueStart, lineEnd);
+        int offset = headerCount++ * 4;
+        headerOffsets[offset] = nameStart;
+        headerOffsets[offset + 1] = nameEnd;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+
+        if (nameEquals(nameStart, nameEnd, CONTENT_LENGTH)) {
+            long length = digits(valueStart, valueEnd);
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new ProtocolException("Invalid Content-Length");
+            }
+            contentLength = (int) length;
+        } else if (nameEquals(nameStart, nameEnd, LAMPORT_CLOCK)) {
+            long clock = digits(valueStart, valueEnd);
+            lamportClock = clock < 0 ? StationClocks.UNORDERED : clock;
+        } else if (nameEquals(nameStart, nameEnd, CONNECTION)) {
+            keepAlive = contains(valueStart, valueEnd, KEEP_ALIVE);
+        }
+    }
+
+    // Index of the last header with the given name, or -1
+    private int headerIndex(Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        String key = (String) name;
+        for (int i = headerCount - 1; i >= 0; i--) {
+            int nameStart = headerOffsets[i * 4];
+            int nameEnd = headerOffsets[i * 4 + 1];
+            if (nameEnd - nameStart == key.length() && nameMatches(nameStart, key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameMatches(int nameStart, String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (toLowerCase(bytes[nameStart + i]) != toLowerCase(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String headerName(int index) {
+        return new String(bytes, headerOffsets[index * 4], headerOffsets[index * 4 + 1] - headerOffsets[index * 4],
+                StandardCharsets.ISO_8859_1);
+    }
+
+    private String headerValue(int index) {
+        return new String(bytes, headerOffsets[index * 4 + 2], headerOffsets[index * 4 + 3] - headerOffsets[index * 4 + 2],
+                StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean nameEquals(int start, int end, byte[] lowerCaseName) {
+        if (end - start != lowerCaseName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseName.length; i++) {
+            if (toLowerCase(bytes[start + i]) != lowerCaseName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(int start, int end, byte[] lowerCaseToken) {
+        for (int i = start; i + lowerCaseToken.length <= end; i++) {
+            if (nameEquals(i, i + lowerCaseToken.length, lowerCaseToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Non-negative decimal value of bytes[start, end), or -1 if it is empty, not all digits or too long
+    private long digits(int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimSpaces(int start, int end) {
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static String methodOf(byte[] bytes, int start, int end) {
+        if (end - start == 3 && bytes[start + 1] == 'E' && bytes[start + 2] == 'T' && bytes[start] == 'G') {
+            return "GET";
+        }
+        if (end - start == 3 && bytes[start + 1] == 'U' && bytes[start + 2] == 'T' && bytes[start] == 'P') {
+            return "PUT";
+        }
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    // Index of the \n ending the line that starts at start, or -1 if it has not arrived
+    private static int lineEnd(byte[] bytes, int start, int end) {
+        return indexOf(bytes, start, end, (byte) '\n');
+    }
+
+    // End of a line's content: before the \r of a CRLF
+    private static int trimLineEnd(byte[] bytes, int start, int newline) {
+        return newline > start && bytes[newline - 1] == '\r' ? newline - 1 : newline;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static byte[] lowerCaseBytes(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) toLowerCase(bytes[i]);
+        }
+        return bytes;
+    }
+
+    // The parsed headers as a Map. get and containsKey scan the offsets and decode only the value asked for;
+    // iterating decodes every header (the last of repeated names wins).
+    private final class HeaderView extends AbstractMap<String, String> {
+        @Override
+        public String get(Object name) {
+            int index = headerIndex(name);
+            return index < 0 ? null : headerValue(index);
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return headerIndex(name) >= 0;
+        }
+
+        @Override
+        public String getOrDefault(Object name, String defaultValue) {
+            int index = headerIndex(name);
+            return index < 0 ? defaultValue : headerValue(index);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                headers.put(headerName(i), headerValue(i));
+            }
+            return headers.entrySet();
+        }
+    }
+}
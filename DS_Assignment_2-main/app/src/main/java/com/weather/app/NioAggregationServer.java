@@ -0,0 +1,559 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Selector-based engine for the Aggregation Server.
+// A single acceptor thread hands new connections to a small fixed set of I/O loops, each of which
+// multiplexes its sockets over one Selector. Request semantics are shared with the
+// thread-per-connection engine through AggregationServer.handleRequest. A long-poll GET parks its connection
+// (no thread waits for it) until AggregationServer.whenReady completes, then is answered on its own loop.
+// A GET of the event stream keeps its connection on the loop for good: each publish wakes the loop, which
+// writes the new frames with one gathering write straight from the shared ring.
+// A full GET answered from the committed snapshot file sends the file with FileChannel.transferTo, so its bytes go
+// from the page cache to the socket without passing through the heap.
+// The loops only read, parse and write. Building an answer (encoding or compressing the store, parsing and
+// applying a PUT) runs on a pool of worker threads, and a PUT's response is completed by the thread that commits
+// it. The finished response is handed back to the connection's loop, so one large GET or a PUT waiting for its
+// fsync does not delay the other connections of its loop.
+public class NioAggregationServer {
+    public static final int DEFAULT_IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_WORKER_THREADS = Integer.getInteger("weather.nio.workers",
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    private static final int READ_CHUNK_BYTES = 4096;  // Initial per-connection read buffer
+    private static final int MAX_REQUEST_BYTES = 1 << 20;  // Requests larger than 1 MB are rejected
+    private static final long IDLE_SWEEP_MILLIS = 1000;  // How often each loop checks for idle keep-alive connections
+
+    private final int port;
+    private final IoLoop[] ioLoops;
+    private ExecutorService workers;  // Builds answers off the I/O loops
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioAggregationServer(int port, int ioThreads) {
+        this.port = port;
+        this.ioLoops = new IoLoop[Math.max(1, ioThreads)];
+    }
+
+    // Bind the listening socket and start the acceptor and I/O threads
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(DEFAULT_WORKER_THREADS,
+                runnable -> new Thread(runnable, "nio-worker-" + workerCount.getAndIncrement()));
+
+        for (int i = 0; i < ioLoops.length; i++) {
+            ioLoops[i] = new IoLoop(Selector.open());
+            new Thread(ioLoops[i], "nio-io-" + i).start();
+        }
+        new Thread(this::acceptLoop, "nio-acceptor").start();
+
+        System.out.println("Aggregation Server (NIO, " + ioLoops.length + " I/O threads) started on port " + getLocalPort());
+    }
+
+    // Stop accepting, close every connection and let the I/O threads exit
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+        workers.shutdown();
+        for (IoLoop loop : ioLoops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    // Port actually bound (useful when started with port 0)
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Accept connections and distribute them round-robin across the I/O loops
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ioLoops[Math.abs(nextLoop.getAndIncrement() % ioLoops.length)].register(channel);
+            } catch (ClosedChannelException e) {
+                return;  // Server stopped
+            } catch (IOException e) {
+                System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // One selector thread; owns every connection registered with it
+    private final class IoLoop implements Runnable, Executor {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        // Called from the acceptor thread; the channel is registered on this loop's own thread
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // Run a task on this loop's thread, e.g. sending an answer a worker has built
+        @Override
+        public void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long nextSweep = System.currentTimeMillis() + IDLE_SWEEP_MILLIS;
+                while (running) {
+                    selector.select(IDLE_SWEEP_MILLIS);
+                    registerPendingChannels();
+                    runPendingTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        closeIdleConnections(now);
+                        nextSweep = now + IDLE_SWEEP_MILLIS;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("I/O loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing selector: " + e.getMessage());
+                }
+            }
+        }
+
+        // Close kept-alive connections that have been waiting for their next request too long, and send a
+        // heartbeat on event streams that have been quiet
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdleSince(now - AggregationServer.KEEP_ALIVE_TIMEOUT_MILLIS)) {
+                    connection.close();
+                } else if (connection.isQuietStreamSince(now - StationEventStream.HEARTBEAT_MILLIS)) {
+                    connection.sendHeartbeat();
+                }
+            }
+        }
+
+        private void runPendingTasks() {
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(channel, this, workers);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    // Per-connection state: a growable read buffer, the pending response and keep-alive bookkeeping
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final Executor loop;  // The I/O loop owning this connection
+        private final Executor workers;  // Builds this connection's answers
+        private final String contentServer;
+        private final HttpRequestParser request = new HttpRequestParser();  // Parses each request in readBuffer
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_CHUNK_BYTES);
+        private ByteBuffer writeBuffer;
+        private int consumed;  // Bytes of readBuffer taken by the request being answered
+        private int served;  // Requests answered on this connection
+        private boolean keepAlive;  // Whether to wait for another request once the response is written
+        private boolean awaitingAnswer;  // A worker or a long-poll's change is due to answer; not idle, and not reading
+        private StationEventStream.Subscription subscription;  // Set once the connection carries the event stream
+        private ByteBuffer[] eventBuffers;  // Frames being written to the event stream
+        private byte[] preparedBody;  // Compressed body to queue after the headers of the next response
+        private FileChannel fileBody;  // Snapshot file sent after the headers in writeBuffer
+        private long filePosition;  // Bytes of fileBody sent so far
+        private long fileLength;
+        private ChunkedJsonArray<?> chunkedBody;  // Streamed GET body sent after the headers in writeBuffer
+        private ByteBuffer chunk;  // Chunk of chunkedBody being written
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, Executor loop, Executor workers) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.workers = workers;
+            this.contentServer = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().toString();
+        }
+
+        void onReadable() throws IOException {
+            if (subscription != null) {
+                readBuffer.clear();  // Nothing more is expected from a stream client; only notice it leaving
+                if (channel.read(readBuffer) == -1) {
+                    close();
+                }
+                return;
+            }
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_REQUEST_BYTES) {
+                    keepAlive = false;
+                    respond("HTTP/1.1 413 Payload Too Large\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_REQUEST_BYTES));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+
+            String response = tryHandleRequest();
+            if (response != null) {
+                respond(response);
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (subscription != null && writeBuffer == null) {
+                sendEvents();
+                return;
+            }
+            channel.write(writeBuffer);
+            if (writeBuffer.hasRemaining()) {
+                return;
+            }
+            if (fileBody != null && !sendFileBody()) {
+                return;  // Socket full; continued on OP_WRITE
+            }
+            if (chunkedBody != null && !sendChunkedBody()) {
+                return;
+            }
+            if (subscription != null) {
+                writeBuffer = null;  // Stream headers are out; the frames follow
+                sendEvents();
+                return;
+            }
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            // Drop the answered request and serve any pipelined request already buffered
+            lastActive = System.currentTimeMillis();
+            writeBuffer = null;
+            readBuffer.flip();
+            readBuffer.position(consumed);
+            readBuffer.compact();
+            consumed = 0;
+            key.interestOps(SelectionKey.OP_READ);
+
+            String response = tryHandleRequest();
+            if (response != null) {
+                respond(response);
+            }
+        }
+
+        // True when the connection is waiting for a request and has not seen traffic since the cutoff
+        boolean isIdleSince(long cutoff) {
+            return !awaitingAnswer && subscription == null && writeBuffer == null && lastActive < cutoff;
+        }
+
+        // True when the connection carries the event stream and has written nothing since the cutoff
+        boolean isQuietStreamSince(long cutoff) {
+            return subscription != null && writeBuffer == null && eventBuffers == null && lastActive < cutoff;
+        }
+
+        // Parse the buffered bytes; returns the response once a complete request has arrived, null otherwise
+        private String tryHandleRequest() {
+            byte[] bytes = readBuffer.array();
+            int length = readBuffer.position();
+
+            int bodyStart;
+            try {
+                bodyStart = request.parse(bytes, 0, length);  // Blank lines before the request line are skipped
+            } catch (ProtocolException e) {
+                keepAlive = false;
+                return "HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+            }
+            if (bodyStart < 0) {
+                return null;  // Headers not complete yet
+            }
+            String method = request.method();
+            String path = request.path();
+            Map<String, String> headers = request.headers();  // Stays valid until answered: nothing is read meanwhile
+
+            int contentLength = "PUT".equalsIgnoreCase(method) ? request.contentLength() : 0;
+            if (contentLength > MAX_REQUEST_BYTES) {
+                keepAlive = false;
+                return "HTTP/1.1 413 Payload Too Large\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+            }
+            if (length - bodyStart < contentLength) {
+                return null;  // Body not complete yet
+            }
+            String body = new String(bytes, bodyStart, contentLength, StandardCharsets.UTF_8);
+            consumed = bodyStart + contentLength;
+            served++;
+            keepAlive = request.keepAlive() && served < AggregationServer.MAX_REQUESTS_PER_CONNECTION;
+
+            System.out.println("Received request: " + request.requestLine());
+            if (AggregationServer.isEventStreamRequest(method, path)) {
+                keepAlive = false;
+                subscription = AggregationServer.eventStream.subscribe(AggregationServer.lastEventId(headers),
+                        () -> loop.execute(this::resumeEvents));
+                return AggregationServer.eventStreamResponse(request.lamportClock());
+            }
+            // Stop reading until the answer is sent; a long-poll GET is answered once its change or wait's end arrives
+            awaitingAnswer = true;
+            key.interestOps(0);
+            long lamportClock = request.lamportClock();
+            AggregationServer.whenReady(method, path)
+                    .whenComplete((ignored, failure) -> dispatch(method, path, headers, body, lamportClock, contentLength));
+            return null;
+        }
+
+        // A built answer: the response headers (or whole response) with its Connection headers, and the body to
+        // send after them for a GET answered with a compressed body, from the snapshot file or in chunks
+        private static final class Answer {
+            final String response;
+            final AggregationServer.PreparedResponse prepared;
+
+            Answer(String response, AggregationServer.PreparedResponse prepared) {
+                this.response = response;
+                this.prepared = prepared;
+            }
+        }
+
+        // Build the answer on a worker and send it from this connection's loop. A PUT's answer completes on the
+        // thread that commits it, so neither a worker nor the loop waits for the fsync.
+        private void dispatch(String method, String path, Map<String, String> headers, String body, long lamportClock,
+                              int contentLength) {
+            try {
+                workers.execute(() -> answer(method, path, headers, body, lamportClock, contentLength)
+                        .thenAccept(answer -> loop.execute(() -> deliver(answer))));
+            } catch (RejectedExecutionException e) {
+                loop.execute(this::close);  // Server stopping
+            }
+        }
+
+        // Runs on a worker; reads only fields that stay fixed until the answer is delivered
+        private CompletableFuture<Answer> answer(String method, String path, Map<String, String> headers, String body,
+                                                 long lamportClock, int contentLength) {
+            try {
+                AggregationServer.PreparedResponse prepared = AggregationServer.preparedResponse(method, path, headers, lamportClock);
+                if (prepared != null) {
+                    return CompletableFuture.completedFuture(answerOf(prepared.head, prepared));
+                }
+                return AggregationServer.handleRequestAsync(method, path, headers, body, contentServer, lamportClock, contentLength)
+                        .handle((response, failure) -> answerOf(failure == null ? response
+                                : AggregationServer.statusResponse("HTTP/1.1 500 Internal Server Error"), null));
+            } catch (RuntimeException e) {
+                return CompletableFuture.completedFuture(
+                        answerOf(AggregationServer.statusResponse("HTTP/1.1 500 Internal Server Error"), null));
+            }
+        }
+
+        private Answer answerOf(String response, AggregationServer.PreparedResponse prepared) {
+            return new Answer(AggregationServer.withConnectionHeaders(response, keepAlive,
+                    AggregationServer.MAX_REQUESTS_PER_CONNECTION - served), prepared);
+        }
+
+        // Send a built answer; runs on the owning loop
+        private void deliver(Answer answer) {
+            awaitingAnswer = false;
+            AggregationServer.PreparedResponse prepared = answer.prepared;
+            if (!key.isValid()) {
+                if (prepared != null && prepared.file != null) {
+                    closeQuietly(prepared.file);  // Closed while the answer was built
+                }
+                return;
+            }
+            if (prepared != null) {
+                preparedBody = prepared.body;
+                fileBody = prepared.file;
+                filePosition = 0;
+                fileLength = prepared.length;
+                chunkedBody = prepared.chunks;
+            }
+            try {
+                respond(answer.response);
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        // Write the event stream's new frames until none are left or the socket is full (then resumed on OP_WRITE).
+        // A client that reads slowly stays behind in the ring and is caught up from the change log later.
+        private void sendEvents() throws IOException {
+            while (true) {
+                if (eventBuffers == null) {
+                    List<byte[]> frames = subscription.poll();
+                    if (frames.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    eventBuffers = new ByteBuffer[frames.size()];
+                    for (int i = 0; i < eventBuffers.length; i++) {
+                        eventBuffers[i] = ByteBuffer.wrap(frames.get(i));  // A view of the shared frame, not a copy
+                    }
+                }
+                channel.write(eventBuffers);
+                lastActive = System.currentTimeMillis();
+                if (eventBuffers[eventBuffers.length - 1].hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                eventBuffers = null;
+            }
+        }
+
+        // Comment line on a quiet stream, so a client that has gone away is noticed; runs on the owning loop
+        void sendHeartbeat() {
+            eventBuffers = new ByteBuffer[] { ByteBuffer.wrap(StationEventStream.HEARTBEAT) };
+            resumeEvents();
+        }
+
+        // Frames were published; runs on the owning loop
+        private void resumeEvents() {
+            if (!key.isValid() || writeBuffer != null) {
+                return;  // Closed, or still writing the stream headers (sendEvents follows them)
+            }
+            try {
+                sendEvents();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        // Send as much of the snapshot file as the socket takes; true once all of it is sent and the file closed
+        private boolean sendFileBody() throws IOException {
+            while (filePosition < fileLength) {
+                long sent = fileBody.transferTo(filePosition, fileLength - filePosition, channel);
+                if (sent == 0) {
+                    return false;
+                }
+                filePosition += sent;
+                lastActive = System.currentTimeMillis();
+            }
+            fileBody.close();
+            fileBody = null;
+            return true;
+        }
+
+        // Encode and send chunks of the streamed body as the socket takes them; true once the last chunk is sent.
+        // Only one chunk is encoded ahead of the socket, so a slow client holds one buffer, not the whole body.
+        private boolean sendChunkedBody() throws IOException {
+            while (true) {
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = chunkedBody.nextChunk();
+                    if (chunk == null) {
+                        chunkedBody = null;  // Its buffer goes with it
+                        return true;
+                    }
+                }
+                channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    return false;
+                }
+                lastActive = System.currentTimeMillis();
+            }
+        }
+
+        // Queue the response and switch the key to write interest
+        private void respond(String response) throws IOException {
+            byte[] head = response.getBytes(StandardCharsets.UTF_8);
+            if (preparedBody != null) {
+                writeBuffer = ByteBuffer.allocate(head.length + preparedBody.length);
+                writeBuffer.put(head).put(preparedBody).flip();
+                preparedBody = null;  // The cached body is shared; only its bytes are copied
+            } else {
+                writeBuffer = ByteBuffer.wrap(head);
+            }
+            key.interestOps(0);
+            onWritable();  // Clears writeBuffer once a kept-alive or streaming response is fully written
+            if (writeBuffer != null && (writeBuffer.hasRemaining() || fileBody != null || chunkedBody != null) && key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (subscription != null) {
+                subscription.close();
+            }
+            if (fileBody != null) {
+                try {
+                    fileBody.close();
+                } catch (IOException e) {
+                    // Only a read handle; nothing was written through it
+                }
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing useful to do; the peer is already gone
+        }
+    }
+}
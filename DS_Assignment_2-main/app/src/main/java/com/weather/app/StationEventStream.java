@@ -0,0 +1,215 @@
+package com.weather.app;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Server-Sent Events feed of station changes, served on GET /weather/stream.
+// One publisher thread follows the ChangeLog and encodes every change once into an SSE frame (id: the change's
+// Lamport clock, event: update or expire, data: the station JSON), appended to a fixed ring shared by all
+// subscribers. A subscriber only holds a cursor into the ring, so fanning a frame out copies nothing.
+// Frames enter the ring in clock order; several changes to one station between two publisher passes become one
+// frame carrying the latest. A subscriber that falls a whole ring behind (a slow consumer) has lost frames: it is
+// caught up from the ChangeLog instead, one frame per station changed after the last clock it was sent, and then
+// rejoins the ring. A client reconnecting with Last-Event-ID resumes the same way.
+public class StationEventStream {
+    static final int DEFAULT_CAPACITY = Integer.getInteger("weather.stream.bufferFrames", 1024);  // Frames kept in the ring
+    static final long HEARTBEAT_MILLIS = 15_000;  // Comment line sent on a quiet stream, so dead clients are noticed
+    static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // One encoded event and its place in the ring
+    private static final class Frame {
+        final long sequence;
+        final long clock;
+        final byte[] bytes;
+
+        Frame(long sequence, long clock, byte[] bytes) {
+            this.sequence = sequence;
+            this.clock = clock;
+            this.bytes = bytes;
+        }
+    }
+
+    private final ChangeLog changeLog;
+    private final Map<String, JsonObject> stations;
+    private final int capacity;
+    private final AtomicReferenceArray<Frame> ring;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile long published;  // Frames ever appended; frame n sits in slot n % capacity
+    private volatile long publishedThrough;  // Every change at or below this clock has reached the ring
+    private Thread publisher;  // Started by the first subscriber; guarded by this
+
+    public StationEventStream(ChangeLog changeLog, Map<String, JsonObject> stations, int capacity) {
+        this.changeLog = changeLog;
+        this.stations = stations;
+        this.capacity = Math.max(1, capacity);
+        this.ring = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    // Start following the stream. The first frames bring the subscriber up to date from lastEventId (0 for the
+    // current state of every station); onPublish, if given, runs on the publisher thread whenever frames are added.
+    public Subscription subscribe(long lastEventId, Runnable onPublish) {
+        startPublisher();
+        return new Subscription(lastEventId, onPublish);
+    }
+
+    // Number of open subscriptions that asked to be told about new frames
+    public int listenerCount() {
+        return listeners.size();
+    }
+
+    // Frames appended so far
+    public long publishedCount() {
+        return published;
+    }
+
+    // Clock of the last ChangeLog delta the publisher has appended
+    public long publishedThrough() {
+        return publishedThrough;
+    }
+
+    // A reader of the stream; not thread-safe, each is used by the one thread serving its connection
+    public final class Subscription {
+        private final Runnable listener;
+        private long cursor;  // Next ring sequence to send
+        private long sentClock;  // Every change at or below this clock has been sent (or superseded by a later frame)
+        private boolean caughtUp;
+
+        private Subscription(long lastEventId, Runnable listener) {
+            this.sentClock = Math.max(0, lastEventId);
+            this.listener = listener;
+            if (listener != null) {
+                listeners.add(listener);
+            }
+        }
+
+        // Frames to send next, oldest first; empty if there is nothing new
+        public List<byte[]> poll() {
+            List<byte[]> frames = new ArrayList<>();
+            if (!caughtUp) {
+                catchUp(frames);
+                caughtUp = true;
+            }
+            long end = published;
+            if (cursor < end - capacity) {
+                catchUp(frames);  // Frames this subscriber never sent have been overwritten
+                end = published;
+            }
+            for (; cursor < end; cursor++) {
+                Frame frame = ring.get((int) (cursor % capacity));
+                if (frame == null || frame.sequence != cursor) {
+                    catchUp(frames);  // Overwritten while we were reading
+                    break;
+                }
+                if (frame.clock > sentClock) {  // Frames at or below it were covered by a catch-up
+                    frames.add(frame.bytes);
+                    sentClock = frame.clock;
+                }
+            }
+            return frames;
+        }
+
+        // Block until frames newer than the cursor are published or the timeout passes; true if there are some
+        public boolean awaitFrames(long timeoutMillis) throws InterruptedException {
+            return awaitPublishedBeyond(cursor, timeoutMillis);
+        }
+
+        public void close() {
+            if (listener != null) {
+                listeners.remove(listener);
+            }
+        }
+
+        // Encode every station changed after sentClock from the ChangeLog and continue from the ring's head.
+        // The head is read first, so a ring frame it misses is already in the delta.
+        private void catchUp(List<byte[]> frames) {
+            long head = published;
+            ChangeLog.Delta delta = changeLog.since(sentClock);
+            for (Frame frame : encode(delta)) {
+                frames.add(frame.bytes);
+            }
+            cursor = head;
+            sentClock = Math.max(sentClock, delta.highWater);
+        }
+    }
+
+    private synchronized void startPublisher() {
+        if (publisher != null) {
+            return;
+        }
+        long mark = changeLog.highWater();  // Taken before the first subscriber's catch-up, which covers anything older
+        publisher = new Thread(() -> publishLoop(mark), "station-events");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    // Wait for each batch of changes, encode it once and append it to the ring
+    private void publishLoop(long mark) {
+        while (true) {
+            changeLog.nextChangeAfter(mark).join();
+            ChangeLog.Delta delta = changeLog.since(mark);
+            List<Frame> frames = encode(delta);
+            for (Frame frame : frames) {
+                long sequence = published;
+                ring.set((int) (sequence % capacity), new Frame(sequence, frame.clock, frame.bytes));
+                published = sequence + 1;  // Only this thread appends
+            }
+            mark = delta.highWater;
+            publishedThrough = mark;
+            if (!frames.isEmpty()) {
+                synchronized (this) {
+                    notifyAll();
+                }
+                for (Runnable listener : listeners) {
+                    listener.run();
+                }
+            }
+        }
+    }
+
+    private synchronized boolean awaitPublishedBeyond(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (published <= sequence && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return published > sequence;
+    }
+
+    // Frames for a delta, oldest first. A station missing from the store expired after the delta was taken;
+    // its expiry frame follows. An incomplete delta becomes one reset frame holding every current station.
+    private List<Frame> encode(ChangeLog.Delta delta) {
+        List<Frame> frames = new ArrayList<>();
+        if (!delta.complete) {
+            JsonArray all = new JsonArray();
+            stations.values().forEach(all::add);
+            frames.add(new Frame(-1, delta.highWater, frame(delta.highWater, "reset", all.toString())));
+            return frames;
+        }
+        for (ChangeLog.Change change : delta.changes) {
+            if (change.removed) {
+                JsonObject expired = new JsonObject();
+                expired.addProperty("id", change.stationId);
+                frames.add(new Frame(-1, change.clock, frame(change.clock, "expire", expired.toString())));
+            } else {
+                JsonObject station = stations.get(change.stationId);
+                if (station != null) {
+                    frames.add(new Frame(-1, change.clock, frame(change.clock, "update", station.toString())));
+                }
+            }
+        }
+        return frames;
+    }
+
+    // One SSE event; compact JSON never spans lines, so a single data line carries it
+    static byte[] frame(long clock, String event, String data) {
+        return ("id: " + clock + "\nevent: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,175 @@
+package com.weather.app;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+// Append-only log of station records, used instead of rewriting the whole store on every PUT.
+// Each record is framed as [payload length: int][CRC32 of payload: int][payload: UTF-8 JSON object].
+// On startup the log is replayed in order (last record per station wins); a torn or corrupt tail,
+// e.g. from a crash in the middle of an append, is truncated back to the last intact record.
+// Appends go through a GroupCommitter, so concurrent PUTs share one write and one fsync.
+public class WriteAheadLog implements Closeable {
+    private static final int HEADER_BYTES = 8;  // Length + CRC
+    static final int MAX_RECORD_BYTES = 1 << 20;  // Larger lengths can only come from a corrupt header
+    private static final int COMPACT_MIN_RECORDS = 1024;  // Never compact logs smaller than this
+
+    private final Path path;
+    private FileChannel channel;
+    private long recordCount;  // Records in the log (or queued for it), including ones superseded by later PUTs
+    private final GroupCommitter<ByteBuffer> committer;
+
+    private WriteAheadLog(Path path, FileChannel channel, long recordCount) {
+        this.path = path;
+        this.channel = channel;
+        this.recordCount = recordCount;
+        this.committer = new GroupCommitter<>("wal-writer", this::writeBatch,
+                GroupCommitter.DEFAULT_WINDOW_MILLIS, GroupCommitter.DEFAULT_MAX_BATCH);
+    }
+
+    // Open (or create) the log and replay its records into the store
+    public static WriteAheadLog open(Path path, Map<String, JsonObject> store) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long validEnd = 0;
+        long records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] payload;
+            while ((payload = readPayload(in)) != null) {
+                JsonObject record = parseRecord(payload);
+                if (record == null) {
+                    break;
+                }
+                store.put(record.get("id").getAsString(), record);
+                validEnd += HEADER_BYTES + payload.length;
+                records++;
+            }
+        }
+
+        if (channel.size() > validEnd) {
+            System.out.println("Truncating " + (channel.size() - validEnd) + " bytes of incomplete or corrupt log tail");
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        return new WriteAheadLog(path, channel, records);
+    }
+
+    // Read one framed payload; null at end of log or at the first torn/corrupt frame
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return crc32(payload) == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;  // Clean end of log, or a frame cut short
+        }
+    }
+
+    // Decode a payload; null if the CRC matched but it is not a station record
+    private static JsonObject parseRecord(byte[] payload) {
+        try {
+            JsonObject record = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+            return record.has("id") ? record : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Queue one station record; the future completes once it is on disk, with true if it is the first record in the log.
+    // Records reach the file in the order append is called.
+    public synchronized CompletableFuture<Boolean> append(JsonObject record) {
+        boolean first = recordCount == 0;
+        recordCount++;
+        return committer.submit(frame(record)).thenApply(durable -> first);
+    }
+
+    // Called on the group-commit thread: write a batch of frames and force them to disk once
+    private synchronized void writeBatch(List<ByteBuffer> frames) throws IOException {
+        for (ByteBuffer frame : frames) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+        channel.force(false);
+    }
+
+    // True once superseded records dominate the log
+    public synchronized boolean needsCompaction(int liveRecords) {
+        return recordCount > Math.max(COMPACT_MIN_RECORDS, 4L * liveRecords);
+    }
+
+    // Rewrite the log with only the live records, replacing the old file atomically
+    public synchronized void compact(Collection<JsonObject> liveRecords) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".compact");
+        long records = 0;
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (JsonObject record : liveRecords) {
+                ByteBuffer frame = frame(record);
+                while (frame.hasRemaining()) {
+                    tempChannel.write(frame);
+                }
+                records++;
+            }
+            tempChannel.force(true);
+        }
+
+        channel.close();
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        recordCount = records;
+    }
+
+    // Records currently in the log
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    // Number of fsyncs issued for appended records
+    public long getBatchCount() {
+        return committer.getBatchCount();
+    }
+
+    // Commit anything still queued, then close the file
+    @Override
+    public void close() throws IOException {
+        try {
+            committer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer frame(JsonObject record) {
+        byte[] payload = record.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        frame.putInt(payload.length).putInt(crc32(payload)).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private static int crc32(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
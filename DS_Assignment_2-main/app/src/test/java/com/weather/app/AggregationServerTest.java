@@ -1,9 +1,17 @@
 package com.weather.app;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.jupiter.api.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -82,4 +90,319 @@ class AggregationServerTest {
 
         socket.close();
     }
+
+    @Test
+    void shouldServeSeveralRequestsOnOneKeepAliveConnection() throws IOException {
+        String jsonData = "{ \"id\": \"KA01\", \"name\": \"KeepAliveCity\", \"state\": \"SA\" }";
+
+        try (Socket socket = new Socket("localhost", 4571)) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            for (int i = 0; i < 3; i++) {
+                out.print("PUT /weather.json HTTP/1.1\r\n");
+                out.print("Connection: keep-alive\r\n");
+                out.print("Content-Length: " + jsonData.length() + "\r\n\r\n");
+                out.print(jsonData);
+                out.flush();
+
+                String status = in.readLine();
+                assertTrue(status.contains("201") || status.contains("200"));
+                String line;
+                boolean keptAlive = false;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    keptAlive |= line.equals("Connection: keep-alive");
+                }
+                assertTrue(keptAlive);
+            }
+        }
+    }
+
+    @Test
+    void shouldIgnorePutOlderThanTheStationsAppliedClock() {
+        String newer = "{ \"id\": \"ORD01\", \"name\": \"Newer\" }";
+        String older = "{ \"id\": \"ORD01\", \"name\": \"Older\" }";
+
+        String first = AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(newer, 10), newer, "/127.0.0.1");
+        String second = AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(older, 9), older, "/127.0.0.1");
+
+        assertTrue(first.startsWith("HTTP/1.1 201") || first.startsWith("HTTP/1.1 200"));
+        assertTrue(second.startsWith("HTTP/1.1 200"));  // Acknowledged, but not applied
+        assertEquals("Newer", AggregationServer.weatherDataStore.get("ORD01").get("name").getAsString());
+    }
+
+    @Test
+    void shouldApplyPutWithAMalformedLamportClockAsUnordered() {
+        String jsonData = "{ \"id\": \"ORD02\", \"name\": \"Unordered\" }";
+        Map<String, String> headers = putHeaders(jsonData, 0);
+        headers.put("Lamport-Clock", "soon");
+
+        String response = AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+
+        assertTrue(response.startsWith("HTTP/1.1 201") || response.startsWith("HTTP/1.1 200"), response);
+        assertEquals("Unordered", AggregationServer.weatherDataStore.get("ORD02").get("name").getAsString());
+    }
+
+    @Test
+    void shouldApplyBatchPutWithPerRecordStatus() {
+        String batch = "[{\"id\": \"B01\", \"name\": \"One\"}, {\"name\": \"No id\"}, {\"id\": \"B02\", \"name\": \"Two\"}]";
+        long clockBefore = AggregationServer.lamportClockInstance.getClock();
+
+        String response = AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(batch, 1), batch, "/127.0.0.1");
+
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        JsonArray statuses = JsonParser.parseString(response.substring(response.indexOf("\r\n\r\n") + 4)).getAsJsonArray();
+        assertEquals(3, statuses.size());
+        assertEquals(201, statuses.get(0).getAsJsonObject().get("status").getAsInt());
+        assertEquals(400, statuses.get(1).getAsJsonObject().get("status").getAsInt());
+        assertEquals(201, statuses.get(2).getAsJsonObject().get("status").getAsInt());
+        long first = statuses.get(0).getAsJsonObject().get("lamportClock").getAsLong();
+        assertEquals(first + 2, statuses.get(2).getAsJsonObject().get("lamportClock").getAsLong());  // One clock value per record
+        assertTrue(first > clockBefore);
+        assertEquals("Two", AggregationServer.weatherDataStore.get("B02").get("name").getAsString());
+    }
+
+    @Test
+    void shouldApplyNdjsonBatchPut() {
+        String batch = "{\"id\": \"N01\", \"name\": \"One\"}\n{\"id\": \"N02\", \"name\": \"Two\"}\n";
+        Map<String, String> headers = putHeaders(batch, 1);
+        headers.put("Content-Type", "application/x-ndjson");
+
+        String response = AggregationServer.handleRequest("PUT", "/weather.json", headers, batch, "/127.0.0.1");
+
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(AggregationServer.weatherDataStore.containsKey("N01"));
+        assertTrue(AggregationServer.weatherDataStore.containsKey("N02"));
+    }
+
+    @Test
+    void shouldReturnOnlyStationsChangedSinceTheGivenClock() {
+        String first = "{\"id\": \"D01\", \"name\": \"Before\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(first, 1), first, "/127.0.0.1");
+        JsonObject all = deltaBody(AggregationServer.handleRequest("GET", "/weather.json?since=0", new HashMap<>(), "", "/127.0.0.1"));
+        assertTrue(all.get("updated").toString().contains("\"D01\""));
+        long highWater = all.get("highWater").getAsLong();
+
+        String second = "{\"id\": \"D02\", \"name\": \"After\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(second, 1), second, "/127.0.0.1");
+        JsonObject delta = deltaBody(AggregationServer.handleRequest("GET", "/weather.json?since=" + highWater, new HashMap<>(), "", "/127.0.0.1"));
+
+        assertEquals(1, delta.getAsJsonArray("updated").size());
+        assertEquals("D02", delta.getAsJsonArray("updated").get(0).getAsJsonObject().get("id").getAsString());
+        assertEquals(0, delta.getAsJsonArray("removed").size());
+        assertTrue(delta.get("highWater").getAsLong() > highWater);
+        assertTrue(AggregationServer.handleRequest("GET", "/weather.json?since=abc", new HashMap<>(), "", "/127.0.0.1")
+                .startsWith("HTTP/1.1 400"));
+    }
+
+    @Test
+    void shouldAnswerLongPollGetOnChangeOrWhenTheWaitEnds() throws Exception {
+        long highWater = AggregationServer.changeLog.highWater();
+        CompletableFuture<Void> ready = AggregationServer.whenReady("GET", "/weather.json?since=" + highWater + "&wait=10000");
+        assertFalse(ready.isDone());
+
+        String station = "{\"id\": \"W01\", \"name\": \"Watched\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+        ready.get(1, TimeUnit.SECONDS);
+        JsonObject delta = deltaBody(AggregationServer.handleRequest("GET", "/weather.json?since=" + highWater + "&wait=10000",
+                new HashMap<>(), "", "/127.0.0.1"));
+        assertEquals("W01", delta.getAsJsonArray("updated").get(0).getAsJsonObject().get("id").getAsString());
+
+        long idleFrom = delta.get("highWater").getAsLong();
+        AggregationServer.whenReady("GET", "/weather.json?since=" + idleFrom + "&wait=50").get(5, TimeUnit.SECONDS);  // Ends unchanged
+        assertTrue(AggregationServer.handleRequest("GET", "/weather.json?wait=soon", new HashMap<>(), "", "/127.0.0.1")
+                .startsWith("HTTP/1.1 400"));
+    }
+
+    @Test
+    void shouldParkALongPollGetWithoutHoldingAConnectionThread() throws Exception {
+        try (Socket socket = new Socket("localhost", 4571)) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            long highWater = AggregationServer.changeLog.highWater();
+            out.print("GET /weather.json?since=" + highWater + "&wait=10000 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            out.flush();
+
+            Thread.sleep(200);  // Long enough for the GET to be read and parked
+            assertEquals(0, connectionThreadsWaitingOnAFuture(), "No handler thread blocks while the GET waits");
+
+            String station = "{\"id\": \"W02\", \"name\": \"Parked\"}";
+            AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+            assertTrue(in.readLine().contains("200"));
+            String line;
+            while ((line = in.readLine()) != null && !line.contains("W02")) {
+                // Skip the headers up to the delta body
+            }
+            assertNotNull(line, "The parked GET is answered with the change");
+        }
+    }
+
+    // Threads of the thread-per-connection engine blocked on a CompletableFuture, as a waiting long-poll would be
+    private static long connectionThreadsWaitingOnAFuture() {
+        return Thread.getAllStackTraces().values().stream()
+                .filter(stack -> Arrays.stream(stack).anyMatch(frame -> frame.getClassName().endsWith("AggregationServer$ConnectionHandler")))
+                .filter(stack -> Arrays.stream(stack).anyMatch(frame -> frame.getClassName().equals(CompletableFuture.class.getName())))
+                .count();
+    }
+
+    @Test
+    void shouldStreamEachAppliedPutAsAServerSentEvent() throws IOException {
+        try (Socket socket = new Socket("localhost", 4571)) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.print("GET /weather/stream HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            out.flush();
+
+            assertTrue(in.readLine().contains("200"));
+            String header;
+            boolean eventStream = false;
+            while (!(header = in.readLine()).isEmpty()) {
+                eventStream |= header.equals("Content-Type: text/event-stream");
+            }
+            assertTrue(eventStream);
+
+            String station = "{\"id\": \"SSE01\", \"name\": \"Streamed\"}";
+            long appliedAt = AggregationServer.changeLog.highWater();
+            AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+
+            String id = null;
+            String line;
+            while ((line = in.readLine()) != null && !(line.startsWith("data: ") && line.contains("SSE01"))) {
+                if (line.startsWith("id: ")) {
+                    id = line.substring("id: ".length());
+                }
+            }
+            assertNotNull(line, "The update arrives on the open stream");
+            assertTrue(Long.parseLong(id) > appliedAt, "Its event id is the Lamport clock of the change");
+        }
+    }
+
+    @Test
+    void shouldAnswerConditionalGetWithNotModifiedUntilTheDataChanges() {
+        String station = "{\"id\": \"E01\", \"name\": \"Tagged\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+
+        String full = AggregationServer.handleRequest("GET", "/weather.json", new HashMap<>(), "", "/127.0.0.1");
+        String stationGet = AggregationServer.handleRequest("GET", "/weather/E01", new HashMap<>(), "", "/127.0.0.1");
+        assertTrue(stationGet.startsWith("HTTP/1.1 200") && stationGet.contains("\"Tagged\""));
+
+        Map<String, String> conditional = new HashMap<>();
+        conditional.put("If-None-Match", header(full, "ETag"));
+        String unchanged = AggregationServer.handleRequest("GET", "/weather.json", conditional, "", "/127.0.0.1");
+        assertTrue(unchanged.startsWith("HTTP/1.1 304"));
+        assertTrue(unchanged.endsWith("\r\n\r\n"), "A 304 carries no body");
+
+        Map<String, String> stationConditional = new HashMap<>();
+        stationConditional.put("If-None-Match", "W/" + header(stationGet, "ETag"));
+        assertTrue(AggregationServer.handleRequest("GET", "/weather/E01", stationConditional, "", "/127.0.0.1").startsWith("HTTP/1.1 304"));
+        assertTrue(AggregationServer.handleRequest("GET", "/weather/E-missing", stationConditional, "", "/127.0.0.1").startsWith("HTTP/1.1 404"));
+
+        String updated = "{\"id\": \"E01\", \"name\": \"Retagged\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(updated, 1), updated, "/127.0.0.1");
+        assertTrue(AggregationServer.handleRequest("GET", "/weather.json", conditional, "", "/127.0.0.1").startsWith("HTTP/1.1 200"));
+        assertTrue(AggregationServer.handleRequest("GET", "/weather/E01", stationConditional, "", "/127.0.0.1").contains("\"Retagged\""));
+    }
+
+    @Test
+    void shouldRouteStationGetsToTheirCachedEncoding() {
+        for (String id : new String[] { "R01", "R02" }) {
+            String station = "{\"id\": \"" + id + "\", \"name\": \"Routed " + id + "\"}";
+            AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+        }
+
+        String single = AggregationServer.handleRequest("GET", "/weather/R01", new HashMap<>(), "", "/127.0.0.1");
+        JsonArray one = JsonParser.parseString(single.substring(single.indexOf("\r\n\r\n") + 4)).getAsJsonArray();
+        assertEquals(1, one.size());
+        assertEquals("Routed R01", one.get(0).getAsJsonObject().get("name").getAsString());
+        assertSame(AggregationServer.encodedStations.get("R01"), AggregationServer.encodedStations.get("R01"),
+                "Unchanged stations are not re-encoded");
+
+        String many = AggregationServer.handleRequest("GET", "/weather?ids=R02,R-missing,R01", new HashMap<>(), "", "/127.0.0.1");
+        JsonArray both = JsonParser.parseString(many.substring(many.indexOf("\r\n\r\n") + 4)).getAsJsonArray();
+        assertEquals(2, both.size(), "Unknown ids are left out");
+        assertEquals("R02", both.get(0).getAsJsonObject().get("id").getAsString());
+        assertFalse(many.contains("\r\nETag: "), "A response naming an unknown station is not tagged");
+
+        assertTrue(AggregationServer.handleRequest("GET", "/weather?ids=R-missing", new HashMap<>(), "", "/127.0.0.1").startsWith("HTTP/1.1 404"));
+        assertTrue(AggregationServer.handleRequest("GET", "/weather?ids=,", new HashMap<>(), "", "/127.0.0.1").startsWith("HTTP/1.1 400"));
+
+        String updated = "{\"id\": \"R01\", \"name\": \"Rerouted\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(updated, 1), updated, "/127.0.0.1");
+        assertTrue(AggregationServer.handleRequest("GET", "/weather/R01", new HashMap<>(), "", "/127.0.0.1").contains("\"Rerouted\""));
+    }
+
+    @Test
+    void shouldShareOneCompressedBodyPerStoreVersion() throws IOException {
+        String station = "{\"id\": \"Z01\", \"name\": \"Zipped\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Encoding", "gzip, deflate");
+
+        AggregationServer.PreparedResponse first = AggregationServer.preparedResponse("GET", "/weather.json", headers, StationClocks.UNORDERED);
+        AggregationServer.PreparedResponse second = AggregationServer.preparedResponse("GET", "/weather.json", headers, StationClocks.UNORDERED);
+        assertTrue(first.head.startsWith("HTTP/1.1 200"));
+        assertEquals("gzip", header(first.head, "Content-Encoding"));
+        assertEquals(String.valueOf(first.body.length), header(first.head, "Content-Length"));
+        assertSame(first.body, second.body, "The body is compressed once per version");
+        try (Reader in = new InputStreamReader(ContentEncoding.decode(new ByteArrayInputStream(first.body), "gzip"), "UTF-8")) {
+            JsonArray stations = JsonParser.parseReader(in).getAsJsonArray();
+            assertTrue(stations.toString().contains("\"Zipped\""));
+        }
+
+        headers.put("If-None-Match", header(first.head, "ETag"));
+        assertTrue(AggregationServer.preparedResponse("GET", "/weather.json", headers, StationClocks.UNORDERED).head.startsWith("HTTP/1.1 304"));
+        headers.put("Accept-Encoding", "deflate");
+        AggregationServer.PreparedResponse deflated = AggregationServer.preparedResponse("GET", "/weather.json", headers, StationClocks.UNORDERED);
+        assertEquals("deflate", header(deflated.head, "Content-Encoding"), "Each coding has its own ETag");
+
+        headers.remove("Accept-Encoding");
+        assertNull(AggregationServer.preparedResponse("GET", "/weather.json", headers, StationClocks.UNORDERED), "Identity GETs are built as before");
+    }
+
+    @Test
+    void shouldTagTheCompactSnapshotWeaklyAndMatchItOnThePrettyPrintedPath() throws IOException {
+        String station = "{\"id\": \"W01\", \"name\": \"Snapshot\"}";
+        AggregationServer.handleRequest("PUT", "/weather.json", putHeaders(station, 1), station, "/127.0.0.1");
+        Map<String, String> headers = new HashMap<>();
+
+        AggregationServer.snapshotGets = true;
+        String snapshotTag;
+        try {
+            AggregationServer.PreparedResponse snapshot = AggregationServer.preparedResponse("GET", "/weather.json", headers, StationClocks.UNORDERED);
+            assertNotNull(snapshot.file, "Answered from the committed file");
+            snapshot.file.close();
+            snapshotTag = header(snapshot.head, "ETag");
+        } finally {
+            AggregationServer.snapshotGets = false;
+        }
+
+        String full = AggregationServer.handleRequest("GET", "/weather.json", headers, "", "/127.0.0.1");
+        assertEquals("W/" + header(full, "ETag"), snapshotTag, "Same data in other bytes, so only a weak match");
+        headers.put("If-None-Match", snapshotTag);
+        assertTrue(AggregationServer.handleRequest("GET", "/weather.json", headers, "", "/127.0.0.1").startsWith("HTTP/1.1 304"));
+    }
+
+    private static String header(String response, String name) {
+        for (String line : response.substring(0, response.indexOf("\r\n\r\n")).split("\r\n")) {
+            if (line.startsWith(name + ": ")) {
+                return line.substring(name.length() + 2);
+            }
+        }
+        return fail("No " + name + " header in " + response);
+    }
+
+    private static JsonObject deltaBody(String response) {
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        return JsonParser.parseString(response.substring(response.indexOf("\r\n\r\n") + 4)).getAsJsonObject();
+    }
+
+    private static Map<String, String> putHeaders(String body, long lamportClock) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", String.valueOf(body.length()));
+        headers.put("Lamport-Clock", String.valueOf(lamportClock));
+        return headers;
+    }
 }
@@ -0,0 +1,83 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedJsonArrayTest {
+
+    @Test
+    void shouldSplitTheArrayIntoChunksOfAtMostTheBufferSize() {
+        ChunkedJsonArray<String> array = new ChunkedJsonArray<>(
+                Arrays.asList("{\"id\":\"A\"}", "{\"id\":\"B\",\"name\":\"Br\u00fcssel\"}", "{}").iterator(), s -> s, 8);
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        int chunks = 0;
+        for (ByteBuffer chunk = array.nextChunk(); chunk != null; chunk = array.nextChunk()) {
+            byte[] framed = new byte[chunk.remaining()];
+            chunk.get(framed);
+            String frame = new String(framed, StandardCharsets.ISO_8859_1);
+            int length = Integer.parseInt(frame.substring(0, frame.indexOf("\r\n")), 16);
+            assertTrue(length <= 8, "A chunk never exceeds the buffer");
+            assertTrue(frame.endsWith("\r\n"));
+            json.write(framed, frame.indexOf("\r\n") + 2, length);
+            chunks++;
+            if (length == 0) {
+                assertEquals("0\r\n\r\n", frame);
+                assertNull(array.nextChunk(), "Nothing follows the last chunk");
+                break;
+            }
+        }
+        assertTrue(chunks > 5, "Elements larger than the buffer are split");
+        assertEquals("[{\"id\":\"A\"},{\"id\":\"B\",\"name\":\"Br\u00fcssel\"},{}]", new String(json.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void shouldCompressTheArrayAcrossChunks() throws IOException {
+        List<String> stations = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            stations.add("{\"id\":\"S" + i + "\",\"name\":\"Station " + i + "\"}");
+        }
+        ChunkedJsonArray<String> array = new ChunkedJsonArray<>(stations.iterator(), s -> s, 64, ContentEncoding.GZIP);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        int chunks = 0;
+        for (ByteBuffer chunk = array.nextChunk(); chunk != null; chunk = array.nextChunk()) {
+            String frame = StandardCharsets.ISO_8859_1.decode(chunk).toString();
+            int length = Integer.parseInt(frame.substring(0, frame.indexOf("\r\n")), 16);
+            assertTrue(length <= 64, "A chunk never exceeds the buffer");
+            compressed.write(frame.substring(frame.indexOf("\r\n") + 2).getBytes(StandardCharsets.ISO_8859_1), 0, length);
+            chunks++;
+        }
+        assertTrue(chunks > 2, "The compressed body is sent in several chunks");
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try (InputStream in = ContentEncoding.decode(new ByteArrayInputStream(compressed.toByteArray()), ContentEncoding.GZIP)) {
+            byte[] buffer = new byte[1024];
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                json.write(buffer, 0, read);
+            }
+        }
+        assertEquals("[" + String.join(",", stations) + "]", new String(json.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void shouldSendAnEmptyArrayThenTheLastChunk() {
+        ChunkedJsonArray<String> array = new ChunkedJsonArray<>(Collections.<String>emptyIterator(), s -> s);
+
+        assertEquals("2\r\n[]\r\n", StandardCharsets.US_ASCII.decode(array.nextChunk()).toString());
+        assertEquals("0\r\n\r\n", StandardCharsets.US_ASCII.decode(array.nextChunk()).toString());
+        assertNull(array.nextChunk());
+    }
+}
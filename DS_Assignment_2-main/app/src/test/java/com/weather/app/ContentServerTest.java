@@ -5,6 +5,7 @@ import org.junit.jupiter.api.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -85,4 +86,48 @@ class ContentServerTest {
         assertNotNull(jsonData);
         assertTrue(jsonData.contains("\"id\": \"001\""));
     }
+
+    @Test
+    void shouldCountTheBodyInUtf8BytesInContentLength() {
+        String jsonData = "{\"id\":\"001\",\"name\":\"K\u00f8benhavn\"}";  // One char, two bytes
+
+        String request = ContentServer.buildHttpPutRequest(jsonData);
+
+        assertTrue(request.contains("Content-Length: " + (jsonData.length() + 1) + "\r\n"), request);
+    }
+
+    @Test
+    void shouldSendSeveralStationsAsOneBatch() throws IOException {
+        String testData = "id:001\nname:FirstCity\nid:002\nname:SecondCity\n";
+        File tempFile = File.createTempFile("weatherBatch", ".txt");
+        try (FileWriter writer = new FileWriter(tempFile)) {
+            writer.write(testData);
+        }
+
+        assertEquals(2, ContentServer.readWeatherRecordsFromFile(tempFile.getAbsolutePath()).size());
+        String body = ContentServer.readPutBodyFromFile(tempFile.getAbsolutePath());
+        assertTrue(body.startsWith("[") && body.contains("\"name\": \"FirstCity\"") && body.contains("\"name\": \"SecondCity\""));
+    }
+
+    @Test
+    void shouldReadEachResponseBodyByContentLengthOnAKeptAliveConnection() throws IOException {
+        String statuses = "[{\"index\":0,\"id\":\"K\u00f8ge\",\"status\":201},{\"index\":1,\"status\":400,\"error\":\"no id\"},"
+                + "{\"index\":2,\"id\":\"002\",\"status\":200,\"stale\":true}]";
+        byte[] body = statuses.getBytes("UTF-8");
+        String first = "HTTP/1.1 200 OK\r\nConnection: keep-alive\r\nContent-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\nLamport-Clock: 7\r\n\r\n";
+        String second = "HTTP/1.1 201 Created\r\nConnection: close\r\nLamport-Clock: 9\r\n\r\n";
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(first.getBytes("UTF-8"));
+        wire.write(body);
+        wire.write(second.getBytes("UTF-8"));
+        InputStream in = new ByteArrayInputStream(wire.toByteArray());
+
+        assertTrue(ContentServer.processServerResponse(in));
+        assertFalse(ContentServer.processServerResponse(in));  // Starts at the second status line, not mid-body
+        assertEquals(-1, in.read());
+
+        assertEquals(Arrays.asList("record 0 (K\u00f8ge): 201", "record 1: 400 - no id", "record 2 (002): 200 stale"),
+                ContentServer.describeRecordStatuses(statuses));
+    }
 }
@@ -0,0 +1,65 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiryIndexTest {
+
+    @Test
+    void shouldReturnOnlyKeysThatAreDue() {
+        ExpiryIndex<String> index = new ExpiryIndex<>();
+        index.schedule("A", 1_000);
+        index.schedule("B", 2_000);
+        index.schedule("C", 3_000);
+
+        assertEquals(Collections.emptyList(), index.pollExpired(999));
+        assertEquals(Arrays.asList("A", "B"), index.pollExpired(2_000));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void shouldUseLatestDeadlineWhenRescheduled() {
+        ExpiryIndex<String> index = new ExpiryIndex<>();
+        index.schedule("A", 1_000);
+        index.schedule("A", 5_000);  // A fresh PUT pushes the deadline out
+
+        assertTrue(index.pollExpired(1_000).isEmpty());
+        assertEquals(Collections.singletonList("A"), index.pollExpired(5_000));
+    }
+
+    @Test
+    void shouldIgnoreCancelledKeys() {
+        ExpiryIndex<String> index = new ExpiryIndex<>();
+        index.schedule("A", 1_000);
+        index.cancel("A");
+
+        assertTrue(index.pollExpired(10_000).isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void shouldStayBoundedUnderRepeatedRescheduling() {
+        ExpiryIndex<String> index = new ExpiryIndex<>();
+        for (int i = 0; i < 10_000; i++) {
+            index.schedule("S" + (i % 10), i);
+        }
+        List<String> expired = index.pollExpired(Long.MAX_VALUE);
+        assertEquals(10, expired.size());
+    }
+
+    @Test
+    void shouldWakeAtTheNextDeadline() throws InterruptedException {
+        ExpiryIndex<String> index = new ExpiryIndex<>();
+        long start = System.currentTimeMillis();
+        index.schedule("A", start + 200);
+
+        assertEquals(Collections.singletonList("A"), index.awaitExpired());
+        long waited = System.currentTimeMillis() - start;
+        assertTrue(waited >= 200 && waited < 2_000, "Woke after " + waited + " ms");
+    }
+}
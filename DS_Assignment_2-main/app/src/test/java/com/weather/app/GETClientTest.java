@@ -164,4 +164,96 @@ class GETClientTest {
         String output = outputStream.toString();
         assertTrue(output.contains("No weather data available."));  // Ensure it handles empty data properly
     }
+
+    @Test
+    void testGETClientWatchPrintsChangesAndReturnsHighWater() throws IOException, InterruptedException {
+        // Start a mock server on port 8084 that answers a long-poll GET with one change
+        String[] requestLine = new String[1];
+        mockServerThread = new Thread(() -> {
+            try {
+                mockServerSocket = new ServerSocket(8084);
+                while (true) {
+                    Socket clientSocket = mockServerSocket.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+
+                    requestLine[0] = in.readLine();
+                    String jsonResponse = "{\"since\":7,\"highWater\":12,\"updated\":[{\"id\":\"001\",\"name\":\"Test Station\"}],\"removed\":[\"002\"]}";
+                    out.println("HTTP/1.1 200 OK");
+                    out.println("Content-Type: application/json");
+                    out.println("Content-Length: " + jsonResponse.getBytes(StandardCharsets.UTF_8).length);
+                    out.println();
+                    out.println(jsonResponse);
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        mockServerThread.start();
+
+        // Wait a short time to ensure the server starts
+        Thread.sleep(500);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream));  // Redirect output to capture it
+
+        long highWater = GETClient.watchOnce("localhost", 8084, null, 7);
+
+        System.setOut(originalOut);  // Restore original System.out
+
+        String output = outputStream.toString();
+        assertEquals(12, highWater);
+        assertTrue(requestLine[0].contains("since=7&wait="));
+        assertTrue(output.contains("Station ID: 001"));
+        assertTrue(output.contains("Station expired: 002"));
+    }
+
+    @Test
+    void testGETClientSendsETagBackAndSkipsUnchangedData() throws IOException, InterruptedException {
+        // Start a mock server on port 8085 that tags its data and answers 304 when the tag comes back
+        String[] ifNoneMatch = new String[1];
+        mockServerThread = new Thread(() -> {
+            try {
+                mockServerSocket = new ServerSocket(8085);
+                while (true) {
+                    Socket clientSocket = mockServerSocket.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+
+                    ifNoneMatch[0] = null;
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        if (line.startsWith("If-None-Match: ")) {
+                            ifNoneMatch[0] = line.substring("If-None-Match: ".length());
+                        }
+                    }
+                    if ("\"run-7\"".equals(ifNoneMatch[0])) {
+                        out.print("HTTP/1.1 304 Not Modified\r\nETag: \"run-7\"\r\n\r\n");
+                        out.flush();
+                    } else {
+                        String jsonResponse = "[{\"id\":\"001\",\"name\":\"Test Station\"}]";
+                        out.println("HTTP/1.1 200 OK");
+                        out.println("ETag: \"run-7\"");
+                        out.println("Content-Length: " + jsonResponse.getBytes(StandardCharsets.UTF_8).length);
+                        out.println();
+                        out.println(jsonResponse);
+                    }
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        mockServerThread.start();
+
+        // Wait a short time to ensure the server starts
+        Thread.sleep(500);
+
+        URL url = new URL("http://localhost:8085/weather");
+        assertTrue(GETClient.fetchWeatherData(url).contains("Test Station"));
+        assertNull(GETClient.fetchWeatherData(url), "Unchanged data is not returned again");
+        assertEquals("\"run-7\"", ifNoneMatch[0]);
+    }
 }
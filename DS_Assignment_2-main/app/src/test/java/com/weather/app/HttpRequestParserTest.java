@@ -0,0 +1,85 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpRequestParserTest {
+
+    @Test
+    void shouldRecognizeTheRequestFieldsInPlace() throws Exception {
+        byte[] bytes = ("\r\nGET /weather?id=IDS60901 HTTP/1.1\r\nHost: localhost\r\ncontent-length:  0\r\n"
+                + "LAMPORT-CLOCK: 42\r\nConnection: Keep-Alive\r\nIf-None-Match: \"7\"\r\n\r\nleftover")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestParser request = new HttpRequestParser();
+
+        int bodyStart = request.parse(bytes, 0, bytes.length);
+
+        assertEquals("leftover", new String(bytes, bodyStart, bytes.length - bodyStart, StandardCharsets.ISO_8859_1));
+        assertSame("GET", request.method(), "Known methods are shared constants");
+        assertEquals("/weather?id=IDS60901", request.path());
+        assertEquals("GET /weather?id=IDS60901 HTTP/1.1", request.requestLine());
+        assertEquals(0, request.contentLength());
+        assertEquals(42, request.lamportClock());
+        assertTrue(request.keepAlive());
+
+        Map<String, String> headers = request.headers();
+        assertEquals("\"7\"", headers.get("If-None-Match"));
+        assertEquals("42", headers.get("Lamport-Clock"), "Names are matched case-insensitively");
+        assertEquals("0", headers.getOrDefault("Content-Length", "none"));
+        assertFalse(headers.containsKey("Accept-Encoding"));
+        assertEquals(5, headers.size());
+
+        byte[] unordered = "PUT / HTTP/1.1\r\nLamport-Clock: soon\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        request.parse(unordered, 0, unordered.length);
+        assertEquals(StationClocks.UNORDERED, request.lamportClock(), "A malformed clock is treated as none");
+    }
+
+    @Test
+    void shouldWaitForTheWholeHeadAndRejectABadContentLength() throws Exception {
+        byte[] bytes = "PUT /weather.json HTTP/1.1\r\nContent-Length: 12\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestParser request = new HttpRequestParser();
+        assertEquals(-1, request.parse(bytes, 0, bytes.length));
+
+        byte[] invalid = "PUT /weather.json HTTP/1.1\r\nContent-Length: 1e3\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        assertThrows(ProtocolException.class, () -> request.parse(invalid, 0, invalid.length));
+    }
+
+    @Test
+    void shouldReadPipelinedRequestsAndBodiesByByteCount() throws Exception {
+        String small = "{\"id\":\"A\",\"name\":\"Z\u00fcrich\"}";  // More bytes than chars
+        char[] padding = new char[HttpRequestParser.BUFFER_BYTES * 2];
+        Arrays.fill(padding, 'x');
+        String large = "{\"id\":\"B\",\"name\":\"" + new String(padding) + "\"}";
+        byte[] stream = ("PUT /weather.json HTTP/1.1\r\nContent-Length: " + small.getBytes(StandardCharsets.UTF_8).length
+                + "\r\n\r\n" + small
+                + "PUT /weather.json HTTP/1.1\r\nContent-Length: " + large.length() + "\r\nConnection: keep-alive\r\n\r\n" + large
+                + "\r\nGET /weather HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(stream);
+        ByteBuffer buffer = HttpRequestParser.acquireBuffer();
+        HttpRequestParser request = new HttpRequestParser();
+        try {
+            assertTrue(request.readHead(buffer, in));
+            assertEquals(small, request.readBody(buffer, in));
+
+            assertTrue(request.readHead(buffer, in));
+            assertTrue(request.keepAlive());
+            assertEquals(large, request.readBody(buffer, in), "A body larger than the buffer is read from the stream");
+
+            assertTrue(request.readHead(buffer, in));
+            assertEquals("GET", request.method());
+            assertFalse(request.keepAlive());
+            assertFalse(request.readHead(buffer, in), "End of stream");
+        } finally {
+            HttpRequestParser.releaseBuffer(buffer);
+        }
+    }
+}
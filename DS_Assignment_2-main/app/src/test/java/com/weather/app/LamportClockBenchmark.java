@@ -0,0 +1,177 @@
+package com.weather.app;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Contention benchmark for the Lamport clock (not a unit test, so surefire does not run it).
+// Measures tick and update throughput at 1-64 threads for the lock-free LamportClock and for the clocks it
+// replaced: the synchronized int clock, the AtomicInteger wrapped in synchronized methods, and the
+// unsynchronized int clock, whose lost ticks are reported as well.
+// Run after `mvn test-compile`:
+//   java -cp target/classes:target/test-classes com.weather.app.LamportClockBenchmark [millisPerRun]
+public class LamportClockBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    interface Clock {
+        long tick();
+
+        long update(long receivedClock);
+
+        long get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long millisPerRun = args.length > 0 ? Long.parseLong(args[0]) : 200;
+        String[] names = {"lock-free", "synchronized", "atomic+sync", "unsynchronized"};
+
+        run("tick", names, millisPerRun / 4, false);  // Warm up the JIT
+        System.out.println("Lamport clock throughput, million operations per second (" + millisPerRun + " ms per run)");
+        run("tick", names, millisPerRun, true);
+        run("update", names, millisPerRun, true);
+    }
+
+    private static void run(String operation, String[] names, long millis, boolean print) throws InterruptedException {
+        if (print) {
+            System.out.printf("%n%-8s %8s", operation, "threads");
+            for (String name : names) {
+                System.out.printf(" %15s", name);
+            }
+            System.out.println();
+        }
+        for (int threads : THREAD_COUNTS) {
+            StringBuilder row = new StringBuilder(String.format("%-8s %8d", "", threads));
+            String lost = "";
+            for (String name : names) {
+                Clock clock = create(name);
+                long operations = measure(clock, "tick".equals(operation), threads, millis);
+                row.append(String.format(" %15.2f", operations / (millis * 1000.0)));
+                if ("tick".equals(operation) && clock.get() != operations) {
+                    lost += String.format("  (%s lost %d of %d ticks)", name, operations - clock.get(), operations);
+                }
+            }
+            if (print) {
+                System.out.println(row + lost);
+            }
+        }
+    }
+
+    // Run the operation on every thread for the given time and return the total number of operations
+    private static long measure(Clock clock, boolean tick, int threads, long millis) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong total = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long operations = 0;
+                long last = 0;
+                while (true) {
+                    for (int i = 0; i < 256; i++) {
+                        // Half of the updates carry a clock ahead of the local one, so the merge path is exercised
+                        last = tick ? clock.tick() : clock.update(last + (i & 1) * 2);
+                    }
+                    operations += 256;
+                    if (System.nanoTime() >= deadline[0]) {
+                        break;
+                    }
+                }
+                total.addAndGet(operations);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.get();
+    }
+
+    private static Clock create(String name) {
+        switch (name) {
+            case "lock-free":
+                LamportClock lockFree = new LamportClock();
+                return new Clock() {
+                    public long tick() {
+                        return lockFree.tick();
+                    }
+
+                    public long update(long receivedClock) {
+                        return lockFree.update(receivedClock);
+                    }
+
+                    public long get() {
+                        return lockFree.getClock();
+                    }
+                };
+            case "synchronized":
+                return new SynchronizedClock();
+            case "atomic+sync":
+                return new AtomicInSynchronizedClock();
+            default:
+                return new UnsynchronizedClock();
+        }
+    }
+
+    // The previous DS_Assignment_2-main clock: synchronized methods over an int
+    static final class SynchronizedClock implements Clock {
+        private int clockValue;
+
+        public synchronized long tick() {
+            return ++clockValue;
+        }
+
+        public synchronized long update(long receivedClock) {
+            clockValue = (int) Math.max(clockValue, receivedClock) + 1;
+            return clockValue;
+        }
+
+        public synchronized long get() {
+            return clockValue;
+        }
+    }
+
+    // The previous dsassgn2 clock: an AtomicInteger inside synchronized methods
+    static final class AtomicInSynchronizedClock implements Clock {
+        private final AtomicInteger lamportClock = new AtomicInteger();
+
+        public synchronized long tick() {
+            lamportClock.incrementAndGet();
+            return lamportClock.get();
+        }
+
+        public synchronized long update(long receivedClock) {
+            int currentClock = lamportClock.get();
+            lamportClock.set((int) Math.max(currentClock, receivedClock) + 1);
+            return lamportClock.get();
+        }
+
+        public long get() {
+            return lamportClock.get();
+        }
+    }
+
+    // The previous a1911465 clock: a plain int with no synchronization, which loses concurrent ticks
+    static final class UnsynchronizedClock implements Clock {
+        private int value;
+
+        public long tick() {
+            return ++value;
+        }
+
+        public long update(long receivedClock) {
+            value = (int) Math.max(value, receivedClock) + 1;
+            return value;
+        }
+
+        public long get() {
+            return value;
+        }
+    }
+}
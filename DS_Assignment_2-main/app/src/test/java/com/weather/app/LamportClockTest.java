@@ -28,4 +28,32 @@ class LamportClockTest {
         clock.update(0);  // Update with a lower clock value
         assertEquals(2, clock.getClock(), "Clock value should still increment after receiving a lower clock value");
     }
+
+    @Test
+    void testTickRangeReservesConsecutiveValues() {
+        LamportClock clock = new LamportClock();
+        clock.increment();
+        assertEquals(11, clock.tickRange(10), "A range of 10 after 1 should end at 11");
+        assertEquals(12, clock.tick(), "The next tick follows the reserved range");
+    }
+
+    @Test
+    void testConcurrentTicksAndUpdatesAreNotLost() throws InterruptedException {
+        LamportClock clock = new LamportClock();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    clock.tick();
+                    clock.update(0);  // Below the clock, so it also advances by exactly one
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(160_000, clock.getClock(), "Every tick and update should be counted once");
+        assertEquals(3_000_000_001L, clock.update(3_000_000_000L), "The clock is 64-bit");
+    }
 }
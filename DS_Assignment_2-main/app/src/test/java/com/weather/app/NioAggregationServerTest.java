@@ -0,0 +1,340 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioAggregationServerTest {
+
+    private static NioAggregationServer server;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new NioAggregationServer(0, 2);
+        server.start();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    void shouldStoreAndReturnWeatherData() throws IOException {
+        String jsonData = "{ \"id\": \"NIO001\", \"name\": \"NioCity\", \"state\": \"SA\" }";
+
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.print("PUT /weather.json HTTP/1.1\r\n");
+            out.print("Content-Type: application/json\r\n");
+            out.print("Content-Length: " + jsonData.length() + "\r\n");
+            out.print("Lamport-Clock: 3\r\n\r\n");
+            out.print(jsonData);
+            out.flush();
+
+            String response = in.readLine();
+            assertTrue(response.contains("201") || response.contains("200"));
+        }
+
+        String body = get();
+        assertTrue(body.contains("NioCity"));
+    }
+
+    @Test
+    void shouldRejectUnsupportedMethod() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.println("DELETE /weather.json HTTP/1.1");
+            out.println();
+
+            assertTrue(in.readLine().contains("400"));
+        }
+    }
+
+    @Test
+    void shouldServeRequestsWhileManyConnectionsAreIdle() throws IOException {
+        // Idle connections only cost a registered key, not a thread
+        List<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < 500; i++) {
+                idle.add(new Socket("localhost", server.getLocalPort()));
+            }
+            assertNotNull(get());
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    void shouldServePipelinedRequestsOnOneKeepAliveConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            // Both requests are sent before reading; the second one asks to close
+            out.print("GET /weather.json HTTP/1.1\r\nConnection: keep-alive\r\n\r\n");
+            out.print("GET /weather.json HTTP/1.1\r\nConnection: close\r\n\r\n");
+            out.flush();
+
+            assertEquals("Connection: keep-alive", readResponseHeaders(in).get(1));
+            assertEquals("Connection: close", readResponseHeaders(in).get(1));
+        }
+    }
+
+    @Test
+    void shouldParkLongPollGetUntilAStationChanges() throws Exception {
+        long highWater = AggregationServer.changeLog.highWater();
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.print("GET /weather.json?since=" + highWater + "&wait=10000 HTTP/1.1\r\n\r\n");
+            out.flush();
+
+            socket.setSoTimeout(300);
+            assertThrows(SocketTimeoutException.class, in::readLine, "Nothing changed yet, so the GET is held");
+
+            String jsonData = "{ \"id\": \"NIOW01\", \"name\": \"Watched\" }";
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Length", String.valueOf(jsonData.length()));
+            AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+
+            socket.setSoTimeout(5000);
+            List<String> response = readResponseHeaders(in);
+            assertTrue(response.get(0).contains("200"));
+        }
+        assertTrue(AggregationServer.processDeltaGetRequest(String.valueOf(highWater), new HashMap<>()).contains("NIOW01"));
+    }
+
+    @Test
+    void shouldStreamStationEventsAndResumeFromLastEventId() throws Exception {
+        String jsonData = "{ \"id\": \"NIOS01\", \"name\": \"Streamed\" }";
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", String.valueOf(jsonData.length()));
+        long before = AggregationServer.changeLog.highWater();
+
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.print("GET /weather/stream HTTP/1.1\r\nLast-Event-ID: " + before + "\r\n\r\n");
+            out.flush();
+            assertTrue(readResponseHeaders(in).contains("Content-Type: text/event-stream"));
+
+            AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+            assertEquals("event: update", nextEventType(in, "NIOS01"));
+            AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+            assertEquals("event: update", nextEventType(in, "NIOS01"), "The stream stays open for later changes");
+        }
+    }
+
+    // Read events until one whose data mentions the station; returns its event line
+    private static String nextEventType(BufferedReader in, String stationId) throws IOException {
+        String event = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("event: ")) {
+                event = line;
+            } else if (line.startsWith("data: ") && line.contains(stationId)) {
+                return event;
+            }
+        }
+        return fail("Stream closed before an event for " + stationId);
+    }
+
+    // Read one response's status line and headers, then skip its body using Content-Length
+    private static List<String> readResponseHeaders(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        int contentLength = 0;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            lines.add(line);
+            if (line.startsWith("Content-Length:")) {
+                contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+            }
+        }
+        char[] body = new char[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+            read += in.read(body, read, contentLength - read);
+        }
+        assertTrue(lines.get(0).contains("200"));
+        return lines;
+    }
+
+    @Test
+    void shouldSendTheCommittedSnapshotWithAByteExactContentLength() throws IOException {
+        String jsonData = "{ \"id\": \"NIOF01\", \"name\": \"Fil\u00e9\" }";  // Non-ASCII, so bytes and chars differ
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", String.valueOf(jsonData.length()));
+        AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+
+        AggregationServer.snapshotGets = true;
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write(("GET /weather.json HTTP/1.1\r\nConnection: keep-alive\r\n\r\n"
+                    + "GET /weather/NIOF01 HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            byte[] snapshot = readBody(in);
+            assertArrayEquals(Files.readAllBytes(Paths.get("weatherData.json")), snapshot, "The data file, byte for byte");
+            assertTrue(new String(snapshot, StandardCharsets.UTF_8).contains("Fil\u00e9"));
+            assertTrue(new String(readBody(in), StandardCharsets.UTF_8).contains("NIOF01"), "The next response starts where the file ended");
+        } finally {
+            AggregationServer.snapshotGets = false;
+        }
+    }
+
+    @Test
+    void shouldStreamALargeStoreAsChunkedJson() throws IOException {
+        String jsonData = "{ \"id\": \"NIOC01\", \"name\": \"Chunked\" }";
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", String.valueOf(jsonData.length()));
+        AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+
+        AggregationServer.streamGetsAbove = 0;  // Every store counts as large
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write(("GET /weather.json HTTP/1.1\r\nConnection: keep-alive\r\n\r\n"
+                    + "GET /weather/NIOC01 HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String head = readHead(in);
+            assertTrue(head.contains("Transfer-Encoding: chunked\r\n") && !head.contains("Content-Length"), head);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataInputStream data = new DataInputStream(in);
+            for (int length = chunkLength(data); length > 0; length = chunkLength(data)) {
+                byte[] chunk = new byte[length];
+                data.readFully(chunk);
+                body.write(chunk);
+                assertEquals("", readLine(data));
+            }
+            assertEquals("", readLine(data), "The last chunk ends the body");
+            String stations = new String(body.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(stations.startsWith("[") && stations.endsWith("]") && stations.contains("\"NIOC01\""), stations);
+            assertTrue(new String(readBody(in), StandardCharsets.UTF_8).contains("Chunked"), "The next response follows the last chunk");
+        } finally {
+            AggregationServer.streamGetsAbove = 10_000;
+        }
+    }
+
+    @Test
+    void shouldCompressALargeStoreAsItIsStreamed() throws IOException {
+        String jsonData = "{ \"id\": \"NIOZ01\", \"name\": \"Zipped\" }";
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", String.valueOf(jsonData.length()));
+        AggregationServer.handleRequest("PUT", "/weather.json", headers, jsonData, "/127.0.0.1");
+
+        AggregationServer.streamGetsAbove = 0;
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write("GET /weather.json HTTP/1.1\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String head = readHead(in);
+            assertTrue(head.contains("Content-Encoding: gzip\r\n") && head.contains("Transfer-Encoding: chunked\r\n")
+                    && head.contains("ETag: W/\""), head);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataInputStream data = new DataInputStream(in);
+            for (int length = chunkLength(data); length > 0; length = chunkLength(data)) {
+                byte[] chunk = new byte[length];
+                data.readFully(chunk);
+                body.write(chunk);
+                assertEquals("", readLine(data));
+            }
+            try (Reader stations = new InputStreamReader(ContentEncoding.decode(
+                    new ByteArrayInputStream(body.toByteArray()), ContentEncoding.GZIP), StandardCharsets.UTF_8)) {
+                StringBuilder json = new StringBuilder();
+                for (int c = stations.read(); c != -1; c = stations.read()) {
+                    json.append((char) c);
+                }
+                assertTrue(json.toString().startsWith("[") && json.toString().contains("\"NIOZ01\""), json.toString());
+            }
+        } finally {
+            AggregationServer.streamGetsAbove = 10_000;
+        }
+    }
+
+    private static int chunkLength(DataInputStream in) throws IOException {
+        return Integer.parseInt(readLine(in), 16);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (!line.toString().endsWith("\r\n")) {
+            int b = in.read();
+            assertNotEquals(-1, b, "Connection closed inside a line");
+            line.append((char) b);
+        }
+        return line.substring(0, line.length() - 2);
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            assertNotEquals(-1, b, "Connection closed inside the headers");
+            head.append((char) b);
+        }
+        assertTrue(head.toString().startsWith("HTTP/1.1 200"), head.toString());
+        return head.toString();
+    }
+
+    // Read one response off a raw stream and return exactly its Content-Length bytes of body
+    private static byte[] readBody(InputStream in) throws IOException {
+        String head = readHead(in);
+        int contentLength = 0;
+        for (String line : head.split("\r\n")) {
+            if (line.startsWith("Content-Length: ")) {
+                contentLength = Integer.parseInt(line.substring("Content-Length: ".length()));
+            }
+        }
+        byte[] body = new byte[contentLength];
+        new DataInputStream(in).readFully(body);
+        return body;
+    }
+
+    private static String get() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.println("GET /weather.json HTTP/1.1");
+            out.println("Host: localhost");
+            out.println();
+
+            assertTrue(in.readLine().contains("200"));
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                response.append(line);
+            }
+            return response.toString();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationClocksTest {
+
+    @Test
+    void shouldDropUpdatesOlderThanTheAppliedClock() throws Exception {
+        StationClocks clocks = new StationClocks();
+        assertEquals("applied", clocks.applyInOrder("A", 7, () -> "applied"));
+
+        assertTrue(clocks.isStale("A", 6));
+        assertFalse(clocks.isStale("A", 7));
+        assertFalse(clocks.isStale("B", 1));  // Stations are ordered independently
+        assertNull(clocks.applyInOrder("A", 6, () -> "applied"));
+        assertEquals(7, clocks.getApplied("A"));
+    }
+
+    @Test
+    void shouldAlwaysApplyUnorderedUpdates() throws Exception {
+        StationClocks clocks = new StationClocks();
+        clocks.applyInOrder("A", 5, () -> "first");
+
+        assertFalse(clocks.isStale("A", StationClocks.UNORDERED));
+        assertEquals("second", clocks.applyInOrder("A", StationClocks.UNORDERED, () -> "second"));
+        assertEquals(5, clocks.getApplied("A"));
+        assertEquals(StationClocks.UNORDERED, StationClocks.requestClock(null));
+        assertEquals(StationClocks.UNORDERED, StationClocks.requestClock("abc"));
+    }
+
+    @Test
+    void shouldApplyAPutThatWaitedOnAnExpiryAsANewStation() throws Exception {
+        StationClocks clocks = new StationClocks();
+        clocks.applyInOrder("A", 7, () -> "applied");
+        assertFalse(clocks.removeInOrder("A", () -> false));
+        assertEquals(7, clocks.getApplied("A"), "A station that is not removed keeps its mark");
+
+        String[] applied = new String[1];
+        Thread put = new Thread(() -> {
+            try {
+                applied[0] = clocks.applyInOrder("A", 3, () -> "recreated");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(clocks.removeInOrder("A", () -> {
+            put.start();
+            while (put.getState() != Thread.State.BLOCKED) {
+                Thread.yield();  // The PUT waits for the station's lock until the removal is recorded
+            }
+            return true;
+        }));
+        put.join();
+
+        assertEquals("recreated", applied[0], "The older clock is not compared with the expired station's mark");
+        assertEquals(3, clocks.getApplied("A"));
+    }
+
+    @Test
+    void shouldPeekTheStationIdWithoutParsing() {
+        assertEquals("IDS60901", StationClocks.peekStationId("{ \"id\" : \"IDS60901\", \"name\": \"Adelaide\" }"));
+        assertEquals("X", StationClocks.peekStationId("{\"name\":\"id\",\"id\":\"X\"}"));
+        assertNull(StationClocks.peekStationId("{\"id\": 42}"));
+        assertNull(StationClocks.peekStationId("{\"name\": \"no id\"}"));
+    }
+
+    @Test
+    void shouldEndWithTheNewestUpdateWhenConcurrentUpdatesRace() throws Exception {
+        StationClocks clocks = new StationClocks();
+        List<Long> appliedOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            long firstClock = t + 1;
+            writers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (long clock = firstClock; clock <= 800; clock += 8) {
+                        long stamped = clock;
+                        clocks.applyInOrder("A", stamped, () -> appliedOrder.add(stamped));
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // Whatever was applied was applied in clock order, and the newest update always lands
+        for (int i = 1; i < appliedOrder.size(); i++) {
+            assertTrue(appliedOrder.get(i - 1) < appliedOrder.get(i));
+        }
+        assertEquals(800L, appliedOrder.get(appliedOrder.size() - 1));
+        assertEquals(800, clocks.getApplied("A"));
+    }
+}
@@ -0,0 +1,110 @@
+package com.weather.app;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StationEventStreamTest {
+
+    private final ChangeLog changeLog = new ChangeLog(new LamportClock());
+    private final Map<String, JsonObject> stations = new ConcurrentHashMap<>();
+
+    @Test
+    void shouldSendTheSnapshotThenShareEachEncodedChange() throws Exception {
+        StationEventStream stream = new StationEventStream(changeLog, stations, 16);
+        long snapshotClock = update("A", "10");
+        StationEventStream.Subscription first = stream.subscribe(0, null);
+        StationEventStream.Subscription second = stream.subscribe(0, null);
+
+        List<byte[]> snapshot = first.poll();
+        assertEquals(1, snapshot.size());
+        assertEquals("id: " + snapshotClock + "\nevent: update\ndata: {\"id\":\"A\",\"air_temp\":\"10\"}\n\n", text(snapshot.get(0)));
+        assertEquals(1, second.poll().size());
+
+        long updateClock = update("B", "20");
+        awaitPublished(stream, updateClock);
+        List<byte[]> toFirst = first.poll();
+        List<byte[]> toSecond = second.poll();
+        assertEquals(1, toFirst.size());
+        assertSame(toFirst.get(0), toSecond.get(0), "Both subscribers are sent the one encoding from the ring");
+        assertTrue(text(toFirst.get(0)).startsWith("id: " + updateClock + "\nevent: update\n"));
+        assertTrue(first.poll().isEmpty());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void shouldCatchUpASlowSubscriberWithTheLatestChangePerStation() throws Exception {
+        StationEventStream stream = new StationEventStream(changeLog, stations, 4);
+        StationEventStream.Subscription slow = stream.subscribe(0, null);
+        assertTrue(slow.poll().isEmpty());
+
+        long lastA = 0;
+        long lastB = 0;
+        for (int i = 0; i < 5; i++) {
+            lastA = update("A", String.valueOf(i));
+            awaitPublished(stream, lastA);
+            lastB = update("B", String.valueOf(i));
+            awaitPublished(stream, lastB);
+        }
+        assertTrue(stream.publishedCount() > 4, "The ring has wrapped past the slow subscriber");
+
+        List<byte[]> frames = slow.poll();
+        assertEquals(2, frames.size(), "One frame per station instead of every missed change");
+        assertTrue(text(frames.get(0)).startsWith("id: " + lastA + "\n"));
+        assertTrue(text(frames.get(0)).contains("\"air_temp\":\"4\""));
+        assertTrue(text(frames.get(1)).startsWith("id: " + lastB + "\n"));
+        assertTrue(slow.poll().isEmpty());
+    }
+
+    @Test
+    void shouldResumeFromTheLastEventIdAndReportExpiries() throws Exception {
+        StationEventStream stream = new StationEventStream(changeLog, stations, 16);
+        long seen = update("A", "1");
+        update("B", "2");
+        stations.remove("A");
+        long expiredAt = changeLog.recordRemoval("A");
+
+        StationEventStream.Subscription resumed = stream.subscribe(seen, null);
+        List<byte[]> frames = resumed.poll();
+        assertEquals(2, frames.size());
+        assertTrue(text(frames.get(0)).contains("\"id\":\"B\""));
+        assertEquals("id: " + expiredAt + "\nevent: expire\ndata: {\"id\":\"A\"}\n\n", text(frames.get(1)));
+
+        Runnable listener = () -> { };
+        StationEventStream.Subscription woken = stream.subscribe(expiredAt, listener);
+        assertEquals(1, stream.listenerCount());
+        assertTrue(woken.poll().isEmpty());
+        long next = update("C", "3");
+        assertTrue(woken.awaitFrames(5000));
+        assertTrue(text(woken.poll().get(0)).startsWith("id: " + next + "\n"));
+        woken.close();
+        assertEquals(0, stream.listenerCount());
+    }
+
+    private long update(String id, String airTemp) {
+        JsonObject station = new JsonObject();
+        station.addProperty("id", id);
+        station.addProperty("air_temp", airTemp);
+        stations.put(id, station);
+        return changeLog.recordUpdate(id);
+    }
+
+    // Wait until the publisher has put the change with the given clock in the ring
+    private static void awaitPublished(StationEventStream stream, long clock) throws InterruptedException {
+        for (int i = 0; i < 500 && stream.publishedThrough() < clock; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(stream.publishedThrough() >= clock, "Change " + clock + " was never published");
+    }
+
+    private static String text(byte[] frame) {
+        return new String(frame, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,138 @@
+package com.weather.app;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldReplayLatestRecordPerStation() throws IOException {
+        Path logPath = tempDir.resolve("weatherData.wal");
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, new HashMap<>())) {
+            assertTrue(log.append(station("A1", "10")).join());  // First record in a new log
+            assertFalse(log.append(station("B2", "20")).join());
+            assertFalse(log.append(station("A1", "11")).join());
+        }
+
+        Map<String, JsonObject> store = new HashMap<>();
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, store)) {
+            assertEquals(3, log.getRecordCount());
+        }
+        assertEquals(2, store.size());
+        assertEquals("11", store.get("A1").get("air_temp").getAsString());
+        assertEquals("20", store.get("B2").get("air_temp").getAsString());
+    }
+
+    @Test
+    void shouldTruncateTornTailAndKeepAppending() throws IOException {
+        Path logPath = tempDir.resolve("weatherData.wal");
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, new HashMap<>())) {
+            log.append(station("A1", "10"));
+            log.append(station("B2", "20"));
+        }
+        long intactSize = Files.size(logPath);
+
+        // Simulate a crash part-way through the next append
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(intactSize - 5);
+        }
+
+        Map<String, JsonObject> store = new HashMap<>();
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, store)) {
+            assertEquals(1, log.getRecordCount());
+            log.append(station("C3", "30"));
+        }
+        assertTrue(store.containsKey("A1"));
+        assertFalse(store.containsKey("B2"));
+
+        store.clear();
+        WriteAheadLog.open(logPath, store).close();
+        assertEquals(2, store.size());
+        assertTrue(store.containsKey("C3"));
+    }
+
+    @Test
+    void shouldStopReplayAtCorruptRecord() throws IOException {
+        Path logPath = tempDir.resolve("weatherData.wal");
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, new HashMap<>())) {
+            log.append(station("A1", "10"));
+            log.append(station("B2", "20"));
+        }
+
+        // Flip a payload byte in the last record so its CRC no longer matches
+        byte[] bytes = Files.readAllBytes(logPath);
+        bytes[bytes.length - 3] ^= 0x1;
+        Files.write(logPath, bytes);
+
+        Map<String, JsonObject> store = new HashMap<>();
+        WriteAheadLog.open(logPath, store).close();
+        assertEquals(1, store.size());
+        assertTrue(store.containsKey("A1"));
+    }
+
+    @Test
+    void shouldCompactToLiveRecords() throws IOException {
+        Path logPath = tempDir.resolve("weatherData.wal");
+        Map<String, JsonObject> live = new HashMap<>();
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, new HashMap<>())) {
+            for (int i = 0; i < 2000; i++) {
+                JsonObject record = station("S" + (i % 3), String.valueOf(i));
+                live.put(record.get("id").getAsString(), record);
+                log.append(record);
+            }
+            assertTrue(log.needsCompaction(live.size()));
+            log.compact(live.values());
+            assertEquals(3, log.getRecordCount());
+            log.append(station("S0", "latest"));
+        }
+
+        Map<String, JsonObject> store = new HashMap<>();
+        WriteAheadLog.open(logPath, store).close();
+        assertEquals(3, store.size());
+        assertEquals("latest", store.get("S0").get("air_temp").getAsString());
+    }
+
+    @Test
+    void shouldShareOneFsyncAcrossConcurrentAppends() throws Exception {
+        Path logPath = tempDir.resolve("weatherData.wal");
+        List<CompletableFuture<Boolean>> appends = new ArrayList<>();
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, new HashMap<>())) {
+            for (int i = 0; i < 200; i++) {
+                appends.add(log.append(station("S" + i, String.valueOf(i))));
+            }
+            for (CompletableFuture<Boolean> append : appends) {
+                append.get(5, TimeUnit.SECONDS);
+            }
+            assertTrue(log.getBatchCount() < 200, "Queued appends should be committed in batches");
+        }
+
+        Map<String, JsonObject> store = new HashMap<>();
+        WriteAheadLog.open(logPath, store).close();
+        assertEquals(200, store.size());
+    }
+
+    private static JsonObject station(String id, String airTemp) {
+        JsonObject record = new JsonObject();
+        record.addProperty("id", id);
+        record.addProperty("air_temp", airTemp);
+        record.addProperty("origin", "/127.0.0.1");
+        record.addProperty("timestamp", System.currentTimeMillis());
+        return record;
+    }
+}
@@ -2,33 +2,174 @@ package com.weather.app;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AggregationServer {
 
-    // Atomic integer to manage the Lamport clock
-    private final AtomicInteger lamportClock = new AtomicInteger(0);
+    // How accepted connections are executed
+    public enum ExecutionMode {
+        THREAD,   // One new platform thread per connection
+        VIRTUAL,  // One virtual thread per connection (falls back to POOL on JVMs without virtual threads)
+        POOL      // Bounded pool of platform threads with a bounded queue
+    }
+
+    // Default bounded pool sizing
+    static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 4;
+    static final int POOL_QUEUE_CAPACITY = 1024;
+    static final int KEEP_ALIVE_TIMEOUT_MILLIS = 15000; // Idle time before a kept-alive connection is closed
+    static final int MAX_REQUESTS_PER_CONNECTION = 100; // Requests served on one connection before closing it
+    static final int RETRY_AFTER_SECONDS = 1; // Retry-After hint sent when a connection is shed
+
+    // Lock-free Lamport clock shared by every handler thread
+    private final LamportClock lamportClock = new LamportClock();
 
     // ConcurrentHashMap to store weather data from multiple stations
     private final ConcurrentHashMap<String, WeatherStationData> weatherDataMap = new ConcurrentHashMap<>();
 
+    // Store used instead of the map when started with -Dweather.store=columnar, mapped or sharded; null otherwise
+    private final StationStore stationStore;
+
+    // Stations expire this long after their last update
+    static final long DATA_EXPIRATION_MILLIS = 30000;
+
+    // Expiry deadline of each station, so expiry only touches stations that are due
+    private final ExpiryIndex<String> expiryIndex = new ExpiryIndex<>();
+
+    // Highest Lamport clock applied per station; PUTs older than it are dropped
+    private final StationClocks stationClocks = new StationClocks();
+
+    // Lamport clock of each station's latest update or expiry, for GET ?since=<clock>
+    private final ChangeLog changeLog = new ChangeLog(lamportClock);
+
+    // Each station's GET encoding, made once per change and reused until the next one
+    private final EncodedStations encodedStations = new EncodedStations(changeLog, this::encodeStation);
+
+    // Long-poll GETs (wait=<ms>) are held at most this long; the timer ends waits that see no change
+    static final long MAX_WATCH_MILLIS = Long.getLong("weather.watch.maxWaitMillis", 60_000);
+    private static final ScheduledThreadPoolExecutor watchTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread timer = new Thread(runnable, "watch-timer");
+        timer.setDaemon(true);
+        return timer;
+    });
+    static {
+        watchTimer.setRemoveOnCancelPolicy(true); // A wait ended by a change drops its timeout task at once
+    }
+
     // Server port number
     private final int port;
 
     // JSON file to persist data
     private static final String DATA_FILE = "weatherData.json";
+    private static final String TEMP_FILE = "weatherData.tmp"; // Written in full, then renamed over DATA_FILE
+
+    // Memory-mapped record file used by -Dweather.store=mapped, and the stations it is first sized for
+    static final String MAPPED_STORE_FILE = "weatherData.slots";
+    static final int MAPPED_STORE_CAPACITY = Integer.getInteger("weather.store.capacity", 1024);
+
+    // Full GETs of more stations than this are streamed as chunked JSON instead of encoded into one cached body
+    static final int STREAM_GETS_ABOVE = Integer.getInteger("weather.get.streamAbove", 10_000);
+    static final int STREAM_PAGE_STATIONS = 256; // Stations read from a station store per page of a streamed GET
+
+    // Partitions (each with its own owner thread and segment file) used by -Dweather.store=sharded
+    static final int SHARDED_STORE_PARTITIONS = Integer.getInteger("weather.store.partitions",
+            Runtime.getRuntime().availableProcessors());
 
     // Gson instance for JSON operations
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
+    // Compact Gson for single stations, encoded like the entries of the GET body
+    private static final Gson STATION_GSON = new Gson();
+
+    // Guards the data file; a ReentrantLock rather than a monitor so virtual threads unmount while waiting
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    // Version of the weather data; bumped by every PUT, expiry and load so cached GET bodies go stale
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    // Encoded GET body for one data version; GETs at the same version share the byte array
+    private volatile EncodedResponse cachedGetResponse;
+    volatile int streamGetsAbove = STREAM_GETS_ABOVE;
+
+    // Conditional GETs: the full GET is tagged with the data version and GET /weather/{id} with the clock of the
+    // station's latest change, each prefixed with a token for this server run so a tag from before a restart
+    // never matches
+    private static final String ETAG_EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    // Lets a single thread rebuild the GET body after a change while the others wait for it
+    private final ReentrantLock encodeLock = new ReentrantLock();
+
+    // Group commit for PUTs: concurrent PUTs share one rewrite and fsync of the data file; created on first use
+    private volatile GroupCommitter<String> saveCommitter;
+
+    // Execution mode and bounded pool size for connection handlers
+    private final ExecutionMode executionMode;
+    private final int poolSize;
+
     // Constructor to initialize the server with a port number
     public AggregationServer(int port) {
+        this(port, ExecutionMode.THREAD, DEFAULT_POOL_SIZE);
+    }
+
+    // Constructor to initialize the server with a port number and handler execution mode
+    public AggregationServer(int port, ExecutionMode executionMode, int poolSize) {
         this.port = port;
+        this.executionMode = executionMode;
+        this.poolSize = poolSize;
+        this.stationStore = createStationStore(System.getProperty("weather.store", "map"), new OrderingStationStore.ChangeListener() {
+            @Override
+            public void updated(String stationId) {
+                changeLog.recordUpdate(stationId);
+            }
+
+            @Override
+            public void expired(String stationId) {
+                changeLog.recordRemoval(stationId);
+                encodedStations.remove(stationId);
+                invalidateGetCache();
+            }
+        });
+    }
+
+    // Create the store selected by -Dweather.store; null selects the per-station map. A store that orders and
+    // expires its stations itself reports its changes to the listener.
+    static StationStore createStationStore(String kind, OrderingStationStore.ChangeListener listener) {
+        switch (kind.toLowerCase()) {
+            case "columnar":
+                return new ColumnarStationStore();
+            case "mapped":
+                try {
+                    return MappedStationStore.open(Paths.get(MAPPED_STORE_FILE), MAPPED_STORE_CAPACITY);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot map " + MAPPED_STORE_FILE, e);
+                }
+            case "sharded":
+                try {
+                    return ShardedStationStore.open(Paths.get("").toAbsolutePath(), SHARDED_STORE_PARTITIONS,
+                            DATA_EXPIRATION_MILLIS, listener);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot load the station shards", e);
+                }
+            default:
+                return null;
+        }
     }
 
     public static void main(String[] args) {
@@ -40,7 +181,24 @@ public class AggregationServer {
                 System.out.println("Invalid port number provided. Using default port 4567.");
             }
         }
-        AggregationServer server = new AggregationServer(portNumber);
+        // Optional execution mode (thread, virtual or pool) and pool size
+        ExecutionMode mode = ExecutionMode.THREAD;
+        int poolSize = DEFAULT_POOL_SIZE;
+        if (args.length > 1) {
+            try {
+                mode = ExecutionMode.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown execution mode " + args[1] + ". Using thread-per-connection.");
+            }
+        }
+        if (args.length > 2) {
+            try {
+                poolSize = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid pool size provided. Using " + DEFAULT_POOL_SIZE + ".");
+            }
+        }
+        AggregationServer server = new AggregationServer(portNumber, mode, poolSize);
         server.startServer(); // Start the server
     }
 
@@ -52,34 +210,117 @@ public class AggregationServer {
         // Start background task for data expiration
         startDataExpirationTask();
 
+        Executor handlerExecutor = createHandlerExecutor(executionMode, poolSize);
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Aggregation Server is listening on port " + port);
+            System.out.println("Aggregation Server is listening on port " + port + " (" + executionMode + " mode)");
 
             while (true) {
                 Socket socket = serverSocket.accept(); // Accept client connections
-                new ServerHandler(socket, this).start(); // Handle each connection in a new thread
+                dispatch(handlerExecutor, socket, this); // Handle each connection per the execution mode
             }
         } catch (IOException ex) {
             System.out.println("Server exception: " + ex.getMessage());
         }
     }
 
+    // Create the executor that runs connection handlers for the given mode
+    static Executor createHandlerExecutor(ExecutionMode mode, int poolSize) {
+        switch (mode) {
+            case VIRTUAL:
+                ExecutorService virtualExecutor = newVirtualThreadExecutor();
+                if (virtualExecutor != null) {
+                    return virtualExecutor;
+                }
+                System.out.println("Virtual threads are not available on this JVM. Using a bounded pool.");
+                return newBoundedPool(poolSize);
+            case POOL:
+                return newBoundedPool(poolSize);
+            default:
+                return task -> new Thread(task).start();
+        }
+    }
+
+    // Hand an accepted connection to the executor; when it is saturated the connection is shed with a 503 and
+    // closed on the accept thread, which never runs a (possibly long-lived, kept-alive) handler itself
+    static void dispatch(Executor handlerExecutor, Socket socket, AggregationServer server) {
+        try {
+            handlerExecutor.execute(new ServerHandler(socket, server, handlerExecutor));
+        } catch (RejectedExecutionException e) {
+            reject(socket);
+        }
+    }
+
+    // Send 503 Service Unavailable with a Retry-After hint and close the connection without reading the request
+    static void reject(Socket socket) {
+        String response = "HTTP/1.1 503 Service Unavailable\r\n"
+                + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n\r\n";
+        try {
+            socket.getOutputStream().write(response.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            // The client is gone; nothing to tell it
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the project still builds for Java 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Fixed pool with a bounded queue; when both are full execute() rejects the connection, which is then shed
+    // instead of creating more threads during a burst
+    private static ExecutorService newBoundedPool(int poolSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(POOL_QUEUE_CAPACITY),
+                task -> new Thread(task, "handler-" + threadCount.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Completes once a station changes after sinceClock, or once waitMillis (capped at MAX_WATCH_MILLIS) pass
+    CompletableFuture<Void> whenChanged(long sinceClock, long waitMillis) {
+        CompletableFuture<Void> change = changeLog.nextChangeAfter(sinceClock);
+        if (!change.isDone()) {
+            ScheduledFuture<?> timeout = watchTimer.schedule(() -> {
+                changeLog.cancelWait(change);
+                change.complete(null);
+            }, Math.min(waitMillis, MAX_WATCH_MILLIS), TimeUnit.MILLISECONDS);
+            change.whenComplete((ignored, failure) -> timeout.cancel(false));
+        }
+        return change;
+    }
+
     // Update Lamport clock based on received clock from client
-    public synchronized int updateLamportClock(int receivedClock) {
-        int currentClock = lamportClock.get();
-        lamportClock.set(Math.max(currentClock, receivedClock) + 1); // Update clock
-        return lamportClock.get();
+    public long updateLamportClock(long receivedClock) {
+        return lamportClock.update(receivedClock);
     }
 
     // Increment the Lamport clock and return the new value
-    public synchronized int incrementLamportClock() {
-        lamportClock.incrementAndGet();
-        return lamportClock.get();
+    public long incrementLamportClock() {
+        return lamportClock.tick();
     }
 
     // Getter for the current Lamport clock value
-    public int getLamportClock() {
-        return lamportClock.get();
+    public long getLamportClock() {
+        return lamportClock.getClock();
+    }
+
+    // Advance the clock for count events at once; returns the last of the count values reserved
+    public long reserveLamportClocks(int count) {
+        return lamportClock.tickRange(count);
     }
 
     // Getter for the weather data map
@@ -87,25 +328,330 @@ public class AggregationServer {
         return weatherDataMap;
     }
 
+    // Getter for the selected station store; null when the per-station map is used
+    public StationStore getStationStore() {
+        return stationStore;
+    }
+
+    // Getter for the per-station Lamport clocks used to order PUTs
+    public StationClocks getStationClocks() {
+        return stationClocks;
+    }
+
+    // Getter for the change log behind GET ?since=<clock>
+    public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    // Cached JSON of one station as served to GET clients, or null if it is not stored
+    String getEncodedStation(String stationId) {
+        return encodedStations.get(stationId);
+    }
+
+    // Compact JSON of one station as served to GET clients, or null if it is not stored
+    String encodeStation(String stationId) {
+        if (stationStore != null) {
+            Map<String, String> fields = stationStore.get(stationId);
+            return fields == null ? null : STATION_GSON.toJson(fields);
+        }
+        WeatherStationData data = weatherDataMap.get(stationId);
+        if (data == null) {
+            return null;
+        }
+        data.lock();
+        try {
+            return data.toJson();
+        } finally {
+            data.unlock();
+        }
+    }
+
+    // Apply one station update in Lamport-clock order; returns true if the station is new, false if it was
+    // updated, or null if a newer update for the station was applied first and this one was dropped
+    Boolean applyUpdate(String stationId, Map<String, String> weatherData, long updateClock, long recordClock,
+                        long updateTime) throws IOException {
+        if (stationStore instanceof OrderingStationStore) {
+            // The station's owner thread orders it, schedules its expiry and records the change
+            return ((OrderingStationStore) stationStore).putInOrder(stationId, weatherData, updateClock, recordClock, updateTime);
+        }
+        return stationClocks.applyInOrder(stationId, updateClock, () -> {
+            boolean isNew;
+            if (stationStore != null) {
+                isNew = stationStore.put(stationId, weatherData, recordClock, updateTime);
+            } else {
+                isNew = !weatherDataMap.containsKey(stationId);
+                // Get or create a new WeatherStationData object
+                WeatherStationData stationData = weatherDataMap.computeIfAbsent(stationId, k -> new WeatherStationData());
+                stationData.lock();
+                try {
+                    // Update station data
+                    stationData.updateData(weatherData);
+                    stationData.setLamportClock(recordClock);
+                    stationData.setLastUpdateTime(updateTime);
+                } finally {
+                    stationData.unlock();
+                }
+            }
+            scheduleExpiry(stationId, updateTime);
+            changeLog.recordUpdate(stationId);  // After the store, so a delta GET that sees the change finds the data
+            return isNew;
+        });
+    }
+
+    // Mark the weather data as changed so the next GET re-encodes it
+    void invalidateGetCache() {
+        dataVersion.incrementAndGet();
+    }
+
+    // Current data version; bumped after a change is applied, so data read after it is at least this new
+    long getDataVersion() {
+        return dataVersion.get();
+    }
+
+    // UTF-8 bytes of the GET response body for the current data version, encoded at most once per version
+    byte[] getEncodedWeatherData() {
+        return encodeWeatherDataOnce().body;
+    }
+
+    // The GET body and the version it is tagged with
+    private EncodedResponse encodeWeatherDataOnce() {
+        long version = dataVersion.get();
+        EncodedResponse cached = cachedGetResponse;
+        if (cached != null && cached.version == version) {
+            return cached;
+        }
+
+        encodeLock.lock();
+        try {
+            version = dataVersion.get();
+            cached = cachedGetResponse;
+            if (cached == null || cached.version != version) {
+                // Tagged with the version read before the snapshot, so a concurrent change always forces a rebuild
+                cached = new EncodedResponse(version, encodeWeatherData());
+                cachedGetResponse = cached;
+            }
+            return cached;
+        } finally {
+            encodeLock.unlock();
+        }
+    }
+
+    static String etag(long version) {
+        return "\"" + ETAG_EPOCH + "-" + version + "\"";
+    }
+
+    // True when an If-None-Match header lists the tag or is *; a weak tag (W/"...") compares equal to its strong form
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Build the JSON array of all stations
+    private byte[] encodeWeatherData() {
+        if (stationStore != null) {
+            return stationStore.toJsonArray().getBytes(StandardCharsets.UTF_8);
+        }
+        StringBuilder responseBody = new StringBuilder();
+        responseBody.append("[");
+
+        Iterator<WeatherStationData> iterator = weatherDataMap.values().iterator();
+        boolean isFirst = true;
+        while (iterator.hasNext()) {
+            WeatherStationData data = iterator.next();
+            data.lock();
+            try {
+                if (!isFirst) {
+                    responseBody.append(","); // Append comma before subsequent entries
+                }
+                responseBody.append(data.toJson());
+                isFirst = false;
+            } finally {
+                data.unlock();
+            }
+        }
+        responseBody.append("]");
+        return responseBody.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    int stationCount() {
+        return stationStore != null ? stationStore.size() : weatherDataMap.size();
+    }
+
+    // Write the JSON array of all stations without building it: station by station from the map, or page by page
+    // from a station store, so only one station or page is held at a time. The map iteration is weakly consistent;
+    // a station changed while the array is written may appear as it was or as it is.
+    void writeWeatherData(Writer out) throws IOException {
+        out.write('[');
+        if (stationStore != null) {
+            StringBuilder page = new StringBuilder();
+            boolean isFirst = true;
+            for (int position = 0; position >= 0; ) {
+                page.setLength(0); // Reused for every page
+                position = stationStore.appendJsonPage(page, position, STREAM_PAGE_STATIONS);
+                if (page.length() > 0) {
+                    if (!isFirst) {
+                        out.write(',');
+                    }
+                    out.append(page);
+                    isFirst = false;
+                }
+            }
+        } else {
+            boolean isFirst = true;
+            for (WeatherStationData data : weatherDataMap.values()) {
+                String json;
+                data.lock();
+                try {
+                    json = data.toJson();
+                } finally {
+                    data.unlock();
+                }
+                if (!isFirst) {
+                    out.write(',');
+                }
+                out.write(json);
+                isFirst = false;
+            }
+        }
+        out.write(']');
+    }
+
     // Save weather data to a JSON file
-    synchronized void saveDataToFile() {
-        try (FileWriter writer = new FileWriter(DATA_FILE)) {
-            gson.toJson(weatherDataMap, writer); // Convert the map to JSON and write to file
+    void saveDataToFile() {
+        try {
+            writeDataFile();
             System.out.println("Data saved to " + DATA_FILE); // Log success
         } catch (IOException e) {
             System.err.println("Error saving data to JSON file: " + e.getMessage()); // Log error
         }
     }
 
+    // Persist a PUT through the group commit; returns once the data file holding it is on disk
+    boolean commitData(String stationId) {
+        if (stationStore != null && stationStore.persistsOnPut()) {
+            return true; // The store made the PUT durable before returning from put
+        }
+        try {
+            getSaveCommitter().submit(stationId).join();
+            return true;
+        } catch (CompletionException e) {
+            System.err.println("Error saving data to JSON file: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    // Persist a batch PUT with one commit; returns once every station in it is on disk
+    boolean commitBatch(List<String> stationIds) {
+        if (stationStore != null && stationStore.persistsOnPut()) {
+            return true; // The store made each record durable before put returned
+        }
+        if (stationStore != null && stationStore.isPersistent()) {
+            try {
+                stationStore.force(stationIds);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error forcing station records: " + e.getMessage());
+                return false;
+            }
+        }
+        return commitData(stationIds.get(0)); // One rewrite of the data file holds the whole batch
+    }
+
+    private GroupCommitter<String> getSaveCommitter() {
+        GroupCommitter<String> committer = saveCommitter;
+        if (committer == null) {
+            saveLock.lock();
+            try {
+                committer = saveCommitter;
+                if (committer == null) {
+                    committer = new GroupCommitter<>("save-writer", this::persistBatch,
+                            GroupCommitter.DEFAULT_WINDOW_MILLIS, GroupCommitter.DEFAULT_MAX_BATCH);
+                    saveCommitter = committer;
+                }
+            } finally {
+                saveLock.unlock();
+            }
+        }
+        return committer;
+    }
+
+    // Make a batch of PUTs durable: force their records if the store is its own file, else rewrite the data file
+    private void persistBatch(List<String> stationIds) throws IOException {
+        if (stationStore != null && stationStore.isPersistent()) {
+            stationStore.force(stationIds);
+        } else {
+            writeDataFile();
+        }
+    }
+
+    // Write the whole map to a temporary file and force it to disk, then rename it over the data file. The rename
+    // replaces the file in one step, so a crash mid-write leaves the previous data file whole.
+    private void writeDataFile() throws IOException {
+        saveLock.lock();
+        Path tempFile = Paths.get(TEMP_FILE);
+        try {
+            try (FileOutputStream fileOutput = new FileOutputStream(tempFile.toFile());
+                 Writer writer = new OutputStreamWriter(fileOutput, StandardCharsets.UTF_8)) {
+                if (stationStore != null) {
+                    stationStore.writeSnapshot(writer); // Same file layout as the map store
+                } else {
+                    gson.toJson(weatherDataMap, writer); // Convert the map to JSON and write to file
+                }
+                writer.flush();
+                fileOutput.getChannel().force(true);
+            }
+            Files.move(tempFile, Paths.get(DATA_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile); // Only still there if writing or the rename failed
+            saveLock.unlock();
+        }
+    }
+
     // Load weather data from a JSON file
     void loadDataFromFile() {
+        if (stationStore != null && stationStore.isPersistent()) {
+            // The store's own files are already the live data; only the expiry deadlines need rebuilding
+            boolean ownsExpiry = stationStore instanceof OrderingStationStore;  // Then it scheduled its own expiry on load
+            stationStore.forEachStation((stationId, lastUpdateTime) -> {
+                if (!ownsExpiry) {
+                    scheduleExpiry(stationId, lastUpdateTime);
+                }
+                changeLog.recordUpdate(stationId);
+            });
+            invalidateGetCache();
+            System.out.println("Loaded " + stationStore.size() + " stations from the station store");
+            return;
+        }
         File file = new File(DATA_FILE);
         if (file.exists()) {
-            try (FileReader reader = new FileReader(file)) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
                 // Deserialize the JSON file back into the map
                 ConcurrentHashMap<String, WeatherStationData> data = gson.fromJson(reader, new com.google.gson.reflect.TypeToken<ConcurrentHashMap<String, WeatherStationData>>() {}.getType());
                 if (data != null) {
-                    weatherDataMap.putAll(data);
+                    if (stationStore != null) {
+                        for (Map.Entry<String, WeatherStationData> entry : data.entrySet()) {
+                            stationStore.put(entry.getKey(), entry.getValue().getData(),
+                                    entry.getValue().getLamportClock(), entry.getValue().getLastUpdateTime());
+                        }
+                    } else {
+                        weatherDataMap.putAll(data);
+                    }
+                    data.forEach((stationId, stationData) -> {
+                        scheduleExpiry(stationId, stationData.getLastUpdateTime());
+                        changeLog.recordUpdate(stationId);
+                    });
+                    invalidateGetCache();
                     System.out.println("Data loaded from " + DATA_FILE);
                 }
             } catch (IOException e) {
@@ -116,92 +662,238 @@ public class AggregationServer {
         }
     }
 
-    // Start a scheduled task to expire old weather data
+    // Start a thread that sleeps until the next station deadline and expires what is due
     private void startDataExpirationTask() {
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(() -> {
-            long currentTime = System.currentTimeMillis();
-            weatherDataMap.values().removeIf(data -> currentTime - data.getLastUpdateTime() > 30000);
-        }, 30, 30, TimeUnit.SECONDS);
+        Thread expiryThread = new Thread(() -> {
+            try {
+                while (true) {
+                    expireStations(expiryIndex.awaitExpired(), System.currentTimeMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "station-expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
+
+    // Record a station update so it expires exactly DATA_EXPIRATION_MILLIS later
+    void scheduleExpiry(String stationId, long lastUpdateTime) {
+        expiryIndex.schedule(stationId, lastUpdateTime + DATA_EXPIRATION_MILLIS);
+    }
+
+    // Expire every station whose deadline has passed; returns how many were removed
+    int expireDueStations(long currentTime) {
+        if (stationStore instanceof OrderingStationStore) {
+            return ((OrderingStationStore) stationStore).expireDue(currentTime);
+        }
+        return expireStations(expiryIndex.pollExpired(currentTime), currentTime);
+    }
+
+    // Remove the given stations unless a PUT refreshed them after their deadline was taken
+    private int expireStations(List<String> stationIds, long currentTime) {
+        int removed = 0;
+        for (String stationId : stationIds) {
+            if (stationClocks.removeInOrder(stationId, () -> removeIfStale(stationId, currentTime))) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            invalidateGetCache();
+        }
+        return removed;
     }
 
-    // Thread to handle each client request
-    static class ServerHandler extends Thread {
+    // Remove a station whose last update is older than the expiration time and record the removal; runs under
+    // the station's lock, so no PUT can refresh it between the check and the removal
+    private boolean removeIfStale(String stationId, long currentTime) {
+        if (stationStore != null) {
+            if (!stationStore.removeIfStale(stationId, currentTime, DATA_EXPIRATION_MILLIS)) {
+                return false;
+            }
+        } else {
+            WeatherStationData data = weatherDataMap.get(stationId);
+            if (data == null || currentTime - data.getLastUpdateTime() < DATA_EXPIRATION_MILLIS) {
+                return false;
+            }
+            weatherDataMap.remove(stationId);
+        }
+        changeLog.recordRemoval(stationId);
+        encodedStations.remove(stationId);
+        return true;
+    }
+
+    // Task to handle each client request; run on the executor chosen by the execution mode.
+    // A long-poll GET whose change has not arrived yet is parked: run() returns with the connection open and holds
+    // no thread, and the handler is run again on the executor once the change or the end of the wait arrives.
+    static class ServerHandler implements Runnable {
         private final Socket socket; // Client socket
         private final AggregationServer server; // Reference to the server
+        private final Executor resumeExecutor; // Runs the handler again after a parked GET; null to wait in place
+        private final HttpRequestParser request = new HttpRequestParser(); // Reused for every request on the connection
+        private ByteBuffer buffer; // Pooled read buffer, held until the connection closes
+        private OutputStream os;
+        private PrintWriter out;
+        private boolean parkedGet; // The parsed request is a long-poll GET waiting to be answered
+        private boolean keepAlive; // Whether the current response keeps the connection open
+        private int remainingRequests = MAX_REQUESTS_PER_CONNECTION; // Requests still allowed on this connection
 
-        // Constructor to initialize the handler with the client socket and server reference
+        // Constructor to initialize the handler with the client socket and server reference; a long-poll GET
+        // blocks the handler's thread while it waits
         public ServerHandler(Socket socket, AggregationServer server) {
+            this(socket, server, null);
+        }
+
+        // Handler whose long-poll GETs are parked and answered by running it again on the given executor
+        public ServerHandler(Socket socket, AggregationServer server, Executor resumeExecutor) {
             this.socket = socket;
             this.server = server;
+            this.resumeExecutor = resumeExecutor;
         }
 
         // Main run method for handling client communication
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 OutputStream os = socket.getOutputStream()) {
-
-                PrintWriter out = new PrintWriter(os, true);
+            boolean parked = false; // Set once this run hands the connection to a long-poll wait
+            try {
+                InputStream in = socket.getInputStream();
+                if (parkedGet) {
+                    // Resumed: the change or the end of the wait arrived, so answer the parked GET and carry on
+                    parkedGet = false;
+                    handleGetRequest(request.requestLine(), request.headers(), out, os);
+                    if (!keepAlive) {
+                        return;
+                    }
+                    socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS);
+                } else {
+                    buffer = HttpRequestParser.acquireBuffer();
+                    os = socket.getOutputStream();
+                    out = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), true);  // Headers and text bodies in UTF-8
+                }
 
-                // Read the request line from the client
-                String requestLine = in.readLine();
-                if (requestLine == null) return; // Exit if no request line
+                // Serve requests until the client stops asking for keep-alive or the limit is reached
+                do {
+                    // Read the request line and headers, skipping blank lines between requests
+                    try {
+                        if (!request.readHead(buffer, in)) return; // Exit if no request line
+                    } catch (ProtocolException e) {
+                        keepAlive = false;
+                        sendResponse(out, "HTTP/1.1 400 Bad Request", "Malformed request.", "text/plain");
+                        return;
+                    }
+                    Map<String, String> headers = request.headers();
+                    remainingRequests--;
+                    keepAlive = remainingRequests > 0 && request.keepAlive();
 
-                // Read headers from the client
-                Map<String, String> headers = readHeaders(in);
+                    // Lamport clock from the headers, parsed during the scan
+                    server.updateLamportClock(request.lamportClock()); // Update the server clock
 
-                // Retrieve Lamport clock from headers
-                int clientLamportClock = Integer.parseInt(headers.getOrDefault("Lamport-Clock", "0"));
-                server.updateLamportClock(clientLamportClock); // Update the server clock
+                    // Process the request based on the method
+                    if ("PUT".equals(request.method())) {
+                        handlePutRequest(request.readBody(buffer, in), headers, out, os); // Handle PUT request
+                    } else if ("GET".equals(request.method())) {
+                        if (parkLongPoll()) {
+                            parked = true; // The connection now belongs to the wait; resumed by run() later
+                            return;
+                        }
+                        handleGetRequest(request.requestLine(), headers, out, os); // Handle GET request
+                    } else {
+                        sendResponse(out, "HTTP/1.1 400 Bad Request", "Invalid request method.", "text/plain");
+                    }
 
-                // Process the request based on the method
-                if (requestLine.startsWith("PUT")) {
-                    handlePutRequest(in, headers, out, os); // Handle PUT request
-                } else if (requestLine.startsWith("GET")) {
-                    handleGetRequest(headers, out, os); // Handle GET request
-                } else {
-                    sendResponse(out, "HTTP/1.1 400 Bad Request", "Invalid request method.", "text/plain");
-                }
+                    if (keepAlive) {
+                        socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS); // Close the connection if it stays idle
+                    }
+                } while (keepAlive);
+            } catch (SocketTimeoutException e) {
+                // Idle kept-alive connection; closing it is expected
             } catch (IOException e) {
                 System.out.println("Exception in handler: " + e.getMessage());
+            } finally {
+                if (!parked) {
+                    close();
+                }
             }
         }
 
-        // Method to read headers from the client request
-        private Map<String, String> readHeaders(BufferedReader in) throws IOException {
-            Map<String, String> headers = new HashMap<>();
-            String headerLine;
-            while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) { // Read until an empty line is found
-                String[] headerParts = headerLine.split(": ", 2);
-                if (headerParts.length == 2) {
-                    headers.put(headerParts[0], headerParts[1]); // Store header key-value pairs
-                }
+        // Close the connection and return its read buffer
+        private void close() {
+            if (buffer != null) {
+                HttpRequestParser.releaseBuffer(buffer);
+                buffer = null;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        // Long-poll: a GET carrying wait=<ms> waits until a station changes after its since clock (or after the
+        // request arrived, without since) or the wait runs out. With a resume executor the GET is parked and true
+        // is returned; the caller then leaves the connection open and frees its thread. Otherwise the wait blocks
+        // here. False once the GET can be answered, including a malformed wait or since, which gets 400.
+        private boolean parkLongPoll() {
+            String requestLine = request.requestLine();
+            String wait = queryParameter(requestLine, "wait");
+            if (wait == null) {
+                return false;
+            }
+            String since = queryParameter(requestLine, "since");
+            long waitMillis;
+            long sinceClock;
+            try {
+                waitMillis = Long.parseLong(wait.trim());
+                sinceClock = since == null ? server.getChangeLog().highWater() : Long.parseLong(since.trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (waitMillis <= 0) {
+                return false;
+            }
+            CompletableFuture<Void> change = server.whenChanged(sinceClock, waitMillis);
+            if (change.isDone()) {
+                return false;
+            }
+            if (resumeExecutor == null) {
+                change.join();
+                return false;
+            }
+            parkedGet = true;
+            change.whenComplete((ignored, failure) -> resume());
+            return true;
+        }
+
+        // Answer the parked GET on the executor; shed the connection with a 503 if the executor is saturated
+        private void resume() {
+            try {
+                resumeExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                reject(socket);
+                HttpRequestParser.releaseBuffer(buffer);
             }
-            return headers;
         }
 
         // Handle PUT requests to update weather data
-        private void handlePutRequest(BufferedReader in, Map<String, String> headers,
+        private void handlePutRequest(String body, Map<String, String> headers,
                                       PrintWriter out, OutputStream os) throws IOException {
-            int contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
-
             // Handle empty content
-            if (contentLength == 0) {
+            if (body.isEmpty()) {
                 sendResponse(out, "HTTP/1.1 204 No Content", "No content provided.", "text/plain");
                 return;
             }
 
-            // Read the JSON data from the request body
-            char[] bodyChars = new char[contentLength];
-            int totalRead = 0;
-            while (totalRead < contentLength) {
-                int read = in.read(bodyChars, totalRead, contentLength - totalRead);
-                if (read == -1) {
-                    break;
-                }
-                totalRead += read;
+            long updateClock = request.lamportClock();  // UNORDERED when the client sent none
+            if (isBatchRequest(body, headers)) {
+                handleBatchPutRequest(body, updateClock, headers, out, os);
+                return;
+            }
+
+            // Drop an update older than what its station already holds before paying for a parse
+            String peekedId = StationClocks.peekStationId(body);
+            if (peekedId != null && server.getStationClocks().isStale(peekedId, updateClock)) {
+                sendStaleUpdateResponse(out);
+                return;
             }
-            String body = new String(bodyChars);
 
             Map<String, String> weatherData;
             try {
@@ -213,55 +905,320 @@ public class AggregationServer {
                 return;
             }
 
-            // Update the weather data map based on station ID
+            // Update the station unless a newer update for it was applied first
             String stationId = weatherData.get("id");
-            if (stationId != null) {
-                boolean isNewStation = !server.getWeatherDataMap().containsKey(stationId);
-                // Get or create a new WeatherStationData object
-                WeatherStationData stationData = server.getWeatherDataMap()
-                        .computeIfAbsent(stationId, k -> new WeatherStationData());
+            if (stationId == null) {
+                sendResponse(out, "HTTP/1.1 400 Bad Request", "Station ID is missing.", "text/plain");
+                return;
+            }
+            Boolean isNewStation;
+            try {
+                isNewStation = server.applyUpdate(stationId, weatherData, updateClock, server.getLamportClock(),
+                        System.currentTimeMillis());
+            } catch (IllegalArgumentException e) {
+                sendResponse(out, "HTTP/1.1 400 Bad Request", e.getMessage(), "text/plain");
+                return;
+            } catch (IOException e) {
+                sendResponse(out, "HTTP/1.1 500 Internal Server Error", "Failed to persist data.", "text/plain");
+                return;
+            }
+            if (isNewStation == null) {
+                sendStaleUpdateResponse(out);
+                return;
+            }
+            server.invalidateGetCache();
 
-                synchronized (stationData) {
-                    // Update station data
-                    stationData.updateData(weatherData);
-                    stationData.setLamportClock(server.getLamportClock());
-                    stationData.setLastUpdateTime(System.currentTimeMillis());
+            // Save data to file; the response waits until the batch holding this PUT is durable
+            if (!server.commitData(stationId)) {
+                sendResponse(out, "HTTP/1.1 500 Internal Server Error", "Failed to persist data.", "text/plain");
+                return;
+            }
+
+            String statusLine = isNewStation ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK";
+            sendResponse(out, statusLine, "Data updated successfully.", "text/plain");
+        }
+
+        // Handle a PUT carrying many stations (a JSON array, or NDJSON with Content-Type application/x-ndjson).
+        // The records take one reserved range of Lamport clock values and are persisted with one commit; the
+        // response is a JSON array with the status of each record in request order.
+        private void handleBatchPutRequest(String body, long updateClock, Map<String, String> headers,
+                                           PrintWriter out, OutputStream os) throws IOException {
+            List<Map<String, String>> records;
+            try {
+                records = parseBatch(body, headers);
+            } catch (JsonParseException | IllegalStateException e) {
+                sendResponse(out, "HTTP/1.1 500 Internal Server Error", "Invalid JSON data.", "text/plain");
+                return;
+            }
+            if (records.isEmpty()) {
+                sendResponse(out, "HTTP/1.1 204 No Content", "No content provided.", "text/plain");
+                return;
+            }
+
+            long firstClock = server.reserveLamportClocks(records.size()) - records.size() + 1;
+            long updateTime = System.currentTimeMillis();
+            JsonArray statuses = new JsonArray();
+            List<JsonObject> appliedStatuses = new ArrayList<>();
+            List<String> appliedIds = new ArrayList<>();
+            for (int i = 0; i < records.size(); i++) {
+                Map<String, String> record = records.get(i);
+                JsonObject status = new JsonObject();
+                status.addProperty("index", i);
+                statuses.add(status);
+                String stationId = record == null ? null : record.get("id");
+                if (stationId == null) {
+                    status.addProperty("status", 400);
+                    status.addProperty("error", "Record is not a station object with an id");
+                    continue;
                 }
+                status.addProperty("id", stationId);
+                status.addProperty("lamportClock", firstClock + i);
+                try {
+                    Boolean isNewStation = server.applyUpdate(stationId, record, updateClock, firstClock + i, updateTime);
+                    if (isNewStation == null) {
+                        status.addProperty("status", 200);
+                        status.addProperty("stale", true); // A newer update for the station was applied first
+                        continue;
+                    }
+                    status.addProperty("status", isNewStation ? 201 : 200);
+                    appliedStatuses.add(status);
+                    appliedIds.add(stationId);
+                } catch (IllegalArgumentException e) {
+                    status.addProperty("status", 400);
+                    status.addProperty("error", e.getMessage());
+                } catch (IOException e) {
+                    status.addProperty("status", 500);
+                    status.addProperty("error", "Failed to persist data.");
+                }
+            }
 
-                // Save data to file
-                server.saveDataToFile();
+            if (!appliedIds.isEmpty()) {
+                server.invalidateGetCache();
+                if (!server.commitBatch(appliedIds)) {
+                    for (JsonObject status : appliedStatuses) {
+                        status.addProperty("status", 500); // Applied in memory but not acknowledged as durable
+                    }
+                }
+            }
+            sendResponse(out, os, "HTTP/1.1 200 OK", statuses.toString().getBytes(StandardCharsets.UTF_8), "application/json");
+        }
 
-                String statusLine = isNewStation ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK";
-                sendResponse(out, statusLine, "Data updated successfully.", "text/plain");
+        // Records of a batch body as field maps; a JSON array, or one JSON value per non-blank line for NDJSON.
+        // Entries that are not objects are kept as null so their status can still be reported.
+        private List<Map<String, String>> parseBatch(String body, Map<String, String> headers) {
+            List<JsonElement> elements = new ArrayList<>();
+            String trimmed = body.trim();
+            if (trimmed.startsWith("[")) {
+                JsonParser.parseString(trimmed).getAsJsonArray().forEach(elements::add);
             } else {
-                sendResponse(out, "HTTP/1.1 400 Bad Request", "Station ID is missing.", "text/plain");
+                for (String line : trimmed.split("\\r?\\n")) {
+                    if (!line.trim().isEmpty()) {
+                        elements.add(JsonParser.parseString(line));
+                    }
+                }
+            }
+            List<Map<String, String>> records = new ArrayList<>(elements.size());
+            for (JsonElement element : elements) {
+                if (!element.isJsonObject()) {
+                    records.add(null);
+                    continue;
+                }
+                Map<String, String> record = new HashMap<>();
+                for (Map.Entry<String, JsonElement> field : element.getAsJsonObject().entrySet()) {
+                    JsonElement value = field.getValue();
+                    record.put(field.getKey(), value.isJsonPrimitive() ? value.getAsString() : value.toString());
+                }
+                records.add(record);
+            }
+            return records;
+        }
+
+        // True for a PUT carrying several stations: a JSON array, or NDJSON (one object per line)
+        static boolean isBatchRequest(String body, Map<String, String> headers) {
+            if (headers.getOrDefault("Content-Type", "").toLowerCase().contains("ndjson")) {
+                return true;
             }
+            return body.trim().startsWith("[");
         }
 
-        public void handleGetRequest(Map<String, String> headers, PrintWriter out, OutputStream os) {
-            // Build JSON response with aggregated weather data
-            StringBuilder responseBody = new StringBuilder();
-            responseBody.append("[");
+        // Acknowledge a PUT older than the data its station already holds; nothing was applied,
+        // but the update is not an error and must not be retried
+        private void sendStaleUpdateResponse(PrintWriter out) {
+            sendResponse(out, "HTTP/1.1 200 OK", "Stale update ignored.", "text/plain");
+        }
 
-            Iterator<WeatherStationData> iterator = server.getWeatherDataMap().values().iterator();
-            boolean isFirst = true;
-            while (iterator.hasNext()) {
-                WeatherStationData data = iterator.next();
-                synchronized (data) {
-                    if (!isFirst) {
-                        responseBody.append(","); // Append comma before subsequent entries
-                    }
-                    responseBody.append(data.toJson());
-                    isFirst = false;
+        public void handleGetRequest(String requestLine, Map<String, String> headers, PrintWriter out, OutputStream os) throws IOException {
+            String since = queryParameter(requestLine, "since");
+            if (!isValidWait(queryParameter(requestLine, "wait"), since)) {
+                sendResponse(out, "HTTP/1.1 400 Bad Request", "Invalid wait or since.", "text/plain");
+                return;
+            }
+            List<String> stationIds = stationIdsOf(requestLine);
+            if (stationIds != null) {
+                if (stationIds.isEmpty()) {
+                    sendResponse(out, "HTTP/1.1 400 Bad Request", "No station ids.", "text/plain");
+                } else {
+                    handleStationGetRequest(stationIds, headers, out, os);
                 }
+                return;
+            }
+            if (since != null) {
+                handleDeltaGetRequest(since, out, os);
+                return;
+            }
+
+            // A client already holding the current version gets 304, and nothing is encoded. A compressed body is a
+            // different representation of the version, so it has its own ETag.
+            String coding = ContentEncoding.negotiate(headers.get("Accept-Encoding"));
+            String current = ContentEncoding.variantTag(etag(server.getDataVersion()), coding);
+            if (matchesETag(headers.get("If-None-Match"), current)) {
+                sendNotModified(out, current);
+                return;
             }
-            responseBody.append("]");
 
-            // Log the response for debugging
-            System.out.println("Generated JSON Response: " + responseBody);
+            // A large store is streamed rather than encoded whole, compressed on the way out if the client accepts it.
+            // The stream walks the live stations page by page after the tag was taken, so it may include PUTs newer
+            // than that version and is never byte for byte the tagged representation: its tag is always weak.
+            if (server.stationCount() > server.streamGetsAbove) {
+                sendStreamedWeatherData(out, os, "W/" + current, coding);
+                return;
+            }
+
+            // Aggregated weather data, re-encoded (and re-compressed) only when it has changed since the last GET
+            EncodedResponse encoded = server.encodeWeatherDataOnce();
+            byte[] body = coding == null ? encoded.body : encoded.compressed(coding);
 
             // Send response with aggregated data
-            sendResponse(out, "HTTP/1.1 200 OK", responseBody.toString(), "application/json");
+            sendResponse(out, os, "HTTP/1.1 200 OK", body, "application/json",
+                    ContentEncoding.variantTag(etag(encoded.version), coding), coding);
+        }
+
+        // GET /weather/{id}, ?id=<id> or ?ids=a,b,c: the stored stations among those requested as a JSON array in
+        // request order, each from its cached encoding; 404 if none is stored. The ETag is the newest change clock
+        // of the requested stations, and is left off when any of them is unknown (its clock would read as 0).
+        private void handleStationGetRequest(List<String> stationIds, Map<String, String> headers, PrintWriter out, OutputStream os) throws IOException {
+            long newestChange = 0;
+            boolean tagged = true;
+            for (String stationId : stationIds) {
+                long changedAt = server.getChangeLog().lastChangeOf(stationId);  // Read before the data, so never newer than it
+                newestChange = Math.max(newestChange, changedAt);
+                tagged &= changedAt != 0;
+            }
+            String etag = tagged ? etag(newestChange) : null;
+
+            StringBuilder body = new StringBuilder("[");
+            for (String stationId : stationIds) {
+                String station = server.getEncodedStation(stationId);
+                if (station != null) {
+                    body.append(body.length() == 1 ? "" : ",").append(station);
+                }
+            }
+            if (body.length() == 1) {
+                sendResponse(out, "HTTP/1.1 404 Not Found", "Unknown station.", "text/plain");
+            } else if (etag != null && matchesETag(headers.get("If-None-Match"), etag)) {
+                sendNotModified(out, etag);
+            } else {
+                body.append(']');
+                sendResponse(out, os, "HTTP/1.1 200 OK", body.toString().getBytes(StandardCharsets.UTF_8), "application/json", etag);
+            }
+        }
+
+        // Stations named by a GET /weather/{id}, ?id=<id> or ?ids=a,b,c request line: distinct and URL-decoded,
+        // in the order given. Null if the request does not name stations; empty if it names only blank ids.
+        static List<String> stationIdsOf(String requestLine) {
+            String[] parts = requestLine.split(" ");
+            String target = parts.length >= 2 ? parts[1] : "";
+            int query = target.indexOf('?');
+            String path = query == -1 ? target : target.substring(0, query);
+            String id = path.startsWith("/weather/") && path.length() > "/weather/".length()
+                    ? path.substring("/weather/".length()) : queryParameter(requestLine, "id");
+            String ids = id == null ? queryParameter(requestLine, "ids") : null;
+            if (id == null && ids == null) {
+                return null;
+            }
+            Set<String> stationIds = new LinkedHashSet<>();
+            for (String stationId : id != null ? new String[] { id } : ids.split(",")) {
+                String decoded = URLDecoder.decode(stationId.trim(), StandardCharsets.UTF_8);
+                if (!decoded.isEmpty()) {
+                    stationIds.add(decoded);
+                }
+            }
+            return new ArrayList<>(stationIds);
+        }
+
+        // False if a long-poll's wait or since is malformed; the wait itself happened in parkLongPoll
+        private static boolean isValidWait(String wait, String since) {
+            if (wait == null) {
+                return true;
+            }
+            try {
+                if (since != null) {
+                    Long.parseLong(since.trim());
+                }
+                return Long.parseLong(wait.trim()) >= 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        // GET /weather.json?since=<clock>: only the stations updated or expired after that clock, and the
+        // high-water mark to send as since on the next poll. If expiries that old are no longer remembered,
+        // every current station is returned with "reset": true and the client replaces its view.
+        private void handleDeltaGetRequest(String since, PrintWriter out, OutputStream os) throws IOException {
+            long sinceClock;
+            try {
+                sinceClock = Long.parseLong(since.trim());
+            } catch (NumberFormatException e) {
+                sendResponse(out, "HTTP/1.1 400 Bad Request", "Invalid since clock.", "text/plain");
+                return;
+            }
+
+            ChangeLog.Delta delta = server.getChangeLog().since(sinceClock);
+            StringBuilder updated = new StringBuilder();
+            JsonArray removed = new JsonArray();
+            if (delta.complete) {
+                for (ChangeLog.Change change : delta.changes) {
+                    if (change.removed) {
+                        removed.add(change.stationId);
+                        continue;
+                    }
+                    String station = server.getEncodedStation(change.stationId);
+                    if (station != null) {  // Missing means it expired since; that shows up on the next poll
+                        updated.append(updated.length() == 0 ? "" : ",").append(station);
+                    }
+                }
+            } else {
+                byte[] all = server.getEncodedWeatherData();
+                updated.append(new String(all, 1, all.length - 2, StandardCharsets.UTF_8));  // Without its brackets
+            }
+
+            String body = "{\"since\":" + sinceClock
+                    + ",\"highWater\":" + delta.highWater
+                    + (delta.complete ? "" : ",\"reset\":true")
+                    + ",\"updated\":[" + updated + "]"
+                    + ",\"removed\":" + removed + "}";
+            sendResponse(out, os, "HTTP/1.1 200 OK", body.getBytes(StandardCharsets.UTF_8), "application/json");
+        }
+
+        // Value of a query parameter in a request line or path, or null if absent
+        static String queryParameter(String requestLine, String name) {
+            String target = requestLine;
+            String[] parts = requestLine.split(" ");
+            if (parts.length >= 2) {
+                target = parts[1];
+            }
+            int query = target.indexOf('?');
+            if (query == -1) {
+                return null;
+            }
+            for (String parameter : target.substring(query + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                String key = equals == -1 ? parameter : parameter.substring(0, equals);
+                if (key.equals(name)) {
+                    return equals == -1 ? "" : parameter.substring(equals + 1);
+                }
+            }
+            return null;
         }
 
         // Parse a JSON string into a Map
@@ -289,48 +1246,92 @@ public class AggregationServer {
 
         // Send HTTP response to the client
         private void sendResponse(PrintWriter out, String statusLine, String body, String contentType) {
-            int lamportClock = server.incrementLamportClock(); // Increment the clock before sending
-            out.println(statusLine);
-            out.println("Content-Type: " + contentType);
-            out.println("Lamport-Clock: " + lamportClock);
-            out.println("Content-Length: " + body.getBytes().length);
-            out.println(); // Empty line to indicate end of headers
-            out.println(body); // Send the response body
+            writeHeaders(out, statusLine, body.getBytes(StandardCharsets.UTF_8).length, contentType, null, null);
+            out.print(body); // Send exactly Content-Length bytes (out writes UTF-8) so the next response starts cleanly
             out.flush();
         }
-    }
-}
 
-// Class to hold weather data for a specific station
-class WeatherStationData implements Serializable {
-    private static final long serialVersionUID = 1L;
+        // Send HTTP response with an already encoded body, written straight to the socket stream
+        private void sendResponse(PrintWriter out, OutputStream os, String statusLine, byte[] body, String contentType) throws IOException {
+            sendResponse(out, os, statusLine, body, contentType, null);
+        }
 
-    private final Map<String, String> data = new HashMap<>(); // Weather data key-value pairs
-    private int lamportClock; // Lamport clock for data updates
-    private long lastUpdateTime; // Timestamp of the last update
+        // Send an encoded body with its ETag (none if null)
+        private void sendResponse(PrintWriter out, OutputStream os, String statusLine, byte[] body, String contentType, String etag) throws IOException {
+            sendResponse(out, os, statusLine, body, contentType, etag, null);
+        }
 
-    // Update weather data with new values
-    public void updateData(Map<String, String> newData) {
-        data.putAll(newData); // Add all new data
-    }
+        // Send an encoded body in a content coding (none if null)
+        private void sendResponse(PrintWriter out, OutputStream os, String statusLine, byte[] body, String contentType, String etag,
+                                  String contentEncoding) throws IOException {
+            writeHeaders(out, statusLine, body.length, contentType, etag, contentEncoding);
+            out.flush();
+            os.write(body);
+            os.flush();
+        }
 
-    // Set the Lamport clock value
-    public void setLamportClock(int clock) {
-        this.lamportClock = clock;
-    }
+        // Send every station as a chunked JSON array written straight from the store through one fixed-size buffer,
+        // compressed as it is written when a coding is given, so the memory a GET holds does not grow with the store
+        private void sendStreamedWeatherData(PrintWriter out, OutputStream os, String etag, String coding) throws IOException {
+            writeHeaders(out, "HTTP/1.1 200 OK", -1, "application/json", etag, coding);
+            out.flush();
+            ChunkedOutputStream body = new ChunkedOutputStream(os);
+            Writer json = new OutputStreamWriter(coding == null ? body : ContentEncoding.encoder(body, coding),
+                    StandardCharsets.UTF_8);
+            server.writeWeatherData(json);
+            json.close(); // Ends the compressed data and the chunked body; the connection stays open
+        }
 
-    // Get the last update timestamp
-    public long getLastUpdateTime() {
-        return lastUpdateTime;
-    }
+        // 304 for a conditional GET whose data has not changed: headers only, no body
+        private void sendNotModified(PrintWriter out, String etag) {
+            writeHeaders(out, "HTTP/1.1 304 Not Modified", -1, null, etag, null);
+            out.flush();
+        }
 
-    // Set the last update timestamp
-    public void setLastUpdateTime(long lastUpdateTime) {
-        this.lastUpdateTime = lastUpdateTime;
+        // Write the status line and headers, ending with the blank line; contentType null means no body, and a
+        // negative contentLength with a contentType means a chunked body
+        private void writeHeaders(PrintWriter out, String statusLine, int contentLength, String contentType, String etag,
+                                  String contentEncoding) {
+            long lamportClock = server.incrementLamportClock(); // Increment the clock before sending
+            out.println(statusLine);
+            if (contentType != null) {
+                out.println("Content-Type: " + contentType);
+            }
+            if (contentEncoding != null) {
+                out.println("Content-Encoding: " + contentEncoding);
+                out.println("Vary: Accept-Encoding");
+            }
+            out.println("Lamport-Clock: " + lamportClock);
+            if (contentType != null) {
+                out.println(contentLength >= 0 ? "Content-Length: " + contentLength : "Transfer-Encoding: chunked");
+            }
+            if (etag != null) {
+                out.println("ETag: " + etag);
+            }
+            if (keepAlive) {
+                out.println("Connection: keep-alive");
+                out.println("Keep-Alive: timeout=" + (KEEP_ALIVE_TIMEOUT_MILLIS / 1000) + ", max=" + remainingRequests);
+            } else {
+                out.println("Connection: close");
+            }
+            out.println(); // Empty line to indicate end of headers
+        }
     }
 
-    // Convert weather station data to JSON format
-    public String toJson() {
-        return new Gson().toJson(data);
+    // GET body bytes together with the data version they were encoded from, and its compressed forms
+    private static final class EncodedResponse {
+        final long version;
+        final byte[] body;
+        private final Map<String, byte[]> compressed = new ConcurrentHashMap<>();
+
+        EncodedResponse(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+
+        // The body in a content coding, compressed at most once per version and shared by every client at it
+        byte[] compressed(String coding) {
+            return compressed.computeIfAbsent(coding, c -> ContentEncoding.compress(body, c));
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Transfer-Encoding: chunked body writer over a connection's stream.
+// Bytes collect in one fixed-size buffer, which is sent as a chunk whenever it fills and reused for the next, so a
+// response of any length holds only the buffer. The chunk's size line and CRLF are framed around the data inside
+// the buffer, so each chunk is one write. finish() sends what is left and the last chunk; the connection itself
+// stays open for keep-alive.
+public class ChunkedOutputStream extends OutputStream {
+    static final int CHUNK_BYTES = 16 * 1024;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final int capacity;  // Data bytes per chunk
+    private final int dataStart;  // Room before the data for the size line
+    private final byte[] buffer;
+    private int count;  // Data bytes buffered
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, CHUNK_BYTES);
+    }
+
+    ChunkedOutputStream(OutputStream out, int chunkBytes) {
+        this.out = out;
+        this.capacity = chunkBytes;
+        this.dataStart = Integer.toHexString(chunkBytes).length() + 2;
+        this.buffer = new byte[dataStart + chunkBytes + 2];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == capacity) {
+            sendChunk();
+        }
+        buffer[dataStart + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == capacity) {
+                sendChunk();
+            }
+            int copied = Math.min(length, capacity - count);
+            System.arraycopy(bytes, offset, buffer, dataStart + count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    // Send the buffered bytes as a chunk; an empty buffer sends nothing, since a zero-length chunk ends the body
+    @Override
+    public void flush() throws IOException {
+        sendChunk();
+        out.flush();
+    }
+
+    // End the body: the buffered bytes, then the last chunk
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        sendChunk();
+        out.write(LAST_CHUNK);
+        out.flush();
+        finished = true;
+    }
+
+    // Finishes the body but leaves the connection open
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void sendChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        byte[] size = Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII);
+        int start = dataStart - size.length - 2;
+        System.arraycopy(size, 0, buffer, start, size.length);
+        buffer[dataStart - 2] = '\r';
+        buffer[dataStart - 1] = '\n';
+        buffer[dataStart + count] = '\r';
+        buffer[dataStart + count + 1] = '\n';
+        out.write(buffer, start, dataStart + count + 2 - start);
+        count = 0;
+    }
+}
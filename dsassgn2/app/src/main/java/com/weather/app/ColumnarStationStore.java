@@ -0,0 +1,601 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjLongConsumer;
+
+// Columnar (struct-of-arrays) store for station readings.
+// Each station gets an ordinal. The numeric observation fields live in one double[] or int[] column per field,
+// indexed by ordinal, and the low-cardinality text fields are dictionary-encoded into int[] code columns, so a
+// station costs a few hundred bytes of primitives instead of a HashMap of Strings, and a scan over one field walks
+// one array. Station ids are found through an open-addressing table of ordinals rather than boxed map entries.
+// A value a column cannot reproduce exactly (a fractional humidity, "13.30", a field outside the schema) goes to
+// a small per-station overflow map, so every PUT reads back exactly as it was sent.
+public class ColumnarStationStore implements StationStore {
+    // Schema: field positions are bit positions in the per-station presence mask
+    static final String[] DOUBLE_FIELDS = {"lat", "lon", "air_temp", "apparent_t", "dewpt", "press"};
+    static final String[] INT_FIELDS = {"rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+    static final String[] DICTIONARY_FIELDS = {"name", "state", "time_zone", "local_date_time", "cloud", "wind_dir"};
+    static final String TIMESTAMP_FIELD = "local_date_time_full";  // yyyyMMddHHmmss, kept as a long
+
+    static final int INT_BASE = DOUBLE_FIELDS.length;
+    static final int DICTIONARY_BASE = INT_BASE + INT_FIELDS.length;
+    static final int TIMESTAMP_BIT = DICTIONARY_BASE + DICTIONARY_FIELDS.length;
+    static final int WHOLE_SHIFT = 16;  // Presence bits 16+ mark doubles that were sent without a fraction
+    static final Map<String, Integer> FIELD_POSITIONS = new LinkedHashMap<>();
+
+    static {
+        for (int i = 0; i < DOUBLE_FIELDS.length; i++) {
+            FIELD_POSITIONS.put(DOUBLE_FIELDS[i], i);
+        }
+        for (int i = 0; i < INT_FIELDS.length; i++) {
+            FIELD_POSITIONS.put(INT_FIELDS[i], INT_BASE + i);
+        }
+        for (int i = 0; i < DICTIONARY_FIELDS.length; i++) {
+            FIELD_POSITIONS.put(DICTIONARY_FIELDS[i], DICTIONARY_BASE + i);
+        }
+        FIELD_POSITIONS.put(TIMESTAMP_FIELD, TIMESTAMP_BIT);
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Columns, all indexed by station ordinal
+    private String[] ids;
+    private final double[][] doubleColumns = new double[DOUBLE_FIELDS.length][];
+    private final int[][] intColumns = new int[INT_FIELDS.length][];
+    private final int[][] codeColumns = new int[DICTIONARY_FIELDS.length][];
+    private long[] timestamps;
+    private int[] presence;        // Which schema fields each station has
+    private long[] lamportClocks;
+    private long[] lastUpdateTimes;
+    private Map<String, String>[] overflow;  // Null for almost every station
+
+    private final Dictionary[] dictionaries = new Dictionary[DICTIONARY_FIELDS.length];
+
+    // Ordinal allocation: ordinals below highWater have been used; freed ones are reused first
+    private int highWater;
+    private int[] freeOrdinals = new int[16];
+    private int freeCount;
+    private int size;
+
+    // Open-addressing index from station id to ordinal + 1 (0 = empty slot, -1 = deleted slot)
+    private int[] table;
+    private int tableUsed;  // Live plus deleted slots
+
+    public ColumnarStationStore() {
+        this(1024);
+    }
+
+    // Pre-size the columns for an expected number of stations
+    public ColumnarStationStore(int expectedStations) {
+        int capacity = Math.max(16, expectedStations);
+        allocateColumns(capacity);
+        table = new int[tableSizeFor(capacity)];
+        for (int i = 0; i < dictionaries.length; i++) {
+            dictionaries[i] = new Dictionary();
+        }
+    }
+
+    // Merge a PUT's fields into a station; returns true if the station was new
+    @Override
+    public boolean put(String stationId, Map<String, String> fields, long lamportClock, long updateTime) {
+        lock.writeLock().lock();
+        try {
+            int ordinal = indexOf(stationId);
+            boolean isNew = ordinal < 0;
+            if (isNew) {
+                ordinal = allocate(stationId);
+            }
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                if (!"id".equals(field.getKey())) {
+                    setField(ordinal, field.getKey(), field.getValue());
+                }
+            }
+            lamportClocks[ordinal] = lamportClock;
+            lastUpdateTimes[ordinal] = updateTime;
+            return isNew;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Remove a station if it has not been updated for maxAgeMillis; returns true if it was removed
+    @Override
+    public boolean removeIfStale(String stationId, long currentTime, long maxAgeMillis) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(stationId);
+            if (slot < 0) {
+                return false;
+            }
+            int ordinal = table[slot] - 1;
+            if (currentTime - lastUpdateTimes[ordinal] < maxAgeMillis) {
+                return false;  // Refreshed by a PUT since its deadline was taken
+            }
+            table[slot] = -1;
+            ids[ordinal] = null;
+            presence[ordinal] = 0;
+            overflow[ordinal] = null;
+            if (freeCount == freeOrdinals.length) {
+                freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+            }
+            freeOrdinals[freeCount++] = ordinal;
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String stationId) {
+        lock.readLock().lock();
+        try {
+            return indexOf(stationId) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Decode one station back into its field map, or null if unknown
+    @Override
+    public Map<String, String> get(String stationId) {
+        lock.readLock().lock();
+        try {
+            int ordinal = indexOf(stationId);
+            if (ordinal < 0) {
+                return null;
+            }
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("id", stationId);
+            for (String field : FIELD_POSITIONS.keySet()) {
+                String value = fieldText(ordinal, FIELD_POSITIONS.get(field));
+                if (value != null) {
+                    fields.put(field, value);
+                }
+            }
+            if (overflow[ordinal] != null) {
+                fields.putAll(overflow[ordinal]);
+            }
+            return fields;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // JSON object of one station, in the same shape as WeatherStationData.toJson; null if unknown
+    public String toJson(String stationId) {
+        lock.readLock().lock();
+        try {
+            int ordinal = indexOf(stationId);
+            if (ordinal < 0) {
+                return null;
+            }
+            StringBuilder json = new StringBuilder(256);
+            appendStation(json, ordinal);
+            return json.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // JSON array of every station, as served to GET clients
+    @Override
+    public String toJsonArray() {
+        lock.readLock().lock();
+        try {
+            StringBuilder json = new StringBuilder(Math.max(16, size * 256));
+            json.append('[');
+            boolean isFirst = true;
+            for (int ordinal = 0; ordinal < highWater; ordinal++) {
+                if (ids[ordinal] == null) {
+                    continue;
+                }
+                if (!isFirst) {
+                    json.append(',');
+                }
+                appendStation(json, ordinal);
+                isFirst = false;
+            }
+            return json.append(']').toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The position is an ordinal. A station keeps its ordinal while it is stored, so no page repeats a station.
+    @Override
+    public int appendJsonPage(StringBuilder out, int position, int maxStations) {
+        lock.readLock().lock();
+        try {
+            int appended = 0;
+            int ordinal = position;
+            for (; ordinal < highWater && appended < maxStations; ordinal++) {
+                if (ids[ordinal] == null) {
+                    continue;
+                }
+                if (appended++ > 0) {
+                    out.append(',');
+                }
+                appendStation(out, ordinal);
+            }
+            return ordinal < highWater ? ordinal : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Write the data file layout used by the map store: {"<id>": {"data": {...}, "lamportClock": n, "lastUpdateTime": t}}
+    @Override
+    public void writeSnapshot(Writer writer) throws IOException {
+        lock.readLock().lock();
+        try {
+            StringBuilder entry = new StringBuilder(512);
+            writer.write('{');
+            boolean isFirst = true;
+            for (int ordinal = 0; ordinal < highWater; ordinal++) {
+                if (ids[ordinal] == null) {
+                    continue;
+                }
+                entry.setLength(0);
+                if (!isFirst) {
+                    entry.append(',');
+                }
+                appendQuoted(entry, ids[ordinal]);
+                entry.append(":{\"data\":");
+                appendStation(entry, ordinal);
+                entry.append(",\"lamportClock\":").append(lamportClocks[ordinal]);
+                entry.append(",\"lastUpdateTime\":").append(lastUpdateTimes[ordinal]).append('}');
+                writer.append(entry);
+                isFirst = false;
+            }
+            writer.write('}');
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachStation(ObjLongConsumer<String> action) {
+        lock.readLock().lock();
+        try {
+            for (int ordinal = 0; ordinal < highWater; ordinal++) {
+                if (ids[ordinal] != null) {
+                    action.accept(ids[ordinal], lastUpdateTimes[ordinal]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Statistics of one numeric field over every station that has it; walks a single column
+    public DoubleSummaryStatistics summarize(String field) {
+        Integer position = FIELD_POSITIONS.get(field);
+        if (position == null || position >= DICTIONARY_BASE) {
+            throw new IllegalArgumentException("Not a numeric column: " + field);
+        }
+        int bit = 1 << position;
+        DoubleSummaryStatistics statistics = new DoubleSummaryStatistics();
+        lock.readLock().lock();
+        try {
+            if (position < INT_BASE) {
+                double[] column = doubleColumns[position];
+                for (int ordinal = 0; ordinal < highWater; ordinal++) {
+                    if ((presence[ordinal] & bit) != 0) {
+                        statistics.accept(column[ordinal]);
+                    }
+                }
+            } else {
+                int[] column = intColumns[position - INT_BASE];
+                for (int ordinal = 0; ordinal < highWater; ordinal++) {
+                    if ((presence[ordinal] & bit) != 0) {
+                        statistics.accept(column[ordinal]);
+                    }
+                }
+            }
+            return statistics;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Store one field in its column, or in the overflow map if the column cannot reproduce it exactly
+    private void setField(int ordinal, String field, String value) {
+        Integer position = FIELD_POSITIONS.get(field);
+        boolean stored = position != null && value != null && setColumn(ordinal, position, value);
+        if (stored) {
+            if (overflow[ordinal] != null) {
+                overflow[ordinal].remove(field);
+            }
+            return;
+        }
+        if (position != null) {
+            presence[ordinal] &= ~(1 << position | 1 << (WHOLE_SHIFT + position));
+        }
+        if (overflow[ordinal] == null) {
+            overflow[ordinal] = new HashMap<>(4);
+        }
+        overflow[ordinal].put(field, value);
+    }
+
+    private boolean setColumn(int ordinal, int position, String value) {
+        int bit = 1 << position;
+        try {
+            if (position < INT_BASE) {
+                double parsed = Double.parseDouble(value);
+                boolean whole = isWholeNumber(value, parsed);
+                if (!whole && !Double.toString(parsed).equals(value)) {
+                    return false;
+                }
+                doubleColumns[position][ordinal] = parsed;
+                int wholeBit = 1 << (WHOLE_SHIFT + position);
+                presence[ordinal] = whole ? presence[ordinal] | bit | wholeBit : (presence[ordinal] | bit) & ~wholeBit;
+            } else if (position < DICTIONARY_BASE) {
+                int parsed = Integer.parseInt(value);
+                if (!Integer.toString(parsed).equals(value)) {
+                    return false;
+                }
+                intColumns[position - INT_BASE][ordinal] = parsed;
+                presence[ordinal] |= bit;
+            } else if (position < TIMESTAMP_BIT) {
+                codeColumns[position - DICTIONARY_BASE][ordinal] = dictionaries[position - DICTIONARY_BASE].encode(value);
+                presence[ordinal] |= bit;
+            } else {
+                long parsed = Long.parseLong(value);
+                if (!Long.toString(parsed).equals(value)) {
+                    return false;
+                }
+                timestamps[ordinal] = parsed;
+                presence[ordinal] |= bit;
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // "60" parses to 60.0 but must be written back as "60"
+    static boolean isWholeNumber(String value, double parsed) {
+        return Math.abs(parsed) < 1e15 && parsed == Math.rint(parsed)
+                && Long.toString((long) parsed).equals(value);
+    }
+
+    // Text of a schema field for a station, or null if the station does not have it in a column
+    private String fieldText(int ordinal, int position) {
+        if ((presence[ordinal] & 1 << position) == 0) {
+            return null;
+        }
+        if (position < INT_BASE) {
+            double value = doubleColumns[position][ordinal];
+            return (presence[ordinal] & 1 << (WHOLE_SHIFT + position)) != 0
+                    ? Long.toString((long) value) : Double.toString(value);
+        } else if (position < DICTIONARY_BASE) {
+            return Integer.toString(intColumns[position - INT_BASE][ordinal]);
+        } else if (position < TIMESTAMP_BIT) {
+            return dictionaries[position - DICTIONARY_BASE].decode(codeColumns[position - DICTIONARY_BASE][ordinal]);
+        }
+        return Long.toString(timestamps[ordinal]);
+    }
+
+    private void appendStation(StringBuilder json, int ordinal) {
+        json.append("{\"id\":");
+        appendQuoted(json, ids[ordinal]);
+        for (String field : DOUBLE_FIELDS) {
+            appendField(json, ordinal, field);
+        }
+        for (String field : INT_FIELDS) {
+            appendField(json, ordinal, field);
+        }
+        for (String field : DICTIONARY_FIELDS) {
+            appendField(json, ordinal, field);
+        }
+        appendField(json, ordinal, TIMESTAMP_FIELD);
+        if (overflow[ordinal] != null) {
+            for (Map.Entry<String, String> field : overflow[ordinal].entrySet()) {
+                json.append(',');
+                appendQuoted(json, field.getKey());
+                json.append(':');
+                appendQuoted(json, field.getValue());
+            }
+        }
+        json.append('}');
+    }
+
+    private void appendField(StringBuilder json, int ordinal, String field) {
+        String value = fieldText(ordinal, FIELD_POSITIONS.get(field));
+        if (value != null) {
+            json.append(',');
+            appendQuoted(json, field);
+            json.append(':');
+            appendQuoted(json, value);  // Values stay JSON strings, as in the map store
+        }
+    }
+
+    static void appendQuoted(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    // Take a free ordinal (or a new one) and index it under the station id
+    private int allocate(String stationId) {
+        int ordinal;
+        if (freeCount > 0) {
+            ordinal = freeOrdinals[--freeCount];
+        } else {
+            if (highWater == ids.length) {
+                growColumns(ids.length * 2);
+            }
+            ordinal = highWater++;
+        }
+        if ((tableUsed + 1) * 2 > table.length) {
+            rebuildTable(tableSizeFor(size + 1));  // Also drops deleted slots
+        }
+        ids[ordinal] = stationId;
+        presence[ordinal] = 0;
+        overflow[ordinal] = null;
+        size++;
+
+        int mask = table.length - 1;
+        int slot = hash(stationId) & mask;
+        while (table[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (table[slot] == 0) {
+            tableUsed++;  // Reusing a deleted slot does not add to the probe load
+        }
+        table[slot] = ordinal + 1;
+        return ordinal;
+    }
+
+    private int indexOf(String stationId) {
+        int slot = findSlot(stationId);
+        return slot < 0 ? -1 : table[slot] - 1;
+    }
+
+    private int findSlot(String stationId) {
+        int mask = table.length - 1;
+        int slot = hash(stationId) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (entry > 0 && stationId.equals(ids[entry - 1])) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rebuildTable(int tableSize) {
+        int[] rebuilt = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int ordinal = 0; ordinal < highWater; ordinal++) {
+            if (ids[ordinal] != null) {
+                int slot = hash(ids[ordinal]) & mask;
+                while (rebuilt[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                rebuilt[slot] = ordinal + 1;
+            }
+        }
+        table = rebuilt;
+        tableUsed = size;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int entries) {
+        int tableSize = 16;
+        while (tableSize < entries * 2) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    private void allocateColumns(int capacity) {
+        ids = new String[capacity];
+        for (int i = 0; i < doubleColumns.length; i++) {
+            doubleColumns[i] = new double[capacity];
+        }
+        for (int i = 0; i < intColumns.length; i++) {
+            intColumns[i] = new int[capacity];
+        }
+        for (int i = 0; i < codeColumns.length; i++) {
+            codeColumns[i] = new int[capacity];
+        }
+        timestamps = new long[capacity];
+        presence = new int[capacity];
+        lamportClocks = new long[capacity];
+        lastUpdateTimes = new long[capacity];
+        overflow = newOverflowColumn(capacity);
+    }
+
+    // Java cannot create a Map<String, String>[] directly; the cast is safe because only this class fills the array
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, String>[] newOverflowColumn(int capacity) {
+        return (Map<String, String>[]) new Map[capacity];
+    }
+
+    private void growColumns(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        for (int i = 0; i < doubleColumns.length; i++) {
+            doubleColumns[i] = Arrays.copyOf(doubleColumns[i], capacity);
+        }
+        for (int i = 0; i < intColumns.length; i++) {
+            intColumns[i] = Arrays.copyOf(intColumns[i], capacity);
+        }
+        for (int i = 0; i < codeColumns.length; i++) {
+            codeColumns[i] = Arrays.copyOf(codeColumns[i], capacity);
+        }
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        presence = Arrays.copyOf(presence, capacity);
+        lamportClocks = Arrays.copyOf(lamportClocks, capacity);
+        lastUpdateTimes = Arrays.copyOf(lastUpdateTimes, capacity);
+        overflow = Arrays.copyOf(overflow, capacity);
+    }
+
+    // Distinct values of one text field; each station stores only the code
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                values.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return values.get(code);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.weather.app;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class ContentServer {
@@ -19,20 +20,24 @@ public class ContentServer {
         String filePath = args[1]; // The file path containing weather data
 
         try {
-            // Read data from the specified file
-            Map<String, String> weatherData = readDataFromFile(filePath);
+            // Read every station from the specified file
+            List<Map<String, String>> stations = readStationsFromFile(filePath);
             // Check if data was read successfully
-            if (weatherData.isEmpty()) {
+            if (stations.isEmpty()) {
                 System.out.println("No data read from file.");
                 return; // Exit if no data is available
             }
 
-            // Convert the weather data map to a JSON string
-            String jsonData = convertToJson(weatherData);
+            // Convert the weather data to JSON; several stations go as one array in a single batch PUT
+            String jsonData = toPutBody(stations);
             // Send the JSON data to the server using a PUT request
             sendPutRequest(serverUrl, jsonData);
             // Confirm that the data is stored on the server as expected
-            confirmDataOnServer(serverUrl, weatherData.get("id"));
+            List<String> stationIds = new ArrayList<>();
+            for (Map<String, String> station : stations) {
+                stationIds.add(station.get("id"));
+            }
+            confirmDataOnServer(serverUrl, stationIds);
 
         } catch (IOException e) {
             // Handle any IO exceptions that may occur
@@ -40,11 +45,12 @@ public class ContentServer {
         }
     }
 
-    // Method to read key-value data from the specified file
-    private static Map<String, String> readDataFromFile(String filePath) throws IOException {
+    // Method to read the stations in the specified file; each "id" line after the first starts a new station
+    static List<Map<String, String>> readStationsFromFile(String filePath) throws IOException {
+        List<Map<String, String>> stations = new ArrayList<>();
         Map<String, String> dataMap = new HashMap<>(); // Map to store the key-value pairs
         // Use try-with-resources to ensure the BufferedReader is closed automatically
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8))) {
             String line;
             // Read each line from the file
             while ((line = br.readLine()) != null) {
@@ -52,11 +58,31 @@ public class ContentServer {
                 String[] kv = line.split(":", 2);
                 // Only add valid key-value pairs to the map
                 if (kv.length == 2) {
-                    dataMap.put(kv[0].trim(), kv[1].trim());
+                    String key = kv[0].trim();
+                    if (key.equals("id") && dataMap.containsKey("id")) {
+                        stations.add(dataMap); // The previous station is complete
+                        dataMap = new HashMap<>();
+                    }
+                    dataMap.put(key, kv[1].trim());
                 }
             }
         }
-        return dataMap; // Return the populated map
+        if (!dataMap.isEmpty()) {
+            stations.add(dataMap);
+        }
+        return stations; // Return the populated stations
+    }
+
+    // Body of the PUT: one station as a JSON object, several as a JSON array of them
+    static String toPutBody(List<Map<String, String>> stations) {
+        if (stations.size() == 1) {
+            return convertToJson(stations.get(0));
+        }
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        for (Map<String, String> station : stations) {
+            json.add(convertToJson(station));
+        }
+        return json.toString();
     }
 
     // Method to convert the data map to a JSON string
@@ -88,7 +114,8 @@ public class ContentServer {
             // Set the content type to JSON
             connection.setRequestProperty("Content-Type", "application/json");
             // Set the content length of the request
-            connection.setRequestProperty("Content-Length", String.valueOf(jsonData.length()));
+            byte[] body = jsonData.getBytes(StandardCharsets.UTF_8);
+            connection.setRequestProperty("Content-Length", String.valueOf(body.length));  // Bytes, not chars
             // Set User-Agent header
             connection.setRequestProperty("User-Agent", "ATOMClient/1/0");
             // Set Lamport-Clock header
@@ -97,7 +124,7 @@ public class ContentServer {
 
             // Write JSON data to the request body
             try (OutputStream os = connection.getOutputStream()) {
-                os.write(jsonData.getBytes()); // Convert JSON string to bytes and send
+                os.write(body); // Send the UTF-8 bytes counted above
                 os.flush(); // Ensure all data is sent
             }
 
@@ -156,7 +183,7 @@ public class ContentServer {
     }
 
     // Method to confirm that data is stored on the server as expected
-    private static void confirmDataOnServer(String serverUrl, String stationId) throws IOException {
+    private static void confirmDataOnServer(String serverUrl, List<String> stationIds) throws IOException {
         URL url = new URL(serverUrl);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("GET");
@@ -180,7 +207,7 @@ public class ContentServer {
         }
 
         if (responseCode == HttpURLConnection.HTTP_OK) {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
                 String line;
                 StringBuilder responseBody = new StringBuilder();
                 while ((line = in.readLine()) != null) {
@@ -188,10 +215,16 @@ public class ContentServer {
                 }
 
                 // Check if the data is present
-                if (responseBody.toString().contains("\"id\":\"" + stationId + "\"")) {
+                int found = 0;
+                for (String stationId : stationIds) {
+                    if (responseBody.toString().contains("\"id\":\"" + stationId + "\"")) {
+                        found++;
+                    }
+                }
+                if (found == stationIds.size()) {
                     System.out.println("Data confirmed on server.");
                 } else {
-                    System.out.println("Data not found on server.");
+                    System.out.println("Data not found on server for " + (stationIds.size() - found) + " of " + stationIds.size() + " stations.");
                 }
             }
         } else {
@@ -1,42 +1,86 @@
 package com.weather.app;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class GETClient {
 
     private static int lamportClock = 0; // Clock to manage synchronization
 
+    static final long WATCH_WAIT_MILLIS = 30000; // How long each watch request asks the server to hold it
+
+    private static final Map<String, String> etags = new HashMap<>(); // ETag of the last 200 response per server and path, sent back as If-None-Match
+
     public static void main(String[] args) {
+        boolean watch = false; // Follow changes with long-poll GETs
+        long pollSeconds = 0; // Repeat the GET at this interval, printing only changed data
+        while (args.length > 0 && args[args.length - 1].startsWith("--")) {
+            String option = args[args.length - 1];
+            if ("--watch".equals(option)) {
+                watch = true;
+            } else if (option.startsWith("--poll=")) {
+                try {
+                    pollSeconds = Long.parseLong(option.substring("--poll=".length()));
+                } catch (NumberFormatException e) {
+                    pollSeconds = -1;
+                }
+            } else {
+                break;
+            }
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+
         // Check for command-line arguments
-        if (args.length < 1) {
-            System.out.println("Usage: java GETClient <server-url> [station-id]");
+        if (args.length < 1 || pollSeconds < 0) {
+            System.out.println("Usage: java GETClient <server-url> [station-id[,station-id...]] [--watch | --poll=<seconds>]");
             return;
         }
 
         String serverUrl = args[0]; // Server URL from arguments
         String stationId = args.length > 1 ? args[1] : null; // Optional station ID
 
-        try {
-            // Initialize socket connection to the server
-            URL url = new URL(serverUrl);
-            Socket socket = new Socket(url.getHost(), url.getPort() == -1 ? 80 : url.getPort());
+        if (watch) {
+            watch(serverUrl, stationId);
+            return;
+        }
 
+        do {
+            try {
+                fetch(serverUrl, stationId);
+            } catch (Exception e) {
+                System.out.println("Client exception: " + e.getMessage());
+            }
+            if (pollSeconds > 0) {
+                try {
+                    Thread.sleep(pollSeconds * 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } while (pollSeconds > 0);
+    }
+
+    // Send one GET and print the response; data the client already has is answered with 304 and not printed again
+    static void fetch(String serverUrl, String stationId) throws IOException {
+        // Initialize socket connection to the server
+        URL url = new URL(serverUrl);
+        try (Socket socket = new Socket(url.getHost(), url.getPort() == -1 ? 80 : url.getPort())) {
             // Prepare input and output streams
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            InputStream in = new BufferedInputStream(socket.getInputStream()); // Read as bytes: the body may be compressed
 
             // Create and send the GET request
             String response = sendGetRequest(out, url, stationId);
 
             // Read and process the server response
             processServerResponse(in, response);
-
-            socket.close(); // Close the socket connection
-
-        } catch (Exception e) {
-            System.out.println("Client exception: " + e.getMessage());
         }
     }
 
@@ -45,7 +89,7 @@ public class GETClient {
         // Construct the request path
         String path = url.getPath();
         if (stationId != null) {
-            path += "?id=" + stationId; // Append station ID if provided
+            path += (stationId.contains(",") ? "?ids=" : "?id=") + stationId; // Append station ID(s) if provided
         }
 
         lamportClock++; // Increment Lamport clock
@@ -53,16 +97,78 @@ public class GETClient {
         out.println("Host: " + url.getHost()); // Specify the host
         out.println("Lamport-Clock: " + lamportClock); // Include Lamport clock
         out.println("User-Agent: GETClient/1/0");
+        out.println("Accept-Encoding: " + ContentEncoding.ACCEPTED); // Full GET bodies come back compressed
+        String etag = etags.get(url.getAuthority() + path);
+        if (etag != null) {
+            out.println("If-None-Match: " + etag); // Lets the server skip an unchanged body
+        }
         out.println("Connection: close"); // Request to close connection
         out.println(); // End of headers
 
-        return path; // Return the request path for later use
+        return url.getAuthority() + path; // Return the server and path, which key the ETag
+    }
+
+    // Print every station once, then each change as the server reports it
+    static void watch(String serverUrl, String stationId) {
+        long since = 0; // since=0 returns every station first
+        while (true) {
+            try {
+                since = watchOnce(new URL(serverUrl), stationId, since);
+            } catch (IOException e) {
+                System.out.println("Client exception: " + e.getMessage());
+                try {
+                    Thread.sleep(1000); // Back off before reconnecting
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // One long-poll GET: the server answers once a station changes after the since clock or the wait ends.
+    // Prints the changes and returns the high-water mark to poll from next.
+    static long watchOnce(URL url, String stationId, long since) throws IOException {
+        try (Socket socket = new Socket(url.getHost(), url.getPort() == -1 ? 80 : url.getPort())) {
+            socket.setSoTimeout((int) WATCH_WAIT_MILLIS + 10000); // The server holds the request for up to the wait
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            lamportClock++;
+            out.println("GET /weather.json?since=" + since + "&wait=" + WATCH_WAIT_MILLIS + " HTTP/1.1");
+            out.println("Host: " + url.getHost());
+            out.println("Lamport-Clock: " + lamportClock);
+            out.println("Accept-Encoding: " + ContentEncoding.ACCEPTED);
+            out.println("Connection: close");
+            out.println();
+
+            String statusLine = readLine(in);
+            if (statusLine == null || !statusLine.contains("200")) {
+                System.out.println("Status: " + statusLine);
+                return since;
+            }
+            Map<String, String> headers = readHeaders(in);
+            updateLamportClock(headers);
+
+            JsonObject delta = JsonParser.parseString(readBody(in, headers)).getAsJsonObject();
+            for (JsonElement station : delta.getAsJsonArray("updated")) {
+                if (stationId == null || stationId.equals(station.getAsJsonObject().get("id").getAsString())) {
+                    parseAndDisplayJson(station.toString());
+                }
+            }
+            for (JsonElement removed : delta.getAsJsonArray("removed")) {
+                if (stationId == null || stationId.equals(removed.getAsString())) {
+                    System.out.println("Station expired: " + removed.getAsString());
+                }
+            }
+            return delta.get("highWater").getAsLong();
+        }
     }
 
     // Method to process the server's response
-    private static void processServerResponse(BufferedReader in, String requestPath) throws IOException {
+    private static void processServerResponse(InputStream in, String requestKey) throws IOException {
         // Read the status line
-        String statusLine = in.readLine();
+        String statusLine = readLine(in);
         if (statusLine == null) {
             System.out.println("No response from server.");
             return;
@@ -72,33 +178,73 @@ public class GETClient {
         // Read headers and update Lamport clock
         Map<String, String> headers = readHeaders(in);
         updateLamportClock(headers);
-
-        // Get content length
-        int contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
-        String contentType = headers.getOrDefault("Content-Type", "text/plain");
+        if (statusLine.contains(" 304 ")) {
+            return; // Unchanged since the last response; nothing to display
+        }
+        if (statusLine.contains(" 200 ") && headers.containsKey("ETag")) {
+            etags.put(requestKey, headers.get("ETag"));
+        }
 
         // Read the response body
-        char[] bodyChars = new char[contentLength];
-        int totalRead = 0;
-        while (totalRead < contentLength) {
-            int read = in.read(bodyChars, totalRead, contentLength - totalRead);
-            if (read == -1) {
-                break;
-            }
-            totalRead += read;
-        }
-        String responseBody = new String(bodyChars);
+        String responseBody = readBody(in, headers);
 
         // Parse and display the response data
         parseAndDisplayJson(responseBody);
     }
 
+    // Read the body (Content-Length bytes, or every chunk of a chunked body) and undo its Content-Encoding
+    private static String readBody(InputStream in, Map<String, String> headers) throws IOException {
+        byte[] body = "chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))
+                ? readChunkedBody(in)
+                : in.readNBytes(Integer.parseInt(headers.getOrDefault("Content-Length", "0")));
+        try (InputStream decoded = ContentEncoding.decode(new ByteArrayInputStream(body), headers.get("Content-Encoding"))) {
+            return new String(decoded.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Read chunks until the last (empty) one and join their data
+    private static byte[] readChunkedBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("Response ended inside a chunked body");
+            }
+            int semicolon = sizeLine.indexOf(';'); // Chunk extensions are ignored
+            int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            if (size == 0) {
+                readHeaders(in); // Trailer section, up to the blank line
+                return body.toByteArray();
+            }
+            byte[] chunk = in.readNBytes(size);
+            if (chunk.length < size) {
+                throw new EOFException("Response ended inside a chunk");
+            }
+            body.write(chunk);
+            readLine(in); // CRLF after the chunk data
+        }
+    }
+
+    // Read one header line (without its line ending), or null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
     // Method to read headers from the response
-    private static Map<String, String> readHeaders(BufferedReader in) throws IOException {
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
         Map<String, String> headers = new HashMap<>();
         String headerLine;
 
-        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
+        while ((headerLine = readLine(in)) != null && !headerLine.isEmpty()) {
             String[] headerParts = headerLine.split(": ", 2);
             if (headerParts.length == 2) {
                 headers.put(headerParts[0], headerParts[1]); // Store headers in a map
@@ -0,0 +1,54 @@
+package com.weather.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A class that simulates a Lamport clock for event ordering in distributed systems
+// Lock-free: tick is a single atomic increment and update is a compare-and-set loop, so request threads never
+// block on the clock. The value is 64-bit so it cannot wrap on a long-running server.
+public class LamportClock {
+    private final AtomicLong clockValue = new AtomicLong();  // The current clock value
+
+    // Constructor that initializes the Lamport clock to 0
+    public LamportClock() {
+    }
+
+    // Advance the clock for a local event and return the new value
+    public long tick() {
+        return clockValue.incrementAndGet();
+    }
+
+    // Advance the clock for count local events at once and return the last value; the events own the
+    // consecutive values ending there, so a batch of updates costs one atomic add
+    public long tickRange(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive: " + count);
+        }
+        return clockValue.addAndGet(count);
+    }
+
+    // Method to increment the clock value when a local event occurs
+    public void increment() {
+        tick();
+    }
+
+    // Method to update the clock when a message is received from another process
+    // It takes the maximum of the local clock and the received clock, then increments by 1, and returns the new value
+    public long update(long receivedClock) {
+        long current = clockValue.get();
+        if (receivedClock <= current) {
+            return clockValue.incrementAndGet();  // The clock only grows, so the received value stays below it
+        }
+        while (true) {
+            long next = Math.max(current, receivedClock) + 1;
+            if (clockValue.compareAndSet(current, next)) {
+                return next;
+            }
+            current = clockValue.get();
+        }
+    }
+
+    // Method to return the current clock value
+    public long getClock() {
+        return clockValue.get();
+    }
+}
@@ -0,0 +1,562 @@
+package com.weather.app;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+import static com.weather.app.ColumnarStationStore.*;
+
+// Off-heap station store: fixed-size records in a memory-mapped file that is both the live store and its
+// persistent copy.
+// The file is an open-addressing hash table of 512-byte slots keyed by station id, so finding a station probes
+// the mapping directly and nothing per station is kept on the heap. Numeric fields are stored as doubles/ints
+// (with the same presence bits as ColumnarStationStore) and text fields in fixed-width UTF-8 cells; values that
+// do not fit their cell, or fields outside the schema, go to a small JSON overflow area in the slot. A PUT
+// rewrites its slot in place and is made durable by forcing just that slot's pages. Restart maps the file and
+// checks slot checksums; no JSON is parsed. The table is rebuilt into a file twice the size when it fills up.
+public class MappedStationStore implements StationStore {
+    static final int SLOT_SIZE = 512;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x57535432;  // "WST2"
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;  // One mapping is at most 2 GB
+
+    // Slot states
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 2;  // Keeps probe chains intact
+
+    // Slot layout (byte offsets)
+    private static final int CRC_OFFSET = 0;        // CRC32 of bytes 4..SLOT_SIZE
+    private static final int STATE_OFFSET = 4;
+    private static final int PRESENCE_OFFSET = 8;
+    private static final int CLOCK_OFFSET = 16;
+    private static final int UPDATED_OFFSET = 24;
+    private static final int DOUBLES_OFFSET = 32;   // DOUBLE_FIELDS, 8 bytes each
+    private static final int INTS_OFFSET = 80;      // INT_FIELDS, 4 bytes each
+    private static final int TIMESTAMP_OFFSET = 96;
+    private static final int ID_OFFSET = 104;
+    private static final int ID_WIDTH = 40;
+    private static final int[] TEXT_WIDTHS = {80, 16, 16, 24, 48, 16};  // Cells for DICTIONARY_FIELDS, in order
+    private static final int TEXT_OFFSET = ID_OFFSET + ID_WIDTH;
+    private static final int OVERFLOW_OFFSET = 344;
+    private static final int OVERFLOW_WIDTH = SLOT_SIZE - OVERFLOW_OFFSET;
+
+    private static final Gson GSON = new Gson();
+    private static final Type FIELD_MAP_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+
+    private final Path path;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;  // Slots; always a power of two
+    private int size;      // Live slots
+    private int used;      // Live plus deleted slots
+
+    private MappedStationStore(Path path) {
+        this.path = path;
+    }
+
+    // Map an existing store file, or create one with room for initialCapacity stations
+    public static MappedStationStore open(Path path, int initialCapacity) throws IOException {
+        MappedStationStore store = new MappedStationStore(path);
+        if (Files.exists(path) && Files.size(path) >= HEADER_SIZE) {
+            store.map(path);
+            store.recover();
+        } else {
+            store.create(path, tableSizeFor(initialCapacity));
+        }
+        return store;
+    }
+
+    @Override
+    public boolean put(String stationId, Map<String, String> fields, long lamportClock, long updateTime) throws IOException {
+        byte[] id = stationId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > ID_WIDTH - 2) {
+            throw new IllegalArgumentException("Station id longer than " + (ID_WIDTH - 2) + " bytes: " + stationId);
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(stationId, id);
+            boolean isNew = slot < 0;
+            Map<String, String> merged = isNew ? new HashMap<>() : decode(slot);
+            merged.putAll(fields);
+            merged.remove("id");
+            byte[] record = encode(id, merged, lamportClock, updateTime);  // Fails before anything is changed
+            if (isNew) {
+                if ((used + 1) * 10L > capacity * 7L) {
+                    resize(tableSizeFor(size + 1));
+                }
+                slot = freeSlot(stationId);
+                if (buffer.get(offset(slot) + STATE_OFFSET) == EMPTY) {
+                    used++;
+                }
+                size++;
+            }
+            buffer.put(offset(slot), record);
+            return isNew;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeIfStale(String stationId, long currentTime, long maxAgeMillis) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(stationId, stationId.getBytes(StandardCharsets.UTF_8));
+            if (slot < 0 || currentTime - buffer.getLong(offset(slot) + UPDATED_OFFSET) < maxAgeMillis) {
+                return false;
+            }
+            buffer.put(offset(slot) + STATE_OFFSET, DELETED);
+            writeChecksum(slot);
+            buffer.force(offset(slot), SLOT_SIZE);  // Durable now, so the station stays expired after a restart
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> get(String stationId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(stationId, stationId.getBytes(StandardCharsets.UTF_8));
+            if (slot < 0) {
+                return null;
+            }
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("id", stationId);
+            fields.putAll(decode(slot));
+            return fields;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String stationId) {
+        lock.readLock().lock();
+        try {
+            return findSlot(stationId, stationId.getBytes(StandardCharsets.UTF_8)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getCapacity() {
+        lock.readLock().lock();
+        try {
+            return capacity;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toJsonArray() {
+        lock.readLock().lock();
+        try {
+            StringBuilder json = new StringBuilder(Math.max(16, size * 256));
+            json.append('[');
+            boolean isFirst = true;
+            for (int slot = 0; slot < capacity; slot++) {
+                if (buffer.get(offset(slot) + STATE_OFFSET) != LIVE) {
+                    continue;
+                }
+                if (!isFirst) {
+                    json.append(',');
+                }
+                appendStation(json, slot);
+                isFirst = false;
+            }
+            return json.append(']').toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachStation(ObjLongConsumer<String> action) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                if (buffer.get(offset(slot) + STATE_OFFSET) == LIVE) {
+                    action.accept(readText(offset(slot) + ID_OFFSET), buffer.getLong(offset(slot) + UPDATED_OFFSET));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void writeSnapshot(Writer writer) throws IOException {
+        lock.readLock().lock();
+        try {
+            StringBuilder entry = new StringBuilder(512);
+            writer.write('{');
+            boolean isFirst = true;
+            for (int slot = 0; slot < capacity; slot++) {
+                int base = offset(slot);
+                if (buffer.get(base + STATE_OFFSET) != LIVE) {
+                    continue;
+                }
+                entry.setLength(0);
+                if (!isFirst) {
+                    entry.append(',');
+                }
+                appendQuoted(entry, readText(base + ID_OFFSET));
+                entry.append(":{\"data\":");
+                appendStation(entry, slot);
+                entry.append(",\"lamportClock\":").append(buffer.getLong(base + CLOCK_OFFSET));
+                entry.append(",\"lastUpdateTime\":").append(buffer.getLong(base + UPDATED_OFFSET)).append('}');
+                writer.append(entry);
+                isFirst = false;
+            }
+            writer.write('}');
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    // Force only the slots of the given live stations; removeIfStale forces a removed station's slot itself
+    @Override
+    public void force(Collection<String> stationIds) throws IOException {
+        lock.readLock().lock();
+        try {
+            for (String stationId : new HashSet<>(stationIds)) {
+                int slot = findSlot(stationId, stationId.getBytes(StandardCharsets.UTF_8));
+                if (slot >= 0) {
+                    buffer.force(offset(slot), SLOT_SIZE);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Unmapping is left to the garbage collector; closing the channel releases the file handle
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Build a complete slot image; throws IllegalArgumentException if the overflow fields do not fit
+    private static byte[] encode(byte[] id, Map<String, String> fields, long lamportClock, long updateTime) {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        Map<String, String> overflow = new TreeMap<>();
+        int presence = 0;
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            Integer position = FIELD_POSITIONS.get(field.getKey());
+            String value = field.getValue();
+            int bits = position == null || value == null ? -1 : encodeField(slot, position, value);
+            if (bits < 0) {
+                overflow.put(field.getKey(), value);
+            } else {
+                presence |= bits;
+            }
+        }
+        slot.put(STATE_OFFSET, LIVE);
+        slot.putInt(PRESENCE_OFFSET, presence);
+        slot.putLong(CLOCK_OFFSET, lamportClock);
+        slot.putLong(UPDATED_OFFSET, updateTime);
+        putText(slot, ID_OFFSET, ID_WIDTH, id);
+        if (!overflow.isEmpty()) {
+            byte[] json = GSON.toJson(overflow).getBytes(StandardCharsets.UTF_8);
+            if (json.length > OVERFLOW_WIDTH - 2) {
+                throw new IllegalArgumentException("Station record does not fit in " + SLOT_SIZE + " bytes");
+            }
+            putText(slot, OVERFLOW_OFFSET, OVERFLOW_WIDTH, json);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 4, SLOT_SIZE - 4);
+        slot.putInt(CRC_OFFSET, (int) crc.getValue());
+        return slot.array();
+    }
+
+    // Store one schema field in the slot image; returns its presence bits, or -1 if it must go to overflow
+    private static int encodeField(ByteBuffer slot, int position, String value) {
+        int bit = 1 << position;
+        try {
+            if (position < INT_BASE) {
+                double parsed = Double.parseDouble(value);
+                boolean whole = isWholeNumber(value, parsed);
+                if (!whole && !Double.toString(parsed).equals(value)) {
+                    return -1;
+                }
+                slot.putDouble(DOUBLES_OFFSET + position * 8, parsed);
+                return whole ? bit | 1 << (WHOLE_SHIFT + position) : bit;
+            } else if (position < DICTIONARY_BASE) {
+                int parsed = Integer.parseInt(value);
+                if (!Integer.toString(parsed).equals(value)) {
+                    return -1;
+                }
+                slot.putInt(INTS_OFFSET + (position - INT_BASE) * 4, parsed);
+                return bit;
+            } else if (position < TIMESTAMP_BIT) {
+                int cell = position - DICTIONARY_BASE;
+                byte[] text = value.getBytes(StandardCharsets.UTF_8);
+                if (text.length > TEXT_WIDTHS[cell] - 2) {
+                    return -1;
+                }
+                putText(slot, textOffset(cell), TEXT_WIDTHS[cell], text);
+                return bit;
+            }
+            long parsed = Long.parseLong(value);
+            if (!Long.toString(parsed).equals(value)) {
+                return -1;
+            }
+            slot.putLong(TIMESTAMP_OFFSET, parsed);
+            return bit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Field map of a live slot, without the id
+    private Map<String, String> decode(int slot) {
+        int base = offset(slot);
+        int presence = buffer.getInt(base + PRESENCE_OFFSET);
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> field : FIELD_POSITIONS.entrySet()) {
+            int position = field.getValue();
+            if ((presence & 1 << position) == 0) {
+                continue;
+            }
+            String value;
+            if (position < INT_BASE) {
+                double number = buffer.getDouble(base + DOUBLES_OFFSET + position * 8);
+                value = (presence & 1 << (WHOLE_SHIFT + position)) != 0 ? Long.toString((long) number) : Double.toString(number);
+            } else if (position < DICTIONARY_BASE) {
+                value = Integer.toString(buffer.getInt(base + INTS_OFFSET + (position - INT_BASE) * 4));
+            } else if (position < TIMESTAMP_BIT) {
+                value = readText(base + textOffset(position - DICTIONARY_BASE));
+            } else {
+                value = Long.toString(buffer.getLong(base + TIMESTAMP_OFFSET));
+            }
+            fields.put(field.getKey(), value);
+        }
+        String overflow = readText(base + OVERFLOW_OFFSET);
+        if (!overflow.isEmpty()) {
+            fields.putAll(GSON.<Map<String, String>>fromJson(overflow, FIELD_MAP_TYPE));
+        }
+        return fields;
+    }
+
+    private void appendStation(StringBuilder json, int slot) {
+        json.append("{\"id\":");
+        appendQuoted(json, readText(offset(slot) + ID_OFFSET));
+        for (Map.Entry<String, String> field : decode(slot).entrySet()) {
+            json.append(',');
+            appendQuoted(json, field.getKey());
+            json.append(':');
+            appendQuoted(json, field.getValue());
+        }
+        json.append('}');
+    }
+
+    private static int textOffset(int cell) {
+        int offset = TEXT_OFFSET;
+        for (int i = 0; i < cell; i++) {
+            offset += TEXT_WIDTHS[i];
+        }
+        return offset;
+    }
+
+    // Text cells hold a 2-byte length followed by UTF-8 bytes
+    private static void putText(ByteBuffer slot, int offset, int width, byte[] text) {
+        slot.putShort(offset, (short) text.length);
+        slot.put(offset + 2, text, 0, Math.min(text.length, width - 2));
+    }
+
+    private String readText(int offset) {
+        int length = buffer.getShort(offset);
+        byte[] text = new byte[length];
+        buffer.get(offset + 2, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    // Slot holding the station, or -1
+    private int findSlot(String stationId, byte[] id) {
+        int mask = capacity - 1;
+        int slot = hash(stationId) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int base = offset(slot);
+            byte state = buffer.get(base + STATE_OFFSET);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == LIVE && idEquals(base, id)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // First empty or deleted slot on the station's probe chain
+    private int freeSlot(String stationId) {
+        int mask = capacity - 1;
+        int slot = hash(stationId) & mask;
+        while (buffer.get(offset(slot) + STATE_OFFSET) == LIVE) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean idEquals(int base, byte[] id) {
+        if (buffer.getShort(base + ID_OFFSET) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (buffer.get(base + ID_OFFSET + 2 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeChecksum(int slot) {
+        byte[] image = new byte[SLOT_SIZE];
+        buffer.get(offset(slot), image);
+        CRC32 crc = new CRC32();
+        crc.update(image, 4, SLOT_SIZE - 4);
+        buffer.putInt(offset(slot) + CRC_OFFSET, (int) crc.getValue());
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Power of two that keeps the table at most half full
+    private static int tableSizeFor(int stations) {
+        int tableSize = 16;
+        while (tableSize < stations * 2L) {
+            tableSize <<= 1;
+        }
+        if (tableSize > MAX_CAPACITY) {
+            throw new IllegalStateException("Too many stations for one mapped file: " + stations);
+        }
+        return tableSize;
+    }
+
+    private void create(Path file, int slots) throws IOException {
+        try (FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = created.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, SLOT_SIZE);
+            header.putInt(8, slots);
+            header.force();
+        }
+        map(file);
+    }
+
+    private void map(Path file) throws IOException {
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer header = opened.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != SLOT_SIZE) {
+                throw new IOException("Not a station store file: " + file);
+            }
+            int slots = header.getInt(8);
+            long length = HEADER_SIZE + (long) slots * SLOT_SIZE;
+            if (Integer.bitCount(slots) != 1 || opened.size() < length) {
+                throw new IOException("Truncated station store file: " + file);
+            }
+            buffer = opened.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            channel = opened;
+            capacity = slots;
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e;
+        }
+    }
+
+    // Count live slots and retire any whose checksum does not match (a write torn by a crash)
+    private void recover() {
+        byte[] image = new byte[SLOT_SIZE];
+        CRC32 crc = new CRC32();
+        size = 0;
+        used = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            byte state = buffer.get(offset(slot) + STATE_OFFSET);
+            if (state == EMPTY) {
+                continue;
+            }
+            used++;
+            buffer.get(offset(slot), image);
+            crc.reset();
+            crc.update(image, 4, SLOT_SIZE - 4);
+            if (state == LIVE && buffer.getInt(offset(slot) + CRC_OFFSET) == (int) crc.getValue()) {
+                size++;
+            } else if (state == LIVE) {
+                System.err.println("Discarding corrupt station record in slot " + slot);
+                buffer.put(offset(slot) + STATE_OFFSET, DELETED);
+                writeChecksum(slot);
+            }
+        }
+    }
+
+    // Rehash every live slot into a new file, then atomically replace the old one
+    private void resize(int slots) throws IOException {
+        Path resized = Paths.get(path + ".resize");
+        MappedStationStore target = new MappedStationStore(resized);
+        target.create(resized, slots);
+        byte[] image = new byte[SLOT_SIZE];
+        for (int slot = 0; slot < capacity; slot++) {
+            if (buffer.get(offset(slot) + STATE_OFFSET) == LIVE) {
+                buffer.get(offset(slot), image);
+                int moved = target.freeSlot(readText(offset(slot) + ID_OFFSET));
+                target.buffer.put(offset(moved), image);
+            }
+        }
+        target.close();
+        channel.close();
+        Files.move(resized, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        map(path);
+        used = size;
+    }
+}
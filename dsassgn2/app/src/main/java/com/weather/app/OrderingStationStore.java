@@ -0,0 +1,26 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Station store that orders each station's PUTs by Lamport clock and expires its stations itself, on the thread
+// that owns the station. The server skips StationClocks and its ExpiryIndex for such a store and calls putInOrder
+// instead of put.
+public interface OrderingStationStore extends StationStore {
+    // put, unless an update for the station with a newer updateClock was applied first (UNORDERED is never stale);
+    // returns null for a stale update
+    Boolean putInOrder(String stationId, Map<String, String> fields, long updateClock, long lamportClock,
+                       long updateTime) throws IOException;
+
+    // Expire every station whose deadline is at or before currentTime; returns how many were removed. The store
+    // also expires stations on its own as their deadlines pass.
+    int expireDue(long currentTime);
+
+    // Told about each change the store applies, on the thread that applied it, so the server's change log sees
+    // one station's changes in the order they were applied
+    interface ChangeListener {
+        void updated(String stationId);
+
+        void expired(String stationId);
+    }
+}
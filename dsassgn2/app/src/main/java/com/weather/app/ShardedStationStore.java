@@ -0,0 +1,615 @@
+package com.weather.app;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+
+// Thread-per-core station store: station ids hash to N partitions, and each partition is owned by one thread.
+// The owner is the only thread that touches its partition's map, files, per-station Lamport clocks and expiry
+// deadlines, so PUTs on different partitions share nothing (no station locks, no shared map, no shared file, no
+// shared expiry index) and ingest scales with the number of partitions. Other threads send work through the
+// partition's queue. The owner drains its queue, applies the whole batch, then appends one line per changed
+// station to its own log (weatherData.shard-<i>.log) and forces it once, so a PUT returns already durable, the
+// PUTs of one partition share one fsync and a PUT costs the same however many stations the partition holds.
+// Once superseded lines dominate the log, the owner writes its stations to a snapshot segment
+// (weatherData.shard-<i>.json) and empties the log. Changes the owner applies are reported to a ChangeListener
+// on the owner thread. Reads (GET, snapshot, expiry scans) are sent to every partition and gathered; each
+// partition renders its share in parallel on its own thread.
+public class ShardedStationStore implements OrderingStationStore {
+    static final String SEGMENT_PREFIX = "weatherData.shard-";
+    static final String SEGMENT_SUFFIX = ".json";
+    static final String LOG_SUFFIX = ".log";
+    static final int MAX_BATCH = 256;  // Operations applied per log append at most
+    static final int COMPACT_MIN_RECORDS = 1024;  // Never compact logs smaller than this
+
+    private static final Gson GSON = new Gson();
+    private static final Type SEGMENT_TYPE = new TypeToken<Map<String, WeatherStationData>>() {}.getType();
+
+    private final Partition[] partitions;
+
+    private ShardedStationStore(Path directory, int partitionCount, long expiryMillis, ChangeListener listener) {
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i, directory.resolve(SEGMENT_PREFIX + i + SEGMENT_SUFFIX),
+                    directory.resolve(SEGMENT_PREFIX + i + LOG_SUFFIX), expiryMillis, listener);
+        }
+    }
+
+    // Load the store without expiry or a listener; stations are only removed through removeIfStale
+    public static ShardedStationStore open(Path directory, int partitionCount) throws IOException {
+        return open(directory, partitionCount, 0, null);
+    }
+
+    // Load the segments and logs in the directory into partitionCount partitions and start their owner threads.
+    // Each owner expires its stations expiryMillis after their last update (never if it is 0) and reports its
+    // changes to the listener, if there is one. Files written with a different partition count are re-routed
+    // and compacted.
+    public static ShardedStationStore open(Path directory, int partitionCount, long expiryMillis,
+                                           ChangeListener listener) throws IOException {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Partition count must be positive: " + partitionCount);
+        }
+        ShardedStationStore store = new ShardedStationStore(directory, partitionCount, expiryMillis, listener);
+        boolean reshard = false;
+        List<Path> orphans = new ArrayList<>();  // Files of partitions that no longer exist
+        for (Path segment : list(directory, SEGMENT_SUFFIX)) {
+            Map<String, WeatherStationData> stations;
+            try (Reader reader = Files.newBufferedReader(segment)) {
+                stations = GSON.fromJson(reader, SEGMENT_TYPE);
+            }
+            int index = fileIndex(segment, SEGMENT_SUFFIX);
+            if (stations != null) {
+                for (Map.Entry<String, WeatherStationData> entry : stations.entrySet()) {
+                    Partition owner = store.partitionOf(entry.getKey());
+                    owner.stations.put(entry.getKey(), entry.getValue());
+                    reshard |= owner.index != index;
+                }
+            }
+            if (index < 0 || index >= partitionCount) {
+                orphans.add(segment);  // Its stations now belong to other partitions
+                reshard = true;
+            }
+        }
+        for (Path log : list(directory, LOG_SUFFIX)) {  // After every segment: a log is newer than its segment
+            int index = fileIndex(log, LOG_SUFFIX);
+            reshard |= store.replay(log, index);
+            if (index < 0 || index >= partitionCount) {
+                orphans.add(log);
+                reshard = true;
+            }
+        }
+        for (Partition partition : store.partitions) {
+            partition.size = partition.stations.size();
+            partition.openLog();
+            if (reshard) {
+                partition.compact();
+            }
+            partition.stations.forEach((stationId, station) -> partition.scheduleExpiry(stationId, station.getLastUpdateTime()));
+        }
+        for (Path orphan : orphans) {
+            Files.delete(orphan);  // Only once the partitions that took over its stations are compacted
+        }
+        for (Partition partition : store.partitions) {
+            partition.thread.start();
+        }
+        return store;
+    }
+
+    @Override
+    public boolean put(String stationId, Map<String, String> fields, long lamportClock, long updateTime) throws IOException {
+        return putInOrder(stationId, fields, StationClocks.UNORDERED, lamportClock, updateTime);
+    }
+
+    // Runs on the station's owner thread, which alone holds the station's applied clock
+    @Override
+    public Boolean putInOrder(String stationId, Map<String, String> fields, long updateClock, long lamportClock,
+                              long updateTime) throws IOException {
+        Partition partition = partitionOf(stationId);
+        return join(partition.submit(Kind.WRITE, stations -> {
+            Long applied = partition.applied.get(stationId);
+            if (updateClock != StationClocks.UNORDERED && applied != null && updateClock < applied) {
+                return null;  // A newer update for the station was applied first
+            }
+            WeatherStationData station = stations.get(stationId);
+            boolean isNew = station == null;
+            if (isNew) {
+                station = new WeatherStationData();
+                stations.put(stationId, station);
+            }
+            station.updateData(fields);
+            station.setLamportClock(lamportClock);
+            station.setLastUpdateTime(updateTime);
+            if (updateClock != StationClocks.UNORDERED && (applied == null || updateClock > applied)) {
+                partition.applied.put(stationId, updateClock);
+            }
+            partition.scheduleExpiry(stationId, updateTime);
+            partition.logUpdate(stationId, station);
+            if (partition.listener != null) {
+                partition.listener.updated(stationId);
+            }
+            return isNew;
+        }));
+    }
+
+    @Override
+    public int expireDue(long currentTime) {
+        int removed = 0;
+        List<CompletableFuture<Integer>> pending = new ArrayList<>(partitions.length);
+        for (Partition partition : partitions) {
+            pending.add(partition.submit(Kind.REMOVE, stations -> partition.expireDue(currentTime)));
+        }
+        for (CompletableFuture<Integer> future : pending) {
+            removed += future.join();
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeIfStale(String stationId, long currentTime, long maxAgeMillis) {
+        Partition partition = partitionOf(stationId);
+        return partition.submit(Kind.REMOVE, stations -> {
+            WeatherStationData station = stations.get(stationId);
+            if (station == null || currentTime - station.getLastUpdateTime() < maxAgeMillis) {
+                return false;
+            }
+            partition.remove(stationId);
+            return true;  // The log records the removal with this batch's append
+        }).join();
+    }
+
+    @Override
+    public Map<String, String> get(String stationId) {
+        return partitionOf(stationId).submit(Kind.READ, stations -> {
+            WeatherStationData station = stations.get(stationId);
+            return station == null ? null : new LinkedHashMap<>(station.getData());
+        }).join();
+    }
+
+    @Override
+    public boolean contains(String stationId) {
+        return partitionOf(stationId).submit(Kind.READ, stations -> stations.containsKey(stationId)).join();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.size;
+        }
+        return size;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    @Override
+    public String toJsonArray() {
+        StringBuilder json = new StringBuilder("[");
+        for (String part : gather(stations -> {
+            StringBuilder share = new StringBuilder(stations.size() * 256);
+            for (WeatherStationData station : stations.values()) {
+                if (share.length() > 0) {
+                    share.append(',');
+                }
+                share.append(station.toJson());
+            }
+            return share.toString();
+        })) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(part);
+        }
+        return json.append(']').toString();
+    }
+
+    // A page is one partition, rendered by its owner thread; the position is the partition index
+    @Override
+    public int appendJsonPage(StringBuilder out, int position, int maxStations) {
+        if (position >= partitions.length) {
+            return -1;
+        }
+        out.append(partitions[position].submit(Kind.READ, stations -> {
+            StringBuilder share = new StringBuilder(stations.size() * 256);
+            for (WeatherStationData station : stations.values()) {
+                if (share.length() > 0) {
+                    share.append(',');
+                }
+                share.append(station.toJson());
+            }
+            return share;
+        }).join());
+        return position + 1 < partitions.length ? position + 1 : -1;
+    }
+
+    @Override
+    public void forEachStation(ObjLongConsumer<String> action) {
+        for (Map<String, Long> share : gather(stations -> {
+            Map<String, Long> updateTimes = new HashMap<>();
+            stations.forEach((stationId, station) -> updateTimes.put(stationId, station.getLastUpdateTime()));
+            return updateTimes;
+        })) {
+            share.forEach(action::accept);
+        }
+    }
+
+    @Override
+    public void writeSnapshot(Writer writer) throws IOException {
+        JsonObject snapshot = new JsonObject();
+        for (JsonObject share : gather(stations -> GSON.toJsonTree(stations, SEGMENT_TYPE).getAsJsonObject())) {
+            share.entrySet().forEach(entry -> snapshot.add(entry.getKey(), entry.getValue()));
+        }
+        GSON.toJson(snapshot, writer);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public boolean persistsOnPut() {
+        return true;
+    }
+
+    // Stop every owner thread once its queued work is done, then close the logs
+    public void close() throws InterruptedException {
+        for (Partition partition : partitions) {
+            partition.queue.add(Partition.STOP);
+        }
+        for (Partition partition : partitions) {
+            partition.thread.join();
+            partition.closeLog();
+        }
+    }
+
+    // Partition that owns a station
+    private Partition partitionOf(String stationId) {
+        int hash = stationId.hashCode();
+        return partitions[Math.floorMod(hash ^ (hash >>> 16), partitions.length)];
+    }
+
+    // Apply the intact lines of a log written by partition index to the partitions that own their stations now;
+    // returns true if any of them belongs to another partition. A torn last line, from a crash in the middle of
+    // an append, is cut off.
+    private boolean replay(Path log, int index) throws IOException {
+        byte[] bytes = Files.readAllBytes(log);
+        boolean rerouted = false;
+        int validEnd = 0;
+        for (int start = 0, end; (end = indexOf(bytes, (byte) '\n', start)) != -1; start = end + 1) {
+            LogRecord record;
+            try {
+                record = GSON.fromJson(new String(bytes, start, end - start, StandardCharsets.UTF_8), LogRecord.class);
+            } catch (JsonParseException e) {
+                break;
+            }
+            if (record == null || record.id == null) {
+                break;
+            }
+            Partition owner = partitionOf(record.id);
+            if (record.station != null) {
+                owner.stations.put(record.id, record.station);
+            } else {
+                owner.stations.remove(record.id);
+            }
+            owner.logRecords++;
+            rerouted |= owner.index != index;
+            validEnd = end + 1;
+        }
+        if (validEnd < bytes.length) {
+            System.out.println("Truncating " + (bytes.length - validEnd) + " bytes of incomplete log tail in " + log.getFileName());
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+        return rerouted;
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Run a read on every partition at once and collect the results in partition order
+    private <T> List<T> gather(Function<Map<String, WeatherStationData>, T> read) {
+        List<CompletableFuture<T>> pending = new ArrayList<>(partitions.length);
+        for (Partition partition : partitions) {
+            pending.add(partition.submit(Kind.READ, read));
+        }
+        List<T> results = new ArrayList<>(partitions.length);
+        for (CompletableFuture<T> future : pending) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    // Wait for a write, rethrowing a failed log append as the IOException it was
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Partition files in the directory with the given suffix
+    private static List<Path> list(Path directory, String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + suffix)) {
+            found.forEach(files::add);
+        }
+        return files;
+    }
+
+    // Index in a partition file name, or -1 if it is not a number
+    private static int fileIndex(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // One log line: a station's state after an update, or its removal (no station)
+    private static final class LogRecord {
+        String id;
+        WeatherStationData station;
+
+        LogRecord(String id, WeatherStationData station) {
+            this.id = id;
+            this.station = station;
+        }
+    }
+
+    // How an operation affects its partition
+    private enum Kind {
+        READ,    // Changes nothing; completes as soon as it has run
+        REMOVE,  // May remove stations; completes at once, the log catches up with the batch
+        WRITE    // May change the partition; completes only after the log holding the change is forced
+    }
+
+    // One operation queued for a partition's owner thread
+    private static final class Operation<T> {
+        final Kind kind;
+        final Function<Map<String, WeatherStationData>, T> body;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        T result;
+
+        Operation(Kind kind, Function<Map<String, WeatherStationData>, T> body) {
+            this.kind = kind;
+            this.body = body;
+        }
+    }
+
+    // A slice of the stations, its files, clocks and deadlines, and the single thread allowed to touch any of them
+    private static final class Partition implements Runnable {
+        static final Operation<Void> STOP = new Operation<>(Kind.READ, stations -> null);
+
+        final int index;
+        final Path segment;
+        final Path logPath;
+        final long expiryMillis;
+        final ChangeListener listener;
+        final Map<String, WeatherStationData> stations = new HashMap<>();  // Owner thread only
+        final Map<String, Long> applied = new HashMap<>();  // Highest Lamport clock applied per station; owner only
+        final ExpiryIndex<String> expiry = new ExpiryIndex<>();  // Only ever locked by the owner, so never contended
+        final List<String> pendingLines = new ArrayList<>();  // Log lines of the batch being applied
+        final BlockingQueue<Operation<?>> queue = new LinkedBlockingQueue<>();
+        final Thread thread;
+        FileChannel log;
+        long logRecords;  // Lines in the log, including ones superseded by later changes
+        volatile int size;  // Published by the owner after each batch
+
+        Partition(int index, Path segment, Path logPath, long expiryMillis, ChangeListener listener) {
+            this.index = index;
+            this.segment = segment;
+            this.logPath = logPath;
+            this.expiryMillis = expiryMillis;
+            this.listener = listener;
+            this.thread = new Thread(this, "station-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        <T> CompletableFuture<T> submit(Kind kind, Function<Map<String, WeatherStationData>, T> body) {
+            Operation<T> operation = new Operation<>(kind, body);
+            queue.add(operation);
+            return operation.future;
+        }
+
+        @Override
+        public void run() {
+            List<Operation<?>> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try {
+                    // Sleep until work arrives or the next station is due, whichever comes first
+                    long deadline = expiry.nextDeadline();
+                    Operation<?> first = deadline == Long.MAX_VALUE
+                            ? queue.take()
+                            : queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+
+                boolean stopping = false;
+                for (Operation<?> operation : batch) {
+                    if (operation == STOP) {
+                        stopping = true;
+                        continue;
+                    }
+                    apply(operation);
+                }
+                expireDue(System.currentTimeMillis());
+                size = stations.size();
+
+                IOException failure = null;
+                if (!pendingLines.isEmpty()) {
+                    try {
+                        appendPending();  // One fsync for every change in the batch
+                        if (logRecords > Math.max(COMPACT_MIN_RECORDS, 4L * stations.size())) {
+                            compact();
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                for (Operation<?> operation : batch) {
+                    if (operation.kind == Kind.WRITE) {
+                        complete(operation, failure);
+                    }
+                }
+                batch.clear();
+                if (stopping) {
+                    return;
+                }
+            }
+        }
+
+        // Run one operation; only writes wait for the log
+        private <T> void apply(Operation<T> operation) {
+            try {
+                operation.result = operation.body.apply(stations);
+            } catch (RuntimeException e) {
+                operation.future.completeExceptionally(e);
+                return;
+            }
+            if (operation.kind != Kind.WRITE) {
+                operation.future.complete(operation.result);
+            }
+        }
+
+        private <T> void complete(Operation<T> operation, IOException failure) {
+            if (operation.future.isDone()) {
+                return;  // Failed while being applied
+            }
+            if (failure != null) {
+                operation.future.completeExceptionally(failure);
+            } else {
+                operation.future.complete(operation.result);
+            }
+        }
+
+        void scheduleExpiry(String stationId, long lastUpdateTime) {
+            if (expiryMillis > 0) {
+                expiry.schedule(stationId, lastUpdateTime + expiryMillis);
+            }
+        }
+
+        // Remove the stations whose deadline has passed and report each; returns how many were removed
+        int expireDue(long currentTime) {
+            int removed = 0;
+            for (String stationId : expiry.pollExpired(currentTime)) {
+                WeatherStationData station = stations.get(stationId);
+                if (station == null || currentTime - station.getLastUpdateTime() < expiryMillis) {
+                    continue;
+                }
+                remove(stationId);
+                if (listener != null) {
+                    listener.expired(stationId);
+                }
+                removed++;
+            }
+            return removed;
+        }
+
+        // Drop a station with its clock and deadline, so a later PUT for it starts over as a new station
+        void remove(String stationId) {
+            stations.remove(stationId);
+            applied.remove(stationId);
+            expiry.cancel(stationId);
+            pendingLines.add(GSON.toJson(new LogRecord(stationId, null)));
+        }
+
+        void logUpdate(String stationId, WeatherStationData station) {
+            pendingLines.add(GSON.toJson(new LogRecord(stationId, station)));
+        }
+
+        void openLog() throws IOException {
+            log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        void closeLog() {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // Every acknowledged change was already forced
+            }
+        }
+
+        // Append the batch's lines to the log and force them once
+        private void appendPending() throws IOException {
+            StringBuilder lines = new StringBuilder();
+            for (String line : pendingLines) {
+                lines.append(line).append('\n');
+            }
+            logRecords += pendingLines.size();
+            pendingLines.clear();
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+        }
+
+        // Write the stations to the snapshot segment, then empty the log. A crash in between only leaves log
+        // lines that replay to the state the segment already holds.
+        void compact() throws IOException {
+            writeSegment();
+            log.truncate(0);
+            log.force(true);
+            logRecords = 0;
+        }
+
+        // Write the segment beside the old one and move it into place, so a crash leaves one or the other
+        void writeSegment() throws IOException {
+            Path temp = segment.resolveSibling(segment.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)) {
+                GSON.toJson(stations, SEGMENT_TYPE, writer);
+                writer.flush();
+                channel.force(true);
+            }
+            Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
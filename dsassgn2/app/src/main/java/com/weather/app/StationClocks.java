@@ -0,0 +1,136 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+// Highest Lamport clock applied to each station, so PUTs for a station take effect in clock order.
+// An update whose clock is below its station's mark is older than data already applied and is dropped
+// (the Thomas write rule): if a PUT stamped 7 overtakes one stamped 6, the store ends up holding 7 exactly
+// as if they had arrived in order. isStale is a single volatile read and can run before the body is parsed;
+// applyInOrder re-checks and applies under a lock private to the station, so there is no global lock.
+// removeInOrder expires a station under the same lock, so an expiry never interleaves with a PUT for it.
+// The lock is a ReentrantLock rather than a monitor so virtual threads unmount while waiting.
+public class StationClocks {
+    public static final long UNORDERED = Long.MIN_VALUE;  // Clock of a PUT that sent no Lamport-Clock header
+
+    private final ConcurrentMap<String, StationClock> stations = new ConcurrentHashMap<>();
+
+    // The state of one station; its lock serializes PUTs for that station only
+    private static final class StationClock {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile long applied = UNORDERED;
+        boolean removed;  // Guarded by lock; an update that waited on a removed station retries with a new one
+    }
+
+    // Work applied while the station's lock is held
+    public interface Update<T> {
+        T apply() throws IOException;
+    }
+
+    // True if an update for this station with the given clock is already superseded
+    public boolean isStale(String stationId, long clock) {
+        if (clock == UNORDERED) {
+            return false;
+        }
+        StationClock station = stations.get(stationId);
+        return station != null && clock < station.applied;
+    }
+
+    // Apply the update unless a newer one for the station has been applied first.
+    // Returns the update's result, or null if the update was stale and nothing was applied.
+    // Unordered updates are always applied and leave the station's mark unchanged.
+    public <T> T applyInOrder(String stationId, long clock, Update<T> update) throws IOException {
+        while (true) {
+            StationClock station = stations.computeIfAbsent(stationId, id -> new StationClock());
+            station.lock.lock();
+            try {
+                if (station.removed) {
+                    continue;  // The station expired while this update waited; it starts over as a new station
+                }
+                if (clock != UNORDERED && clock < station.applied) {
+                    return null;
+                }
+                T result = update.apply();
+                if (clock > station.applied) {
+                    station.applied = clock;
+                }
+                return result;
+            } finally {
+                station.lock.unlock();
+            }
+        }
+    }
+
+    // Highest clock applied to the station, or UNORDERED if none
+    public long getApplied(String stationId) {
+        StationClock station = stations.get(stationId);
+        return station == null ? UNORDERED : station.applied;
+    }
+
+    // Run removal under the station's lock and, if it removed the station's data, forget the station's mark
+    // before the lock is released. removal re-checks that the data is still due and records the removal, so a
+    // PUT for the station is applied either before it (and keeps the station) or after it (as a new station).
+    // Returns whether the station was removed.
+    public boolean removeInOrder(String stationId, BooleanSupplier removal) {
+        while (true) {
+            StationClock station = stations.computeIfAbsent(stationId, id -> new StationClock());
+            station.lock.lock();
+            try {
+                if (station.removed) {
+                    continue;
+                }
+                if (!removal.getAsBoolean()) {
+                    return false;
+                }
+                station.removed = true;
+                stations.remove(stationId, station);
+                return true;
+            } finally {
+                station.lock.unlock();
+            }
+        }
+    }
+
+    // Clock carried by a request, or UNORDERED when the header is missing or malformed
+    public static long requestClock(String headerValue) {
+        if (headerValue == null) {
+            return UNORDERED;
+        }
+        try {
+            return Long.parseLong(headerValue.trim());
+        } catch (NumberFormatException e) {
+            return UNORDERED;
+        }
+    }
+
+    // Station id of a JSON body found by scanning for its "id" member, without parsing the document.
+    // Returns null if there is no plain string id; the caller then falls back to a full parse.
+    public static String peekStationId(String body) {
+        int key = body.indexOf("\"id\"");
+        while (key != -1) {
+            int i = key + 4;
+            while (i < body.length() && Character.isWhitespace(body.charAt(i))) {
+                i++;
+            }
+            if (i < body.length() && body.charAt(i) == ':') {
+                i++;
+                while (i < body.length() && Character.isWhitespace(body.charAt(i))) {
+                    i++;
+                }
+                if (i >= body.length() || body.charAt(i) != '"') {
+                    return null;
+                }
+                int end = body.indexOf('"', i + 1);
+                if (end == -1 || body.lastIndexOf('\\', end) > i) {
+                    return null;  // Escaped ids are left to the parser
+                }
+                return body.substring(i + 1, end);
+            }
+            key = body.indexOf("\"id\"", key + 4);  // "id" was a value, not a key
+        }
+        return null;
+    }
+}
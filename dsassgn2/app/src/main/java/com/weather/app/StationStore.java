@@ -0,0 +1,61 @@
+package com.weather.app;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+// Station storage used in place of the per-station map when the server runs with -Dweather.store=columnar|mapped|sharded.
+// Implementations guard themselves, so handlers call them without holding a station lock.
+public interface StationStore {
+    // Merge a PUT's fields into a station; returns true if the station was new
+    boolean put(String stationId, Map<String, String> fields, long lamportClock, long updateTime) throws IOException;
+
+    // Remove a station if it has not been updated for maxAgeMillis; returns true if it was removed
+    boolean removeIfStale(String stationId, long currentTime, long maxAgeMillis);
+
+    // Decode one station back into its field map, or null if unknown
+    Map<String, String> get(String stationId);
+
+    boolean contains(String stationId);
+
+    int size();
+
+    // JSON array of every station, as served to GET clients
+    String toJsonArray();
+
+    // Append the JSON objects of the stations in one page to out, comma-separated, starting at position (0 for the
+    // first page); returns the position of the next page, or -1 after the last. A page holds at most about
+    // maxStations stations and may be empty. Each page is read under the store's own guard, which is released
+    // before the page is sent, so a GET can stream a large store without building it into one String or holding
+    // the store across socket writes. A station changed between pages may appear as it was or as it is.
+    default int appendJsonPage(StringBuilder out, int position, int maxStations) {
+        if (position > 0) {
+            return -1;
+        }
+        String array = toJsonArray();  // One page: stores that cannot resume a scan send everything at once
+        out.append(array, 1, array.length() - 1);
+        return -1;
+    }
+
+    // Visit the id and last update time of every station, e.g. to schedule expiry after a restart
+    void forEachStation(ObjLongConsumer<String> action);
+
+    // Write the map store's data file layout: {"<id>": {"data": {...}, "lamportClock": n, "lastUpdateTime": t}}
+    void writeSnapshot(Writer writer) throws IOException;
+
+    // True if the store is its own persistent copy, so PUTs are made durable by force instead of the data file
+    default boolean isPersistent() {
+        return false;
+    }
+
+    // Force the records of the given stations to disk; only called when isPersistent()
+    default void force(Collection<String> stationIds) throws IOException {
+    }
+
+    // True if put returns only once the update is on disk, so PUTs need no separate commit
+    default boolean persistsOnPut() {
+        return false;
+    }
+}
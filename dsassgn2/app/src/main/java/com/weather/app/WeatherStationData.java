@@ -0,0 +1,67 @@
+package com.weather.app;
+
+import com.google.gson.Gson;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Class to hold weather data for a specific station
+class WeatherStationData implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Gson GSON = new Gson(); // Gson is thread-safe; shared instead of created per call
+
+    private final Map<String, String> data = new HashMap<>(); // Weather data key-value pairs
+    private long lamportClock; // Lamport clock for data updates
+    private volatile long lastUpdateTime; // Timestamp of the last update (read by the expiry thread)
+
+    // Per-station lock used instead of synchronized blocks so virtual threads are not pinned; not persisted
+    private final transient ReentrantLock lock = new ReentrantLock();
+
+    // Acquire the station lock
+    public void lock() {
+        lock.lock();
+    }
+
+    // Release the station lock
+    public void unlock() {
+        lock.unlock();
+    }
+
+    // Update weather data with new values
+    public void updateData(Map<String, String> newData) {
+        data.putAll(newData); // Add all new data
+    }
+
+    // Set the Lamport clock value
+    public void setLamportClock(long clock) {
+        this.lamportClock = clock;
+    }
+
+    // Get the Lamport clock value
+    public long getLamportClock() {
+        return lamportClock;
+    }
+
+    // Get a read-only view of the weather data fields
+    public Map<String, String> getData() {
+        return Collections.unmodifiableMap(data);
+    }
+
+    // Get the last update timestamp
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    // Set the last update timestamp
+    public void setLastUpdateTime(long lastUpdateTime) {
+        this.lastUpdateTime = lastUpdateTime;
+    }
+
+    // Convert weather station data to JSON format
+    public String toJson() {
+        return GSON.toJson(data);
+    }
+}
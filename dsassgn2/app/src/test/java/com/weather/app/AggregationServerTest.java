@@ -1,13 +1,28 @@
 package com.weather.app;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -137,16 +152,555 @@ public class AggregationServerTest {
 
   
 
+    // Test that one connection serves several requests while the client asks for keep-alive
+    @Test
+    public void testKeepAliveServesSeveralRequests() throws IOException {
+        String requests = "GET / HTTP/1.1\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n"
+                + "GET / HTTP/1.1\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Socket mockSocket = createMockSocket(new ByteArrayInputStream(requests.getBytes()), outputStream);
+        new AggregationServer.ServerHandler(mockSocket, server).run();
+
+        String response = outputStream.toString();
+        assertEquals(2, response.split("HTTP/1.1 200 OK", -1).length - 1, "Both requests should be answered.");
+        assertTrue(response.indexOf("Connection: keep-alive") < response.indexOf("Connection: close"),
+                "First response should keep the connection open and the second should close it.");
+    }
+
+    // Test that GETs share one encoded body until a PUT changes the data
+    @Test
+    public void testGetResponseCachedUntilPut() throws IOException {
+        WeatherStationData stationData = new WeatherStationData();
+        stationData.updateData(Map.of("id", "1", "temperature", "25"));
+        server.getWeatherDataMap().put("1", stationData);
+
+        byte[] first = server.getEncodedWeatherData();
+        assertSame(first, server.getEncodedWeatherData(), "Unchanged data should reuse the encoded body.");
+
+        String putRequest = "PUT / HTTP/1.1\r\n"
+                + "Content-Length: 29\r\n"
+                + "\r\n"
+                + "{\"id\":\"2\",\"temperature\":\"30\"}";
+        Socket mockSocket = createMockSocket(new ByteArrayInputStream(putRequest.getBytes()), new ByteArrayOutputStream());
+        new AggregationServer.ServerHandler(mockSocket, server).run();
+
+        byte[] afterPut = server.getEncodedWeatherData();
+        assertNotSame(first, afterPut, "A PUT should invalidate the cached body.");
+        assertTrue(new String(afterPut).contains("\"temperature\":\"30\""), "Re-encoded body should contain the new station.");
+    }
+
+    // Test that concurrent PUT commits all complete once the data file is durable
+    @Test
+    public void testConcurrentCommitsAreDurable() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> commits = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            String stationId = "S" + i;
+            WeatherStationData stationData = new WeatherStationData();
+            stationData.updateData(Map.of("id", stationId));
+            server.getWeatherDataMap().put(stationId, stationData);
+            commits.add(executor.submit(() -> server.commitData(stationId)));
+        }
+        for (Future<Boolean> commit : commits) {
+            assertTrue(commit.get(5, TimeUnit.SECONDS), "Every commit should succeed.");
+        }
+        executor.shutdown();
+
+        AggregationServer reloaded = new AggregationServer(4567);
+        reloaded.loadDataFromFile();
+        assertEquals(32, reloaded.getWeatherDataMap().size(), "All committed stations should be on disk.");
+    }
+
+    // Test that a station expires exactly at its deadline and a fresh PUT pushes the deadline out
+    @Test
+    public void testStationExpiresAtDeadline() {
+        long updateTime = System.currentTimeMillis();
+        WeatherStationData stationData = new WeatherStationData();
+        stationData.updateData(Map.of("id", "1", "temperature", "25"));
+        stationData.setLastUpdateTime(updateTime);
+        server.getWeatherDataMap().put("1", stationData);
+        server.scheduleExpiry("1", updateTime);
+
+        assertEquals(0, server.expireDueStations(updateTime + AggregationServer.DATA_EXPIRATION_MILLIS - 1));
+        assertNotNull(server.getWeatherDataMap().get("1"), "Station should survive until its deadline.");
+
+        stationData.setLastUpdateTime(updateTime + 1000);
+        server.scheduleExpiry("1", updateTime + 1000);
+        assertEquals(0, server.expireDueStations(updateTime + AggregationServer.DATA_EXPIRATION_MILLIS));
+        assertEquals(1, server.expireDueStations(updateTime + 1000 + AggregationServer.DATA_EXPIRATION_MILLIS));
+        assertNull(server.getWeatherDataMap().get("1"), "Station should be removed once expired.");
+    }
+
+    // Test that the columnar store serves PUT, GET, persistence and expiry when selected
+    @Test
+    public void testColumnarStoreMode() throws IOException {
+        System.setProperty("weather.store", "columnar");
+        try {
+            AggregationServer columnarServer = new AggregationServer(4567);
+            assertNotNull(columnarServer.getStationStore());
+
+            String putRequest = "PUT / HTTP/1.1\r\n"
+                    + "Content-Length: 41\r\n"
+                    + "\r\n"
+                    + "{\"id\":\"1\",\"air_temp\":\"13.3\",\"state\":\"SA\"}";
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(putRequest.getBytes()), outputStream), columnarServer).run();
+            assertTrue(outputStream.toString().contains("HTTP/1.1 201 Created"));
+            assertTrue(columnarServer.getWeatherDataMap().isEmpty(), "The map store is not used.");
+
+            String body = new String(columnarServer.getEncodedWeatherData());
+            assertTrue(body.contains("\"air_temp\":\"13.3\"") && body.contains("\"state\":\"SA\""));
+
+            AggregationServer reloaded = new AggregationServer(4567);
+            reloaded.loadDataFromFile();
+            assertEquals("13.3", reloaded.getStationStore().get("1").get("air_temp"));
+            assertEquals(1, reloaded.expireDueStations(System.currentTimeMillis() + AggregationServer.DATA_EXPIRATION_MILLIS));
+            assertEquals(0, reloaded.getStationStore().size());
+        } finally {
+            System.clearProperty("weather.store");
+        }
+    }
+
+    // Test that the mapped store is the live data and that a new server only maps the file to recover it
+    @Test
+    public void testMappedStoreMode() throws IOException {
+        System.setProperty("weather.store", "mapped");
+        try {
+            AggregationServer mappedServer = new AggregationServer(4567);
+            String putRequest = "PUT / HTTP/1.1\r\n"
+                    + "Content-Length: 41\r\n"
+                    + "\r\n"
+                    + "{\"id\":\"1\",\"air_temp\":\"13.3\",\"state\":\"SA\"}";
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(putRequest.getBytes()), outputStream), mappedServer).run();
+            assertTrue(outputStream.toString().contains("HTTP/1.1 201 Created"));
+            assertFalse(new File(TEST_DATA_FILE).exists(), "No JSON data file is written.");
+            ((MappedStationStore) mappedServer.getStationStore()).close();
+
+            AggregationServer restarted = new AggregationServer(4567);
+            restarted.loadDataFromFile();
+            assertTrue(new String(restarted.getEncodedWeatherData()).contains("\"air_temp\":\"13.3\""));
+            ((MappedStationStore) restarted.getStationStore()).close();
+        } finally {
+            System.clearProperty("weather.store");
+            new File(AggregationServer.MAPPED_STORE_FILE).delete();
+        }
+    }
+
+    // Test that a text body's Content-Length counts its UTF-8 bytes, here a 400 that echoes a non-ASCII station id
+    @Test
+    public void testTextBodyContentLengthCountsUtf8Bytes() throws IOException {
+        System.setProperty("weather.store", "mapped");
+        try {
+            AggregationServer mappedServer = new AggregationServer(4567);
+            String stationId = "\u00f8".repeat(30);  // 60 bytes: too long for a mapped record
+            byte[] body = ("{\"id\":\"" + stationId + "\",\"air_temp\":\"13.3\"}").getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(("PUT / HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            request.write(body);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(request.toByteArray()), outputStream), mappedServer).run();
+            ((MappedStationStore) mappedServer.getStationStore()).close();
+
+            String response = outputStream.toString(StandardCharsets.UTF_8);
+            assertTrue(response.startsWith("HTTP/1.1 400 Bad Request"));
+            String[] headersAndBody = response.split("\r?\n\r?\n", 2);
+            String responseBody = headersAndBody[1];
+            assertTrue(responseBody.contains(stationId), "The body is written in UTF-8.");
+            Matcher contentLength = Pattern.compile("Content-Length: (\\d+)").matcher(headersAndBody[0]);
+            assertTrue(contentLength.find());
+            assertEquals(responseBody.getBytes(StandardCharsets.UTF_8).length, Integer.parseInt(contentLength.group(1)),
+                    "Content-Length counts bytes, not chars.");
+        } finally {
+            System.clearProperty("weather.store");
+            new File(AggregationServer.MAPPED_STORE_FILE).delete();
+        }
+    }
+
+    // Test that the sharded store applies PUTs on partition threads and recovers from its segments
+    @Test
+    public void testShardedStoreMode() throws Exception {
+        System.setProperty("weather.store", "sharded");
+        try {
+            AggregationServer shardedServer = new AggregationServer(4567);
+            String putRequest = "PUT / HTTP/1.1\r\n"
+                    + "Content-Length: 41\r\n"
+                    + "\r\n"
+                    + "{\"id\":\"1\",\"air_temp\":\"13.3\",\"state\":\"SA\"}";
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(putRequest.getBytes()), outputStream), shardedServer).run();
+            assertTrue(outputStream.toString().contains("HTTP/1.1 201 Created"));
+            assertFalse(new File(TEST_DATA_FILE).exists(), "No shared data file is written.");
+            ((ShardedStationStore) shardedServer.getStationStore()).close();
+
+            AggregationServer restarted = new AggregationServer(4567);
+            restarted.loadDataFromFile();
+            assertTrue(new String(restarted.getEncodedWeatherData()).contains("\"air_temp\":\"13.3\""));
+            ((ShardedStationStore) restarted.getStationStore()).close();
+        } finally {
+            System.clearProperty("weather.store");
+            File[] segments = new File(".").listFiles((dir, name) -> name.startsWith(ShardedStationStore.SEGMENT_PREFIX));  // Segments and logs
+            if (segments != null) {
+                for (File segment : segments) {
+                    segment.delete();
+                }
+            }
+        }
+    }
+
+    // Test that a batch PUT applies every valid record with its own clock value and reports each record's status
+    @Test
+    public void testBatchPutReportsPerRecordStatus() throws IOException {
+        String batch = "[{\"id\":\"B1\",\"temperature\":\"20\"},{\"temperature\":\"21\"},{\"id\":\"B2\",\"temperature\":\"22\"}]";
+        String putRequest = "PUT / HTTP/1.1\r\n"
+                + "Content-Length: " + batch.length() + "\r\n"
+                + "Lamport-Clock: 1\r\n"
+                + "\r\n"
+                + batch;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(putRequest.getBytes()), outputStream), server).run();
+
+        String response = outputStream.toString();
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        JsonArray statuses = JsonParser.parseString(response.substring(response.indexOf('['))).getAsJsonArray();
+        assertEquals(3, statuses.size());
+        assertEquals(201, statuses.get(0).getAsJsonObject().get("status").getAsInt());
+        assertEquals(400, statuses.get(1).getAsJsonObject().get("status").getAsInt(), "A record without an id is rejected on its own.");
+        assertEquals(201, statuses.get(2).getAsJsonObject().get("status").getAsInt());
+        assertEquals(statuses.get(0).getAsJsonObject().get("lamportClock").getAsLong() + 2,
+                statuses.get(2).getAsJsonObject().get("lamportClock").getAsLong(), "Each record takes one value of the reserved range.");
+        assertTrue(server.getWeatherDataMap().get("B2").toJson().contains("\"temperature\":\"22\""));
+        assertTrue(new File(TEST_DATA_FILE).exists(), "The batch is persisted.");
+    }
+
+    // Test that GET ?since=<clock> returns only the stations updated or expired after that clock
+    @Test
+    public void testDeltaGetSinceClock() throws IOException {
+        long now = System.currentTimeMillis();
+        server.applyUpdate("A", Map.of("id", "A", "temperature", "10"), StationClocks.UNORDERED, 1,
+                now - AggregationServer.DATA_EXPIRATION_MILLIS);
+        server.applyUpdate("B", Map.of("id", "B", "temperature", "11"), StationClocks.UNORDERED, 2, now);
+        long mark = server.getChangeLog().since(0).highWater;
+
+        server.expireDueStations(now);
+        server.applyUpdate("C", Map.of("id", "C", "temperature", "12"), StationClocks.UNORDERED, 3, now);
+
+        JsonObject delta = sendDeltaGet("since=" + mark);
+        assertEquals(1, delta.getAsJsonArray("updated").size());
+        assertEquals("C", delta.getAsJsonArray("updated").get(0).getAsJsonObject().get("id").getAsString());
+        assertEquals("A", delta.getAsJsonArray("removed").get(0).getAsString(), "Expired stations are reported.");
+        assertTrue(delta.get("highWater").getAsLong() > mark);
+
+        JsonObject all = sendDeltaGet("since=0");
+        assertEquals(2, all.getAsJsonArray("updated").size(), "since=0 returns every current station.");
+    }
+
+    // Test that a long-poll GET is held until a station changes, and that a malformed wait is rejected
+    @Test
+    public void testLongPollGetWaitsForChange() throws Exception {
+        long mark = server.getChangeLog().highWater();
+        String getRequest = "GET /weather.json?since=" + mark + "&wait=5000 HTTP/1.1\r\n\r\n";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Thread watcher = new Thread(new AggregationServer.ServerHandler(
+                createMockSocket(new ByteArrayInputStream(getRequest.getBytes()), outputStream), server));
+        watcher.start();
+
+        Thread.sleep(200);
+        assertEquals(0, outputStream.size(), "Nothing changed yet, so the GET is held.");
+        server.applyUpdate("W", Map.of("id", "W", "temperature", "15"), StationClocks.UNORDERED, 1, System.currentTimeMillis());
+        watcher.join(5000);
+
+        String response = outputStream.toString();
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response.contains("\"id\":\"W\""));
+
+        String badRequest = "GET /weather.json?wait=soon HTTP/1.1\r\n\r\n";
+        ByteArrayOutputStream badOutput = new ByteArrayOutputStream();
+        new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(badRequest.getBytes()), badOutput), server).run();
+        assertTrue(badOutput.toString().startsWith("HTTP/1.1 400"));
+    }
+
+    // Test that a handler with a resume executor parks a long-poll GET without holding a thread, and answers it
+    // on the executor once a station changes
+    @Test
+    public void testLongPollGetParkedWithoutThread() throws Exception {
+        long mark = server.getChangeLog().highWater();
+        String getRequest = "GET /weather.json?since=" + mark + "&wait=5000 HTTP/1.1\r\n\r\n";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Socket mockSocket = createMockSocket(new ByteArrayInputStream(getRequest.getBytes()), outputStream);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new AggregationServer.ServerHandler(mockSocket, server, executor).run();
+            assertEquals(0, outputStream.size(), "Nothing changed yet, so the GET is parked.");
+            assertFalse(mockSocket.isClosed(), "A parked GET keeps its connection open.");
+
+            server.applyUpdate("P", Map.of("id", "P", "temperature", "16"), StationClocks.UNORDERED, 1, System.currentTimeMillis());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!mockSocket.isClosed() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            String response = outputStream.toString();
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"), "The GET is answered once a station changes.");
+            assertTrue(response.contains("\"id\":\"P\""));
+            assertTrue(mockSocket.isClosed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Test that full and per-station GETs carry an ETag and answer a matching If-None-Match with a bodiless 304
+    @Test
+    public void testConditionalGetAnsweredWithNotModified() throws IOException {
+        server.applyUpdate("E", Map.of("id", "E", "temperature", "20"), StationClocks.UNORDERED, 1, System.currentTimeMillis());
+        server.invalidateGetCache();
+
+        String full = sendGet("/weather.json", null);
+        String station = sendGet("/weather/E", null);
+        assertTrue(station.startsWith("HTTP/1.1 200 OK") && station.endsWith("}]"), "One station, as a one-element array.");
+        assertTrue(station.contains("\"temperature\":\"20\""));
+        assertTrue(sendGet("/weather/missing", null).startsWith("HTTP/1.1 404"));
+
+        String unchanged = sendGet("/weather.json", etagOf(full));
+        assertTrue(unchanged.startsWith("HTTP/1.1 304 Not Modified"));
+        assertTrue(unchanged.endsWith("\n\n") && !unchanged.contains("Content-Length"), "A 304 carries no body.");
+        assertTrue(sendGet("/weather/E", etagOf(station)).startsWith("HTTP/1.1 304"));
+
+        server.applyUpdate("E", Map.of("id", "E", "temperature", "21"), StationClocks.UNORDERED, 2, System.currentTimeMillis());
+        server.invalidateGetCache();
+        assertTrue(sendGet("/weather.json", etagOf(full)).startsWith("HTTP/1.1 200 OK"), "A change makes the old tag stale.");
+        assertTrue(sendGet("/weather/E", etagOf(station)).contains("\"temperature\":\"21\""));
+    }
+
+    // Test that station GETs by path, id and ids are answered from each station's cached encoding
+    @Test
+    public void testStationGetsRoutedById() throws IOException {
+        server.applyUpdate("R1", Map.of("id", "R1", "temperature", "10"), StationClocks.UNORDERED, 1, System.currentTimeMillis());
+        server.applyUpdate("R2", Map.of("id", "R2", "temperature", "20"), StationClocks.UNORDERED, 2, System.currentTimeMillis());
+        server.invalidateGetCache();
+
+        String byId = sendGet("/weather.json?id=R2", null);
+        assertTrue(byId.startsWith("HTTP/1.1 200 OK") && byId.contains("\"temperature\":\"20\"") && !byId.contains("R1"));
+        assertSame(server.getEncodedStation("R2"), server.getEncodedStation("R2"), "Unchanged stations are not re-encoded.");
+
+        String many = sendGet("/weather.json?ids=R2,missing,R1", null);
+        assertTrue(many.startsWith("HTTP/1.1 200 OK"));
+        String body = many.substring(many.indexOf("\r\n\r\n") + 4);
+        assertTrue(body.indexOf("\"R2\"") < body.indexOf("\"R1\"") && !body.contains("missing"), "Stored stations, in request order.");
+        assertFalse(many.contains("ETag"), "A response naming an unknown station is not tagged.");
+
+        assertTrue(sendGet("/weather.json?ids=missing,other", null).startsWith("HTTP/1.1 404"));
+        assertTrue(sendGet("/weather.json?ids=,", null).startsWith("HTTP/1.1 400"));
+
+        server.applyUpdate("R1", Map.of("id", "R1", "temperature", "11"), StationClocks.UNORDERED, 3, System.currentTimeMillis());
+        assertTrue(sendGet("/weather/R1", null).contains("\"temperature\":\"11\""), "An update replaces the cached encoding.");
+    }
+
+    // Test that a full GET accepting gzip is compressed once per version, decodes to the JSON body and has its own ETag
+    @Test
+    public void testFullGetCompressedOncePerVersion() throws IOException {
+        server.applyUpdate("Z", Map.of("id", "Z", "temperature", "30"), StationClocks.UNORDERED, 1, System.currentTimeMillis());
+        server.invalidateGetCache();
+
+        String[] first = sendCompressedGet("gzip, deflate", null).split("\r?\n\r?\n", 2);
+        String[] second = sendCompressedGet("gzip, deflate", null).split("\r?\n\r?\n", 2);
+        assertTrue(first[0].startsWith("HTTP/1.1 200 OK") && first[0].contains("Content-Encoding: gzip"));
+        assertTrue(first[0].contains("Vary: Accept-Encoding"));
+        assertEquals(first[1], second[1], "Both clients get the same compressed bytes.");
+        try (InputStream decoded = ContentEncoding.decode(new ByteArrayInputStream(first[1].getBytes("ISO-8859-1")), "gzip")) {
+            assertEquals(new String(server.getEncodedWeatherData(), "UTF-8"), new String(decoded.readAllBytes(), "UTF-8"));
+        }
+
+        assertNotEquals(etagOf(first[0]), etagOf(sendGet("/weather.json", null)), "The gzip variant has its own tag.");
+        assertTrue(sendCompressedGet("gzip", etagOf(first[0])).startsWith("HTTP/1.1 304"));
+        assertTrue(sendCompressedGet("deflate", etagOf(first[0])).contains("Content-Encoding: deflate"));
+    }
+
+    // Test that a full GET of a store above the streaming threshold is sent as chunked JSON with the same stations
+    @Test
+    public void testLargeStoreStreamedAsChunks() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            server.applyUpdate("C" + i, Map.of("id", "C" + i, "temperature", String.valueOf(i)), StationClocks.UNORDERED, i + 1,
+                    System.currentTimeMillis());
+        }
+        server.invalidateGetCache();
+        server.streamGetsAbove = 10;
+
+        String response = sendGet("/weather.json", null);
+        String[] parts = response.split("\r?\n\r?\n", 2);
+        assertTrue(parts[0].startsWith("HTTP/1.1 200 OK") && parts[0].contains("Transfer-Encoding: chunked"));
+        assertFalse(parts[0].contains("Content-Length"));
+        assertTrue(parts[1].endsWith("\r\n0\r\n\r\n"), "The body ends with the last chunk.");
+
+        StringBuilder json = new StringBuilder();
+        String rest = parts[1];
+        for (int size; (size = Integer.parseInt(rest.substring(0, rest.indexOf("\r\n")), 16)) > 0; ) {
+            int start = rest.indexOf("\r\n") + 2;
+            json.append(rest, start, start + size);
+            rest = rest.substring(start + size + 2);
+        }
+        JsonArray streamed = JsonParser.parseString(json.toString()).getAsJsonArray();
+        assertEquals(JsonParser.parseString(new String(server.getEncodedWeatherData(), "UTF-8")).getAsJsonArray().size(), streamed.size());
+        assertEquals(50, streamed.size());
+        assertTrue(etagOf(parts[0]).startsWith("W/"), "A stream may include newer PUTs, so its tag is weak.");
+        assertTrue(etagOf(parts[0]).equals(etagOf(sendGet("/weather.json", null))), "Streamed GETs keep the version's ETag.");
+    }
+
+    // Test that a compressed full GET of a store above the streaming threshold is compressed as it is streamed
+    @Test
+    public void testLargeStoreStreamedCompressed() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            server.applyUpdate("Z" + i, Map.of("id", "Z" + i, "temperature", String.valueOf(i)), StationClocks.UNORDERED, i + 1,
+                    System.currentTimeMillis());
+        }
+        server.invalidateGetCache();
+        server.streamGetsAbove = 10;
+
+        String response = sendCompressedGet("gzip", null);
+        String[] parts = response.split("\r?\n\r?\n", 2);
+        assertTrue(parts[0].contains("Content-Encoding: gzip") && parts[0].contains("Transfer-Encoding: chunked"));
+        assertTrue(etagOf(parts[0]).startsWith("W/"), "A compressed stream is only weakly the tagged version.");
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        String rest = parts[1];
+        for (int size; (size = Integer.parseInt(rest.substring(0, rest.indexOf("\r\n")), 16)) > 0; ) {
+            int start = rest.indexOf("\r\n") + 2;
+            compressed.write(rest.substring(start, start + size).getBytes("ISO-8859-1"));
+            rest = rest.substring(start + size + 2);
+        }
+        try (Reader json = new InputStreamReader(
+                ContentEncoding.decode(new ByteArrayInputStream(compressed.toByteArray()), "gzip"), "UTF-8")) {
+            assertEquals(50, JsonParser.parseReader(json).getAsJsonArray().size());
+        }
+        assertTrue(sendCompressedGet("gzip", etagOf(parts[0])).startsWith("HTTP/1.1 304"));
+    }
+
+    // Full GET with an Accept-Encoding header; the response is read as ISO-8859-1 so the body bytes survive
+    private String sendCompressedGet(String acceptEncoding, String ifNoneMatch) throws IOException {
+        String getRequest = "GET /weather.json HTTP/1.1\r\nAccept-Encoding: " + acceptEncoding + "\r\n"
+                + (ifNoneMatch == null ? "" : "If-None-Match: " + ifNoneMatch + "\r\n")
+                + "\r\n";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(getRequest.getBytes()), outputStream), server).run();
+        return outputStream.toString("ISO-8859-1");
+    }
+
+    private String sendGet(String target, String ifNoneMatch) {
+        String getRequest = "GET " + target + " HTTP/1.1\r\n"
+                + (ifNoneMatch == null ? "" : "If-None-Match: " + ifNoneMatch + "\r\n")
+                + "\r\n";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(getRequest.getBytes()), outputStream), server).run();
+        return outputStream.toString();
+    }
+
+    private static String etagOf(String response) {
+        for (String line : response.split("\r?\n")) {
+            if (line.startsWith("ETag: ")) {
+                return line.substring("ETag: ".length());
+            }
+        }
+        return fail("No ETag in " + response);
+    }
+
+    private JsonObject sendDeltaGet(String query) {
+        String getRequest = "GET /weather.json?" + query + " HTTP/1.1\r\n\r\n";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new AggregationServer.ServerHandler(createMockSocket(new ByteArrayInputStream(getRequest.getBytes()), outputStream), server).run();
+
+        String response = outputStream.toString();
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        return JsonParser.parseString(response.substring(response.indexOf('{'))).getAsJsonObject();
+    }
+
     // Test that the Lamport clock is updated correctly
     @Test
     public void testLamportClockUpdate() {
         assertEquals(1, server.incrementLamportClock(), "Lamport clock should be incremented to 1.");
         assertEquals(2, server.incrementLamportClock(), "Lamport clock should be incremented to 2.");
         
-        int newClock = server.updateLamportClock(3);
+        long newClock = server.updateLamportClock(3);
         assertEquals(4, newClock, "Lamport clock should be updated to 4.");
     }
 
+    // Test that a PUT older than the station's applied Lamport clock is acknowledged but not applied
+    @Test
+    public void testStalePutIsIgnored() throws IOException {
+        String newer = "{\"id\":\"7\",\"temperature\":\"30\"}";
+        String older = "{\"id\":\"7\",\"temperature\":\"20\"}";
+        String requests = "PUT / HTTP/1.1\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Content-Length: " + newer.length() + "\r\n"
+                + "Lamport-Clock: 5\r\n"
+                + "\r\n"
+                + newer
+                + "PUT / HTTP/1.1\r\n"
+                + "Content-Length: " + older.length() + "\r\n"
+                + "Lamport-Clock: 4\r\n"
+                + "\r\n"
+                + older;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Socket mockSocket = createMockSocket(new ByteArrayInputStream(requests.getBytes()), outputStream);
+        new AggregationServer.ServerHandler(mockSocket, server).run();
+
+        String response = outputStream.toString();
+        assertTrue(response.contains("HTTP/1.1 201 Created"), "The newer PUT should be applied.");
+        assertTrue(response.contains("Stale update ignored."), "The older PUT should be acknowledged as stale.");
+        assertTrue(server.getWeatherDataMap().get("7").toJson().contains("\"temperature\":\"30\""),
+                "The station should keep the data from the newer PUT.");
+        assertEquals(5, server.getStationClocks().getApplied("7"));
+    }
+
+    // Test that handlers run on a bounded pool and still answer the request
+    @Test
+    public void testHandlerRunsOnBoundedPool() throws Exception {
+        String getRequest = "GET / HTTP/1.1\r\n"
+                + "Lamport-Clock: 1\r\n"
+                + "\r\n";
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Socket mockSocket = createMockSocket(new ByteArrayInputStream(getRequest.getBytes()), outputStream);
+
+        ExecutorService executor = (ExecutorService) AggregationServer.createHandlerExecutor(AggregationServer.ExecutionMode.POOL, 2);
+        executor.execute(new AggregationServer.ServerHandler(mockSocket, server));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS), "Handler should finish on the pool.");
+
+        assertTrue(outputStream.toString().contains("HTTP/1.1 200 OK"), "Response should contain '200 OK'.");
+    }
+
+    // Test that a connection the executor cannot take is shed with a 503 and closed instead of run on the accept thread
+    @Test
+    public void testSaturatedPoolShedsConnection() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Socket mockSocket = createMockSocket(new ByteArrayInputStream("GET / HTTP/1.1\r\n\r\n".getBytes()), outputStream);
+
+        AggregationServer.dispatch(task -> {
+            throw new RejectedExecutionException("Saturated");
+        }, mockSocket, server);
+
+        assertTrue(outputStream.toString().startsWith("HTTP/1.1 503 Service Unavailable"), "Response should be 503.");
+        assertTrue(outputStream.toString().contains("Retry-After: 1"), "Response should carry a Retry-After hint.");
+        assertTrue(mockSocket.isClosed(), "Shed connection should be closed.");
+    }
+
+    // Test that virtual mode always yields a usable executor, falling back to a pool on older JVMs
+    @Test
+    public void testVirtualModeProvidesExecutor() throws Exception {
+        Executor executor = AggregationServer.createHandlerExecutor(AggregationServer.ExecutionMode.VIRTUAL, 2);
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS), "Task should run in virtual mode.");
+        ((ExecutorService) executor).shutdown();
+    }
+
     // Utility method to create a mock socket for testing purposes
     private Socket createMockSocket(InputStream inputStream, OutputStream outputStream) {
         return new Socket() {
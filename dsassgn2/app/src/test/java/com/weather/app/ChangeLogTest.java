@@ -0,0 +1,126 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChangeLogTest {
+
+    // Test that a delta holds each station's latest change after the clock, expiries included
+    @Test
+    public void testDeltaHoldsLatestChangePerStation() {
+        ChangeLog changeLog = new ChangeLog(new LamportClock());
+        long first = changeLog.recordUpdate("A");
+        changeLog.recordUpdate("B");
+        long mark = changeLog.since(0).highWater;
+
+        changeLog.recordUpdate("A");
+        changeLog.recordRemoval("B");
+        changeLog.recordUpdate("A");
+        ChangeLog.Delta delta = changeLog.since(mark);
+
+        assertTrue(delta.complete);
+        assertEquals(2, delta.changes.size());  // One entry per station, however often it changed
+        assertEquals("B", delta.changes.get(0).stationId);
+        assertTrue(delta.changes.get(0).removed);
+        assertEquals("A", delta.changes.get(1).stationId);
+        assertEquals(2, changeLog.size());
+        assertEquals(2, changeLog.since(first - 1).changes.size());
+        assertTrue(changeLog.since(delta.highWater).changes.isEmpty());
+    }
+
+    // Test that a poll from before the oldest remembered expiry is flagged as incomplete
+    @Test
+    public void testDeltaIncompleteOnceTombstonesDropped() {
+        ChangeLog changeLog = new ChangeLog(new LamportClock());
+        for (int i = 0; i <= ChangeLog.MAX_TOMBSTONES; i++) {
+            changeLog.recordRemoval("S" + i);
+        }
+
+        assertFalse(changeLog.since(0).complete);
+        assertTrue(changeLog.size() <= ChangeLog.MAX_TOMBSTONES);
+        long mark = changeLog.since(0).highWater;
+        assertTrue(changeLog.since(mark).complete);
+    }
+
+    // Test that a waiter is woken by the next change and a timed wait without one returns false
+    @Test
+    public void testWaitersWokenByNextChange() throws Exception {
+        ChangeLog changeLog = new ChangeLog(new LamportClock());
+        changeLog.recordUpdate("A");
+        long mark = changeLog.highWater();
+
+        assertTrue(changeLog.nextChangeAfter(mark - 1).isDone(), "Already has a change after the clock.");
+        CompletableFuture<Void> waiter = changeLog.nextChangeAfter(mark);
+        assertFalse(waiter.isDone());
+        assertFalse(changeLog.awaitChangeAfter(mark, 20));
+
+        changeLog.recordRemoval("A");
+        assertTrue(waiter.isDone());
+        assertTrue(changeLog.awaitChangeAfter(mark, 20));
+    }
+
+    // Test that polling from each high-water mark misses no change recorded concurrently
+    @Test
+    public void testPollingMissesNoConcurrentChange() throws Exception {
+        ChangeLog changeLog = new ChangeLog(new LamportClock());
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    changeLog.recordUpdate("W" + writer + "-" + i);
+                }
+            });
+            writers[t].start();
+        }
+
+        // Polling from each high-water mark must see every station exactly once
+        List<String> seen = new ArrayList<>();
+        long mark = 0;
+        boolean writing = true;
+        while (writing) {
+            writing = false;
+            for (Thread writer : writers) {
+                writing |= writer.isAlive();
+            }
+            ChangeLog.Delta delta = changeLog.since(mark);
+            delta.changes.forEach(change -> seen.add(change.stationId));
+            mark = delta.highWater;
+        }
+        changeLog.since(mark).changes.forEach(change -> seen.add(change.stationId));
+
+        assertEquals(2000, seen.size());
+        assertEquals(2000, seen.stream().distinct().count());
+    }
+
+    // Test that lastChange never drops below a value already returned while the newest station keeps changing
+    @Test
+    public void testLastChangeNeverMovesBack() throws Exception {
+        ChangeLog changeLog = new ChangeLog(new LamportClock());
+        changeLog.recordUpdate("B");
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 20_000; i++) {
+                changeLog.recordUpdate("A");  // A holds the newest entry and moves it on every update
+            }
+            writing.set(false);
+        });
+        writer.start();
+
+        // A reader must never see an older clock than one it already saw, or a stale ETag would get a 304
+        long previous = 0;
+        while (writing.get()) {
+            long last = changeLog.lastChange();
+            assertTrue(last >= previous, "lastChange went from " + previous + " to " + last + ".");
+            previous = last;
+        }
+        writer.join();
+        assertEquals(changeLog.highWater(), changeLog.lastChange());
+    }
+}
@@ -0,0 +1,38 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedOutputStreamTest {
+
+    // Test that data is sent in chunks no larger than the buffer, each framed with its size, then the last chunk
+    @Test
+    public void testChunksAreFramedAndBounded() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ChunkedOutputStream body = new ChunkedOutputStream(wire, 16);
+        body.write("[{\"id\":\"A\"},".getBytes(StandardCharsets.UTF_8));
+        body.write('{');
+        body.write("\"id\":\"B\"}]".getBytes(StandardCharsets.UTF_8));
+        body.finish();
+        body.close(); // Already finished; sends nothing more
+
+        assertEquals("10\r\n[{\"id\":\"A\"},{\"id\r\n7\r\n\":\"B\"}]\r\n0\r\n\r\n", wire.toString(StandardCharsets.UTF_8));
+    }
+
+    // Test that flushing an empty buffer does not send the zero-length chunk that would end the body
+    @Test
+    public void testEmptyFlushSendsNothing() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ChunkedOutputStream body = new ChunkedOutputStream(wire);
+        body.flush();
+        assertEquals(0, wire.size());
+        body.write('x');
+        body.flush();
+        assertEquals("1\r\nx\r\n", wire.toString(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,132 @@
+package com.weather.app;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarStationStoreTest {
+
+    private static Map<String, String> reading(String id, String airTemp) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("id", id);
+        fields.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        fields.put("state", "SA");
+        fields.put("time_zone", "CST");
+        fields.put("lat", "-34.9");
+        fields.put("lon", "138.6");
+        fields.put("local_date_time", "15/04:00pm");
+        fields.put("local_date_time_full", "20230715160000");
+        fields.put("air_temp", airTemp);
+        fields.put("apparent_t", "9.5");
+        fields.put("cloud", "Partly cloudy");
+        fields.put("dewpt", "5.7");
+        fields.put("press", "1023.9");
+        fields.put("rel_hum", "60");
+        fields.put("wind_dir", "S");
+        fields.put("wind_spd_kmh", "15");
+        fields.put("wind_spd_kt", "8");
+        return fields;
+    }
+
+    // Test that every field reads back exactly as it was sent, including values the columns cannot hold
+    @Test
+    public void testFieldsRoundTripExactly() {
+        ColumnarStationStore store = new ColumnarStationStore();
+        Map<String, String> fields = reading("IDS60901", "13.3");
+        fields.put("press", "1024");         // Whole number in a double column
+        fields.put("rel_hum", "60.5");       // Fraction in an int column goes to overflow
+        fields.put("dewpt", "5.70");         // Trailing zero cannot be reproduced from a double
+        fields.put("temperature", "25");     // Field outside the schema
+        assertTrue(store.put("IDS60901", fields, 3, 1000L));
+
+        assertEquals(fields, store.get("IDS60901"));
+        assertFalse(store.put("IDS60901", Map.of("id", "IDS60901", "rel_hum", "61"), 4, 2000L), "Existing station is merged");
+        assertEquals("61", store.get("IDS60901").get("rel_hum"));
+        assertEquals("SA", store.get("IDS60901").get("state"));
+        assertTrue(store.toJson("IDS60901").contains("\"wind_dir\":\"S\""));
+    }
+
+    // Test that expiry honours a later PUT and that freed ordinals are reused
+    @Test
+    public void testRemoveIfStaleAndReuse() {
+        ColumnarStationStore store = new ColumnarStationStore(16);
+        store.put("A", reading("A", "10.0"), 1, 1000L);
+        store.put("B", reading("B", "20.0"), 1, 5000L);
+
+        assertFalse(store.removeIfStale("B", 6000L, 30000L));
+        assertTrue(store.removeIfStale("A", 31000L, 30000L));
+        assertFalse(store.contains("A"));
+        assertEquals(1, store.size());
+
+        store.put("C", reading("C", "30.0"), 1, 7000L);
+        assertEquals("30.0", store.get("C").get("air_temp"));
+        assertEquals("[" + store.toJson("C") + "," + store.toJson("B") + "]", store.toJsonArray(), "C reuses A's ordinal");
+    }
+
+    // Test that paging through the store yields the same stations as the whole array, a bounded number at a time
+    @Test
+    public void testJsonPagesMatchTheArray() {
+        ColumnarStationStore store = new ColumnarStationStore(16);
+        for (int i = 0; i < 25; i++) {
+            store.put("P" + i, reading("P" + i, i + ".0"), 1, 1000L);
+        }
+        store.removeIfStale("P3", 40000L, 30000L);
+        store.put("P3", reading("P3", "3.0"), 1, 50000L); // Only P3 is fresh now; the rest stay stored
+
+        StringBuilder joined = new StringBuilder("[");
+        StringBuilder page = new StringBuilder();
+        int pages = 0;
+        for (int position = 0; position >= 0; pages++) {
+            page.setLength(0);
+            position = store.appendJsonPage(page, position, 10);
+            assertTrue(page.length() == 0 || page.toString().split("\\{\"id\"", -1).length - 1 <= 10, "At most 10 stations per page.");
+            joined.append(joined.length() > 1 && page.length() > 0 ? "," : "").append(page);
+        }
+        assertEquals(store.toJsonArray(), joined.append(']').toString());
+        assertEquals(3, pages);
+    }
+
+    // Test that many stations grow the columns and that a single-field scan sees each of them once
+    @Test
+    public void testManyStationsAndColumnScan() {
+        ColumnarStationStore store = new ColumnarStationStore(16);
+        int stations = 100_000;
+        for (int i = 0; i < stations; i++) {
+            store.put("S" + i, reading("S" + i, Integer.toString(i % 40)), i, i);
+        }
+        for (int i = 0; i < stations; i += 2) {
+            store.removeIfStale("S" + i, Long.MAX_VALUE, 0);
+        }
+
+        assertEquals(stations / 2, store.size());
+        assertTrue(store.contains("S99999"));
+        assertFalse(store.contains("S99998"));
+        DoubleSummaryStatistics airTemp = store.summarize("air_temp");
+        assertEquals(stations / 2, airTemp.getCount());
+        assertEquals(39.0, airTemp.getMax());
+        assertThrows(IllegalArgumentException.class, () -> store.summarize("cloud"));
+    }
+
+    // Test that the snapshot uses the map store's data file layout
+    @Test
+    public void testSnapshotMatchesMapStoreLayout() throws Exception {
+        ColumnarStationStore store = new ColumnarStationStore();
+        store.put("IDS60901", reading("IDS60901", "13.3"), 7, 1234L);
+        StringWriter snapshot = new StringWriter();
+        store.writeSnapshot(snapshot);
+
+        Map<String, WeatherStationData> loaded = new Gson().fromJson(snapshot.toString(),
+                new TypeToken<Map<String, WeatherStationData>>() {}.getType());
+        WeatherStationData station = loaded.get("IDS60901");
+        assertEquals(reading("IDS60901", "13.3"), station.getData());
+        assertEquals(7, station.getLamportClock());
+        assertEquals(1234L, station.getLastUpdateTime());
+    }
+}
@@ -60,6 +60,23 @@ public class ContentServerTest {
         }
     }
 
+    @Test
+    public void testContentServerSendsSeveralStationsAsOneBatch() {
+        try {
+            File tempFile = createTempFileWithData("id:A1\nname:First\nid:A2\nname:Second");
+
+            ContentServer.main(new String[]{"http://localhost:" + serverPort, tempFile.getAbsolutePath()});
+            Thread.sleep(500);
+
+            JsonArray receivedJson = JsonParser.parseString(receivedData).getAsJsonArray();
+            assertEquals(2, receivedJson.size(), "Both stations should arrive in one PUT");
+            assertEquals("Second", receivedJson.get(1).getAsJsonObject().get("name").getAsString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Exception occurred: " + e.getMessage());
+        }
+    }
+
     @Test
     public void testContentServerHandlesInvalidData() {
         try {
@@ -149,4 +149,63 @@ public class GETClientTest {
         }
     }
 
+    @Test
+    public void testGETClientWatchReturnsChangesAndHighWater() {
+        try {
+            // Prepare test data by running ContentServer
+            File tempFile = File.createTempFile("weatherData", ".txt");
+            try (PrintWriter writer = new PrintWriter(tempFile)) {
+                writer.println("id:WATCH_ID");
+                writer.println("name:Watched Station");
+            }
+
+            ContentServer.main(new String[]{"http://localhost:" + serverPort, tempFile.getAbsolutePath()});
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            PrintStream originalOut = System.out;
+            System.setOut(new PrintStream(outputStream));
+
+            // One watch round from since=0 returns at once with every station
+            long highWater = GETClient.watchOnce(new URL("http://localhost:" + serverPort), "WATCH_ID", 0);
+
+            // Restore original System.out
+            System.setOut(originalOut);
+
+            String output = outputStream.toString();
+            assertTrue(output.contains("id: WATCH_ID"), "Output should contain the watched station");
+            assertTrue(highWater > 0, "The server should return a high-water mark to poll from next");
+
+            tempFile.delete();
+
+        } catch (IOException e) {
+            fail("IOException occurred: " + e.getMessage());
+        }
+    }
+
+    // Test that the client sends the ETag back and an unchanged GET is answered with 304 and no data
+    @Test
+    public void testGETClientSendsETagBackForUnchangedData() throws IOException {
+        File tempFile = File.createTempFile("weatherData", ".txt");
+        try (PrintWriter writer = new PrintWriter(tempFile)) {
+            writer.println("id:ETAG_ID");
+            writer.println("name:Tagged Station");
+        }
+        ContentServer.main(new String[]{"http://localhost:" + serverPort, tempFile.getAbsolutePath()});
+        tempFile.delete();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream));
+        try {
+            GETClient.fetch("http://localhost:" + serverPort, null);
+            GETClient.fetch("http://localhost:" + serverPort, null);
+        } finally {
+            System.setOut(originalOut);
+        }
+
+        String output = outputStream.toString();
+        assertTrue(output.contains("Status: HTTP/1.1 200 OK"));
+        assertTrue(output.contains("Status: HTTP/1.1 304 Not Modified"), "The second GET sends the ETag back");
+        assertEquals(output.indexOf("ETAG_ID"), output.lastIndexOf("ETAG_ID"), "Unchanged data is printed once");
+    }
 }
@@ -0,0 +1,60 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRequestParserTest {
+
+    // Test that the known headers are recognized during the scan and other headers are looked up case-insensitively
+    @Test
+    public void testHeadParsedInPlace() throws IOException {
+        byte[] bytes = ("GET /weather?id=1 HTTP/1.1\r\nlamport-clock:7\r\nConnection: keep-alive\r\n"
+                + "Accept-Encoding: gzip\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestParser request = new HttpRequestParser();
+
+        assertEquals(bytes.length, request.parse(bytes, 0, bytes.length));
+        assertSame("GET", request.method());
+        assertEquals("/weather?id=1", request.path());
+        assertEquals(7, request.lamportClock());
+        assertTrue(request.keepAlive());
+        assertEquals("gzip", request.headers().get("accept-encoding"));
+        assertNull(request.headers().get("If-None-Match"));
+
+        byte[] unordered = "PUT / HTTP/1.1\r\nLamport-Clock: soon\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        request.parse(unordered, 0, unordered.length);
+        assertEquals(StationClocks.UNORDERED, request.lamportClock(), "A malformed clock is treated as none");
+
+        byte[] truncated = "GET /weather HTTP/1.1\r\nHost: x".getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(-1, request.parse(truncated, 0, truncated.length), "An incomplete head is not parsed");
+        byte[] invalid = "PUT / HTTP/1.1\r\nContent-Length: -5\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        assertThrows(ProtocolException.class, () -> request.parse(invalid, 0, invalid.length));
+    }
+
+    // Test that a body is read by its Content-Length in bytes, leaving a pipelined request in the buffer
+    @Test
+    public void testBodyReadByByteCount() throws IOException {
+        String body = "{\"id\":\"1\",\"name\":\"København\"}";
+        byte[] requests = ("PUT / HTTP/1.1\r\nContent-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n"
+                + body + "GET / HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(requests);
+        ByteBuffer buffer = HttpRequestParser.acquireBuffer();
+        HttpRequestParser request = new HttpRequestParser();
+        try {
+            assertTrue(request.readHead(buffer, in));
+            assertEquals(body, request.readBody(buffer, in));
+            assertTrue(request.readHead(buffer, in));
+            assertEquals("GET", request.method());
+            assertFalse(request.readHead(buffer, in), "The stream has ended");
+        } finally {
+            HttpRequestParser.releaseBuffer(buffer);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedStationStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Map<String, String> reading(String id, String airTemp) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("id", id);
+        fields.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        fields.put("state", "SA");
+        fields.put("lat", "-34.9");
+        fields.put("local_date_time_full", "20230715160000");
+        fields.put("air_temp", airTemp);
+        fields.put("rel_hum", "60");
+        fields.put("wind_dir", "S");
+        return fields;
+    }
+
+    // Test that records survive a reopen exactly as they were written, without any JSON file
+    @Test
+    public void testRecordsSurviveReopen() throws Exception {
+        Path file = tempDir.resolve("stations.slots");
+        MappedStationStore store = MappedStationStore.open(file, 16);
+        Map<String, String> fields = reading("IDS60901", "13.3");
+        fields.put("rel_hum", "60.5");       // Goes to the overflow area
+        fields.put("temperature", "25");     // Field outside the schema
+        assertTrue(store.put("IDS60901", fields, 3, 1000L));
+        assertFalse(store.put("IDS60901", Map.of("id", "IDS60901", "air_temp", "14.1"), 4, 2000L));
+        store.force(java.util.List.of("IDS60901"));
+        store.close();
+
+        MappedStationStore reopened = MappedStationStore.open(file, 16);
+        fields.put("air_temp", "14.1");
+        assertEquals(fields, reopened.get("IDS60901"));
+        Map<String, Long> updated = new HashMap<>();
+        reopened.forEachStation(updated::put);
+        assertEquals(Map.of("IDS60901", 2000L), updated);
+        reopened.close();
+    }
+
+    // Test that the table grows past its initial capacity and expired slots are reused
+    @Test
+    public void testGrowsAndRemoves() throws Exception {
+        MappedStationStore store = MappedStationStore.open(tempDir.resolve("stations.slots"), 16);
+        for (int i = 0; i < 1000; i++) {
+            store.put("S" + i, reading("S" + i, Integer.toString(i % 40)), i, i);
+        }
+        assertEquals(1000, store.size());
+        assertTrue(store.getCapacity() >= 2000);
+        assertEquals("7", store.get("S7").get("air_temp"));
+
+        assertTrue(store.removeIfStale("S7", 40000L, 30000L));
+        assertFalse(store.removeIfStale("S999", 999L + 29999L, 30000L), "Not stale yet");
+        assertFalse(store.contains("S7"));
+        assertTrue(store.put("S7", reading("S7", "1.5"), 1, 50000L));
+        assertEquals(1000, store.size());
+        store.close();
+    }
+
+    // Test that a torn record is discarded on restart and oversized records are rejected
+    @Test
+    public void testCorruptRecordDiscardedAndOversizedRejected() throws Exception {
+        Path file = tempDir.resolve("stations.slots");
+        MappedStationStore store = MappedStationStore.open(file, 16);
+        store.put("A", reading("A", "10.0"), 1, 1000L);
+        store.put("B", reading("B", "20.0"), 1, 1000L);
+        Map<String, String> huge = reading("C", "30.0");
+        huge.put("notes", "x".repeat(MappedStationStore.SLOT_SIZE));
+        assertThrows(IllegalArgumentException.class, () -> store.put("C", huge, 1, 1000L));
+        assertFalse(store.contains("C"));
+        store.close();
+
+        // Flip a byte inside the record of A, as a crash part-way through writing it would
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            for (long offset = 64; offset < raw.length(); offset += MappedStationStore.SLOT_SIZE) {
+                raw.seek(offset + 4);
+                if (raw.read() == 1) {
+                    raw.seek(offset + 106); // First byte of the id, after its length
+                    int idFirstByte = raw.read();
+                    if (idFirstByte == 'A') {
+                        raw.seek(offset + 32);
+                        raw.write(0x7f);
+                    }
+                }
+            }
+        }
+
+        MappedStationStore reopened = MappedStationStore.open(file, 16);
+        assertFalse(reopened.contains("A"), "Corrupt record is dropped");
+        assertEquals("20.0", reopened.get("B").get("air_temp"));
+        assertEquals(1, reopened.size());
+        reopened.close();
+    }
+}
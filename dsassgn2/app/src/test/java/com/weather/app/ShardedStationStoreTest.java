@@ -0,0 +1,190 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardedStationStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static Map<String, String> reading(String id, String airTemp) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("id", id);
+        fields.put("state", "SA");
+        fields.put("air_temp", airTemp);
+        return fields;
+    }
+
+    // Test that stations are spread over the partitions, merged like the map store and gathered for GET
+    @Test
+    public void testPutGetAndGather() throws Exception {
+        ShardedStationStore store = ShardedStationStore.open(tempDir, 4);
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(store.put("S" + i, reading("S" + i, "10." + i), i, 1000L));
+            }
+            assertFalse(store.put("S3", Map.of("id", "S3", "air_temp", "99"), 30, 2000L));
+
+            assertEquals(20, store.size());
+            assertEquals("99", store.get("S3").get("air_temp"));
+            assertEquals("SA", store.get("S3").get("state"), "Fields not in the PUT are kept.");
+            assertNull(store.get("missing"));
+
+            String json = store.toJsonArray();
+            for (int i = 0; i < 20; i++) {
+                assertTrue(json.contains("\"id\":\"S" + i + "\""), "Every partition contributes to the GET body.");
+            }
+            long logs;
+            try (var files = Files.list(tempDir)) {
+                logs = files.filter(path -> path.getFileName().toString().endsWith(ShardedStationStore.LOG_SUFFIX)).count();
+            }
+            assertEquals(4, logs, "Each partition appends to its own log.");
+        } finally {
+            store.close();
+        }
+    }
+
+    // Test that acknowledged PUTs survive a restart, including one with a different partition count
+    @Test
+    public void testSegmentsSurviveReopenAndResharding() throws Exception {
+        ShardedStationStore store = ShardedStationStore.open(tempDir, 4);
+        for (int i = 0; i < 50; i++) {
+            store.put("S" + i, reading("S" + i, String.valueOf(i)), i, 1000L + i);
+        }
+        assertTrue(store.removeIfStale("S0", 40_000L, 30_000L));
+        store.put("S1", reading("S1", "updated"), 60, 50_000L);
+        store.close();
+
+        ShardedStationStore reopened = ShardedStationStore.open(tempDir, 2);
+        try {
+            assertEquals(49, reopened.size());
+            assertFalse(reopened.contains("S0"));
+            assertEquals("updated", reopened.get("S1").get("air_temp"));
+            assertEquals("49", reopened.get("S49").get("air_temp"));
+            assertFalse(Files.exists(tempDir.resolve(ShardedStationStore.SEGMENT_PREFIX + "3" + ShardedStationStore.SEGMENT_SUFFIX)),
+                    "Segments beyond the new partition count are removed.");
+            assertFalse(Files.exists(tempDir.resolve(ShardedStationStore.SEGMENT_PREFIX + "3" + ShardedStationStore.LOG_SUFFIX)),
+                    "Logs beyond the new partition count are removed.");
+            Map<String, Long> updateTimes = new HashMap<>();
+            reopened.forEachStation(updateTimes::put);
+            assertEquals(50_000L, updateTimes.get("S1"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    // Test that a partition's log is folded into its segment once superseded lines dominate it
+    @Test
+    public void testLogIsCompactedIntoTheSegment() throws Exception {
+        ShardedStationStore store = ShardedStationStore.open(tempDir, 1);
+        int updates = 2 * ShardedStationStore.COMPACT_MIN_RECORDS + 10;
+        for (int i = 0; i < updates; i++) {
+            store.put("S", reading("S", String.valueOf(i)), i, 1000L + i);
+        }
+        store.close();
+
+        Path log = tempDir.resolve(ShardedStationStore.SEGMENT_PREFIX + "0" + ShardedStationStore.LOG_SUFFIX);
+        assertTrue(Files.readAllLines(log).size() <= ShardedStationStore.COMPACT_MIN_RECORDS,
+                "The log is emptied once it is compacted.");
+        assertTrue(Files.exists(tempDir.resolve(ShardedStationStore.SEGMENT_PREFIX + "0" + ShardedStationStore.SEGMENT_SUFFIX)),
+                "Compaction writes the partition's segment.");
+
+        ShardedStationStore reopened = ShardedStationStore.open(tempDir, 1);
+        try {
+            assertEquals(String.valueOf(updates - 1), reopened.get("S").get("air_temp"),
+                    "The segment and the rest of the log restore the last update.");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    // Test that the owner thread drops an update older than the one it already applied
+    @Test
+    public void testStaleUpdateIsDroppedByTheOwner() throws Exception {
+        ShardedStationStore store = ShardedStationStore.open(tempDir, 4);
+        try {
+            assertEquals(Boolean.TRUE, store.putInOrder("S", reading("S", "new"), 5, 10, 1000L));
+            assertNull(store.putInOrder("S", reading("S", "old"), 3, 11, 1001L), "A stale update is dropped.");
+            assertEquals("new", store.get("S").get("air_temp"));
+            assertEquals(Boolean.FALSE, store.putInOrder("S", reading("S", "newer"), 7, 12, 1002L));
+            assertEquals("newer", store.get("S").get("air_temp"));
+        } finally {
+            store.close();
+        }
+    }
+
+    // Test that each owner expires its own stations and reports them to the listener
+    @Test
+    public void testOwnersExpireDueStations() throws Exception {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        OrderingStationStore.ChangeListener listener = new OrderingStationStore.ChangeListener() {
+            @Override
+            public void updated(String stationId) {
+            }
+
+            @Override
+            public void expired(String stationId) {
+                expired.add(stationId);
+            }
+        };
+        ShardedStationStore store = ShardedStationStore.open(tempDir, 4, 30_000L, listener);
+        try {
+            long now = System.currentTimeMillis();
+            store.put("Old", reading("Old", "1"), 1, now - 60_000L);
+            store.put("Fresh", reading("Fresh", "2"), 2, now);
+            for (int i = 0; i < 100 && !expired.contains("Old"); i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(List.of("Old"), expired, "The owner expires a station once its deadline passes.");
+            assertFalse(store.contains("Old"));
+
+            assertEquals(1, store.expireDue(now + 60_000L));
+            assertEquals(List.of("Old", "Fresh"), expired);
+            assertFalse(store.contains("Fresh"));
+        } finally {
+            store.close();
+        }
+    }
+
+    // Test that concurrent writers on every partition lose nothing
+    @Test
+    public void testConcurrentPutsAreAllApplied() throws Exception {
+        ShardedStationStore store = ShardedStationStore.open(tempDir, 4);
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int writer = t;
+                pending.add(writers.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        String id = "W" + writer + "-" + i;
+                        store.put(id, reading(id, String.valueOf(i)), i, 1000L);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+            assertEquals(800, store.size());
+            assertEquals("99", store.get("W7-99").get("air_temp"));
+        } finally {
+            writers.shutdown();
+            store.close();
+        }
+    }
+}